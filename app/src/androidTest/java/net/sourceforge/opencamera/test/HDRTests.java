@@ -16,7 +16,10 @@ public class HDRTests {
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testDROZero"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testDRODark0"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testDRODark1"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testDROBackends"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDR1"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDRStreaming"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDRBackends"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDR2"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDR3"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDR4"));
@@ -1,5 +1,6 @@
 package net.sourceforge.opencamera.test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -11,6 +12,7 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -19,6 +21,7 @@ import java.util.Set;
 
 import net.sourceforge.opencamera.LocationSupplier;
 import net.sourceforge.opencamera.MyPreferenceFragment;
+import net.sourceforge.opencamera.PanoramaProcessor;
 import net.sourceforge.opencamera.PanoramaProcessorException;
 import net.sourceforge.opencamera.cameracontroller.CameraController2;
 import net.sourceforge.opencamera.HDRProcessor;
@@ -31,12 +34,18 @@ import net.sourceforge.opencamera.preview.ApplicationInterface;
 import net.sourceforge.opencamera.preview.VideoProfile;
 import net.sourceforge.opencamera.SaveLocationHistory;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.CameraControllerSimulated;
+import net.sourceforge.opencamera.cameracontroller.JpegBufferPool;
 import net.sourceforge.opencamera.preview.Preview;
+import net.sourceforge.opencamera.ui.DrawPreview;
 import net.sourceforge.opencamera.ui.FolderChooserDialog;
+import net.sourceforge.opencamera.ui.FrameStats;
 import net.sourceforge.opencamera.ui.PopupView;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.ActivityManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
@@ -2800,6 +2809,99 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         assertFalse(mPreview.refreshPreviewBitmapTaskIsRunning());
     }
 
+    /* Tests generating the histogram, zebra stripes and focus peaking together, with each of the
+     * overlay backends.
+     */
+    public void testPreviewBitmapOverlays() throws InterruptedException {
+        Log.d(TAG, "testPreviewBitmapOverlays");
+
+        if( !mActivity.supportsPreviewBitmaps() ) {
+            Log.d(TAG, "preview bitmaps not supported");
+            return;
+        }
+
+        setToDefault();
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(PreferenceKeys.HistogramPreferenceKey, "preference_histogram_rgb");
+        editor.putString(PreferenceKeys.ZebraStripesPreferenceKey, "250");
+        editor.putString(PreferenceKeys.FocusPeakingPreferenceKey, "preference_focus_peaking_on");
+        editor.apply();
+        updateForSettings();
+
+        Preview.OverlayBackend [] backends = new Preview.OverlayBackend[]{Preview.OverlayBackend.OVERLAYBACKEND_JAVA, Preview.OverlayBackend.OVERLAYBACKEND_RENDERSCRIPT};
+        for(Preview.OverlayBackend backend : backends) {
+            Log.d(TAG, "test backend: " + backend);
+            mPreview.setOverlayBackend(backend);
+            assertEquals(backend, mPreview.getOverlayBackend());
+            Thread.sleep(1000);
+            this.getInstrumentation().waitForIdleSync();
+
+            assertTrue(mPreview.isPreviewBitmapEnabled());
+            int [] histogram = mPreview.getHistogram();
+            assertNotNull(histogram);
+            assertEquals(3*256, histogram.length);
+            assertNotNull(mPreview.getZebraStripesBitmap());
+            assertNotNull(mPreview.getFocusPeakingBitmap());
+            Log.d(TAG, "overlay fps: " + mPreview.getOverlayFps());
+            Log.d(TAG, "overlay downscale: " + mPreview.getOverlayDownscale());
+            assertTrue(mPreview.getOverlayFps() > 0.0f);
+            assertTrue(mPreview.getOverlayDownscale() >= 4 && mPreview.getOverlayDownscale() <= 8);
+        }
+
+        assertEquals(0.25f, mPreview.getOverlayCPUBudget(), 1.0e-5f);
+        editor = settings.edit();
+        editor.putString(PreferenceKeys.OverlayCPUBudgetPreferenceKey, "10");
+        editor.apply();
+        updateForSettings();
+        Thread.sleep(1000);
+        this.getInstrumentation().waitForIdleSync();
+        assertEquals(0.1f, mPreview.getOverlayCPUBudget(), 1.0e-5f);
+        assertTrue(mPreview.isPreviewBitmapEnabled());
+        assertNotNull(mPreview.getZebraStripesBitmap());
+        Log.d(TAG, "overlay fps with lower cpu budget: " + mPreview.getOverlayFps());
+        assertTrue(mPreview.getOverlayFps() > 0.0f);
+    }
+
+    /* Tests recording the per-frame draw statistics for the on-screen UI, with the histogram
+     * enabled (so we also draw the histogram paths).
+     */
+    public void testDrawPreviewFrameStats() throws InterruptedException {
+        Log.d(TAG, "testDrawPreviewFrameStats");
+        setToDefault();
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(PreferenceKeys.HistogramPreferenceKey, "preference_histogram_rgb");
+        editor.putBoolean(PreferenceKeys.ShowFrameStatsPreferenceKey, true);
+        editor.apply();
+        updateForSettings();
+
+        final DrawPreview drawPreview = mActivity.getApplicationInterface().getDrawPreview();
+        Thread.sleep(2000);
+
+        mActivity.runOnUiThread(new Runnable() {
+            public void run() {
+                FrameStats frame_stats = drawPreview.getFrameStats();
+                Log.d(TAG, "n frames: " + frame_stats.getNFrames());
+                Log.d(TAG, "average draw time: " + frame_stats.getAverageDrawTimeMs());
+                Log.d(TAG, "max draw time: " + frame_stats.getMaxDrawTimeMs());
+                Log.d(TAG, "average alloc count: " + frame_stats.getAverageAllocCount());
+                Log.d(TAG, "max alloc count: " + frame_stats.getMaxAllocCount());
+                assertTrue(frame_stats.getNFrames() > 0);
+                assertTrue(frame_stats.getAverageDrawTimeMs() > 0.0f);
+                assertTrue(frame_stats.getMaxDrawTimeMs() >= frame_stats.getAverageDrawTimeMs());
+            }
+        });
+        this.getInstrumentation().waitForIdleSync();
+
+        editor = settings.edit();
+        editor.putBoolean(PreferenceKeys.ShowFrameStatsPreferenceKey, false);
+        editor.apply();
+        updateForSettings();
+    }
+
     public void testTakePhotoExposureCompensation() throws InterruptedException {
         Log.d(TAG, "testTakePhotoExposureCompensation");
         setToDefault();
@@ -3495,8 +3597,13 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
                 exp_n_new_files *= 2;
             }
         }
-        else if( is_fast_burst )
+        else if( is_fast_burst ) {
             exp_n_new_files = n_fast_burst_images;
+            int n_keep_best = mActivity.getApplicationInterface().getFastBurstKeepBestPref();
+            if( n_keep_best > 0 ) {
+                exp_n_new_files = Math.min(exp_n_new_files, n_keep_best);
+            }
+        }
         else {
             exp_n_new_files = 1;
             if( is_raw && !mActivity.getApplicationInterface().isRawOnly() ) {
@@ -3975,6 +4082,57 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         subTestTakePhoto(false, false, true, true, false, false, false, false);
     }
 
+    /** Tests taking a photo with the option to save photos in parallel. Also tests that photos
+     *  are saved one at a time by default.
+     */
+    public void testTakePhotoParallelSaving() throws InterruptedException {
+        Log.d(TAG, "testTakePhotoParallelSaving");
+        setToDefault();
+        assertEquals(1, mActivity.getApplicationInterface().getImageSaver().getNWorkers());
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putBoolean(PreferenceKeys.ParallelPhotoSavingPreferenceKey, true);
+        editor.apply();
+        restart();
+        Thread.sleep(1000);
+
+        ActivityManager activityManager = (ActivityManager)mActivity.getSystemService(Activity.ACTIVITY_SERVICE);
+        int expected_n_workers = ImageSaver.computeNWorkers(activityManager.getLargeMemoryClass(), Runtime.getRuntime().availableProcessors());
+        Log.d(TAG, "expected_n_workers: " + expected_n_workers);
+        assertEquals(expected_n_workers, mActivity.getApplicationInterface().getImageSaver().getNWorkers());
+
+        subTestTakePhoto(false, false, true, true, false, false, false, false);
+    }
+
+    /** Tests that the gallery icon uses the cached latest media, after taking a photo.
+     */
+    public void testTakePhotoLatestMediaCache() throws InterruptedException {
+        Log.d(TAG, "testTakePhotoLatestMediaCache");
+        setToDefault();
+        subTestTakePhoto(false, false, true, true, false, false, false, false);
+
+        int n_hits = mActivity.getStorageUtils().getLatestMediaNCacheHits();
+        Log.d(TAG, "n_hits: " + n_hits);
+        int n_thumbnail_hits = mActivity.getApplicationInterface().getThumbnailCache().getNMemoryHits();
+        Log.d(TAG, "n_thumbnail_hits: " + n_thumbnail_hits);
+        for(int i=0;i<2;i++) {
+            mActivity.runOnUiThread(new Runnable() {
+                public void run() {
+                    mActivity.updateGalleryIcon();
+                }
+            });
+            this.getInstrumentation().waitForIdleSync();
+            Thread.sleep(1000);
+        }
+        Log.d(TAG, "n_hits is now: " + mActivity.getStorageUtils().getLatestMediaNCacheHits());
+        // the saved photo should have updated the cache, so the second update at least shouldn't need to search the folder
+        assertTrue(mActivity.getStorageUtils().getLatestMediaNCacheHits() > n_hits);
+        Log.d(TAG, "n_thumbnail_hits is now: " + mActivity.getApplicationInterface().getThumbnailCache().getNMemoryHits());
+        // similarly the thumbnail should be cached, so shouldn't need to be decoded again
+        assertTrue(mActivity.getApplicationInterface().getThumbnailCache().getNMemoryHits() > n_thumbnail_hits);
+    }
+
     /** Test taking photo with JPEG + DNG (RAW).
      */
     public void testTakePhotoRaw() throws InterruptedException {
@@ -4251,6 +4409,14 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         assertTrue(mActivity.getApplicationInterface().getDrawPreview().getStoredAutoStabilisePref());
 
         subTestTakePhoto(false, false, true, true, false, false, false, false);
+
+        mActivity.waitUntilImageQueueEmpty();
+        // check the tiled rotate and crop reported its performance
+        ImageSaver imageSaver = mActivity.getApplicationInterface().getImageSaver();
+        Log.d(TAG, "auto-stabilise peak bytes: " + imageSaver.last_auto_stabilise_peak_bytes);
+        Log.d(TAG, "auto-stabilise ms per megapixel: " + imageSaver.last_auto_stabilise_ms_per_mp);
+        assertTrue(imageSaver.last_auto_stabilise_peak_bytes > 0);
+        assertTrue(imageSaver.last_auto_stabilise_ms_per_mp > 0.0);
     }
 
     /** Test taking photo with continuous photo mode.
@@ -10144,6 +10310,9 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         this.getInstrumentation().waitForIdleSync();
         Log.d(TAG, "photo count: " + mPreview.count_cameraTakePicture);
         assertEquals(1, mPreview.count_cameraTakePicture);
+        mActivity.waitUntilImageQueueEmpty();
+        // should have stamped by only re-encoding the region of the jpeg under the stamp
+        assertEquals(1, mActivity.getApplicationInterface().getImageSaver().test_n_stamp_region);
 
         // now test with auto-stabilise
         {
@@ -10163,6 +10332,8 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         assertEquals(2, mPreview.count_cameraTakePicture);
 
         mActivity.waitUntilImageQueueEmpty();
+        // auto-stabilise requires decoding the whole image
+        assertEquals(1, mActivity.getApplicationInterface().getImageSaver().test_n_stamp_region);
     }
 
     /* Tests zoom.
@@ -11497,6 +11668,47 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         }
     }
 
+    /** Tests taking photo in HDR photo mode, forcing HDRProcessor.processHDRStreaming() to be used.
+     */
+    public void testTakePhotoHDRStreaming() throws InterruptedException {
+        Log.d(TAG, "testTakePhotoHDRStreaming");
+
+        setToDefault();
+
+        if( !mActivity.supportsHDR() ) {
+            return;
+        }
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+            Log.d(TAG, "streaming HDR requires Android Lollipop or better");
+            return;
+        }
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_hdr");
+        editor.apply();
+        updateForSettings();
+
+        mActivity.getApplicationInterface().getImageSaver().test_streaming_hdr = true;
+
+        assertSame(mActivity.getApplicationInterface().getPhotoMode(), MyApplicationInterface.PhotoMode.HDR);
+        subTestTakePhoto(false, false, true, true, false, false, false, false);
+        if( mPreview.usingCamera2API() ) {
+            Log.d(TAG, "test_capture_results: " + mPreview.getCameraController().test_capture_results);
+            assertEquals(1, mPreview.getCameraController().test_capture_results);
+        }
+
+        // the peak memory should be less than for processing the 3 images at full resolution (see
+        // the estimate in HDRProcessor.useStreaming())
+        long peak_bytes = mActivity.getApplicationInterface().getHDRProcessor().getPeakWorkingBytes();
+        CameraController.Size picture_size = mPreview.getCurrentPictureSize();
+        long frame_bytes = 4L*picture_size.width*picture_size.height;
+        Log.d(TAG, "peak_bytes: " + peak_bytes);
+        Log.d(TAG, "frame_bytes: " + frame_bytes);
+        assertTrue(peak_bytes > 0);
+        assertTrue(peak_bytes < 2*3*frame_bytes);
+    }
+
     /** Tests taking photo in HDR photo mode with saving base expo images.
      */
     public void testTakePhotoHDRSaveExpo() throws InterruptedException {
@@ -12120,6 +12332,31 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         assertTrue(mActivity.getPreview().getCameraController().getBurstTotal() < CameraController.N_IMAGES_NR_DARK_LOW_LIGHT);
     }
 
+    /** Tests NR photo mode, without averaging the images as they're captured.
+     */
+    public void testTakePhotoNRNoIncremental() throws InterruptedException {
+        Log.d(TAG, "testTakePhotoNRNoIncremental");
+
+        setToDefault();
+
+        if( !mActivity.supportsNoiseReduction() ) {
+            return;
+        }
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_noise_reduction");
+        editor.apply();
+        updateForSettings();
+
+        assertSame(mActivity.getApplicationInterface().getPhotoMode(), MyApplicationInterface.PhotoMode.NoiseReduction);
+
+        mActivity.getApplicationInterface().getImageSaver().test_no_incremental_average = true;
+        subTestTakePhoto(false, false, true, true, false, false, false, false);
+        Log.d(TAG, "test_capture_results: " + mPreview.getCameraController().test_capture_results);
+        assertEquals(1, mPreview.getCameraController().test_capture_results);
+    }
+
     /** Tests fast burst with 20 images.
      */
     public void testTakePhotoFastBurst() throws InterruptedException {
@@ -12146,6 +12383,115 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         }
     }
 
+    /** Tests fast burst with 20 images, only keeping the sharpest 2.
+     */
+    public void testTakePhotoFastBurstKeepBest() throws InterruptedException {
+        Log.d(TAG, "testTakePhotoFastBurstKeepBest");
+
+        setToDefault();
+
+        if( !mActivity.supportsFastBurst() ) {
+            return;
+        }
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_fast_burst");
+        editor.putString(PreferenceKeys.FastBurstNImagesPreferenceKey, "20");
+        editor.putString(PreferenceKeys.FastBurstKeepBestPreferenceKey, "2");
+        editor.apply();
+        updateForSettings();
+
+        assertSame(mActivity.getApplicationInterface().getPhotoMode(), MyApplicationInterface.PhotoMode.FastBurst);
+        assertEquals(2, mActivity.getApplicationInterface().getFastBurstKeepBestPref());
+        mActivity.getApplicationInterface().getImageSaver().test_n_best_of_burst_rejected = 0;
+        subTestTakePhoto(false, false, true, true, false, false, false, false);
+        Log.d(TAG, "test_n_best_of_burst_rejected: " + mActivity.getApplicationInterface().getImageSaver().test_n_best_of_burst_rejected);
+        assertEquals(18, mActivity.getApplicationInterface().getImageSaver().test_n_best_of_burst_rejected);
+        if( mPreview.usingCamera2API() ) {
+            Log.d(TAG, "test_capture_results: " + mPreview.getCameraController().test_capture_results);
+            assertEquals(1, mPreview.getCameraController().test_capture_results);
+        }
+    }
+
+    /** Tests taking photos with a simulated camera that returns recorded frames, and logs the
+     *  capture throughput.
+     */
+    public void testTakePhotoSimulatedCamera() throws InterruptedException, IOException {
+        Log.d(TAG, "testTakePhotoSimulatedCamera");
+
+        setToDefault();
+
+        File folder = new File(mActivity.getCacheDir(), "simulated_camera");
+        assertTrue(folder.exists() || folder.mkdirs());
+        try {
+            Bitmap bitmap = Bitmap.createBitmap(1600, 1200, Bitmap.Config.ARGB_8888);
+            for(int i=0;i<3;i++) {
+                bitmap.eraseColor(Color.rgb(64*i, 128, 255 - 64*i));
+                OutputStream outputStream = new FileOutputStream(new File(folder, "frame" + i + ".jpg"));
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+                outputStream.close();
+            }
+            bitmap.recycle();
+
+            mPreview.test_simulated_camera_folder = folder;
+            mPreview.test_simulated_camera_fps = 30.0;
+            mActivity.runOnUiThread(new Runnable() {
+                public void run() {
+                    mPreview.reopenCamera();
+                }
+            });
+            this.getInstrumentation().waitForIdleSync();
+            waitUntilCameraOpened();
+            assertEquals("Simulated", mPreview.getCameraController().getAPI());
+            assertEquals(1600, mPreview.getCameraController().getPictureSize().width);
+            assertEquals(1200, mPreview.getCameraController().getPictureSize().height);
+
+            SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+            SharedPreferences.Editor editor = settings.edit();
+            editor.putString(PreferenceKeys.RepeatModePreferenceKey, "5");
+            editor.apply();
+
+            int n_files = getNFiles();
+            long time_s = System.currentTimeMillis();
+            View takePhotoButton = mActivity.findViewById(net.sourceforge.opencamera.R.id.take_photo);
+            clickView(takePhotoButton);
+            while( mPreview.count_cameraTakePicture < 5 ) {
+                assertTrue( System.currentTimeMillis() - time_s < 20000 );
+                Thread.sleep(10);
+            }
+            waitForTakePhoto();
+            mActivity.waitUntilImageQueueEmpty();
+            long time_ms = System.currentTimeMillis() - time_s;
+            Log.d(TAG, "time to take and save 5 photos: " + time_ms + "ms");
+            Log.d(TAG, "photos per second: " + (5000.0/time_ms));
+
+            CameraControllerSimulated camera_controller = (CameraControllerSimulated)mPreview.getCameraController();
+            assertEquals(5, camera_controller.test_n_frames_captured);
+            assertTrue(camera_controller.test_last_capture_latency_ns > 0);
+            int n_new_files = getNFiles() - n_files;
+            Log.d(TAG, "n_new_files: " + n_new_files);
+            assertEquals(5, n_new_files);
+        }
+        finally {
+            mPreview.test_simulated_camera_folder = null;
+            mActivity.runOnUiThread(new Runnable() {
+                public void run() {
+                    mPreview.reopenCamera();
+                }
+            });
+            this.getInstrumentation().waitForIdleSync();
+            waitUntilCameraOpened();
+            File [] files = folder.listFiles();
+            if( files != null ) {
+                for(File file : files) {
+                    assertTrue(file.delete());
+                }
+            }
+            assertTrue(folder.delete());
+        }
+    }
+
     private void subTestTakePhotoContinuousBurst(boolean is_slow) throws InterruptedException {
         Log.d(TAG, "subTestTakePhotoContinuousBurst");
 
@@ -12192,6 +12538,18 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         }
 
         mActivity.waitUntilImageQueueEmpty();
+
+        if( mPreview.usingCamera2API() ) {
+            // images should have been received in pooled buffers, which are reused once saved
+            JpegBufferPool jpeg_buffer_pool = mActivity.getApplicationInterface().getJpegBufferPool();
+            Log.d(TAG, "jpeg buffer pool hits: " + jpeg_buffer_pool.getNHits());
+            Log.d(TAG, "jpeg buffer pool misses: " + jpeg_buffer_pool.getNMisses());
+            Log.d(TAG, "jpeg buffer pool bytes allocated: " + jpeg_buffer_pool.getBytesAllocated());
+            assertTrue(jpeg_buffer_pool.getNHits() + jpeg_buffer_pool.getNMisses() >= n_new_files);
+            if( !is_slow ) {
+                assertTrue(jpeg_buffer_pool.getNHits() > 0);
+            }
+        }
     }
 
     /** Tests continuous burst.
@@ -12480,6 +12838,15 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         return getBitmapFromFile(filename, 1);
     }
 
+    /** Compresses the supplied bitmap to a JPEG at 100% quality, and recycles the bitmap.
+     */
+    private byte [] getJpegFromBitmap(Bitmap bitmap) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, stream);
+        bitmap.recycle();
+        return stream.toByteArray();
+    }
+
     /** Loads bitmap from supplied filename.
      *  Note that on Android 10+ (with scoped storage), this uses Storage Access Framework, which
      *  means Open Camera must have SAF permission to the folder DCIM/testOpenCamera.
@@ -12982,6 +13349,180 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         checkHistogramDetails(hdrHistogramDetails, 2, 30, 254);
     }
 
+    /** Tests that HDRProcessor.processHDRStreaming() gives the same result as processHDR() (within
+     *  a tolerance, as the streaming version does the merge in Java, and the auto-alignment on
+     *  reduced resolution images), on test samples "saintpaul", and that it uses less memory.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public void testHDRStreaming() throws IOException, InterruptedException {
+        Log.d(TAG, "testHDRStreaming");
+
+        setToDefault();
+
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+            Log.d(TAG, "renderscript requires Android Lollipop or better");
+            return;
+        }
+
+        Thread.sleep(1000); // wait for camera to open
+
+        // the streaming version takes JPEGs as input, so use the same JPEGs for both versions
+        List<byte []> jpeg_images = new ArrayList<>();
+        jpeg_images.add( getJpegFromBitmap(getBitmapFromFile(hdr_images_path + "saintpaul/input2.jpg")) );
+        jpeg_images.add( getJpegFromBitmap(getBitmapFromFile(hdr_images_path + "saintpaul/input3.jpg")) );
+        jpeg_images.add( getJpegFromBitmap(getBitmapFromFile(hdr_images_path + "saintpaul/input4.jpg")) );
+
+        HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+        float hdr_alpha = ImageSaver.getHDRAlpha("preference_hdr_contrast_enhancement_smart", 1000000000L, jpeg_images.size());
+
+        List<Bitmap> inputs = new ArrayList<>();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        for(byte [] jpeg : jpeg_images) {
+            inputs.add( BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options) );
+        }
+        Bitmap streaming_bitmap;
+        long peak_bytes, streaming_peak_bytes;
+        try {
+            hdrProcessor.processHDR(inputs, true, null, true, null, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA);
+            peak_bytes = hdrProcessor.getPeakWorkingBytes();
+            streaming_bitmap = hdrProcessor.processHDRStreaming(jpeg_images, HDRProcessor.streaming_strip_height_c, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD);
+            streaming_peak_bytes = hdrProcessor.getPeakWorkingBytes();
+        }
+        catch(HDRProcessorException e) {
+            e.printStackTrace();
+            throw new RuntimeException();
+        }
+        Bitmap hdr_bitmap = inputs.get(0);
+        inputs.clear();
+        saveBitmap(hdr_bitmap, "testHDRStreaming_output.jpg");
+        saveBitmap(streaming_bitmap, "testHDRStreaming_streaming_output.jpg");
+        Log.d(TAG, "peak_bytes: " + peak_bytes);
+        Log.d(TAG, "streaming_peak_bytes: " + streaming_peak_bytes);
+        assertTrue(streaming_peak_bytes < peak_bytes);
+
+        assertEquals(hdr_bitmap.getWidth(), streaming_bitmap.getWidth());
+        assertEquals(hdr_bitmap.getHeight(), streaming_bitmap.getHeight());
+        HistogramDetails hdrHistogramDetails = checkHistogram(hdr_bitmap);
+        HistogramDetails streamingHistogramDetails = checkHistogram(streaming_bitmap);
+        checkHistogramDetails(streamingHistogramDetails, hdrHistogramDetails.min_value, hdrHistogramDetails.median_value, hdrHistogramDetails.max_value);
+
+        // also compare the average difference per pixel
+        double mean_diff = getMeanDifference(hdr_bitmap, streaming_bitmap);
+        Log.d(TAG, "mean_diff: " + mean_diff);
+        assertTrue(mean_diff <= 3.0);
+
+        hdr_bitmap.recycle();
+        streaming_bitmap.recycle();
+        Thread.sleep(500);
+    }
+
+    /** Returns the mean absolute difference per colour channel between the supplied bitmaps,
+     *  which should be of the same size.
+     */
+    private double getMeanDifference(Bitmap bitmap0, Bitmap bitmap1) {
+        int width = bitmap0.getWidth();
+        int height = bitmap0.getHeight();
+        int [] row0 = new int[width];
+        int [] row1 = new int[width];
+        long total_diff = 0;
+        for(int y=0;y<height;y++) {
+            bitmap0.getPixels(row0, 0, width, 0, y, width, 1);
+            bitmap1.getPixels(row1, 0, width, 0, y, width, 1);
+            for(int x=0;x<width;x++) {
+                total_diff += Math.abs(Color.red(row0[x]) - Color.red(row1[x]));
+                total_diff += Math.abs(Color.green(row0[x]) - Color.green(row1[x]));
+                total_diff += Math.abs(Color.blue(row0[x]) - Color.blue(row1[x]));
+            }
+        }
+        return total_diff / (3.0*width*height);
+    }
+
+    /** Runs HDRProcessor.processHDR() on the supplied images with each of the HDRBackends, and
+     *  checks that the results match within a tolerance. If there's only a single image, this
+     *  tests DRO.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void subTestHDRBackends(List<String> filenames, String output_name, float hdr_alpha) throws IOException, InterruptedException {
+        Log.d(TAG, "subTestHDRBackends");
+
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+            Log.d(TAG, "renderscript requires Android Lollipop or better");
+            return;
+        }
+
+        Thread.sleep(1000); // wait for camera to open
+
+        HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+        HDRProcessor.HDRBackend [] hdr_backends = new HDRProcessor.HDRBackend[]{HDRProcessor.HDRBackend.HDRBACKEND_RENDERSCRIPT, HDRProcessor.HDRBackend.HDRBACKEND_JAVA};
+        Bitmap [] outputs = new Bitmap[hdr_backends.length];
+        try {
+            for(int i=0;i<hdr_backends.length;i++) {
+                // processHDR() recycles the inputs, so reload them for each backend
+                List<Bitmap> inputs = new ArrayList<>();
+                for(String filename : filenames) {
+                    inputs.add( getBitmapFromFile(filename) );
+                }
+                hdrProcessor.setHDRBackend(hdr_backends[i]);
+                long time_s = System.currentTimeMillis();
+                hdrProcessor.processHDR(inputs, true, null, true, null, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA);
+                Log.d(TAG, hdr_backends[i] + " time: " + (System.currentTimeMillis() - time_s));
+                outputs[i] = inputs.get(0);
+                inputs.clear();
+                saveBitmap(outputs[i], hdr_backends[i] == HDRProcessor.HDRBackend.HDRBACKEND_JAVA ? "java_" + output_name : output_name);
+            }
+        }
+        catch(HDRProcessorException e) {
+            e.printStackTrace();
+            throw new RuntimeException();
+        }
+        finally {
+            hdrProcessor.setHDRBackend(HDRProcessor.HDRBackend.HDRBACKEND_RENDERSCRIPT);
+        }
+
+        HistogramDetails histogramDetails = checkHistogram(outputs[0]);
+        HistogramDetails javaHistogramDetails = checkHistogram(outputs[1]);
+        checkHistogramDetails(javaHistogramDetails, histogramDetails.min_value, histogramDetails.median_value, histogramDetails.max_value);
+        double mean_diff = getMeanDifference(outputs[0], outputs[1]);
+        Log.d(TAG, "mean_diff: " + mean_diff);
+        assertTrue(mean_diff <= 3.0);
+
+        for(Bitmap output : outputs) {
+            output.recycle();
+        }
+        Thread.sleep(500);
+    }
+
+    /** Tests that the HDR backends give the same results, on test samples "saintpaul".
+     */
+    public void testHDRBackends() throws IOException, InterruptedException {
+        Log.d(TAG, "testHDRBackends");
+
+        setToDefault();
+
+        List<String> inputs = new ArrayList<>();
+        inputs.add(hdr_images_path + "saintpaul/input2.jpg");
+        inputs.add(hdr_images_path + "saintpaul/input3.jpg");
+        inputs.add(hdr_images_path + "saintpaul/input4.jpg");
+
+        // actual ISO unknown, so guessing
+        float hdr_alpha = ImageSaver.getHDRAlpha("preference_hdr_contrast_enhancement_smart", 1000000000L, inputs.size());
+        subTestHDRBackends(inputs, "testHDRBackends_output.jpg", hdr_alpha);
+    }
+
+    /** Tests that the HDR backends give the same results for DRO on a dark image.
+     */
+    public void testDROBackends() throws IOException, InterruptedException {
+        Log.d(TAG, "testDROBackends");
+
+        setToDefault();
+
+        List<String> inputs = new ArrayList<>();
+        inputs.add(avg_images_path + "testAvg3/input0.jpg");
+
+        subTestHDRBackends(inputs, "testDROBackends_output.jpg", 0.5f);
+    }
+
     /** Tests HDR algorithm on test samples "saintpaul", but with 5 images.
      */
     public void testHDR1_exp5() throws IOException, InterruptedException {
@@ -17174,17 +17715,9 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         }
     }
 
-    /**
-     * @param panorama_pics_per_screen The value of panorama_pics_per_screen used when taking the input photos.
-     * @param camera_angle_x The value of preview.getViewAngleX(for_preview=false) (in degrees) when taking the input photos (on the device used).
-     * @param camera_angle_y The value of preview.getViewAngleY(for_preview=false) (in degrees) when taking the input photos (on the device used).
+    /** Loads the input images for a panorama test, downscaling if necessary.
      */
-    private void subTestPanorama(List<String> inputs, String output_name, String gyro_debug_info_filename, float panorama_pics_per_screen, float camera_angle_x, float camera_angle_y, float gyro_tol_degrees) throws IOException, InterruptedException {
-        Log.d(TAG, "subTestPanorama");
-
-        // we set panorama_pics_per_screen in the test rather than using MyApplicationInterface.panorama_pics_per_screen,
-        // in case the latter value is changed
-
+    private List<Bitmap> loadPanoramaBitmaps(List<String> inputs) throws IOException {
         boolean first = true;
         Matrix scale_matrix = null;
         int bitmap_width = 0;
@@ -17221,12 +17754,26 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
             bitmaps.add(bitmap);
         }
 
-        bitmap_width = bitmaps.get(0).getWidth();
-        bitmap_height = bitmaps.get(0).getHeight();
+        return bitmaps;
+    }
+
+    /**
+     * @param panorama_pics_per_screen The value of panorama_pics_per_screen used when taking the input photos.
+     * @param camera_angle_x The value of preview.getViewAngleX(for_preview=false) (in degrees) when taking the input photos (on the device used).
+     * @param camera_angle_y The value of preview.getViewAngleY(for_preview=false) (in degrees) when taking the input photos (on the device used).
+     */
+    private void subTestPanorama(List<String> inputs, String output_name, String gyro_debug_info_filename, float panorama_pics_per_screen, float camera_angle_x, float camera_angle_y, float gyro_tol_degrees) throws IOException, InterruptedException {
+        Log.d(TAG, "subTestPanorama");
+
+        // we set panorama_pics_per_screen in the test rather than using MyApplicationInterface.panorama_pics_per_screen,
+        // in case the latter value is changed
+
+        List<Bitmap> bitmaps = loadPanoramaBitmaps(inputs);
+        int bitmap_width = bitmaps.get(0).getWidth();
+        int bitmap_height = bitmaps.get(0).getHeight();
         Log.d(TAG, "bitmap_width is now: " + bitmap_width);
         Log.d(TAG, "bitmap_height is now: " + bitmap_height);
 
-
         /*ImageSaver.GyroDebugInfo gyro_debug_info = null;
         if( gyro_debug_info_filename != null ) {
             InputStream inputStream;
@@ -17362,6 +17909,68 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         subTestPanorama(inputs, output_name, null, panorama_pics_per_screen, camera_angle_x, camera_angle_y, 2.0f);
     }
 
+    /** Tests that creating a panorama with PanoramaProcessor.IncrementalPanorama, where images are
+     *  aligned as they're added, gives the same result as processing all the images at once, for
+     *  both directions.
+     */
+    public void testPanoramaIncremental() throws IOException {
+        Log.d(TAG, "testPanoramaIncremental");
+
+        setToDefault();
+
+        // list assets
+        List<String> inputs = new ArrayList<>();
+
+        inputs.add(panorama_images_path + "testPanorama1/input0.jpg");
+        inputs.add(panorama_images_path + "testPanorama1/input1.jpg");
+        inputs.add(panorama_images_path + "testPanorama1/input2.jpg");
+        inputs.add(panorama_images_path + "testPanorama1/input3.jpg");
+        float camera_angle_y = 47.44656f;
+        float panorama_pics_per_screen = 2.0f;
+        // these images were taken with incorrect camera view angles, so we compensate in the test:
+        panorama_pics_per_screen *= (47.44656/49.56283);
+
+        PanoramaProcessor panoramaProcessor = mActivity.getApplicationInterface().getPanoramaProcessor();
+        for(boolean left_to_right : new boolean[]{true, false}) {
+            Log.d(TAG, "left_to_right: " + left_to_right);
+            Bitmap expected_panorama = null;
+            Bitmap panorama = null;
+            try {
+                expected_panorama = panoramaProcessor.panorama(loadPanoramaBitmaps(inputs), panorama_pics_per_screen, camera_angle_y, true);
+
+                // images are captured in the reverse order for right to left
+                List<Bitmap> bitmaps = loadPanoramaBitmaps(inputs);
+                if( !left_to_right )
+                    Collections.reverse(bitmaps);
+                PanoramaProcessor.IncrementalPanorama incremental_panorama = panoramaProcessor.createIncrementalPanorama(panorama_pics_per_screen);
+                for(Bitmap bitmap : bitmaps) {
+                    incremental_panorama.addImage(bitmap, left_to_right);
+                }
+                assertTrue(incremental_panorama.isValid(inputs.size(), left_to_right));
+                assertFalse(incremental_panorama.isValid(inputs.size(), !left_to_right));
+                panorama = panoramaProcessor.panorama(incremental_panorama, camera_angle_y, true);
+            }
+            catch(PanoramaProcessorException e) {
+                e.printStackTrace();
+                fail();
+            }
+
+            assertEquals(expected_panorama.getWidth(), panorama.getWidth());
+            assertEquals(expected_panorama.getHeight(), panorama.getHeight());
+            for(int y=0;y<panorama.getHeight();y+=8) {
+                for(int x=0;x<panorama.getWidth();x+=8) {
+                    int expected_color = expected_panorama.getPixel(x, y);
+                    int color = panorama.getPixel(x, y);
+                    assertTrue(Math.abs(Color.red(color) - Color.red(expected_color)) <= 1);
+                    assertTrue(Math.abs(Color.green(color) - Color.green(expected_color)) <= 1);
+                    assertTrue(Math.abs(Color.blue(color) - Color.blue(expected_color)) <= 1);
+                }
+            }
+            expected_panorama.recycle();
+            panorama.recycle();
+        }
+    }
+
     /** Tests panorama algorithm on test samples "testPanorama2".
      */
     public void testPanorama2() throws IOException, InterruptedException {
@@ -95,6 +95,8 @@ public class MainTests {
         }
         if( MainActivityTest.test_camera2 ) {
             suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPreviewBitmap"));
+            suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPreviewBitmapOverlays"));
+            suite.addTest(TestSuite.createTest(MainActivityTest.class, "testDrawPreviewFrameStats"));
             suite.addTest(TestSuite.createTest(MainActivityTest.class, "testVideoFPSHighSpeed"));
         }
         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
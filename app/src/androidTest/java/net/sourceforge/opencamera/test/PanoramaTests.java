@@ -15,6 +15,7 @@ public class PanoramaTests {
         TestSuite suite = new TestSuite(MainTests.class.getName());
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPanoramaWhite"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPanorama1"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPanoramaIncremental"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPanorama2"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPanorama3"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPanorama3_picsperscreen2"));
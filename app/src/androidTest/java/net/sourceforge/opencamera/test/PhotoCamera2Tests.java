@@ -29,9 +29,11 @@ public class PhotoCamera2Tests {
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoRawFocusBracketing"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoRawOnlyFocusBracketing"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFastBurst"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFastBurstKeepBest"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoContinuousBurst"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoContinuousBurstSlow"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoNR"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoNRNoIncremental"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFlashAutoFakeMode"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFlashOnFakeMode"));
         // do testTakePhotoRawRepeat last, and is an intensive test, and if it fails for any reason it seems to cause the following test to crash, terminating the run (at least on Nexus 6)!
@@ -24,6 +24,9 @@ public class PhotoTests {
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoAutoLevelAnglesLowMemory"));
         // other tests:
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhoto"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoParallelSaving"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoLatestMediaCache"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoSimulatedCamera"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoContinuous"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoContinuousNoTouch"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFlashAuto"));
@@ -80,6 +83,7 @@ public class PhotoTests {
             suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoDROPhotoStamp"));
         }
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoHDR"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoHDRStreaming"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPhotoBackgroundHDR"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoHDRSaveExpo"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoHDRFrontCamera"));
@@ -0,0 +1,257 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Rotates, scales and crops an image in a single pass for auto-level, using bilinear resampling.
+ *  Rather than rotating the whole image into an intermediate image (which is larger than the
+ *  original, as it must hold the bounding box of the rotated image) and then cropping it, each tile
+ *  of the cropped output is mapped back to the source image, and only the pixels of the source
+ *  under that tile are read. Tiles are processed in parallel on a ForkJoinPool.
+ *  The source and destination are accessed via the PixelSource and PixelSink interfaces, so that
+ *  callers can read and write bitmaps a tile at a time rather than copying whole images into
+ *  arrays.
+ */
+public class AutoLevelResampler {
+    public static final int default_tile_size_c = 64;
+
+    /** Supplies the pixels of the source image.
+     */
+    public interface PixelSource {
+        /** Reads the ARGB pixels of the rectangle (x, y, width, height) into pixels, with a stride
+         *  of width. May be called concurrently from multiple threads.
+         */
+        void getPixels(int [] pixels, int x, int y, int width, int height);
+    }
+
+    /** Receives the pixels of the output image.
+     */
+    public interface PixelSink {
+        /** Writes the ARGB pixels of the rectangle (x, y, width, height) from pixels, with a stride
+         *  of width. May be called concurrently from multiple threads, but for non-overlapping
+         *  rectangles.
+         */
+        void setPixels(int [] pixels, int x, int y, int width, int height);
+    }
+
+    /** A PixelSource and PixelSink for an image held in an int array, with a stride of the width.
+     */
+    public static class ArrayImage implements PixelSource, PixelSink {
+        private final int [] pixels;
+        private final int width;
+
+        public ArrayImage(int [] pixels, int width) {
+            this.pixels = pixels;
+            this.width = width;
+        }
+
+        @Override
+        public void getPixels(int [] dst, int x, int y, int region_width, int region_height) {
+            for(int j=0;j<region_height;j++) {
+                System.arraycopy(pixels, (y+j)*width + x, dst, j*region_width, region_width);
+            }
+        }
+
+        @Override
+        public void setPixels(int [] src, int x, int y, int region_width, int region_height) {
+            for(int j=0;j<region_height;j++) {
+                System.arraycopy(src, j*region_width, pixels, (y+j)*width + x, region_width);
+            }
+        }
+    }
+
+    private final int src_width;
+    private final int src_height;
+    private final int dst_width;
+    private final int dst_height;
+    // the inverse mapping, from the centre of destination pixel (x, y) to source coordinates (where
+    // the centre of source pixel (i, j) is at (i, j)):
+    // src_x = m00*x + m01*y + m02, src_y = m10*x + m11*y + m12
+    private final double m00, m01, m02;
+    private final double m10, m11, m12;
+
+    private final AtomicLong tile_bytes = new AtomicLong(); // bytes of tile buffers currently allocated
+    private final AtomicLong peak_tile_bytes = new AtomicLong();
+    private long last_time_ns;
+
+    /**
+     * @param src_width  The width of the source image.
+     * @param src_height The height of the source image.
+     * @param angle      The angle in degrees to rotate the image by (clockwise, for y pointing
+     *                   down, as for android.graphics.Matrix.postRotate()).
+     * @param scale      The scale to apply to the image.
+     * @param dst_width  The width of the output, which is centred on the rotated image.
+     * @param dst_height The height of the output, which is centred on the rotated image.
+     */
+    public AutoLevelResampler(int src_width, int src_height, double angle, double scale, int dst_width, int dst_height) {
+        if( src_width <= 0 || src_height <= 0 || dst_width <= 0 || dst_height <= 0 || scale <= 0.0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid size or scale");
+        }
+        this.src_width = src_width;
+        this.src_height = src_height;
+        this.dst_width = dst_width;
+        this.dst_height = dst_height;
+        double angle_rad = Math.toRadians(angle);
+        double cos_a = Math.cos(angle_rad) / scale;
+        double sin_a = Math.sin(angle_rad) / scale;
+        // destination pixel centre relative to the centre of the output is (x + 0.5 - dst_width/2),
+        // rotated by -angle and divided by scale to give the position relative to the centre of the
+        // source, then pixel centres are at half integer positions
+        double dx0 = 0.5 - 0.5*dst_width;
+        double dy0 = 0.5 - 0.5*dst_height;
+        m00 = cos_a;
+        m01 = sin_a;
+        m02 = cos_a*dx0 + sin_a*dy0 + 0.5*src_width - 0.5;
+        m10 = -sin_a;
+        m11 = cos_a;
+        m12 = -sin_a*dx0 + cos_a*dy0 + 0.5*src_height - 0.5;
+    }
+
+    public int getDstWidth() {
+        return dst_width;
+    }
+
+    public int getDstHeight() {
+        return dst_height;
+    }
+
+    /** Computes the output in parallel.
+     * @param tile_size The width and height of each output tile.
+     */
+    public void process(ForkJoinPool pool, final int tile_size, final PixelSource src, final PixelSink dst) {
+        long time_s = System.nanoTime();
+        tile_bytes.set(0);
+        peak_tile_bytes.set(0);
+        final int n_tiles_x = (dst_width + tile_size - 1)/tile_size;
+        final int n_tiles_y = (dst_height + tile_size - 1)/tile_size;
+        // each "row" is a tile
+        ParallelRows.run(pool, 1, n_tiles_x*n_tiles_y, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int tile=y_start;tile<y_stop;tile++) {
+                    int tile_x = (tile % n_tiles_x)*tile_size;
+                    int tile_y = (tile / n_tiles_x)*tile_size;
+                    processTile(tile_x, tile_y, Math.min(tile_size, dst_width - tile_x), Math.min(tile_size, dst_height - tile_y), src, dst);
+                }
+            }
+        });
+        last_time_ns = System.nanoTime() - time_s;
+    }
+
+    private void allocated(long bytes) {
+        long current = tile_bytes.addAndGet(bytes);
+        long peak;
+        do {
+            peak = peak_tile_bytes.get();
+        } while( current > peak && !peak_tile_bytes.compareAndSet(peak, current) );
+    }
+
+    private void processTile(int tile_x, int tile_y, int tile_width, int tile_height, PixelSource src, PixelSink dst) {
+        // find the bounding box of the source pixels needed for this tile, from the corners
+        double min_x = Double.MAX_VALUE, max_x = -Double.MAX_VALUE;
+        double min_y = Double.MAX_VALUE, max_y = -Double.MAX_VALUE;
+        for(int corner=0;corner<4;corner++) {
+            int x = tile_x + ((corner & 1) == 0 ? 0 : tile_width-1);
+            int y = tile_y + ((corner & 2) == 0 ? 0 : tile_height-1);
+            double sx = m00*x + m01*y + m02;
+            double sy = m10*x + m11*y + m12;
+            min_x = Math.min(min_x, sx);
+            max_x = Math.max(max_x, sx);
+            min_y = Math.min(min_y, sy);
+            max_y = Math.max(max_y, sy);
+        }
+        int src_x0 = Math.max((int)Math.floor(min_x), 0);
+        int src_y0 = Math.max((int)Math.floor(min_y), 0);
+        int src_x1 = Math.min((int)Math.floor(max_x) + 2, src_width); // exclusive
+        int src_y1 = Math.min((int)Math.floor(max_y) + 2, src_height); // exclusive
+
+        int [] out = new int[tile_width*tile_height];
+        long bytes = 4L*out.length;
+        if( src_x0 < src_x1 && src_y0 < src_y1 ) {
+            int src_w = src_x1 - src_x0;
+            int src_h = src_y1 - src_y0;
+            int [] in = new int[src_w*src_h];
+            bytes += 4L*in.length;
+            allocated(bytes);
+            src.getPixels(in, src_x0, src_y0, src_w, src_h);
+            resampleTile(in, src_x0, src_y0, src_w, src_h, out, tile_x, tile_y, tile_width, tile_height);
+        }
+        else {
+            // tile is entirely outside the source image
+            allocated(bytes);
+        }
+        dst.setPixels(out, tile_x, tile_y, tile_width, tile_height);
+        allocated(-bytes);
+    }
+
+    /** Returns the pixel of the source tile, or 0 (transparent) if outside of the source image.
+     */
+    private static int sample(int [] in, int src_w, int src_h, int x, int y) {
+        if( x < 0 || y < 0 || x >= src_w || y >= src_h )
+            return 0;
+        return in[y*src_w + x];
+    }
+
+    private void resampleTile(int [] in, int src_x0, int src_y0, int src_w, int src_h, int [] out, int tile_x, int tile_y, int tile_width, int tile_height) {
+        for(int j=0;j<tile_height;j++) {
+            int y = tile_y + j;
+            // relative to the source tile
+            double sx = m00*tile_x + m01*y + m02 - src_x0;
+            double sy = m10*tile_x + m11*y + m12 - src_y0;
+            int out_index = j*tile_width;
+            for(int i=0;i<tile_width;i++, sx += m00, sy += m10) {
+                int x0 = (int)Math.floor(sx);
+                int y0 = (int)Math.floor(sy);
+                int fx = (int)((sx - x0)*256.0);
+                int fy = (int)((sy - y0)*256.0);
+                int c00, c10, c01, c11;
+                if( x0 >= 0 && y0 >= 0 && x0+1 < src_w && y0+1 < src_h ) {
+                    int index = y0*src_w + x0;
+                    c00 = in[index];
+                    c10 = in[index+1];
+                    c01 = in[index+src_w];
+                    c11 = in[index+src_w+1];
+                }
+                else {
+                    // at the edge of the source tile - but note the source tile is only clipped
+                    // against the edges of the source image, so pixels outside are transparent
+                    c00 = sample(in, src_w, src_h, x0, y0);
+                    c10 = sample(in, src_w, src_h, x0+1, y0);
+                    c01 = sample(in, src_w, src_h, x0, y0+1);
+                    c11 = sample(in, src_w, src_h, x0+1, y0+1);
+                }
+                out[out_index + i] = bilinear(c00, c10, c01, c11, fx, fy);
+            }
+        }
+    }
+
+    /** Bilinearly interpolates each channel of four ARGB pixels, with the fractions fx and fy in
+     *  the range [0, 256).
+     */
+    private static int bilinear(int c00, int c10, int c01, int c11, int fx, int fy) {
+        int w00 = (256-fx)*(256-fy);
+        int w10 = fx*(256-fy);
+        int w01 = (256-fx)*fy;
+        int w11 = fx*fy;
+        int result = 0;
+        for(int shift=0;shift<32;shift+=8) {
+            int value = ((c00 >>> shift) & 0xff)*w00 + ((c10 >>> shift) & 0xff)*w10 + ((c01 >>> shift) & 0xff)*w01 + ((c11 >>> shift) & 0xff)*w11;
+            result |= ((value + 32768) >>> 16) << shift;
+        }
+        return result;
+    }
+
+    /** Returns the time taken by the last call to process().
+     */
+    public long getLastTimeNs() {
+        return last_time_ns;
+    }
+
+    /** Returns the maximum number of bytes of tile buffers allocated at once during the last call
+     *  to process(). This excludes the source and destination images.
+     */
+    public long getPeakTileBytes() {
+        return peak_tile_bytes.get();
+    }
+}
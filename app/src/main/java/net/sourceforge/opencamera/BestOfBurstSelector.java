@@ -0,0 +1,104 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Keeps the n_keep highest scoring images of a burst, as they're added, so that the rejected
+ *  images can be released straight away rather than held until the burst finishes. Used for the
+ *  "best of burst" option of fast burst mode, with scores from SharpnessScorer.
+ *  If scores are equal, the earlier image is preferred. Images may be added in any order (e.g.,
+ *  if scored on multiple threads), but are returned in the order they were captured.
+ */
+public class BestOfBurstSelector<T> {
+    private static class Entry<T> {
+        final int index;
+        final long score;
+        final T image;
+
+        Entry(int index, long score, T image) {
+            this.index = index;
+            this.score = score;
+            this.image = image;
+        }
+
+        /** Whether this entry should be kept in preference to other.
+         */
+        boolean isBetterThan(Entry<T> other) {
+            if( score != other.score )
+                return score > other.score;
+            return index < other.index;
+        }
+    }
+
+    private final int n_keep;
+    private final List<Entry<T>> kept = new ArrayList<>(); // sorted by index
+    private int n_added;
+
+    public BestOfBurstSelector(int n_keep) {
+        if( n_keep <= 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid n_keep: " + n_keep);
+        }
+        this.n_keep = n_keep;
+    }
+
+    public int getNKeep() {
+        return n_keep;
+    }
+
+    /** Adds an image.
+     * @param index The position of the image in the burst.
+     * @param score The image's score, higher is better.
+     * @return The image that was rejected (either this image, or a previously kept image), or
+     *         null if none were rejected.
+     */
+    public synchronized T add(int index, long score, T image) {
+        n_added++;
+        Entry<T> entry = new Entry<>(index, score, image);
+        if( kept.size() == n_keep ) {
+            int worst = 0;
+            for(int i=1;i<kept.size();i++) {
+                if( kept.get(worst).isBetterThan(kept.get(i)) )
+                    worst = i;
+            }
+            if( !entry.isBetterThan(kept.get(worst)) )
+                return image;
+            T rejected = kept.remove(worst).image;
+            insert(entry);
+            return rejected;
+        }
+        insert(entry);
+        return null;
+    }
+
+    private void insert(Entry<T> entry) {
+        int i = kept.size();
+        while( i > 0 && kept.get(i-1).index > entry.index )
+            i--;
+        kept.add(i, entry);
+    }
+
+    /** Returns the number of images added so far, including those rejected.
+     */
+    public synchronized int getNAdded() {
+        return n_added;
+    }
+
+    /** Returns the kept images, in the order they were captured.
+     */
+    public synchronized List<T> getKept() {
+        List<T> images = new ArrayList<>();
+        for(Entry<T> entry : kept)
+            images.add(entry.image);
+        return images;
+    }
+
+    /** Returns the positions in the burst of the kept images, in the order they were captured.
+     */
+    public synchronized List<Integer> getKeptIndices() {
+        List<Integer> indices = new ArrayList<>();
+        for(Entry<T> entry : kept)
+            indices.add(entry.index);
+        return indices;
+    }
+}
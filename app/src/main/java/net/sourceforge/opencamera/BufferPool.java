@@ -0,0 +1,157 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/** A pool of image buffers (e.g., RenderScript Allocations or Bitmaps), keyed by their size and
+ *  format, so that buffers can be reused rather than repeatedly allocated and freed. Used for the
+ *  levels of the pyramids in PanoramaProcessor, where the same sizes are needed for each pair of
+ *  images that are blended.
+ *  Buffers obtained from acquire() should be returned with release() once no longer needed. Note
+ *  that the contents of a buffer returned by acquire() are undefined.
+ *  It isn't thread safe.
+ */
+public class BufferPool<T> {
+    /** Creates and frees the buffers of a BufferPool.
+     */
+    public interface Allocator<T> {
+        T allocate(int width, int height, int format);
+        void free(T buffer);
+    }
+
+    public static class Stats {
+        public final int n_hits; // number of calls to acquire() that reused a pooled buffer
+        public final int n_misses; // number of calls to acquire() that allocated a new buffer
+        public final long bytes_allocated; // total bytes of the buffers allocated
+        public final long bytes_reused; // total bytes of the buffers reused
+        public final long peak_bytes; // peak bytes held by the pool, including buffers in use
+
+        Stats(int n_hits, int n_misses, long bytes_allocated, long bytes_reused, long peak_bytes) {
+            this.n_hits = n_hits;
+            this.n_misses = n_misses;
+            this.bytes_allocated = bytes_allocated;
+            this.bytes_reused = bytes_reused;
+            this.peak_bytes = peak_bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "hits: " + n_hits + " misses: " + n_misses + " bytes allocated: " + bytes_allocated + " bytes reused: " + bytes_reused + " peak bytes: " + peak_bytes;
+        }
+    }
+
+    private final Allocator<T> allocator;
+    private final int [] bytes_per_pixel; // indexed by format
+    private final long max_pooled_bytes;
+    private final Map<Long, ArrayDeque<T>> free_buffers = new HashMap<>();
+    private final Map<T, Long> in_use = new IdentityHashMap<>(); // keys of buffers returned by acquire(), but not yet released
+    private long pooled_bytes; // bytes of the buffers in free_buffers
+    private long in_use_bytes;
+
+    private int n_hits;
+    private int n_misses;
+    private long bytes_allocated;
+    private long bytes_reused;
+    private long peak_bytes;
+
+    /**
+     * @param bytes_per_pixel  The number of bytes per pixel for each format.
+     * @param max_pooled_bytes The maximum number of bytes to hold in buffers that aren't in use; if
+     *                         releasing a buffer would exceed this, it's freed instead.
+     */
+    public BufferPool(Allocator<T> allocator, int [] bytes_per_pixel, long max_pooled_bytes) {
+        this.allocator = allocator;
+        this.bytes_per_pixel = bytes_per_pixel;
+        this.max_pooled_bytes = max_pooled_bytes;
+    }
+
+    private static long getKey(int width, int height, int format) {
+        return ((long)format << 48) | ((long)width << 24) | (long)height;
+    }
+
+    private long getByteCount(long key) {
+        int format = (int)(key >>> 48);
+        long width = (key >>> 24) & 0xffffff;
+        long height = key & 0xffffff;
+        return width * height * bytes_per_pixel[format];
+    }
+
+    /** Returns a buffer of the requested size and format, reusing a pooled buffer if available.
+     */
+    public T acquire(int width, int height, int format) {
+        if( width <= 0 || height <= 0 || width > 0xffffff || height > 0xffffff || format < 0 || format >= bytes_per_pixel.length ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid buffer: " + width + " x " + height + " format " + format);
+        }
+        long key = getKey(width, height, format);
+        long n_bytes = getByteCount(key);
+        T buffer = null;
+        ArrayDeque<T> buffers = free_buffers.get(key);
+        if( buffers != null )
+            buffer = buffers.pollLast();
+        if( buffer != null ) {
+            n_hits++;
+            bytes_reused += n_bytes;
+            pooled_bytes -= n_bytes;
+        }
+        else {
+            buffer = allocator.allocate(width, height, format);
+            n_misses++;
+            bytes_allocated += n_bytes;
+        }
+        in_use.put(buffer, key);
+        in_use_bytes += n_bytes;
+        peak_bytes = Math.max(peak_bytes, in_use_bytes + pooled_bytes);
+        return buffer;
+    }
+
+    /** Returns a buffer obtained from acquire() to the pool.
+     */
+    public void release(T buffer) {
+        Long key = in_use.remove(buffer);
+        if( key == null ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("buffer not acquired from this pool");
+        }
+        long n_bytes = getByteCount(key);
+        in_use_bytes -= n_bytes;
+        if( pooled_bytes + n_bytes > max_pooled_bytes ) {
+            allocator.free(buffer);
+            return;
+        }
+        ArrayDeque<T> buffers = free_buffers.get(key);
+        if( buffers == null ) {
+            buffers = new ArrayDeque<>();
+            free_buffers.put(key, buffers);
+        }
+        buffers.addLast(buffer);
+        pooled_bytes += n_bytes;
+    }
+
+    /** Frees all pooled buffers. Buffers still in use are unaffected, and may still be released
+     *  afterwards.
+     */
+    public void clear() {
+        for(ArrayDeque<T> buffers : free_buffers.values()) {
+            for(T buffer : buffers) {
+                allocator.free(buffer);
+            }
+        }
+        free_buffers.clear();
+        pooled_bytes = 0;
+    }
+
+    public int getNInUse() {
+        return in_use.size();
+    }
+
+    public long getPooledBytes() {
+        return pooled_bytes;
+    }
+
+    public Stats getStats() {
+        return new Stats(n_hits, n_misses, bytes_allocated, bytes_reused, peak_bytes);
+    }
+}
@@ -0,0 +1,125 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Decodes a sequence of images on an executor, so that the consumer can take each image in turn
+ *  as soon as it's decoded, whilst later images are still being decoded. Used by ImageSaver for
+ *  decoding the JPEGs of a burst, so that processing can start before all of the images have been
+ *  decoded.
+ *  To limit memory, at most max_ahead images are decoded (or being decoded) beyond those already
+ *  taken; the executor limits how many are decoded at once.
+ *  It should only be used by a single consumer thread.
+ */
+public class DecodeQueue<T> {
+    /** Decodes the images for a DecodeQueue. decode() is called on the executor's threads.
+     */
+    public interface Decoder<T> {
+        /** Returns the decoded image with the supplied index, or null if decoding failed.
+         */
+        T decode(int index);
+        /** Called for decoded images that were never taken, due to cancel().
+         */
+        void discard(T image);
+    }
+
+    private final ExecutorService executor;
+    private final int n_images;
+    private final int max_ahead;
+    private final Decoder<T> decoder;
+    private final List<Future<T>> futures = new ArrayList<>();
+    private int next_take;
+
+    /**
+     * @param n_images  The number of images to decode, with indices 0 to n_images-1.
+     * @param max_ahead The maximum number of images to decode before they are taken, must be at
+     *                  least 1.
+     */
+    public DecodeQueue(ExecutorService executor, int n_images, int max_ahead, Decoder<T> decoder) {
+        if( max_ahead < 1 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("max_ahead must be at least 1");
+        }
+        this.executor = executor;
+        this.n_images = n_images;
+        this.max_ahead = max_ahead;
+        this.decoder = decoder;
+        for(int i=0;i<Math.min(max_ahead, n_images);i++) {
+            submit(i);
+        }
+    }
+
+    private void submit(final int index) {
+        futures.add(executor.submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return decoder.decode(index);
+            }
+        }));
+    }
+
+    public int getNImages() {
+        return n_images;
+    }
+
+    /** Returns the next image, waiting until it's decoded if necessary. Images must be taken in
+     *  order, i.e., the first call returns image 0, the next returns image 1, and so on.
+     * @return The decoded image, or null if decoding failed (including if decode() threw an
+     *         exception or error).
+     */
+    public T take() throws InterruptedException {
+        if( next_take >= n_images ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("no more images to take");
+        }
+        int index = next_take++;
+        if( index + max_ahead < n_images ) {
+            // keep max_ahead images decoding ahead of the consumer
+            submit(index + max_ahead);
+        }
+        Future<T> future = futures.get(index);
+        futures.set(index, null);
+        try {
+            return future.get();
+        }
+        catch(ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Stops decoding any images that haven't been taken yet: decodes that haven't started are
+     *  cancelled, and images that have been decoded (or are still being decoded) are passed to
+     *  Decoder.discard().
+     *  Should be called if the consumer gives up before taking all of the images.
+     */
+    public void cancel() {
+        next_take = n_images;
+        for(int i=0;i<futures.size();i++) {
+            Future<T> future = futures.get(i);
+            if( future != null && !future.cancel(false) ) {
+                // already running or finished, so wait for it to finish so that we can discard the result
+                try {
+                    T image = future.get();
+                    if( image != null ) {
+                        decoder.discard(image);
+                    }
+                }
+                catch(ExecutionException e) {
+                    e.printStackTrace();
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                    // leave the remaining results for garbage collection
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            futures.set(i, null);
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package net.sourceforge.opencamera;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/** Pure Java Harris corner detector and feature matcher, used by PanoramaProcessor for aligning
+ *  images (replacing the RenderScript kernels of feature_detector.rs). Images are passed as packed
+ *  ARGB int[] arrays (as returned by Bitmap.getPixels()), and the work is split into bands of rows
+ *  that are processed on a ForkJoinPool. Intermediate results are held in primitive arrays, and points
+ *  are passed as packed x, y pairs.
+ */
+public class FeatureDetector {
+    private static final int corner_radius_c = 2; // radius for corner detector
+    private static final float [] corner_weights_c = {1, 4, 6, 4, 1};
+    private static final int local_max_radius_c = 2; // radius for finding local maxima
+    private static final int match_tile_size_c = 256; // number of matches processed by each task
+
+    private final ForkJoinPool pool;
+    private final int tile_height;
+
+    public FeatureDetector() {
+        this(ParallelRows.getDefaultPool(), 32);
+    }
+
+    /**
+     * @param pool        The pool to run the kernels on.
+     * @param tile_height The number of rows each task processes.
+     */
+    public FeatureDetector(ForkJoinPool pool, int tile_height) {
+        this.pool = pool;
+        this.tile_height = Math.max(tile_height, 1);
+    }
+
+    /** The local maxima of the corner strengths, in raster order.
+     */
+    public static class LocalMaxima {
+        public final int [] xs;
+        public final int [] ys;
+        public final float [] strengths;
+        public final int n_points;
+
+        LocalMaxima(int [] xs, int [] ys, float [] strengths, int n_points) {
+            this.xs = xs;
+            this.ys = ys;
+            this.strengths = strengths;
+            this.n_points = n_points;
+        }
+    }
+
+    /** Converts ARGB pixels to greyscale, equivalent to the former create_greyscale RenderScript kernel.
+     */
+    public byte [] createGreyscale(final int [] pixels, final int width, final int height) {
+        final byte [] grey = new byte[width*height];
+        ParallelRows.run(pool, tile_height, height, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int i=y_start*width;i<y_stop*width;i++) {
+                    int pixel = pixels[i];
+                    int r = (pixel >> 16) & 0xff;
+                    int g = (pixel >> 8) & 0xff;
+                    int b = pixel & 0xff;
+                    grey[i] = (byte)(int)(0.3f*r + 0.59f*g + 0.11f*b);
+                }
+            }
+        });
+        return grey;
+    }
+
+    /** Computes the Harris corner response for each pixel, equivalent to the former
+     *  compute_derivatives and corner_detector RenderScript kernels. Pixels too close to the edge to
+     *  have a response are set to 0.
+     */
+    public float [] computeCornerStrengths(final byte [] grey, final int width, final int height) {
+        // derivatives are clamped to the same range as the RenderScript version, which stored them as uchars
+        final short [] ix = new short[width*height];
+        final short [] iy = new short[width*height];
+        ParallelRows.run(pool, tile_height, height, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int y=Math.max(y_start, 1);y<Math.min(y_stop, height-1);y++) {
+                    for(int x=1,i=y*width+1;x<width-1;x++,i++) {
+                        int d_x = ((grey[i+1] & 0xff) - (grey[i-1] & 0xff))/2;
+                        int d_y = ((grey[i+width] & 0xff) - (grey[i-width] & 0xff))/2;
+                        ix[i] = (short)Math.min(Math.max(d_x, -127), 128);
+                        iy[i] = (short)Math.min(Math.max(d_y, -127), 128);
+                    }
+                }
+            }
+        });
+
+        final float [] strength = new float[width*height];
+        // extra +1 as we don't have derivatives for the outermost pixels
+        final int border = corner_radius_c+1;
+        ParallelRows.run(pool, tile_height, height, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int y=Math.max(y_start, border);y<Math.min(y_stop, height-border);y++) {
+                    for(int x=border;x<width-border;x++) {
+                        float h00 = 0.0f;
+                        float h01 = 0.0f;
+                        float h11 = 0.0f;
+                        for(int dy=-corner_radius_c;dy<=corner_radius_c;dy++) {
+                            int row = (y+dy)*width + x;
+                            float weight_y = corner_weights_c[corner_radius_c+dy];
+                            for(int dx=-corner_radius_c;dx<=corner_radius_c;dx++) {
+                                int d_x = ix[row+dx];
+                                int d_y = iy[row+dx];
+                                float weight = corner_weights_c[corner_radius_c+dx] * weight_y;
+                                h00 += weight*d_x*d_x;
+                                h01 += weight*d_x*d_y;
+                                h11 += weight*d_y*d_y;
+                            }
+                        }
+                        float det_H = h00*h11 - h01*h01;
+                        float tr_H = h00 + h11;
+                        strength[y*width+x] = det_H - 0.06f*tr_H*tr_H;
+                    }
+                }
+            }
+        });
+        return strength;
+    }
+
+    /** Finds the points whose strength is positive and strictly greater than all the other points
+     *  in the surrounding 5x5 square, as for the former local_maximum RenderScript kernel. Since
+     *  this doesn't depend on the threshold, it only needs to be done once, and corners for any
+     *  threshold can then be chosen with selectCorners().
+     *  Each band of rows is searched in parallel.
+     * @param border Points closer than this to the edge of the image are excluded.
+     */
+    public LocalMaxima findLocalMaxima(final float [] strength, final int width, final int height, int border) {
+        final int edge = Math.max(border, local_max_radius_c);
+        final int n_tiles = (height + tile_height - 1)/tile_height;
+        final int [][] tile_points = new int[n_tiles][]; // indices of points found in each tile
+        final int [] tile_n_points = new int[n_tiles];
+        ParallelRows.run(pool, 1, n_tiles, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int tile_start, int tile_stop) {
+                for(int tile=tile_start;tile<tile_stop;tile++) {
+                    int [] points = new int[64];
+                    int n_points = 0;
+                    int y_stop = Math.min((tile+1)*tile_height, height-edge);
+                    for(int y=Math.max(tile*tile_height, edge);y<y_stop;y++) {
+                        for(int x=edge;x<width-edge;x++) {
+                            int i = y*width + x;
+                            float value = strength[i];
+                            if( value <= 0.0f || !isLocalMaximum(strength, width, i, value) )
+                                continue;
+                            if( n_points == points.length )
+                                points = Arrays.copyOf(points, 2*n_points);
+                            points[n_points++] = i;
+                        }
+                    }
+                    tile_points[tile] = points;
+                    tile_n_points[tile] = n_points;
+                }
+            }
+        });
+
+        int n_points = 0;
+        for(int tile=0;tile<n_tiles;tile++)
+            n_points += tile_n_points[tile];
+        int [] xs = new int[n_points];
+        int [] ys = new int[n_points];
+        float [] strengths = new float[n_points];
+        int indx = 0;
+        for(int tile=0;tile<n_tiles;tile++) {
+            for(int j=0;j<tile_n_points[tile];j++) {
+                int i = tile_points[tile][j];
+                xs[indx] = i % width;
+                ys[indx] = i / width;
+                strengths[indx] = strength[i];
+                indx++;
+            }
+        }
+        return new LocalMaxima(xs, ys, strengths, n_points);
+    }
+
+    private static boolean isLocalMaximum(float [] strength, int width, int i, float value) {
+        for(int dy=-local_max_radius_c;dy<=local_max_radius_c;dy++) {
+            int row = i + dy*width;
+            for(int dx=-local_max_radius_c;dx<=local_max_radius_c;dx++) {
+                if( (dx != 0 || dy != 0) && !(value > strength[row+dx]) )
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of local maxima with strength at least threshold, with y coordinate in
+     *  [start_y, stop_y). If indices is non-null, the indices of these points (into the arrays of
+     *  local_maxima) are also stored in it, up to the size of the array.
+     */
+    public static int selectCorners(LocalMaxima local_maxima, float threshold, int start_y, int stop_y, int [] indices) {
+        int n_corners = 0;
+        for(int i=0;i<local_maxima.n_points;i++) {
+            int y = local_maxima.ys[i];
+            if( y < start_y || y >= stop_y || !(local_maxima.strengths[i] >= threshold) )
+                continue;
+            if( indices != null && n_corners < indices.length )
+                indices[n_corners] = i;
+            n_corners++;
+        }
+        return n_corners;
+    }
+
+    /** Detects corners in an image, for each of n_y_chunks horizontal chunks searching for a
+     *  threshold that gives between max_corners/2 and max_corners corners (where max_corners is
+     *  total_max_corners/n_y_chunks).
+     * @param border Corners closer than this to the edge of the image are excluded.
+     * @return The corners as packed x, y pairs, in raster order within each chunk.
+     */
+    public int [] detectCorners(int [] pixels, int width, int height, int border, int n_y_chunks, int total_max_corners) {
+        byte [] grey = createGreyscale(pixels, width, height);
+        float [] strength = computeCornerStrengths(grey, width, height);
+        LocalMaxima local_maxima = findLocalMaxima(strength, width, height, border);
+
+        final int max_corners = total_max_corners/n_y_chunks;
+        final int min_corners = max_corners/2;
+        int [] all_points = new int[2*local_maxima.n_points];
+        int n_all_points = 0;
+        int [] indices = new int[local_maxima.n_points];
+        for(int cy=0;cy<n_y_chunks;cy++) {
+            float threshold = 5000000.0f;
+            // setting a min_threshold fixes testPanorama11, also helps testPanorama1
+            // note that this needs to be at least 1250000.0f - at 625000.0f, testPanorama1
+            // still has problems and in fact ends up being worse than having no min threshold
+            final float min_threshold = 1250000.0f;
+            float low_threshold = 0.0f;
+            float high_threshold = -1.0f;
+            int start_y = (cy*height)/n_y_chunks;
+            int stop_y = ((cy+1)*height)/n_y_chunks;
+            final int max_iter = 10;
+            int n_points;
+            for(int count=0;;count++) {
+                n_points = selectCorners(local_maxima, threshold, start_y, stop_y, indices);
+                if( n_points >= min_corners && n_points <= max_corners ) {
+                    break;
+                }
+                else if( n_points < min_corners ) {
+                    if( threshold <= min_threshold ) {
+                        // hit minimum threshold
+                        break;
+                    }
+                    else if( count+1 == max_iter ) {
+                        // too few points but hit max iterations
+                        break;
+                    }
+                    else {
+                        high_threshold = threshold;
+                        threshold = 0.5f * ( low_threshold + threshold );
+                    }
+                }
+                else if( count+1 == max_iter ) {
+                    // too many points but hit max iterations, so arbitrarily take a subset
+                    n_points = max_corners;
+                    break;
+                }
+                else {
+                    low_threshold = threshold;
+                    if( high_threshold < 0.0f ) {
+                        threshold *= 10.0f;
+                    }
+                    else
+                        threshold = 0.5f * ( threshold + high_threshold );
+                }
+            }
+            for(int i=0;i<n_points;i++) {
+                all_points[n_all_points++] = local_maxima.xs[indices[i]];
+                all_points[n_all_points++] = local_maxima.ys[indices[i]];
+            }
+        }
+        return Arrays.copyOf(all_points, n_all_points);
+    }
+
+    /** Extracts the square greyscale descriptor of size (2*radius+1)^2 around each point.
+     * @param points The points as packed x, y pairs, which must be at least radius from the edges.
+     */
+    public static int [] extractDescriptors(int [] pixels, int width, int [] points, int radius) {
+        final int wid = 2*radius+1;
+        final int wid2 = wid*wid;
+        final int n_points = points.length/2;
+        int [] descriptors = new int[n_points*wid2];
+        int indx = 0;
+        for(int i=0;i<n_points;i++) {
+            int x = points[2*i];
+            int y = points[2*i+1];
+            for(int dy=-radius;dy<=radius;dy++) {
+                for(int dx=-radius;dx<=radius;dx++) {
+                    int pixel = pixels[(y+dy)*width + x+dx];
+                    int r = (pixel >> 16) & 0xff;
+                    int g = (pixel >> 8) & 0xff;
+                    int b = pixel & 0xff;
+                    descriptors[indx++] = (int)(0.3*r + 0.59*g + 0.11*b);
+                }
+            }
+        }
+        return descriptors;
+    }
+
+    /** Finds the candidate matches between two sets of points, i.e., the pairs whose squared
+     *  distance is less than max_dist2. Rather than comparing all pairs, points1 is indexed by a
+     *  grid whose cells are the size of the maximum distance, so only neighbouring cells need to
+     *  be searched.
+     * @return The matches as packed pairs of indices into points0 and points1, ordered by the
+     *         index into points0 then the index into points1 (the same order as an all pairs
+     *         search).
+     */
+    public static int [] findCandidateMatches(int [] points0, int [] points1, int max_dist2) {
+        final int n_points0 = points0.length/2;
+        final int n_points1 = points1.length/2;
+        if( n_points0 == 0 || n_points1 == 0 )
+            return new int[0];
+        final int cell_size = Math.max(1, (int)Math.ceil(Math.sqrt(max_dist2)));
+
+        int min_x = Integer.MAX_VALUE, min_y = Integer.MAX_VALUE, max_x = Integer.MIN_VALUE, max_y = Integer.MIN_VALUE;
+        for(int j=0;j<n_points1;j++) {
+            min_x = Math.min(min_x, points1[2*j]);
+            max_x = Math.max(max_x, points1[2*j]);
+            min_y = Math.min(min_y, points1[2*j+1]);
+            max_y = Math.max(max_y, points1[2*j+1]);
+        }
+        final int n_cells_x = (max_x - min_x)/cell_size + 1;
+        final int n_cells_y = (max_y - min_y)/cell_size + 1;
+
+        // bucket the points of points1 by cell (counting sort, so each cell's points are in index order)
+        int [] cell_start = new int[n_cells_x*n_cells_y+1];
+        int [] point_cell = new int[n_points1];
+        for(int j=0;j<n_points1;j++) {
+            int cell = ((points1[2*j+1] - min_y)/cell_size)*n_cells_x + (points1[2*j] - min_x)/cell_size;
+            point_cell[j] = cell;
+            cell_start[cell+1]++;
+        }
+        for(int c=0;c<n_cells_x*n_cells_y;c++)
+            cell_start[c+1] += cell_start[c];
+        int [] cell_points = new int[n_points1];
+        int [] cell_fill = Arrays.copyOf(cell_start, cell_start.length-1);
+        for(int j=0;j<n_points1;j++)
+            cell_points[cell_fill[point_cell[j]]++] = j;
+
+        int [] matches = new int[64];
+        int n_matches = 0;
+        int [] candidates = new int[n_points1];
+        for(int i=0;i<n_points0;i++) {
+            int x0 = points0[2*i];
+            int y0 = points0[2*i+1];
+            // cell coordinates relative to the grid, which may be outside the grid; rounding towards
+            // zero means we may search an extra cell, but the distance check below is exact
+            int cx = (x0 - min_x)/cell_size;
+            int cy = (y0 - min_y)/cell_size;
+            int n_candidates = 0;
+            for(int ny=Math.max(cy-1, 0);ny<=Math.min(cy+1, n_cells_y-1);ny++) {
+                for(int nx=Math.max(cx-1, 0);nx<=Math.min(cx+1, n_cells_x-1);nx++) {
+                    int cell = ny*n_cells_x + nx;
+                    for(int k=cell_start[cell];k<cell_start[cell+1];k++) {
+                        int j = cell_points[k];
+                        int dx = points1[2*j] - x0;
+                        int dy = points1[2*j+1] - y0;
+                        if( dx*dx + dy*dy < max_dist2 )
+                            candidates[n_candidates++] = j;
+                    }
+                }
+            }
+            Arrays.sort(candidates, 0, n_candidates);
+            if( 2*(n_matches + n_candidates) > matches.length )
+                matches = Arrays.copyOf(matches, Math.max(2*matches.length, 2*(n_matches + n_candidates)));
+            for(int k=0;k<n_candidates;k++) {
+                matches[2*n_matches] = i;
+                matches[2*n_matches+1] = candidates[k];
+                n_matches++;
+            }
+        }
+        return Arrays.copyOf(matches, 2*n_matches);
+    }
+
+    /** Computes the distance for each match, based on the normalised cross correlation of the
+     *  descriptors, from 0 to 1 where lower means a better match. The matches are processed in
+     *  parallel.
+     * @param descriptors0 Descriptors for the first set of points, from extractDescriptors().
+     * @param descriptors1 Descriptors for the second set of points, from extractDescriptors().
+     * @param matches      The matches, as returned by findCandidateMatches().
+     */
+    public float [] computeMatchDistances(final int [] descriptors0, final int [] descriptors1, final int radius, final int [] matches) {
+        final int wid = 2*radius+1;
+        final int wid2 = wid*wid;
+        final float [] distances = new float[matches.length/2];
+        ParallelRows.run(pool, match_tile_size_c, distances.length, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int start, int stop) {
+                for(int m=start;m<stop;m++) {
+                    float fsum = 0, gsum = 0;
+                    float f2sum = 0, g2sum = 0;
+                    float fgsum = 0;
+                    int pixel_idx0 = matches[2*m]*wid2;
+                    int pixel_idx1 = matches[2*m+1]*wid2;
+                    for(int k=0;k<wid2;k++) {
+                        int value0 = descriptors0[pixel_idx0++];
+                        int value1 = descriptors1[pixel_idx1++];
+                        fsum += value0;
+                        f2sum += value0*value0;
+                        gsum += value1;
+                        g2sum += value1*value1;
+                        fgsum += value0*value1;
+                    }
+                    float fden = wid2*f2sum - fsum*fsum;
+                    float f_recip = fden==0 ? 0.0f : 1/ fden;
+                    float gden = wid2*g2sum - gsum*gsum;
+                    float g_recip = gden==0 ? 0.0f : 1/ gden;
+                    float fg_corr = wid2*fgsum-fsum*gsum;
+                    // negate, as we want it so that lower value means better match, and normalise to 0-1
+                    distances[m] = 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
+                }
+            }
+        });
+        return distances;
+    }
+}
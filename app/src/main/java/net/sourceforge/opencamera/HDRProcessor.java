@@ -8,11 +8,16 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.media.MediaScannerConnection;
 import android.os.Build;
 import android.os.Environment;
@@ -45,8 +50,7 @@ public class HDRProcessor {
     private ScriptC_align_mtb alignMTBScript;
     /*private ScriptC_histogram_adjust histogramAdjustScript;
     private ScriptC_histogram_compute histogramScript;
-    private ScriptC_avg_brighten avgBrightenScript;
-    private ScriptC_calculate_sharpness sharpnessScript;*/
+    private ScriptC_avg_brighten avgBrightenScript;*/
 
     // public for access by testing
     public int [] offsets_x = null;
@@ -70,12 +74,87 @@ public class HDRProcessor {
         DROALGORITHM_NONE,
         DROALGORITHM_GAINGAMMA
     }
+    /** Which implementation to use for merging the images in processHDR(). HDRBACKEND_JAVA uses
+     *  JavaHDRProcessor, which doesn't require RenderScript for the merge and contrast enhancement,
+     *  and JavaMTBAlignment for the median threshold bitmap alignment. For a single image (DRO),
+     *  HDRBACKEND_JAVA uses JavaDROProcessor.
+     */
+    public enum HDRBackend {
+        HDRBACKEND_RENDERSCRIPT,
+        HDRBACKEND_JAVA
+    }
+
+    private volatile HDRBackend hdr_backend = HDRBackend.HDRBACKEND_RENDERSCRIPT;
+    private JavaHDRProcessor javaHDRProcessor; // lazily created
+    private JavaDROProcessor javaDROProcessor; // lazily created
+    private JavaMTBAlignment javaMTBAlignment; // lazily created
+    private SharpnessScorer sharpnessScorer; // lazily created
+    // statistics of the input bitmaps, cached for the duration of a call to processHDR() or the streaming versions, see getImageStatistics()
+    private final Map<Bitmap, ImageStatistics> image_statistics = new IdentityHashMap<>();
+    // memory accounting for verifying the peak memory of the different processing modes, see getPeakWorkingBytes()
+    private long working_bytes;
+    private long peak_working_bytes;
 
     public HDRProcessor(Context context, boolean is_test) {
         this.context = context;
         this.is_test = is_test;
     }
 
+    public void setHDRBackend(HDRBackend hdr_backend) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setHDRBackend: " + hdr_backend);
+        this.hdr_backend = hdr_backend;
+    }
+
+    public HDRBackend getHDRBackend() {
+        return this.hdr_backend;
+    }
+
+    private JavaHDRProcessor getJavaHDRProcessor() {
+        if( javaHDRProcessor == null ) {
+            javaHDRProcessor = new JavaHDRProcessor();
+        }
+        return javaHDRProcessor;
+    }
+
+    private JavaDROProcessor getJavaDROProcessor() {
+        if( javaDROProcessor == null ) {
+            javaDROProcessor = new JavaDROProcessor();
+        }
+        return javaDROProcessor;
+    }
+
+    private JavaMTBAlignment getJavaMTBAlignment() {
+        if( javaMTBAlignment == null ) {
+            javaMTBAlignment = new JavaMTBAlignment();
+        }
+        return javaMTBAlignment;
+    }
+
+    /** Returns the peak number of bytes of image data (input images, allocations and working
+     *  buffers) held during the last call to processHDR(), processHDRStreaming() or
+     *  processAvgMulti(). This is an estimate based on 4 bytes per pixel, and doesn't include small
+     *  buffers such as histograms.
+     */
+    public synchronized long getPeakWorkingBytes() {
+        return peak_working_bytes;
+    }
+
+    private synchronized void resetWorkingBytes() {
+        working_bytes = 0;
+        peak_working_bytes = 0;
+    }
+
+    private synchronized void addWorkingBytes(long bytes) {
+        working_bytes += bytes;
+        if( working_bytes > peak_working_bytes )
+            peak_working_bytes = working_bytes;
+    }
+
+    private synchronized void removeWorkingBytes(long bytes) {
+        working_bytes -= bytes;
+    }
+
     private void freeScripts() {
         if( MyDebug.LOG )
             Log.d(TAG, "freeScripts");
@@ -377,23 +456,30 @@ public class HDRProcessor {
 
         final HDRAlgorithm algorithm = n_bitmaps == 1 ? HDRAlgorithm.HDRALGORITHM_SINGLE_IMAGE : HDRAlgorithm.HDRALGORITHM_STANDARD;
 
-        switch( algorithm ) {
-            case HDRALGORITHM_SINGLE_IMAGE:
-                if( !assume_sorted && sort_cb != null ) {
-                    List<Integer> sort_order = new ArrayList<>();
-                    sort_order.add(0);
-                    sort_cb.sortOrder(sort_order);
-                }
-                processSingleImage(bitmaps, release_bitmaps, output_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, dro_tonemapping_algorithm);
-                break;
-            case HDRALGORITHM_STANDARD:
-                processHDRCore(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm);
-                break;
-            default:
-                if( MyDebug.LOG )
-                    Log.e(TAG, "unknown algorithm " + algorithm);
-                // throw RuntimeException, as this is a programming error
-                throw new RuntimeException();
+        clearImageStatistics();
+        try {
+            switch( algorithm ) {
+                case HDRALGORITHM_SINGLE_IMAGE:
+                    if( !assume_sorted && sort_cb != null ) {
+                        List<Integer> sort_order = new ArrayList<>();
+                        sort_order.add(0);
+                        sort_cb.sortOrder(sort_order);
+                    }
+                    processSingleImage(bitmaps, release_bitmaps, output_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, dro_tonemapping_algorithm);
+                    break;
+                case HDRALGORITHM_STANDARD:
+                    processHDRCore(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm);
+                    break;
+                default:
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "unknown algorithm " + algorithm);
+                    // throw RuntimeException, as this is a programming error
+                    throw new RuntimeException();
+            }
+        }
+        finally {
+            // the bitmaps may be modified or recycled by the caller
+            clearImageStatistics();
         }
     }
 
@@ -517,6 +603,116 @@ public class HDRProcessor {
         //return 0.27*r + 0.67*g + 0.06*b;
     }
 
+    /** For an even number of images, remaps the response functions so that we aim for a brightness
+     *  between the middle two images.
+     */
+    private static void remapForEvenImages(ResponseFunction [] response_functions, int base_bitmap) {
+        // need to remap so that we aim for a brightness between the middle two images
+        float a = (float)Math.sqrt(response_functions[base_bitmap-1].parameter_A);
+        float b = response_functions[base_bitmap-1].parameter_B / (a+1.0f);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "remap for even number of images");
+            Log.d(TAG, "    a: " + a);
+            Log.d(TAG, "    b: " + b);
+        }
+        if( a < 1.0e-5f ) {
+            // avoid risk of division by 0
+            a = 1.0e-5f;
+            if( MyDebug.LOG )
+                Log.e(TAG, "    clamp a to: " + a);
+        }
+        for(int i=0;i<response_functions.length;i++) {
+            float this_A = response_functions[i].parameter_A;
+            float this_B = response_functions[i].parameter_B;
+            response_functions[i].parameter_A = this_A / a;
+            response_functions[i].parameter_B = this_B - this_A * b / a;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "remapped: " + i);
+                Log.d(TAG, "    A: " + this_A + " -> " + response_functions[i].parameter_A);
+                Log.d(TAG, "    B: " + this_B + " -> " + response_functions[i].parameter_B);
+            }
+        }
+    }
+
+    /** Returns an estimate of the maximum HDR value, which is the value we'd have if even the
+     *  darkest image was 255.
+     */
+    private static float computeMaxPossibleValue(ResponseFunction [] response_functions) {
+        float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
+        //float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
+        if( MyDebug.LOG )
+            Log.d(TAG, "max_possible_value: " + max_possible_value);
+        if( max_possible_value < 255.0f ) {
+            max_possible_value = 255.0f; // don't make dark images too bright, see below about linear_scale for more details
+            if( MyDebug.LOG )
+                Log.d(TAG, "clamp max_possible_value to: " + max_possible_value);
+        }
+        return max_possible_value;
+    }
+
+    /** Returns the "C" constant to use for Reinhard tonemapping, given the median brightness of the
+     *  base image.
+     */
+    private static float computeTonemapScale(int median_brightness, float max_possible_value) {
+        //final float tonemap_scale_c = avg_luminance / 0.8f; // lower values tend to result in too dark pictures; higher values risk over exposed bright areas
+        //final float tonemap_scale_c = 255.0f;
+        //final float tonemap_scale_c = 255.0f - median_brightness;
+        float tonemap_scale_c = 255.0f;
+
+        int median_target = getBrightnessTarget(median_brightness, 2, 119);
+
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "median_target: " + median_target);
+            Log.d(TAG, "compare: " + 255.0f / max_possible_value);
+            Log.d(TAG, "to: " + (((float)median_target)/(float)median_brightness + median_target / 255.0f - 1.0f));
+        }
+        if( 255.0f / max_possible_value < ((float)median_target)/(float)median_brightness + median_target / 255.0f - 1.0f ) {
+            // For Reinhard tonemapping:
+            // As noted below, we have f(V) = V.S / (V+C), where V is the HDR value, C is tonemap_scale_c
+            // and S = (Vmax + C)/Vmax (see below)
+            // Ideally we try to choose C such that we map median value M to target T:
+            // f(M) = T
+            // => T = M . (Vmax + C) / (Vmax . (M + C))
+            // => (T/M).(M + C) = (Vmax + C) / Vmax = 1 + C/Vmax
+            // => C . ( T/M - 1/Vmax ) = 1 - T
+            // => C = (1-T) / (T/M - 1/Vmax)
+            // Since we want C <= 1, we must have:
+            // 1-T <= T/M - 1/Vmax
+            // => 1/Vmax <= T/M + T - 1
+            // If this isn't the case, we set C to 1 (to preserve the median as close as possible).
+            // Note that if we weren't doing the linear scaling below, this would reduce to choosing
+            // C = M(1-T)/T. We also tend to that as max_possible_value tends to infinity. So even though
+            // we only sometimes enter this case, it's important for cases where max_possible_value
+            // might be estimated too large (also consider that if we ever support more than 3 images,
+            // we'd risk having too large values).
+            // If T=M, then this simplifies to C = 1-M.
+            // I've tested that using "C = 1-M" always (and no linear scaling) also gives good results:
+            // much better compared to Open Camera 1.39, though not quite as good as doing both this
+            // and linear scaling (testHDR18, testHDR26, testHDR32 look too grey and/or bright).
+            final float tonemap_denom = ((float)median_target)/(float)median_brightness - (255.0f / max_possible_value);
+            if( MyDebug.LOG )
+                Log.d(TAG, "tonemap_denom: " + tonemap_denom);
+            if( tonemap_denom != 0.0f ) { // just in case
+                tonemap_scale_c = (255.0f - median_target) / tonemap_denom;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemap_scale_c (before setting min): " + tonemap_scale_c);
+                /*if( tonemap_scale_c < 0.5f*255.0f ) {
+                    throw new RuntimeException("tonemap_scale_c: " + tonemap_scale_c);
+                }*/
+                // important to set a min value, see testHDR58, testHDR59, testHDR60 - at least 0.25, but 0.5 works better:
+                //tonemap_scale_c = Math.max(tonemap_scale_c, 0.25f*255.0f);
+                tonemap_scale_c = Math.max(tonemap_scale_c, 0.5f*255.0f);
+            }
+            //throw new RuntimeException(); // test
+        }
+        // Higher tonemap_scale_c values means darker results from the Reinhard tonemapping.
+        // Colours brighter than 255-tonemap_scale_c will be made darker, colours darker than 255-tonemap_scale_c will be made brighter
+        // (tonemap_scale_c==255 means therefore that colours will only be made darker).
+        if( MyDebug.LOG )
+            Log.d(TAG, "tonemap_scale_c: " + tonemap_scale_c);
+        return tonemap_scale_c;
+    }
+
     /** Core implementation of HDR algorithm.
      *  Requires Android 4.4 (API level 19, Kitkat), due to using Renderscript without the support libraries.
      *  And we now need Android 5.0 (API level 21, Lollipop) for forEach_Dot with LaunchOptions.
@@ -545,6 +741,10 @@ public class HDRProcessor {
         //float [] hdr = new float[3];
         //int [] rgb = new int[3];
 
+        final long frame_bytes = 4L*width*height;
+        resetWorkingBytes();
+        addWorkingBytes(n_bitmaps*frame_bytes); // the input bitmaps
+
         initRenderscript();
         if( MyDebug.LOG )
             Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
@@ -553,6 +753,7 @@ public class HDRProcessor {
         for(int i=0;i<n_bitmaps;i++) {
             allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
         }
+        addWorkingBytes(n_bitmaps*frame_bytes);
         if( MyDebug.LOG )
             Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
         //final int base_bitmap = (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
@@ -587,31 +788,7 @@ public class HDRProcessor {
             Log.d(TAG, "### time after creating response functions: " + (System.currentTimeMillis() - time_s));
 
         if( n_bitmaps % 2 == 0 ) {
-            // need to remap so that we aim for a brightness between the middle two images
-            float a = (float)Math.sqrt(response_functions[base_bitmap-1].parameter_A);
-            float b = response_functions[base_bitmap-1].parameter_B / (a+1.0f);
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "remap for even number of images");
-                Log.d(TAG, "    a: " + a);
-                Log.d(TAG, "    b: " + b);
-            }
-            if( a < 1.0e-5f ) {
-                // avoid risk of division by 0
-                a = 1.0e-5f;
-                if( MyDebug.LOG )
-                    Log.e(TAG, "    clamp a to: " + a);
-            }
-            for(int i=0;i<n_bitmaps;i++) {
-                float this_A = response_functions[i].parameter_A;
-                float this_B = response_functions[i].parameter_B;
-                response_functions[i].parameter_A = this_A / a;
-                response_functions[i].parameter_B = this_B - this_A * b / a;
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "remapped: " + i);
-                    Log.d(TAG, "    A: " + this_A + " -> " + response_functions[i].parameter_A);
-                    Log.d(TAG, "    B: " + this_B + " -> " + response_functions[i].parameter_B);
-                }
-            }
+            remapForEvenImages(response_functions, base_bitmap);
         }
 
         /*
@@ -646,6 +823,21 @@ public class HDRProcessor {
             Log.d(TAG, "time after calculating average luminance: " + (System.currentTimeMillis() - time_s));
             */
 
+        float max_possible_value = computeMaxPossibleValue(response_functions);
+        float tonemap_scale_c = computeTonemapScale(median_brightness, max_possible_value);
+
+        if( hdr_backend == HDRBackend.HDRBACKEND_JAVA ) {
+            // the allocations were only needed for the alignment
+            for(int i=0;i<n_bitmaps;i++) {
+                allocations[i].destroy();
+                allocations[i] = null;
+            }
+            removeWorkingBytes(n_bitmaps*frame_bytes);
+            freeScripts();
+            processHDRCoreJava(bitmaps, release_bitmaps, output_bitmap, base_bitmap, response_functions, max_possible_value, tonemap_scale_c, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm, time_s);
+            return;
+        }
+
         // write new hdr image
 
         // create RenderScript
@@ -750,73 +942,6 @@ public class HDRProcessor {
                 break;
         }
 
-        float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
-        //float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
-        if( MyDebug.LOG )
-            Log.d(TAG, "max_possible_value: " + max_possible_value);
-        if( max_possible_value < 255.0f ) {
-            max_possible_value = 255.0f; // don't make dark images too bright, see below about linear_scale for more details
-            if( MyDebug.LOG )
-                Log.d(TAG, "clamp max_possible_value to: " + max_possible_value);
-        }
-
-        //hdr_alpha = 0.0f; // test
-        //final float tonemap_scale_c = avg_luminance / 0.8f; // lower values tend to result in too dark pictures; higher values risk over exposed bright areas
-        //final float tonemap_scale_c = 255.0f;
-        //final float tonemap_scale_c = 255.0f - median_brightness;
-        float tonemap_scale_c = 255.0f;
-
-        int median_target = getBrightnessTarget(median_brightness, 2, 119);
-
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "median_target: " + median_target);
-            Log.d(TAG, "compare: " + 255.0f / max_possible_value);
-            Log.d(TAG, "to: " + (((float)median_target)/(float)median_brightness + median_target / 255.0f - 1.0f));
-        }
-        if( 255.0f / max_possible_value < ((float)median_target)/(float)median_brightness + median_target / 255.0f - 1.0f ) {
-            // For Reinhard tonemapping:
-            // As noted below, we have f(V) = V.S / (V+C), where V is the HDR value, C is tonemap_scale_c
-            // and S = (Vmax + C)/Vmax (see below)
-            // Ideally we try to choose C such that we map median value M to target T:
-            // f(M) = T
-            // => T = M . (Vmax + C) / (Vmax . (M + C))
-            // => (T/M).(M + C) = (Vmax + C) / Vmax = 1 + C/Vmax
-            // => C . ( T/M - 1/Vmax ) = 1 - T
-            // => C = (1-T) / (T/M - 1/Vmax)
-            // Since we want C <= 1, we must have:
-            // 1-T <= T/M - 1/Vmax
-            // => 1/Vmax <= T/M + T - 1
-            // If this isn't the case, we set C to 1 (to preserve the median as close as possible).
-            // Note that if we weren't doing the linear scaling below, this would reduce to choosing
-            // C = M(1-T)/T. We also tend to that as max_possible_value tends to infinity. So even though
-            // we only sometimes enter this case, it's important for cases where max_possible_value
-            // might be estimated too large (also consider that if we ever support more than 3 images,
-            // we'd risk having too large values).
-            // If T=M, then this simplifies to C = 1-M.
-            // I've tested that using "C = 1-M" always (and no linear scaling) also gives good results:
-            // much better compared to Open Camera 1.39, though not quite as good as doing both this
-            // and linear scaling (testHDR18, testHDR26, testHDR32 look too grey and/or bright).
-            final float tonemap_denom = ((float)median_target)/(float)median_brightness - (255.0f / max_possible_value);
-            if( MyDebug.LOG )
-                Log.d(TAG, "tonemap_denom: " + tonemap_denom);
-            if( tonemap_denom != 0.0f ) { // just in case
-                tonemap_scale_c = (255.0f - median_target) / tonemap_denom;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemap_scale_c (before setting min): " + tonemap_scale_c);
-                /*if( tonemap_scale_c < 0.5f*255.0f ) {
-                    throw new RuntimeException("tonemap_scale_c: " + tonemap_scale_c);
-                }*/
-                // important to set a min value, see testHDR58, testHDR59, testHDR60 - at least 0.25, but 0.5 works better:
-                //tonemap_scale_c = Math.max(tonemap_scale_c, 0.25f*255.0f);
-                tonemap_scale_c = Math.max(tonemap_scale_c, 0.5f*255.0f);
-            }
-            //throw new RuntimeException(); // test
-        }
-        // Higher tonemap_scale_c values means darker results from the Reinhard tonemapping.
-        // Colours brighter than 255-tonemap_scale_c will be made darker, colours darker than 255-tonemap_scale_c will be made brighter
-        // (tonemap_scale_c==255 means therefore that colours will only be made darker).
-        if( MyDebug.LOG )
-            Log.d(TAG, "tonemap_scale_c: " + tonemap_scale_c);
         processHDRScript.set_tonemap_scale(tonemap_scale_c);
 
         // algorithm specific parameters
@@ -888,6 +1013,7 @@ public class HDRProcessor {
         else {
             output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
             free_output_allocation = true;
+            addWorkingBytes(2*frame_bytes); // output bitmap and allocation
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### time before processHDRScript: " + (System.currentTimeMillis() - time_s));
@@ -950,11 +1076,119 @@ public class HDRProcessor {
             Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
     }
 
+    /** Returns the JavaHDRProcessor constant for the supplied tonemapping algorithm.
+     */
+    private static int getJavaTonemapAlgorithm(TonemappingAlgorithm tonemapping_algorithm) {
+        switch( tonemapping_algorithm ) {
+            case TONEMAPALGORITHM_CLAMP:
+                return JavaHDRProcessor.tonemap_algorithm_clamp_c;
+            case TONEMAPALGORITHM_EXPONENTIAL:
+                return JavaHDRProcessor.tonemap_algorithm_exponential_c;
+            case TONEMAPALGORITHM_FILMIC:
+                return JavaHDRProcessor.tonemap_algorithm_filmic_c;
+            case TONEMAPALGORITHM_ACES:
+                return JavaHDRProcessor.tonemap_algorithm_aces_c;
+            case TONEMAPALGORITHM_REINHARD:
+            default:
+                return JavaHDRProcessor.tonemap_algorithm_reinhard_c;
+        }
+    }
+
+    /** Performs the merge and contrast enhancement for processHDRCore() using JavaHDRProcessor.
+     *  The bitmaps should already be sorted and aligned.
+     */
+    private void processHDRCoreJava(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, int base_bitmap, ResponseFunction [] response_functions, float max_possible_value, float tonemap_scale_c, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm, long time_s) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRCoreJava");
+        int n_bitmaps = bitmaps.size();
+        int width = bitmaps.get(0).getWidth();
+        int height = bitmaps.get(0).getHeight();
+        JavaHDRProcessor processor = getJavaHDRProcessor();
+
+        JavaHDRProcessor.MergeParameters params = new JavaHDRProcessor.MergeParameters(n_bitmaps, base_bitmap);
+        for(int i=0;i<n_bitmaps;i++) {
+            // a null response function means the identity
+            if( response_functions[i] != null ) {
+                params.setResponseFunction(i, response_functions[i].parameter_A, response_functions[i].parameter_B);
+            }
+            params.setOffset(i, offsets_x[i], offsets_y[i]);
+        }
+        params.setTonemapping(getJavaTonemapAlgorithm(tonemapping_algorithm), max_possible_value, tonemap_scale_c);
+
+        final long frame_bytes = 4L*width*height;
+        if( !release_bitmaps )
+            addWorkingBytes(frame_bytes); // output bitmap
+        int [][] pixels = new int[n_bitmaps][];
+        for(int i=0;i<n_bitmaps;i++) {
+            pixels[i] = new int[width*height];
+            bitmaps.get(i).getPixels(pixels[i], 0, width, 0, 0, width, height);
+        }
+        addWorkingBytes(n_bitmaps*frame_bytes);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after reading pixels: " + (System.currentTimeMillis() - time_s));
+
+        // the base image has no offset, so can be used for the output
+        int [] output = pixels[base_bitmap];
+        processor.processHDR(pixels, width, height, output, params);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "### time after JavaHDRProcessor.processHDR: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "merge throughput (MP/s): " + JavaHDRProcessor.megapixelsPerSecond((long)width*height, processor.getLastTimeNs()));
+        }
+        for(int i=0;i<n_bitmaps;i++) {
+            if( i != base_bitmap )
+                pixels[i] = null;
+        }
+
+        if( release_bitmaps ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "release bitmaps");
+            for(int i=0;i<bitmaps.size();i++) {
+                if (i != base_bitmap) {
+                    Bitmap bitmap = bitmaps.get(i);
+                    bitmap.recycle();
+                }
+            }
+        }
+
+        if( hdr_alpha != 0.0f ) {
+            processor.adjustHistogram(output, output, width, height, hdr_alpha, n_tiles, ce_preserve_blacks);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+        }
+
+        if( release_bitmaps ) {
+            Bitmap hdr_bitmap = bitmaps.get(base_bitmap);
+            if( !hdr_bitmap.isMutable() ) {
+                // unlike Allocation.copyTo(), setPixels() requires a mutable bitmap
+                Bitmap mutable_bitmap = hdr_bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                hdr_bitmap.recycle();
+                hdr_bitmap = mutable_bitmap;
+            }
+            hdr_bitmap.setPixels(output, 0, width, 0, 0, width, height);
+
+            // make it so that we store the output bitmap as first in the list
+            bitmaps.set(0, hdr_bitmap);
+            for(int i=1;i<bitmaps.size();i++) {
+                bitmaps.set(i, null);
+            }
+        }
+        else {
+            output_bitmap.setPixels(output, 0, width, 0, 0, width, height);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time for processHDRCoreJava: " + (System.currentTimeMillis() - time_s));
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private void processSingleImage(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, DROTonemappingAlgorithm dro_tonemapping_algorithm) {
         if( MyDebug.LOG )
             Log.d(TAG, "processSingleImage");
 
+        if( hdr_backend == HDRBackend.HDRBACKEND_JAVA ) {
+            processSingleImageJava(bitmaps, release_bitmaps, output_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, dro_tonemapping_algorithm);
+            return;
+        }
+
         long time_s = System.currentTimeMillis();
 
         int width = bitmaps.get(0).getWidth();
@@ -967,6 +1201,10 @@ public class HDRProcessor {
         // create allocation
         Allocation allocation = Allocation.createFromBitmap(rs, bitmaps.get(0));
 
+        final long frame_bytes = 4L*width*height;
+        resetWorkingBytes();
+        addWorkingBytes(2*frame_bytes); // input bitmap and allocation
+
         Allocation output_allocation;
         boolean free_output_allocation = false;
         if( release_bitmaps ) {
@@ -975,11 +1213,12 @@ public class HDRProcessor {
         else {
             free_output_allocation = true;
             output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
+            addWorkingBytes(2*frame_bytes); // output bitmap and allocation
         }
 
         if( dro_tonemapping_algorithm == DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA ) {
             // brighten?
-            int [] histo = computeHistogram(allocation, false, false);
+            int [] histo = getImageStatistics(bitmaps.get(0)).getValueHistogram();
             HistogramInfo histogramInfo = getHistogramInfo(histo);
             int brightness = histogramInfo.median_brightness;
             int max_brightness = histogramInfo.max_brightness;
@@ -1045,6 +1284,88 @@ public class HDRProcessor {
             Log.d(TAG, "time for processSingleImage: " + (System.currentTimeMillis() - time_s));
     }
 
+    /** Performs processSingleImage() using JavaDROProcessor, which needs only two passes over the
+     *  image, and doesn't require RenderScript.
+     */
+    private void processSingleImageJava(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, DROTonemappingAlgorithm dro_tonemapping_algorithm) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processSingleImageJava");
+
+        long time_s = System.currentTimeMillis();
+
+        Bitmap bitmap = bitmaps.get(0);
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        final long n_pixels = (long)width*height;
+        JavaDROProcessor processor = getJavaDROProcessor();
+
+        final long frame_bytes = 4L*width*height;
+        resetWorkingBytes();
+        addWorkingBytes(2*frame_bytes); // input bitmap and pixels
+        if( !release_bitmaps )
+            addWorkingBytes(frame_bytes); // output bitmap
+
+        int [] pixels = new int[width*height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after reading pixels: " + (System.currentTimeMillis() - time_s));
+
+        int [] histograms = processor.computeTileHistograms(pixels, width, height, n_tiles);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "### time after computeTileHistograms: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "histogram throughput (MP/s): " + JavaHDRProcessor.megapixelsPerSecond(n_pixels, processor.getLastTimeNs()));
+        }
+
+        JavaDROProcessor.BrightenParameters brighten_parameters = null;
+        if( dro_tonemapping_algorithm == DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA ) {
+            // brighten?
+            HistogramInfo histogramInfo = getHistogramInfo(JavaDROProcessor.sumTileHistograms(histograms));
+            int brightness = histogramInfo.median_brightness;
+            int max_brightness = histogramInfo.max_brightness;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "median brightness: " + brightness);
+                Log.d(TAG, "max brightness: " + max_brightness);
+            }
+            BrightenFactors brighten_factors = computeBrightenFactors(false, 0, 0, brightness, max_brightness);
+            float gain = brighten_factors.gain;
+            float gamma = brighten_factors.gamma;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "gain: " + gain);
+                Log.d(TAG, "gamma: " + gamma);
+                Log.d(TAG, "low_x: " + brighten_factors.low_x);
+                Log.d(TAG, "mid_x: " + brighten_factors.mid_x);
+            }
+
+            if( Math.abs(gain - 1.0) > 1.0e-5 || max_brightness != 255 || Math.abs(gamma - 1.0) > 1.0e-5 ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "apply gain/gamma");
+                brighten_parameters = new JavaDROProcessor.BrightenParameters(gain, gamma, brighten_factors.low_x, brighten_factors.mid_x, max_brightness);
+            }
+        }
+
+        processor.process(pixels, pixels, width, height, histograms, brighten_parameters, hdr_alpha, n_tiles, ce_preserve_blacks);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "### time after JavaDROProcessor.process: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "brighten and contrast enhancement throughput (MP/s): " + JavaHDRProcessor.megapixelsPerSecond(n_pixels, processor.getLastTimeNs()));
+        }
+
+        if( release_bitmaps ) {
+            if( !bitmap.isMutable() ) {
+                // unlike Allocation.copyTo(), setPixels() requires a mutable bitmap
+                Bitmap mutable_bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                bitmap.recycle();
+                bitmap = mutable_bitmap;
+                bitmaps.set(0, bitmap);
+            }
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        }
+        else {
+            output_bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "time for processSingleImageJava: " + (System.currentTimeMillis() - time_s));
+    }
+
     void brightenImage(Bitmap bitmap, int brightness, int max_brightness, int brightness_target) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "brightenImage");
@@ -1078,6 +1399,9 @@ public class HDRProcessor {
 
             allocation.copyTo(bitmap);
             allocation.destroy();
+            synchronized( image_statistics ) {
+                image_statistics.remove(bitmap);
+            }
 
             freeScripts();
         }
@@ -1219,14 +1543,11 @@ public class HDRProcessor {
 
         /*final boolean use_sharpness_test = false; // disabled for now - takes about 1s extra, and no evidence this helps quality
         if( use_sharpness_test ) {
-            float sharpness_avg = computeSharpness(allocation_avg, width, time_s);
-            float sharpness_new = computeSharpness(allocation_new, width, time_s);
+            long sharpness_avg = computeSharpness(bitmap_avg, time_s);
+            long sharpness_new = computeSharpness(bitmap_new, time_s);
             if( sharpness_new > sharpness_avg ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "use new image as reference");
-                Allocation dummy_allocation = allocation_avg;
-                allocation_avg = allocation_new;
-                allocation_new = dummy_allocation;
                 Bitmap dummy_bitmap = bitmap_avg;
                 bitmap_avg = bitmap_new;
                 bitmap_new = dummy_bitmap;
@@ -1667,6 +1988,8 @@ public class HDRProcessor {
         Allocation allocation5 = Allocation.createFromBitmap(rs, bitmaps.get(5));
         Allocation allocation6 = Allocation.createFromBitmap(rs, bitmaps.get(6));
         Allocation allocation7 = Allocation.createFromBitmap(rs, bitmaps.get(7));
+        resetWorkingBytes();
+        addWorkingBytes(2*n_bitmaps*4L*width*height); // the input bitmaps and their allocations
         if( MyDebug.LOG )
             Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
 
@@ -1740,6 +2063,280 @@ public class HDRProcessor {
             Log.d(TAG, "### time for processAvgMulti: " + (System.currentTimeMillis() - time_s));
     }
 
+    /** The default number of rows for each strip in processHDRStreaming().
+     */
+    public static final int streaming_strip_height_c = 256;
+    // maximum resolution of the images decoded for alignment in processHDRStreaming()
+    private static final int streaming_align_max_pixels_c = 4*1024*1024;
+
+    /** Whether the full frame processing of n_images images of the supplied resolution should be
+     *  avoided in favour of processHDRStreaming(), as the input bitmaps and allocations would take up
+     *  more than half of available_bytes.
+     * @param available_bytes The memory available for the bitmaps and allocations - note that this
+     *                        should be the free native memory on Android 8+ (where the pixel data
+     *                        of bitmaps is stored in native memory), and the maximum Java heap size
+     *                        on older versions.
+     */
+    public static boolean useStreaming(int width, int height, int n_images, long available_bytes) {
+        long full_frame_bytes = 2L*n_images*4L*width*height;
+        return full_frame_bytes > available_bytes/2;
+    }
+
+    /** Returns the power of 2 sample size to decode images at for the alignment in
+     *  processHDRStreaming(), so that the decoded images are no more than streaming_align_max_pixels_c pixels.
+     */
+    static int getStreamingAlignSampleSize(int width, int height) {
+        int sample_size = 1;
+        while( ((long)width/sample_size) * ((long)height/sample_size) > streaming_align_max_pixels_c ) {
+            sample_size *= 2;
+        }
+        return sample_size;
+    }
+
+    /** As processHDR(), but for large images: rather than holding every input image at full
+     *  resolution, the alignment and response functions are computed from images decoded at a
+     *  reduced resolution, and then the merge is done a strip of rows at a time, decoding only that
+     *  strip of each JPEG. Contrast enhancement is then applied as a second pass over the strips of
+     *  the output. The peak memory is therefore the output bitmap plus a strip of each input (see
+     *  getPeakWorkingBytes()), rather than growing with the number of images.
+     *  The merge is done with JavaHDRProcessor, whatever the HDRBackend (the alignment uses
+     *  RenderScript unless the HDRBackend is HDRBACKEND_JAVA).
+     * @param jpeg_images  The JPEG images, which should be in order of increasing brightness. Between
+     *                     2 and 7 images are supported.
+     * @param strip_height The number of rows to process at a time, e.g., streaming_strip_height_c.
+     * @return A new mutable bitmap containing the result.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap processHDRStreaming(List<byte []> jpeg_images, int strip_height, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) throws HDRProcessorException {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRStreaming");
+        int n_images = jpeg_images.size();
+        if( n_images < 2 || n_images > 7 ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "n_images not supported: " + n_images);
+            throw new HDRProcessorException(HDRProcessorException.INVALID_N_IMAGES);
+        }
+        return processStreaming(jpeg_images, strip_height, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm);
+    }
+
+    /** Decodes the rows [y_start, y_stop) of the supplied decoder into pixels.
+     */
+    private static void decodeStrip(BitmapRegionDecoder decoder, BitmapFactory.Options options, int width, int y_start, int y_stop, int [] pixels) throws HDRProcessorException {
+        Bitmap region = decoder.decodeRegion(new Rect(0, y_start, width, y_stop), options);
+        if( region == null ) {
+            Log.e(TAG, "failed to decode region");
+            throw new HDRProcessorException(HDRProcessorException.DECODE_FAILED);
+        }
+        region.getPixels(pixels, 0, width, 0, 0, width, y_stop - y_start);
+        region.recycle();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private Bitmap processStreaming(List<byte []> jpeg_images, int strip_height, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) throws HDRProcessorException {
+        long time_s = System.currentTimeMillis();
+        int n_images = jpeg_images.size();
+        strip_height = Math.max(strip_height, 1);
+
+        int width = 0, height = 0;
+        {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            for(int i=0;i<n_images;i++) {
+                byte [] jpeg = jpeg_images.get(i);
+                BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+                if( options.outWidth <= 0 || options.outHeight <= 0 ) {
+                    Log.e(TAG, "failed to decode bounds for image " + i);
+                    throw new HDRProcessorException(HDRProcessorException.DECODE_FAILED);
+                }
+                if( i == 0 ) {
+                    width = options.outWidth;
+                    height = options.outHeight;
+                }
+                else if( options.outWidth != width || options.outHeight != height ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "images not of same resolution");
+                    throw new HDRProcessorException(HDRProcessorException.UNEQUAL_SIZES);
+                }
+            }
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "width: " + width);
+            Log.d(TAG, "height: " + height);
+            Log.d(TAG, "strip_height: " + strip_height);
+        }
+        resetWorkingBytes();
+        // see processHDRCore()
+        final int base_bitmap = n_images % 2 == 0 ? n_images/2 : (n_images - 1) / 2;
+
+        // perform auto-alignment, and compute the response functions, on reduced resolution images
+        final int sample_size = getStreamingAlignSampleSize(width, height);
+        if( MyDebug.LOG )
+            Log.d(TAG, "sample_size: " + sample_size);
+        List<Bitmap> align_bitmaps = new ArrayList<>();
+        long align_bytes = 0;
+        {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sample_size;
+            for(int i=0;i<n_images;i++) {
+                byte [] jpeg = jpeg_images.get(i);
+                Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+                if( bitmap == null ) {
+                    Log.e(TAG, "failed to decode image " + i);
+                    for(Bitmap align_bitmap : align_bitmaps) {
+                        align_bitmap.recycle();
+                    }
+                    throw new HDRProcessorException(HDRProcessorException.DECODE_FAILED);
+                }
+                align_bitmaps.add(bitmap);
+                align_bytes += 2L*bitmap.getByteCount(); // also include the allocation created below
+            }
+        }
+        addWorkingBytes(align_bytes);
+        final int align_width = align_bitmaps.get(0).getWidth();
+        final int align_height = align_bitmaps.get(0).getHeight();
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after decoding alignment images: " + (System.currentTimeMillis() - time_s));
+
+        initRenderscript();
+        Allocation [] allocations = new Allocation[n_images];
+        for(int i=0;i<n_images;i++) {
+            allocations[i] = Allocation.createFromBitmap(rs, align_bitmaps.get(i));
+        }
+        offsets_x = new int[n_images];
+        offsets_y = new int[n_images];
+        BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, allocations, align_width, align_height, align_bitmaps, base_bitmap, true, null, true, false, 1, true, 1, align_width, align_height, time_s);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
+
+        ResponseFunction [] response_functions = new ResponseFunction[n_images];
+        for(int i=0;i<n_images;i++) {
+            if( i != base_bitmap )
+                response_functions[i] = createFunctionFromBitmaps(i, align_bitmaps.get(i), align_bitmaps.get(base_bitmap), offsets_x[i], offsets_y[i]);
+            else
+                response_functions[i] = ResponseFunction.createIdentity();
+        }
+        if( n_images % 2 == 0 ) {
+            remapForEvenImages(response_functions, base_bitmap);
+        }
+        float max_possible_value = computeMaxPossibleValue(response_functions);
+        float tonemap_scale_c = computeTonemapScale(brightnessDetails.median_brightness, max_possible_value);
+
+        JavaHDRProcessor.MergeParameters params = new JavaHDRProcessor.MergeParameters(n_images, base_bitmap);
+        for(int i=0;i<n_images;i++) {
+            params.setResponseFunction(i, response_functions[i].parameter_A, response_functions[i].parameter_B);
+        }
+        params.setTonemapping(getJavaTonemapAlgorithm(tonemapping_algorithm), max_possible_value, tonemap_scale_c);
+
+        for(int i=0;i<n_images;i++) {
+            allocations[i].destroy();
+            allocations[i] = null;
+            align_bitmaps.get(i).recycle();
+        }
+        align_bitmaps.clear();
+        clearImageStatistics();
+        removeWorkingBytes(align_bytes);
+        freeScripts();
+
+        // scale the offsets up to the full resolution
+        for(int i=0;i<n_images;i++) {
+            offsets_x[i] *= sample_size;
+            offsets_y[i] *= sample_size;
+            params.setOffset(i, offsets_x[i], offsets_y[i]);
+            if( MyDebug.LOG )
+                Log.d(TAG, "offset " + i + ": " + offsets_x[i] + " , " + offsets_y[i]);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after computing response functions: " + (System.currentTimeMillis() - time_s));
+
+        BitmapRegionDecoder [] decoders = new BitmapRegionDecoder[n_images];
+        Bitmap output_bitmap = null;
+        try {
+            for(int i=0;i<n_images;i++) {
+                byte [] jpeg = jpeg_images.get(i);
+                decoders[i] = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false);
+            }
+
+            output_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            final long strip_bytes = 4L*width*strip_height;
+            // a strip for each input, the output strip, and the transient bitmap for decoding a region
+            final long strips_bytes = (n_images+2)*strip_bytes;
+            addWorkingBytes(4L*width*height + strips_bytes);
+
+            JavaHDRProcessor processor = getJavaHDRProcessor();
+            BitmapFactory.Options region_options = new BitmapFactory.Options();
+            region_options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            int [][] strips = new int[n_images][];
+            int [] strips_y0 = new int[n_images];
+            for(int i=0;i<n_images;i++) {
+                strips[i] = new int[width*strip_height];
+            }
+            int [] output_strip = new int[width*strip_height];
+            int [] histograms = hdr_alpha != 0.0f ? new int[n_tiles*n_tiles*256] : null;
+
+            for(int y_start=0;y_start<height;y_start+=strip_height) {
+                int y_stop = Math.min(y_start+strip_height, height);
+                for(int i=0;i<n_images;i++) {
+                    // the rows needed from this image, allowing for its offset
+                    int src_start = Math.max(0, Math.min(height, y_start + offsets_y[i]));
+                    int src_stop = Math.max(0, Math.min(height, y_stop + offsets_y[i]));
+                    strips_y0[i] = src_start;
+                    if( src_stop > src_start ) {
+                        decodeStrip(decoders[i], region_options, width, src_start, src_stop, strips[i]);
+                    }
+                    // else no rows are needed, all pixels will fall outside this image
+                }
+                processor.processHDRStrip(strips, strips_y0, width, height, output_strip, y_start, y_stop, params);
+                if( histograms != null )
+                    processor.accumulateTileHistograms(output_strip, width, height, y_start, y_stop, n_tiles, histograms);
+                output_bitmap.setPixels(output_strip, 0, width, 0, y_start, width, y_stop - y_start);
+            }
+            for(int i=0;i<n_images;i++) {
+                strips[i] = null;
+                decoders[i].recycle();
+                decoders[i] = null;
+            }
+            removeWorkingBytes(n_images*strip_bytes);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after merging strips: " + (System.currentTimeMillis() - time_s));
+
+            if( histograms != null ) {
+                int [] c_histogram = JavaHDRProcessor.computeCumulativeHistograms(histograms, width, height, n_tiles, ce_preserve_blacks);
+                for(int y_start=0;y_start<height;y_start+=strip_height) {
+                    int y_stop = Math.min(y_start+strip_height, height);
+                    output_bitmap.getPixels(output_strip, 0, width, 0, y_start, width, y_stop - y_start);
+                    processor.applyHistogramStrip(output_strip, output_strip, width, height, y_start, y_stop, c_histogram, hdr_alpha, n_tiles);
+                    output_bitmap.setPixels(output_strip, 0, width, 0, y_start, width, y_stop - y_start);
+                }
+                if( MyDebug.LOG )
+                    Log.d(TAG, "### time after adjusting histogram: " + (System.currentTimeMillis() - time_s));
+            }
+        }
+        catch(IOException e) {
+            Log.e(TAG, "failed to create region decoder");
+            e.printStackTrace();
+            if( output_bitmap != null )
+                output_bitmap.recycle();
+            throw new HDRProcessorException(HDRProcessorException.DECODE_FAILED);
+        }
+        catch(HDRProcessorException e) {
+            if( output_bitmap != null )
+                output_bitmap.recycle();
+            throw e;
+        }
+        finally {
+            for(int i=0;i<n_images;i++) {
+                if( decoders[i] != null )
+                    decoders[i].recycle();
+            }
+        }
+
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "### time for processStreaming: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "peak working bytes: " + getPeakWorkingBytes());
+        }
+        return output_bitmap;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     void autoAlignment(int[] offsets_x, int[] offsets_y, int width, int height, List<Bitmap> bitmaps, int base_bitmap, boolean use_mtb, int max_align_scale) {
         if( MyDebug.LOG )
@@ -1827,21 +2424,18 @@ public class HDRProcessor {
             Log.d(TAG, "mtb_height: " + mtb_height);
         }
 
-        // create RenderScript
-        if( createMTBScript == null ) {
-            createMTBScript = new ScriptC_create_mtb(rs);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
-        }
-        //ScriptC_create_mtb createMTBScript = new ScriptC_create_mtb(rs);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
-
         LuminanceInfo [] luminanceInfos = null;
         if( use_mtb ) {
             luminanceInfos = new LuminanceInfo[allocations.length];
             for(int i = 0; i < allocations.length; i++) {
-                luminanceInfos[i] = computeMedianLuminance(bitmaps.get(i), mtb_x, mtb_y, mtb_width, mtb_height);
+                if( hdr_backend == HDRBackend.HDRBACKEND_JAVA ) {
+                    // use all the pixels in the region, rather than sampling
+                    int [] histo = getImageStatistics(bitmaps.get(i), mtb_x, mtb_y, mtb_width, mtb_height).getRegionValueHistogram();
+                    luminanceInfos[i] = computeLuminanceInfo(histo);
+                }
+                else {
+                    luminanceInfos[i] = computeMedianLuminance(bitmaps.get(i), mtb_x, mtb_y, mtb_width, mtb_height);
+                }
                 if( MyDebug.LOG )
                     Log.d(TAG, i + ": median_value: " + luminanceInfos[i].median_value);
             }
@@ -1924,6 +2518,36 @@ public class HDRProcessor {
                 Log.d(TAG, "median_brightness: " + median_brightness);
         }
 
+        // The initial step_size N should be a power of 2; the maximum offset we can achieve by the algorithm is N-1.
+        // For pictures resolution 4160x3120, this gives max_ideal_size 27, and initial_step_size 32.
+        // On tests testHDR1 to testHDR35, the max required offset was 24 pixels (for testHDR33) even when using
+        // inital_step_size of 64.
+        // Note, there isn't really a performance cost in allowing higher initial step sizes (as larger sizes have less
+        // sampling - since we sample every step_size pixels - though there might be some overhead for every extra call
+        // to renderscript that we do). But high step sizes have a risk of producing really bad results if we were
+        // to misidentify cases as needing a large offset.
+        // n.b., use the full width and height here, not the mtb_width, height
+        int initial_step_size = JavaMTBAlignment.computeInitialStepSize(full_width, full_height, max_align_scale);
+        //initial_step_size = 64;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "initial_step_size: " + initial_step_size);
+        }
+
+        if( use_mtb && hdr_backend == HDRBackend.HDRBACKEND_JAVA ) {
+            autoAlignmentJava(offsets_x, offsets_y, bitmaps, base_bitmap, luminanceInfos, mtb_x, mtb_y, mtb_width, mtb_height, initial_step_size, min_step_size, time_s);
+            return new BrightnessDetails(median_brightness);
+        }
+
+        // create RenderScript
+        if( createMTBScript == null ) {
+            createMTBScript = new ScriptC_create_mtb(rs);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
+        }
+        //ScriptC_create_mtb createMTBScript = new ScriptC_create_mtb(rs);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
+
         for(int i=0;i<allocations.length;i++) {
             int median_value = -1;
             if( use_mtb ) {
@@ -2015,28 +2639,6 @@ public class HDRProcessor {
         if( MyDebug.LOG )
             Log.d(TAG, "### time after all createMTBScript: " + (System.currentTimeMillis() - time_s));
 
-        // The initial step_size N should be a power of 2; the maximum offset we can achieve by the algorithm is N-1.
-        // For pictures resolution 4160x3120, this gives max_ideal_size 27, and initial_step_size 32.
-        // On tests testHDR1 to testHDR35, the max required offset was 24 pixels (for testHDR33) even when using
-        // inital_step_size of 64.
-        // Note, there isn't really a performance cost in allowing higher initial step sizes (as larger sizes have less
-        // sampling - since we sample every step_size pixels - though there might be some overhead for every extra call
-        // to renderscript that we do). But high step sizes have a risk of producing really bad results if we were
-        // to misidentify cases as needing a large offset.
-        int max_dim = Math.max(full_width, full_height); // n.b., use the full width and height here, not the mtb_width, height
-        //int max_ideal_size = max_dim / (wider ? 75 : 150);
-        int max_ideal_size = (max_align_scale * max_dim) / 150;
-        int initial_step_size = 1;
-        while( initial_step_size < max_ideal_size ) {
-            initial_step_size *= 2;
-        }
-        //initial_step_size = 64;
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "max_dim: " + max_dim);
-            Log.d(TAG, "max_ideal_size: " + max_ideal_size);
-            Log.d(TAG, "initial_step_size: " + initial_step_size);
-        }
-
         if( mtb_allocations[base_bitmap] == null ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "base image not suitable for image alignment");
@@ -2241,6 +2843,63 @@ public class HDRProcessor {
         return new BrightnessDetails(median_brightness);
     }
 
+    /** Performs the median threshold bitmap alignment for autoAlignment() with JavaMTBAlignment,
+     *  rather than RenderScript. The MTBs are created a strip of rows at a time, to avoid holding a
+     *  copy of the pixels of each bitmap.
+     */
+    private void autoAlignmentJava(int [] offsets_x, int [] offsets_y, List<Bitmap> bitmaps, int base_bitmap, LuminanceInfo [] luminanceInfos, int mtb_x, int mtb_y, int mtb_width, int mtb_height, int initial_step_size, int min_step_size, long time_s) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "autoAlignmentJava");
+        if( luminanceInfos[base_bitmap].noisy ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "base image not suitable for image alignment");
+            return;
+        }
+        JavaMTBAlignment alignment = getJavaMTBAlignment();
+        final int strip_height = 64;
+        int [] pixels = new int[mtb_width*Math.min(strip_height, mtb_height)];
+        JavaMTBAlignment.MTB [] mtbs = new JavaMTBAlignment.MTB[bitmaps.size()];
+        for(int i=0;i<bitmaps.size();i++) {
+            if( luminanceInfos[i].noisy ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "unable to compute median luminance safely for image: " + i);
+                continue;
+            }
+            // avoid too low/high median_values, as for the RenderScript version
+            int median_value = luminanceInfos[i].median_value;
+            median_value = Math.max(median_value, JavaMTBAlignment.min_diff_c+1);
+            median_value = Math.min(median_value, 255-(JavaMTBAlignment.min_diff_c+1));
+            mtbs[i] = new JavaMTBAlignment.MTB(mtb_width, mtb_height);
+            Bitmap bitmap = bitmaps.get(i);
+            for(int y=0;y<mtb_height;y+=strip_height) {
+                int n_rows = Math.min(strip_height, mtb_height-y);
+                bitmap.getPixels(pixels, 0, mtb_width, mtb_x, mtb_y+y, mtb_width, n_rows);
+                alignment.setRows(mtbs[i], pixels, y, n_rows, median_value);
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating mtbs: " + (System.currentTimeMillis() - time_s));
+
+        int [] offset = new int[2];
+        for(int i=0;i<bitmaps.size();i++) {
+            if( i == base_bitmap || mtbs[i] == null ) {
+                continue;
+            }
+            offset[0] = offsets_x[i];
+            offset[1] = offsets_y[i];
+            alignment.align(mtbs[base_bitmap], mtbs[i], initial_step_size, min_step_size, offset);
+            offsets_x[i] = offset[0];
+            offsets_y[i] = offset[1];
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "resultant offsets for image: " + i);
+                Log.d(TAG, "resultant offsets_x: " + offsets_x[i]);
+                Log.d(TAG, "resultant offsets_y: " + offsets_y[i]);
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after aligning mtbs: " + (System.currentTimeMillis() - time_s));
+    }
+
     public static class LuminanceInfo implements Comparable<LuminanceInfo> {
         final int min_value;
         final int median_value;
@@ -2275,6 +2934,10 @@ public class HDRProcessor {
         }
     }
 
+    /** Computes the LuminanceInfo for the region of the bitmap from a grid of 10x10 samples. The
+     *  Java backend instead uses the histogram of all the pixels in the region, from
+     *  getImageStatistics().
+     */
     private LuminanceInfo computeMedianLuminance(Bitmap bitmap, int mtb_x, int mtb_y, int mtb_width, int mtb_height) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "computeMedianLuminance");
@@ -2290,7 +2953,6 @@ public class HDRProcessor {
         int [] histo = new int[256];
         for(int i=0;i<256;i++)
             histo[i] = 0;
-        int total = 0;
         //double sum_log_luminance = 0.0;
         for(int y=0;y<n_h_samples;y++) {
             double alpha = ((double) y + 1.0) / ((double) n_h_samples + 1.0);
@@ -2310,12 +2972,22 @@ public class HDRProcessor {
                 luminance = Math.max(luminance, b);
                 histo[luminance]++;
                 //sum_log_luminance += Math.log(luminance+1.0); // add 1 so we don't take log of 0...;
-                total++;
             }
         }
         /*float avg_luminance = (float)(Math.exp( sum_log_luminance / total ));
         if( MyDebug.LOG )
             Log.d(TAG, "avg_luminance: " + avg_luminance);*/
+        return computeLuminanceInfo(histo);
+    }
+
+    /** Computes the minimum, median and high (90th percentile) values from a histogram of values,
+     *  and whether the image is too dark or noisy for the median to be used as the threshold for
+     *  median threshold bitmaps.
+     */
+    static LuminanceInfo computeLuminanceInfo(int [] histo) {
+        int total = 0;
+        for(int value : histo)
+            total += value;
         int middle = total/2;
         int count = 0;
         boolean noisy = false;
@@ -2376,7 +3048,7 @@ public class HDRProcessor {
                 return new LuminanceInfo(min_value, i, hi_value, noisy);
             }
         }
-        Log.e(TAG, "computeMedianLuminance failed");
+        Log.e(TAG, "computeLuminanceInfo failed");
         return new LuminanceInfo(min_value, 127, hi_value, true);
     }
 
@@ -2756,19 +3428,66 @@ public class HDRProcessor {
      * @param avg If true, compute the color value as the average of the rgb values. If false,
      *            compute the color value as the maximum of the rgb values.
      */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     public int [] computeHistogram(Bitmap bitmap, boolean avg) {
         if( MyDebug.LOG )
             Log.d(TAG, "computeHistogram");
+        // not cached, as the caller may have modified the bitmap since a previous call
+        ImageStatistics statistics = computeImageStatistics(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return avg ? statistics.getIntensityHistogram() : statistics.getValueHistogram();
+    }
+
+    /** Computes the histograms of the bitmap in a single pass, reading it in strips to avoid
+     *  holding a copy of the whole image.
+     */
+    private ImageStatistics computeImageStatistics(Bitmap bitmap, int region_x, int region_y, int region_width, int region_height) {
         long time_s = System.currentTimeMillis();
-        initRenderscript();
-        Allocation allocation_in = Allocation.createFromBitmap(rs, bitmap);
-        if( MyDebug.LOG )
-            Log.d(TAG, "time after createFromBitmap: " + (System.currentTimeMillis() - time_s));
-        int [] histogram = computeHistogram(allocation_in, avg, false);
-        allocation_in.destroy();
-        freeScripts();
-        return histogram;
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        ImageStatistics statistics = new ImageStatistics(width, height, region_x, region_y, region_width, region_height);
+        final int strip_height = 256;
+        int [] pixels = new int[width*Math.min(strip_height, height)];
+        for(int y=0;y<height;y+=strip_height) {
+            int n_rows = Math.min(strip_height, height-y);
+            bitmap.getPixels(pixels, 0, width, 0, y, width, n_rows);
+            statistics.accumulate(ParallelRows.getDefaultPool(), 32, pixels, y, n_rows);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "time for computeImageStatistics: " + (System.currentTimeMillis() - time_s));
+        return statistics;
+    }
+
+    /** Returns the statistics of the bitmap, computing them if they haven't already been
+     *  computed during the current request.
+     */
+    private ImageStatistics getImageStatistics(Bitmap bitmap) {
+        synchronized( image_statistics ) {
+            ImageStatistics statistics = image_statistics.get(bitmap);
+            if( statistics == null ) {
+                statistics = computeImageStatistics(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight());
+                image_statistics.put(bitmap, statistics);
+            }
+            return statistics;
+        }
+    }
+
+    /** As getImageStatistics(Bitmap), but the statistics must also include the histogram of
+     *  values for the supplied region.
+     */
+    private ImageStatistics getImageStatistics(Bitmap bitmap, int region_x, int region_y, int region_width, int region_height) {
+        synchronized( image_statistics ) {
+            ImageStatistics statistics = image_statistics.get(bitmap);
+            if( statistics == null || !statistics.hasRegion(region_x, region_y, region_width, region_height) ) {
+                statistics = computeImageStatistics(bitmap, region_x, region_y, region_width, region_height);
+                image_statistics.put(bitmap, statistics);
+            }
+            return statistics;
+        }
+    }
+
+    private void clearImageStatistics() {
+        synchronized( image_statistics ) {
+            image_statistics.clear();
+        }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -3191,52 +3910,26 @@ public class HDRProcessor {
 
     /**
      * Computes a value for how sharp the image is perceived to be. The higher the value, the
-     * sharper the image.
-     * @param allocation_in The input allocation.
-     * @param width         The width of the allocation.
+     * sharper the image. Values are only comparable between images of the same size.
+     * @param bitmap The input bitmap.
      */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private float computeSharpness(Allocation allocation_in, int width, long time_s) {
+    private long computeSharpness(Bitmap bitmap, long time_s) {
         if( MyDebug.LOG )
             Log.d(TAG, "computeSharpness");
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int [] pixels = new int[width*height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
         if( MyDebug.LOG )
-            Log.d(TAG, "### time: " + (System.currentTimeMillis() - time_s));
-        Allocation sumsAllocation = Allocation.createSized(rs, Element.I32(rs), width);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after createSized: " + (System.currentTimeMillis() - time_s));
-        /*if( sharpnessScript == null ) {
-            sharpnessScript = new ScriptC_calculate_sharpness(rs);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### time after create sharpnessScript: " + (System.currentTimeMillis() - time_s));
-        }*/
-        ScriptC_calculate_sharpness sharpnessScript = new ScriptC_calculate_sharpness(rs);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after create sharpnessScript: " + (System.currentTimeMillis() - time_s));
-        if( MyDebug.LOG )
-            Log.d(TAG, "bind sums allocation");
-        sharpnessScript.bind_sums(sumsAllocation);
-        sharpnessScript.set_bitmap(allocation_in);
-        sharpnessScript.set_width(width);
-        sharpnessScript.invoke_init_sums();
-        if( MyDebug.LOG )
-            Log.d(TAG, "call sharpnessScript");
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time before sharpnessScript: " + (System.currentTimeMillis() - time_s));
-        sharpnessScript.forEach_calculate_sharpness(allocation_in);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after sharpnessScript: " + (System.currentTimeMillis() - time_s));
-
-        int [] sums = new int[width];
-        sumsAllocation.copyTo(sums);
-        sumsAllocation.destroy();
-        float total_sum = 0.0f;
-        for(int i=0;i<width;i++) {
-            /*if( MyDebug.LOG )
-                Log.d(TAG, "sums[" + i + "] = " + sums[i]);*/
-            total_sum += (float)sums[i];
+            Log.d(TAG, "### time after getPixels: " + (System.currentTimeMillis() - time_s));
+        if( sharpnessScorer == null ) {
+            sharpnessScorer = new SharpnessScorer();
         }
-        if( MyDebug.LOG )
+        long total_sum = sharpnessScorer.score(pixels, width, height, 2);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "### time after computing sharpness: " + (System.currentTimeMillis() - time_s));
             Log.d(TAG, "total_sum: " + total_sum);
+        }
         return total_sum;
     }
 }
@@ -1,6 +1,7 @@
 package net.sourceforge.opencamera;
 
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.JpegBufferPool;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 
 import java.io.ByteArrayInputStream;
@@ -21,8 +22,13 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -30,13 +36,17 @@ import android.app.Activity;
 import android.app.ActivityManager;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.location.Address;
 import android.location.Geocoder;
 import android.location.Location;
@@ -44,6 +54,7 @@ import androidx.exifinterface.media.ExifInterface;
 import android.net.Uri;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.renderscript.Allocation;
 import android.util.Log;
@@ -63,11 +74,15 @@ import org.xmlpull.v1.XmlSerializer;
 public class ImageSaver extends Thread {
     private static final String TAG = "ImageSaver";
 
-    private final Paint p = new Paint();
-
     private final MainActivity main_activity;
     private final HDRProcessor hdrProcessor;
     private final PanoramaProcessor panoramaProcessor;
+    private SharpnessScorer sharpnessScorer; // lazily created, as requires Android 5 (for ForkJoinPool)
+    // best of burst images are decoded at half resolution, then scored at a further half resolution, which is enough
+    // to tell shaken or out of focus images apart, at a fraction of the cost of a full decode
+    private final static int best_of_burst_sample_size_c = 2;
+    private final static int best_of_burst_sample_factor_c = 2;
+    private int [] best_of_burst_pixels; // reused for scoring best of burst images; only accessed on batch_executor
 
     /* We use a separate count n_images_to_save, rather than just relying on the queue size, so we can take() an image from queue,
      * but only decrement the count when we've finished saving the image.
@@ -78,11 +93,42 @@ public class ImageSaver extends Thread {
      * Access to n_images_to_save should always be synchronized to this (i.e., the ImageSaver class).
      * n_real_images_to_save excludes "Dummy" requests, and should also be synchronized, and modified
      * at the same time as n_images_to_save.
+     * The number of images held in memory is limited by queue_policy, which admits requests
+     * according to the heap bytes they retain (the JPEG data), rather than by the capacity of the
+     * queue; RAW images are limited by count. Dummy requests retain no bytes, and are never blocked. Access to
+     * queue_policy should also be synchronized to this.
      */
     private int n_images_to_save = 0;
     private int n_real_images_to_save = 0;
-    private final int queue_capacity;
-    private final BlockingQueue<Request> queue;
+    private final ImageSaverQueuePolicy queue_policy;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    /* Pool of buffers for receiving JPEGs from the camera, see CameraController.setJpegBufferPool().
+     * Buffers are returned to the pool once the request holding them has been saved.
+     */
+    private final static int jpeg_buffer_pool_size_c = 4; // number of free buffers kept for reuse
+    private final JpegBufferPool jpeg_buffer_pool = new JpegBufferPool(jpeg_buffer_pool_size_c);
+
+    /* In multi-worker mode (n_workers > 1), this thread only dispatches requests from the queue:
+     * NORMAL requests are saved concurrently on normal_executor, whilst the slower HDR, AVERAGE,
+     * PANORAMA and BEST_OF_BURST requests are processed one at a time on heavy_executor, so they
+     * don't hold up the normal requests queued behind them. Dummy requests are attached to the
+     * preceding request, so that the cost of a request is only released once it has actually been
+     * saved.
+     * Requests on the normal lane are given a filename_seq, and must wait for their turn before
+     * creating their output files (see waitForFilenameTurn()), so that filenames are still allocated
+     * in the order the photos were taken.
+     * Access to last_dispatched_request and next_filename_seq should be synchronized to this.
+     */
+    private final int n_workers;
+    private ExecutorService normal_executor; // only created in multi-worker mode
+    private ExecutorService heavy_executor; // only created in multi-worker mode
+    private ExecutorService batch_executor; // lazily created, for processing the images of a panorama, NR or best of burst batch as they're captured
+    private final ExecutorService decode_executor; // for decoding the images of a request in parallel, see DecodeQueue
+    private Request last_dispatched_request;
+    private long next_filename_seq;
+    private final Object filename_lock = new Object();
+    private long filename_turn; // the filename_seq of the request allowed to create files, synchronized to filename_lock
     private final static int queue_cost_jpeg_c = 1; // also covers WEBP
     private final static int queue_cost_dng_c = 6;
     //private final static int queue_cost_dng_c = 1;
@@ -98,6 +144,15 @@ public class ImageSaver extends Thread {
     public static volatile boolean test_small_queue_size; // needs to be static, as it needs to be set before activity is created to take effect
     public volatile boolean test_slow_saving;
     public volatile boolean test_queue_blocked;
+    public volatile boolean test_streaming_hdr; // if true, always use the streaming mode for HDR
+    public static volatile int test_n_workers; // if non-zero, overrides computeNWorkers(); needs to be static, as it needs to be set before activity is created to take effect
+    public volatile boolean test_no_incremental_panorama; // if true, don't align panorama images as they're captured
+    public volatile boolean test_no_incremental_average; // if true, don't average NR images as they're captured
+    public volatile int test_n_best_of_burst_rejected; // number of fast burst images not saved, as they weren't among the sharpest
+    public volatile boolean test_no_stamp_region; // if true, always decode the whole image to stamp photos
+    public volatile int test_n_stamp_region; // number of photos stamped by only re-encoding the region of the stamp
+    public volatile long last_auto_stabilise_peak_bytes; // for testing and performance measurement: estimated peak memory of the last auto-stabilise (source and output bitmaps, and tile buffers)
+    public volatile double last_auto_stabilise_ms_per_mp; // for testing and performance measurement: time per output megapixel of the last auto-stabilise
 
     static class Request {
         enum Type {
@@ -110,7 +165,8 @@ public class ImageSaver extends Thread {
             NORMAL,
             HDR,
             AVERAGE,
-            PANORAMA
+            PANORAMA,
+            BEST_OF_BURST // save only the sharpest images of a fast burst
         }
         final ProcessType process_type; // for type==JPEG
         final boolean force_suffix; // affects filename suffixes for saving jpeg_images: if true, filenames will always be appended with a suffix like _0, even if there's only 1 image in jpeg_images
@@ -128,6 +184,11 @@ public class ImageSaver extends Thread {
          * If process_type==NORMAL, then multiple images are saved sequentially.
          */
         final List<byte []> jpeg_images;
+        /* jpeg_buffer: if non-null, the request has a single JPEG held in this pooled buffer, rather
+         * than in jpeg_images (which is then empty). The buffer is released once the request has been
+         * saved (or copied to jpeg_images, if the request needs processing, see canSaveJpegBuffer()).
+         */
+        JpegBufferPool.Buffer jpeg_buffer;
         final RawImage raw_image; // for raw
         final boolean image_capture_intent;
         final Uri image_capture_intent_uri;
@@ -145,12 +206,21 @@ public class ImageSaver extends Thread {
         final double level_angle; // in degrees
         final List<float []> gyro_rotation_matrix; // used for panorama (one 3x3 matrix per jpeg_images entry), otherwise can be null
         boolean panorama_dir_left_to_right; // used for panorama
+        PanoramaProcessor.IncrementalPanorama incremental_panorama; // used for panorama, if images are being aligned as they're captured
+        Future<?> incremental_panorama_task; // used for panorama, the most recent task adding an image to incremental_panorama
+        IncrementalAverage incremental_average; // used for NR, if images are being averaged as they're captured
+        Future<?> incremental_average_task; // used for NR, the most recent task adding an image to incremental_average
+        int n_dropped_images; // used for NR, the number of images averaged by incremental_average that weren't kept in jpeg_images
+        BestOfBurstSelector<byte []> best_of_burst; // used for BEST_OF_BURST, the sharpest images so far (rather than jpeg_images)
+        Future<?> best_of_burst_task; // used for BEST_OF_BURST, the most recent task scoring an image
+        int n_best_of_burst_images; // used for BEST_OF_BURST, the number of images submitted for scoring
         float camera_view_angle_x; // used for panorama
         float camera_view_angle_y; // used for panorama
         final boolean is_front_facing;
         boolean mirror;
         final Date current_date;
         final String preference_hdr_contrast_enhancement; // for HDR
+        final HDRProcessor.HDRBackend hdr_backend; // for HDR and DRO
         final int iso; // not applicable for RAW image
         final long exposure_time; // not applicable for RAW image
         final float zoom_factor; // not applicable for RAW image
@@ -175,6 +245,13 @@ public class ImageSaver extends Thread {
         final String custom_tag_copyright;
         final int sample_factor; // sampling factor for thumbnail, higher means lower quality
 
+        // for multi-worker mode, synchronized to the ImageSaver
+        long filename_seq = -1; // -1 if not on the normal lane
+        long queued_bytes; // bytes admitted by queue_policy, set when added to the queue
+        boolean filename_turn_done;
+        int n_attached_dummies; // dummy requests that are released when this request is processed
+        boolean processed;
+
         Request(Type type,
                 ProcessType process_type,
                 boolean force_suffix,
@@ -190,6 +267,7 @@ public class ImageSaver extends Thread {
                 boolean mirror,
                 Date current_date,
                 String preference_hdr_contrast_enhancement,
+                HDRProcessor.HDRBackend hdr_backend,
                 int iso,
                 long exposure_time,
                 float zoom_factor,
@@ -219,6 +297,7 @@ public class ImageSaver extends Thread {
             this.mirror = mirror;
             this.current_date = current_date;
             this.preference_hdr_contrast_enhancement = preference_hdr_contrast_enhancement;
+            this.hdr_backend = hdr_backend;
             this.iso = iso;
             this.exposure_time = exposure_time;
             this.zoom_factor = zoom_factor;
@@ -263,6 +342,7 @@ public class ImageSaver extends Thread {
                     this.mirror,
                     this.current_date,
                     this.preference_hdr_contrast_enhancement,
+                    this.hdr_backend,
                     this.iso,
                     this.exposure_time,
                     this.zoom_factor,
@@ -281,67 +361,72 @@ public class ImageSaver extends Thread {
         this.main_activity = main_activity;
 
         ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
-        this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
-        this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+        this.queue_policy = new ImageSaverQueuePolicy(computeQueueBudget(Runtime.getRuntime().maxMemory()), computeMaxRawImages(activityManager.getLargeMemoryClass()));
+        // multi-worker mode is only used if enabled by the user (the ImageSaver is recreated when the option is changed, see MyPreferenceFragment)
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(main_activity);
+        boolean parallel_saving = sharedPreferences.getBoolean(PreferenceKeys.ParallelPhotoSavingPreferenceKey, false);
+        this.n_workers = test_n_workers > 0 ? test_n_workers : parallel_saving ? computeNWorkers(activityManager.getLargeMemoryClass(), Runtime.getRuntime().availableProcessors()) : 1;
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_workers: " + n_workers);
+        if( n_workers > 1 ) {
+            normal_executor = Executors.newFixedThreadPool(n_workers, new WorkerThreadFactory("ImageSaver-normal-"));
+            heavy_executor = Executors.newSingleThreadExecutor(new WorkerThreadFactory("ImageSaver-heavy-"));
+        }
+        int n_decode_threads = computeNDecodeThreads(activityManager.getLargeMemoryClass(), Runtime.getRuntime().availableProcessors());
+        // n.b., threads are only created once images are decoded
+        decode_executor = Executors.newFixedThreadPool(n_decode_threads, new WorkerThreadFactory("ImageSaver-decode-"));
 
         this.hdrProcessor = new HDRProcessor(main_activity, main_activity.is_test);
         this.panoramaProcessor = new PanoramaProcessor(main_activity, hdrProcessor);
 
-        p.setAntiAlias(true);
     }
 
-    /** Returns the length of the image saver queue. In practice, the number of images that can be taken at once before the UI
-     *  blocks is 1 more than this, as 1 image will be taken off the queue to process straight away.
+    /** Returns the number of JPEG photos that can be queued at once, based on the current estimate
+     *  of the size of a JPEG. In practice, the number of images that can be taken at once before the
+     *  UI blocks is 1 more than this, as a photo can be taken whilst the queue is exactly full.
      */
-    public int getQueueSize() {
-        return this.queue_capacity;
+    public synchronized int getQueueSize() {
+        return queue_policy.getMaxRequests(queue_policy.estimatePhotoBytes(0, 1));
     }
 
-    /** Compute a sensible size for the queue, based on the device's memory (large heap).
+    /** Compute the budget for the bytes retained by queued requests, based on the maximum heap size
+     *  (which will be the large heap, as we set android:largeHeap).
      */
-    public static int computeQueueSize(int large_heap_memory) {
-        if( MyDebug.LOG )
-            Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
-        int max_queue_size;
-        if( MyDebug.LOG )
+    public static long computeQueueBudget(long max_memory) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "max memory = " + max_memory);
             Log.d(TAG, "test_small_queue_size?: " + test_small_queue_size);
+        }
         if( test_small_queue_size ) {
-            large_heap_memory = 0;
+            max_memory = 0;
         }
+        long budget = ImageSaverQueuePolicy.computeBudget(max_memory);
+        if( MyDebug.LOG )
+            Log.d(TAG, "queue budget = " + budget);
+        return budget;
+    }
 
-        if( large_heap_memory >= 512 ) {
-            // This should be at least 5*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a burst of 5 photos
-            // (e.g., in expo mode) with RAW+JPEG without blocking (we subtract 1, as the first image can be immediately
-            // taken off the queue).
-            // This should also be at least 19 so we can take a burst of 20 photos with JPEG without blocking (we subtract 1,
-            // as the first image can be immediately taken off the queue).
-            // This should be at most 70 for large heap 512MB (estimate based on reserving 160MB for post-processing and HDR
-            // operations, then estimate a JPEG image at 5MB).
-            max_queue_size = 34;
-        }
-        else if( large_heap_memory >= 256 ) {
-            // This should be at most 19 for large heap 256MB.
-            max_queue_size = 12;
-        }
-        else if( large_heap_memory >= 128 ) {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            // This should be at most 8 for large heap 128MB (allowing 80MB for post-processing).
-            max_queue_size = 8;
+    /** Compute the maximum number of RAW images that can be queued at once, based on the large heap
+     *  memory class. This is also used for the number of images the RAW ImageReader can hold, see
+     *  getMaxDNG().
+     */
+    public static int computeMaxRawImages(int large_heap_memory) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
+            Log.d(TAG, "test_small_queue_size?: " + test_small_queue_size);
         }
-        else {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            max_queue_size = 6;
+        if( test_small_queue_size ) {
+            large_heap_memory = 0;
         }
-        //max_queue_size = 1;
-        //max_queue_size = 3;
+        int max_raw_images = ImageSaverQueuePolicy.computeMaxRawImages(large_heap_memory);
         if( MyDebug.LOG )
-            Log.d(TAG, "max_queue_size = " + max_queue_size);
-        return max_queue_size;
+            Log.d(TAG, "max_raw_images = " + max_raw_images);
+        return max_raw_images;
     }
 
-    /** Computes the cost for a particular request.
+    /** Computes the cost for a particular request. The cost is used for weighting the number of
+     *  images to save, see getNImagesToSave(); whether the queue blocks is decided by the bytes
+     *  retained by the request, see computeRequestBytes().
      *  Note that for RAW+DNG mode, computeRequestCost() is called twice for a given photo (one for each
      *  of the two requests: one RAW, one JPEG).
      * @param is_raw Whether RAW/DNG or JPEG.
@@ -363,6 +448,66 @@ public class ImageSaver extends Thread {
         return cost;
     }
 
+    /** Compute the number of workers for saving NORMAL requests concurrently, based on the device's
+     *  memory (large heap) and number of processors, when the user has enabled saving photos in
+     *  parallel. A value of 1 means the original mode where all requests are saved in turn on the
+     *  ImageSaver thread, which is always used otherwise.
+     */
+    public static int computeNWorkers(int large_heap_memory, int n_processors) {
+        int n_workers;
+        if( large_heap_memory >= 512 )
+            n_workers = 3;
+        else if( large_heap_memory >= 256 )
+            n_workers = 2;
+        else
+            n_workers = 1;
+        // leave a processor free for the camera and UI
+        n_workers = Math.max(1, Math.min(n_workers, n_processors-1));
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_workers = " + n_workers);
+        return n_workers;
+    }
+
+    /** Compute the number of threads for decoding the images of a request (e.g., for HDR or NR) in
+     *  parallel, based on the device's memory (large heap) and number of processors. Each thread
+     *  needs memory for a full resolution image whilst decoding.
+     */
+    public static int computeNDecodeThreads(int large_heap_memory, int n_processors) {
+        int n_threads;
+        if( large_heap_memory >= 512 )
+            n_threads = 4;
+        else if( large_heap_memory >= 256 )
+            n_threads = 2;
+        else
+            n_threads = 1;
+        n_threads = Math.max(1, Math.min(n_threads, n_processors));
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_decode_threads = " + n_threads);
+        return n_threads;
+    }
+
+    /** Returns the number of workers used for saving NORMAL requests, see computeNWorkers().
+     */
+    public int getNWorkers() {
+        return this.n_workers;
+    }
+
+    /** Creates the named threads for the executors used in multi-worker mode.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private int count;
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+            return new Thread(runnable, prefix + (count++));
+        }
+    }
+
     /** Computes the cost (in terms of number of slots on the image queue) of a new photo.
      * @param n_raw The number of JPEGs that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
@@ -383,36 +528,51 @@ public class ImageSaver extends Thread {
         return cost;
     }
 
-    /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
-     * @param n_raw The number of JPEGs that will be taken.
-     * @param n_jpegs The number of JPEGs that will be taken.
+    /** Returns the number of JPEG images held by a request.
      */
-    boolean queueWouldBlock(int n_raw, int n_jpegs) {
-        int photo_cost = this.computePhotoCost(n_raw, n_jpegs);
-        return this.queueWouldBlock(photo_cost);
+    private static int getNJpegs(Request request) {
+        int n_jpegs = request.jpeg_images != null ? request.jpeg_images.size() : 0;
+        if( request.jpeg_buffer != null )
+            n_jpegs++;
+        return n_jpegs;
+    }
+
+    /** Computes the number of heap bytes retained by a request whilst it's on the queue. RAW images
+     *  held by the camera's ImageReader aren't included, as they're in native memory (and are
+     *  limited by count instead).
+     */
+    private static long computeRequestBytes(Request request) {
+        long n_bytes = 0;
+        if( request.jpeg_images != null ) {
+            for(byte [] image : request.jpeg_images) {
+                n_bytes += image.length;
+            }
+        }
+        if( request.jpeg_buffer != null ) {
+            n_bytes += request.jpeg_buffer.getCapacity();
+        }
+        if( request.raw_image != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            n_bytes += request.raw_image.getHeapByteCount();
+        }
+        return n_bytes;
     }
 
     /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
-     * @param photo_cost The result returned by computePhotoCost().
+     * @param n_raw The number of JPEGs that will be taken.
+     * @param n_jpegs The number of JPEGs that will be taken.
      */
-    synchronized boolean queueWouldBlock(int photo_cost) {
+    synchronized boolean queueWouldBlock(int n_raw, int n_jpegs) {
+        long photo_bytes = queue_policy.estimatePhotoBytes(n_raw, n_jpegs);
         if( MyDebug.LOG ) {
             Log.d(TAG, "queueWouldBlock");
-            Log.d(TAG, "photo_cost: " + photo_cost);
-            Log.d(TAG, "n_images_to_save: " + n_images_to_save);
-            Log.d(TAG, "queue_capacity: " + queue_capacity);
-        }
-        // we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
-        // currently being processed
-        if( n_images_to_save == 0 ) {
-            // In theory, we should never have the extra_cost large enough to block the queue even when no images are being
-            // saved - but we have this just in case. This means taking the photo will likely block the UI, but we don't want
-            // to disallow ever taking photos!
-            if( MyDebug.LOG )
-                Log.d(TAG, "queue is empty");
-            return false;
-        }
-        else if( n_images_to_save + photo_cost > queue_capacity + 1 ) {
+            Log.d(TAG, "photo_bytes: " + photo_bytes);
+            Log.d(TAG, "queued bytes: " + queue_policy.getQueuedBytes());
+            Log.d(TAG, "budget: " + queue_policy.getBudget());
+        }
+        // n.b., the policy never blocks when the queue is empty - in theory a photo should never be larger than the
+        // budget, but we have this just in case. This means taking the photo will likely block the UI, but we don't
+        // want to disallow ever taking photos!
+        if( queue_policy.wouldBlock(photo_bytes, n_raw) ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "queue would block");
             return true;
@@ -424,14 +584,27 @@ public class ImageSaver extends Thread {
 
     /** Returns the maximum number of DNG images that might be held by the image saver queue at once, before blocking.
      */
+    JpegBufferPool getJpegBufferPool() {
+        return jpeg_buffer_pool;
+    }
+
     int getMaxDNG() {
-        int max_dng = (queue_capacity+1)/queue_cost_dng_c;
+        int max_dng;
+        synchronized( this ) {
+            max_dng = queue_policy.getMaxRawImages();
+        }
         max_dng++; // increase by 1, as the user can still take one extra photo if the queue is exactly full
         if( MyDebug.LOG )
             Log.d(TAG, "max_dng = " + max_dng);
         return max_dng;
     }
 
+    /** Returns the number of bytes retained by requests still to be saved.
+     */
+    public synchronized long getQueuedBytes() {
+        return queue_policy.getQueuedBytes();
+    }
+
     /** Returns the number of images to save, weighted by their cost (e.g., so a single RAW image
      *  will be counted as multiple images).
      */
@@ -472,6 +645,16 @@ public class ImageSaver extends Thread {
         if( hdrProcessor != null ) {
             hdrProcessor.onDestroy();
         }
+        if( normal_executor != null ) {
+            normal_executor.shutdown();
+        }
+        if( heavy_executor != null ) {
+            heavy_executor.shutdown();
+        }
+        if( batch_executor != null ) {
+            batch_executor.shutdown();
+        }
+        decode_executor.shutdown();
     }
 
     @Override
@@ -487,61 +670,12 @@ public class ImageSaver extends Thread {
                 // even though we still have a last image to be saved.
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
-                boolean success;
-                switch (request.type) {
-                    case RAW:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is raw");
-                        success = saveImageNowRaw(request);
-                        break;
-                    case JPEG:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is jpeg");
-                        success = saveImageNow(request);
-                        break;
-                    case DUMMY:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is dummy");
-                        success = true;
-                        break;
-                    default:
-                        if (MyDebug.LOG)
-                            Log.e(TAG, "request is unknown type!");
-                        success = false;
-                        break;
+                if( n_workers > 1 ) {
+                    dispatchRequest(request);
                 }
-                if( test_slow_saving ) {
-                    // ignore warning about "Call to Thread.sleep in a loop", this is only activated in test code
-                    //noinspection BusyWait
-                    Thread.sleep(2000);
-                }
-                if( MyDebug.LOG ) {
-                    if( success )
-                        Log.d(TAG, "ImageSaver thread successfully saved image");
-                    else
-                        Log.e(TAG, "ImageSaver thread failed to save image");
-                }
-                synchronized( this ) {
-                    n_images_to_save--;
-                    if( request.type != Request.Type.DUMMY )
-                        n_real_images_to_save--;
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
-                    if( MyDebug.LOG && n_images_to_save < 0 ) {
-                        Log.e(TAG, "images to save has become negative");
-                        throw new RuntimeException();
-                    }
-                    else if( MyDebug.LOG && n_real_images_to_save < 0 ) {
-                        Log.e(TAG, "real images to save has become negative");
-                        throw new RuntimeException();
-                    }
-                    notifyAll();
-
-                    main_activity.runOnUiThread(new Runnable() {
-                        public void run() {
-                            main_activity.imageQueueChanged();
-                        }
-                    });
+                else {
+                    processRequest(request);
+                    requestsProcessed(request, request.type != Request.Type.DUMMY ? 1 : 0, 0);
                 }
             }
             catch(InterruptedException e) {
@@ -552,6 +686,176 @@ public class ImageSaver extends Thread {
         }
     }
 
+    /** Processes a request taken from the queue, on the thread that calls this method.
+     * @return Whether the request was successful.
+     */
+    private boolean processRequest(Request request) throws InterruptedException {
+        boolean success;
+        switch (request.type) {
+            case RAW:
+                if (MyDebug.LOG)
+                    Log.d(TAG, "request is raw");
+                success = saveImageNowRaw(request);
+                break;
+            case JPEG:
+                if (MyDebug.LOG)
+                    Log.d(TAG, "request is jpeg");
+                success = saveImageNow(request);
+                break;
+            case DUMMY:
+                if (MyDebug.LOG)
+                    Log.d(TAG, "request is dummy");
+                success = true;
+                break;
+            default:
+                if (MyDebug.LOG)
+                    Log.e(TAG, "request is unknown type!");
+                success = false;
+                break;
+        }
+        if( test_slow_saving ) {
+            // ignore warning about "Call to Thread.sleep in a loop", this is only activated in test code
+            //noinspection BusyWait
+            Thread.sleep(2000);
+        }
+        if( MyDebug.LOG ) {
+            if( success )
+                Log.d(TAG, "ImageSaver thread successfully saved image");
+            else
+                Log.e(TAG, "ImageSaver thread failed to save image");
+        }
+        return success;
+    }
+
+    /** Updates the number of images to save, after a request has been processed.
+     * @param request         The request processed.
+     * @param n_real_requests 1 if the request isn't a dummy request, otherwise 0.
+     * @param n_dummies       The number of dummy requests attached to the request, that are also
+     *                        processed.
+     */
+    private synchronized void requestsProcessed(Request request, int n_real_requests, int n_dummies) {
+        n_images_to_save -= 1 + n_dummies;
+        n_real_images_to_save -= n_real_requests;
+        if( request.type != Request.Type.DUMMY ) {
+            queue_policy.release(request.queued_bytes, request.type == Request.Type.RAW ? 1 : 0);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
+        if( MyDebug.LOG && n_images_to_save < 0 ) {
+            Log.e(TAG, "images to save has become negative");
+            throw new RuntimeException();
+        }
+        else if( MyDebug.LOG && n_real_images_to_save < 0 ) {
+            Log.e(TAG, "real images to save has become negative");
+            throw new RuntimeException();
+        }
+        notifyAll();
+
+        main_activity.runOnUiThread(new Runnable() {
+            public void run() {
+                main_activity.imageQueueChanged();
+            }
+        });
+    }
+
+    /** Whether the request should be processed on the heavy lane in multi-worker mode.
+     */
+    private static boolean isHeavyRequest(Request request) {
+        return request.type == Request.Type.JPEG && request.process_type != Request.ProcessType.NORMAL;
+    }
+
+    /** For multi-worker mode, passes a request taken from the queue to the appropriate executor.
+     */
+    private void dispatchRequest(final Request request) {
+        if( request.type == Request.Type.DUMMY ) {
+            synchronized( this ) {
+                if( last_dispatched_request != null && !last_dispatched_request.processed ) {
+                    // released when the request it belongs to has been processed
+                    last_dispatched_request.n_attached_dummies++;
+                    return;
+                }
+            }
+            requestsProcessed(request, 0, 0);
+            return;
+        }
+
+        final boolean heavy = isHeavyRequest(request);
+        synchronized( this ) {
+            if( !heavy ) {
+                request.filename_seq = next_filename_seq++;
+            }
+            last_dispatched_request = request;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "dispatch request to " + (heavy ? "heavy" : "normal") + " lane, filename_seq: " + request.filename_seq);
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processRequest(request);
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "interrupted while processing request");
+                }
+                finally {
+                    // make sure later requests aren't left waiting for their turn
+                    finishFilenameTurn(request);
+                }
+                int n_dummies;
+                synchronized( ImageSaver.this ) {
+                    request.processed = true;
+                    n_dummies = request.n_attached_dummies;
+                }
+                requestsProcessed(request, 1, n_dummies);
+            }
+        };
+        if( heavy )
+            heavy_executor.execute(runnable);
+        else
+            normal_executor.execute(runnable);
+    }
+
+    /** For multi-worker mode, waits until all requests on the normal lane that were taken before
+     *  this request have created their output files. Does nothing for requests that aren't on the
+     *  normal lane.
+     */
+    private void waitForFilenameTurn(Request request) {
+        if( request.filename_seq < 0 )
+            return;
+        synchronized( filename_lock ) {
+            while( filename_turn != request.filename_seq ) {
+                try {
+                    filename_lock.wait();
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "interrupted while waiting for filename turn");
+                }
+            }
+        }
+    }
+
+    /** For multi-worker mode, indicates that the request won't create any more output files, so the
+     *  next request on the normal lane can create its files. This may be called more than once for a
+     *  request.
+     */
+    private void finishFilenameTurn(Request request) {
+        if( request.filename_seq < 0 )
+            return;
+        // in case the request didn't create any files (e.g., on failure), we still need to wait for our turn
+        waitForFilenameTurn(request);
+        synchronized( filename_lock ) {
+            if( !request.filename_turn_done ) {
+                request.filename_turn_done = true;
+                filename_turn++;
+                filename_lock.notifyAll();
+            }
+        }
+    }
+
     /** Saves a photo.
      *  If do_in_background is true, the photo will be saved in a background thread. If the queue is full, the function will wait
      *  until it isn't full. Otherwise it will return immediately. The function always returns true for background saving.
@@ -564,6 +868,7 @@ public class ImageSaver extends Thread {
                           int suffix_offset,
                           boolean save_expo,
                           List<byte []> images,
+                          JpegBufferPool.Buffer jpeg_buffer,
                           boolean image_capture_intent, Uri image_capture_intent_uri,
                           boolean using_camera2,
                           Request.ImageFormat image_format, int image_quality,
@@ -572,6 +877,7 @@ public class ImageSaver extends Thread {
                           boolean mirror,
                           Date current_date,
                           String preference_hdr_contrast_enhancement,
+                          HDRProcessor.HDRBackend hdr_backend,
                           int iso,
                           long exposure_time,
                           float zoom_factor,
@@ -585,7 +891,11 @@ public class ImageSaver extends Thread {
         if( MyDebug.LOG ) {
             Log.d(TAG, "saveImageJpeg");
             Log.d(TAG, "do_in_background? " + do_in_background);
-            Log.d(TAG, "number of images: " + images.size());
+            Log.d(TAG, "number of images: " + (jpeg_buffer != null ? 1 : images.size()));
+        }
+        if( jpeg_buffer != null ) {
+            // may be needed if the image has to be copied out of the buffer for processing
+            images = new ArrayList<>();
         }
         return saveImage(do_in_background,
                 false,
@@ -594,6 +904,7 @@ public class ImageSaver extends Thread {
                 suffix_offset,
                 save_expo,
                 images,
+                jpeg_buffer,
                 null,
                 image_capture_intent, image_capture_intent_uri,
                 using_camera2,
@@ -603,6 +914,7 @@ public class ImageSaver extends Thread {
                 mirror,
                 current_date,
                 preference_hdr_contrast_enhancement,
+                hdr_backend,
                 iso,
                 exposure_time,
                 zoom_factor,
@@ -636,6 +948,7 @@ public class ImageSaver extends Thread {
                 suffix_offset,
                 false,
                 null,
+                null,
                 raw_image,
                 false, null,
                 false,
@@ -645,6 +958,7 @@ public class ImageSaver extends Thread {
                 false,
                 current_date,
                 null,
+                null,
                 0,
                 0,
                 1.0f,
@@ -658,7 +972,8 @@ public class ImageSaver extends Thread {
     private Request pending_image_average_request = null;
 
     /** Used for a batch of images that will be combined into a single request. This applies to
-     *  processType AVERAGE and PANORAMA.
+     *  processType AVERAGE, PANORAMA and BEST_OF_BURST (for which the caller should then set the
+     *  request's best_of_burst).
      */
     void startImageBatch(boolean do_in_background,
                            Request.ProcessType processType,
@@ -699,6 +1014,7 @@ public class ImageSaver extends Thread {
                 mirror,
                 current_date,
                 null,
+                null,
                 iso,
                 exposure_time,
                 zoom_factor,
@@ -708,6 +1024,339 @@ public class ImageSaver extends Thread {
                 custom_tag_artist,
                 custom_tag_copyright,
                 sample_factor);
+        if( processType == Request.ProcessType.PANORAMA && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && canStartIncrementalPanorama() ) {
+            pending_image_average_request.incremental_panorama = panoramaProcessor.createIncrementalPanorama(MyApplicationInterface.getPanoramaPicsPerScreen());
+        }
+        else if( processType == Request.ProcessType.AVERAGE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && canStartIncrementalAverage() ) {
+            pending_image_average_request.incremental_average = new IncrementalAverage(iso, exposure_time, zoom_factor);
+        }
+    }
+
+    /** Returns the executor for processing the images of a batch as they're captured. This is
+     *  single threaded, so that the images are processed in order.
+     */
+    private synchronized ExecutorService getBatchExecutor() {
+        if( batch_executor == null ) {
+            batch_executor = Executors.newSingleThreadExecutor(new WorkerThreadFactory("ImageSaver-batch-"));
+        }
+        return batch_executor;
+    }
+
+    /** Whether to decode and align panorama images as they're captured. We only do this if nothing
+     *  is still waiting to be saved, so we don't hold the decoded images of two panoramas at once.
+     */
+    private synchronized boolean canStartIncrementalPanorama() {
+        return !test_no_incremental_panorama && n_images_to_save == 0;
+    }
+
+    /** Decodes and aligns a panorama image in the background, whilst the next image is being
+     *  captured.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void addIncrementalPanoramaImage(Request request, final byte [] image) {
+        final ExecutorService batch_executor = getBatchExecutor();
+        final PanoramaProcessor.IncrementalPanorama incremental_panorama = request.incremental_panorama;
+        final boolean left_to_right = request.panorama_dir_left_to_right;
+        request.incremental_panorama_task = batch_executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = loadBitmapWithRotation(image, false);
+                if( bitmap == null ) {
+                    Log.e(TAG, "failed to decode incremental panorama image");
+                    incremental_panorama.setFailed();
+                }
+                else {
+                    incremental_panorama.addImage(bitmap, left_to_right);
+                }
+            }
+        });
+    }
+
+    /** Waits for the images of the request's IncrementalPanorama to be processed, and returns it if
+     *  it can be used for the panorama, otherwise null.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private PanoramaProcessor.IncrementalPanorama takeIncrementalPanorama(Request request) {
+        PanoramaProcessor.IncrementalPanorama incremental_panorama = request.incremental_panorama;
+        if( incremental_panorama == null )
+            return null;
+        request.incremental_panorama = null;
+        boolean ok = true;
+        if( request.incremental_panorama_task != null ) {
+            try {
+                request.incremental_panorama_task.get();
+            }
+            catch(InterruptedException | ExecutionException e) {
+                Log.e(TAG, "failed to process incremental panorama images");
+                e.printStackTrace();
+                ok = false;
+            }
+        }
+        if( ok && incremental_panorama.isValid(request.jpeg_images.size(), request.panorama_dir_left_to_right) ) {
+            return incremental_panorama;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "can't use incremental panorama");
+        incremental_panorama.recycle();
+        return null;
+    }
+
+    /** Decodes and averages the images of a noise reduction batch as they're captured, so that most
+     *  of the work is done by the time the last image arrives, rather than decoding and averaging
+     *  all of the images once the batch is finished. This gives the same result as the
+     *  non-incremental processing in saveImageNow().
+     *  Other than the constructor and getNImagesSubmitted(), methods should only be called on
+     *  batch_executor (or once all tasks on it for this object have completed).
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class IncrementalAverage {
+        private final int iso;
+        private final long exposure_time;
+        private final float zoom_factor;
+        private int n_images_submitted; // only modified on the thread calling addImageBatch()
+        private int inSampleSize;
+        private Bitmap bitmap0; // the first image, held until the second image arrives
+        private HDRProcessor.AvgData avg_data;
+        private int width;
+        private int height;
+        private int n_images; // number of images averaged so far, including bitmap0
+        private boolean failed;
+
+        IncrementalAverage(int iso, long exposure_time, float zoom_factor) {
+            this.iso = iso;
+            this.exposure_time = exposure_time;
+            this.zoom_factor = zoom_factor;
+        }
+
+        void addImage(byte [] jpeg_image) {
+            if( failed ) {
+                return;
+            }
+            long time_s = System.currentTimeMillis();
+            if( n_images == 0 ) {
+                inSampleSize = hdrProcessor.getAvgSampleSize(iso, exposure_time);
+            }
+            Bitmap bitmap = loadBitmap(jpeg_image, false, inSampleSize);
+            if( bitmap == null ) {
+                Log.e(TAG, "failed to decode incremental average image: " + n_images);
+                failed = true;
+                return;
+            }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "*** time for loading incremental average image " + n_images + ": " + (System.currentTimeMillis() - time_s));
+            }
+            try {
+                if( n_images == 0 ) {
+                    bitmap0 = bitmap;
+                    width = bitmap.getWidth();
+                    height = bitmap.getHeight();
+                }
+                else if( n_images == 1 ) {
+                    avg_data = hdrProcessor.processAvg(bitmap0, bitmap, 1.0f, iso, exposure_time, zoom_factor);
+                    // processAvg recycles both bitmaps
+                    bitmap0 = null;
+                }
+                else {
+                    hdrProcessor.updateAvg(avg_data, width, height, bitmap, (float)n_images, iso, exposure_time, zoom_factor);
+                    // updateAvg recycles bitmap
+                }
+                n_images++;
+            }
+            catch(HDRProcessorException e) {
+                Log.e(TAG, "failed to average incremental image: " + n_images);
+                e.printStackTrace();
+                if( !bitmap.isRecycled() )
+                    bitmap.recycle();
+                failed = true;
+            }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "*** time for incremental average, images averaged: " + n_images + " time: " + (System.currentTimeMillis() - time_s));
+            }
+        }
+
+        /** Called if processing an image threw an exception or error, so that we don't carry on
+         *  with the remaining images.
+         */
+        void setFailed() {
+            failed = true;
+        }
+
+        int getNImagesSubmitted() {
+            return n_images_submitted;
+        }
+
+        /** Whether all of the n_images images of the batch have been averaged successfully.
+         */
+        boolean isValid(int n_images) {
+            return !failed && n_images >= 2 && this.n_images == n_images && avg_data != null;
+        }
+
+        /** Returns the result of averaging the images, see isValid(). The returned AvgData is owned
+         *  by the caller.
+         */
+        HDRProcessor.AvgData takeAvgData() {
+            HDRProcessor.AvgData result = avg_data;
+            avg_data = null;
+            return result;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        void recycle() {
+            if( bitmap0 != null ) {
+                bitmap0.recycle();
+                bitmap0 = null;
+            }
+            if( avg_data != null ) {
+                avg_data.destroy();
+                avg_data = null;
+            }
+        }
+    }
+
+    /** Whether to decode and average NR images as they're captured. As for panorama, we only do
+     *  this if nothing is still waiting to be saved, so that hdrProcessor isn't in use by another
+     *  request.
+     */
+    private synchronized boolean canStartIncrementalAverage() {
+        return !test_no_incremental_average && n_images_to_save == 0;
+    }
+
+    /** Decodes and averages an NR image in the background, whilst the next image is being
+     *  captured. Only the first image is kept in the request if the other images won't be saved,
+     *  so that their JPEG data can be garbage collected once averaged.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void addIncrementalAverageImage(Request request, final byte [] image) {
+        final IncrementalAverage incremental_average = request.incremental_average;
+        boolean keep_image = incremental_average.n_images_submitted == 0 || request.save_base == Request.SaveBase.SAVEBASE_ALL || request.save_base == Request.SaveBase.SAVEBASE_ALL_PLUS_DEBUG;
+        if( keep_image )
+            request.jpeg_images.add(image);
+        else
+            request.n_dropped_images++;
+        incremental_average.n_images_submitted++;
+        request.incremental_average_task = getBatchExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    incremental_average.addImage(image);
+                }
+                catch(RuntimeException | Error e) {
+                    incremental_average.setFailed();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /** Waits for the images of the request's IncrementalAverage to be averaged, and returns it if
+     *  all of the images were averaged successfully, otherwise null.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private IncrementalAverage takeIncrementalAverage(Request request) {
+        IncrementalAverage incremental_average = request.incremental_average;
+        if( incremental_average == null )
+            return null;
+        request.incremental_average = null;
+        boolean ok = true;
+        if( request.incremental_average_task != null ) {
+            try {
+                request.incremental_average_task.get();
+            }
+            catch(InterruptedException | ExecutionException e) {
+                Log.e(TAG, "failed to process incremental average images");
+                e.printStackTrace();
+                ok = false;
+            }
+        }
+        if( ok && incremental_average.isValid(incremental_average.getNImagesSubmitted()) ) {
+            return incremental_average;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "can't use incremental average");
+        final IncrementalAverage failed_incremental_average = incremental_average;
+        getBatchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                // run on batch_executor, in case we were interrupted whilst a task was still running
+                failed_incremental_average.recycle();
+            }
+        });
+        return null;
+    }
+
+    /** Decodes and scores the sharpness of a fast burst image in the background, whilst the next
+     *  image is being captured. Images that aren't among the sharpest so far are released as soon
+     *  as they're scored, so they're never encoded or written, and their JPEG data can be garbage
+     *  collected.
+     */
+    private void addBestOfBurstImage(Request request, final byte [] image) {
+        final BestOfBurstSelector<byte []> best_of_burst = request.best_of_burst;
+        final int index = request.n_best_of_burst_images++;
+        if( sharpnessScorer == null ) {
+            // only create when needed, as fast burst is only supported with Camera2 API
+            sharpnessScorer = new SharpnessScorer();
+        }
+        final SharpnessScorer scorer = sharpnessScorer;
+        request.best_of_burst_task = getBatchExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                long time_s = System.currentTimeMillis();
+                long score = -1; // if we can't score the image, prefer any other
+                try {
+                    Bitmap bitmap = loadBitmap(image, false, best_of_burst_sample_size_c);
+                    if( bitmap == null ) {
+                        Log.e(TAG, "failed to decode best of burst image: " + index);
+                    }
+                    else {
+                        int width = bitmap.getWidth();
+                        int height = bitmap.getHeight();
+                        if( best_of_burst_pixels == null || best_of_burst_pixels.length < width*height ) {
+                            best_of_burst_pixels = new int[width*height];
+                        }
+                        bitmap.getPixels(best_of_burst_pixels, 0, width, 0, 0, width, height);
+                        bitmap.recycle();
+                        score = scorer.score(best_of_burst_pixels, width, height, best_of_burst_sample_factor_c);
+                    }
+                }
+                finally {
+                    // still add the image if scoring failed, so that we always have an image to save
+                    if( best_of_burst.add(index, score, image) != null ) {
+                        test_n_best_of_burst_rejected++;
+                    }
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "best of burst image " + index + " score: " + score);
+                    Log.d(TAG, "*** time for scoring best of burst image: " + (System.currentTimeMillis() - time_s));
+                }
+            }
+        });
+    }
+
+    /** Waits for the images of a BEST_OF_BURST request to be scored, and moves the sharpest into
+     *  request.jpeg_images.
+     */
+    private void takeBestOfBurstImages(Request request) {
+        BestOfBurstSelector<byte []> best_of_burst = request.best_of_burst;
+        request.best_of_burst = null;
+        if( request.best_of_burst_task != null ) {
+            try {
+                request.best_of_burst_task.get();
+            }
+            catch(InterruptedException | ExecutionException e) {
+                Log.e(TAG, "failed to score best of burst images");
+                e.printStackTrace();
+            }
+        }
+        request.jpeg_images.addAll(best_of_burst.getKept());
+        if( MyDebug.LOG )
+            Log.d(TAG, "best of burst kept images: " + best_of_burst.getKeptIndices() + " of " + best_of_burst.getNAdded());
     }
 
     void addImageBatch(byte [] image, float [] gyro_rotation_matrix) {
@@ -717,14 +1366,34 @@ public class ImageSaver extends Thread {
             Log.e(TAG, "addImageBatch called but no pending_image_average_request");
             return;
         }
-        pending_image_average_request.jpeg_images.add(image);
+        if( pending_image_average_request.incremental_average != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            addIncrementalAverageImage(pending_image_average_request, image);
+        }
+        else if( pending_image_average_request.best_of_burst != null ) {
+            addBestOfBurstImage(pending_image_average_request, image);
+        }
+        else {
+            pending_image_average_request.jpeg_images.add(image);
+        }
+        if( pending_image_average_request.incremental_panorama != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            addIncrementalPanoramaImage(pending_image_average_request, image);
+        }
         if( gyro_rotation_matrix != null ) {
             float [] copy = new float[gyro_rotation_matrix.length];
             System.arraycopy(gyro_rotation_matrix, 0, copy, 0, gyro_rotation_matrix.length);
             pending_image_average_request.gyro_rotation_matrix.add(copy);
         }
         if( MyDebug.LOG )
-            Log.d(TAG, "image average request images: " + pending_image_average_request.jpeg_images.size());
+            Log.d(TAG, "image average request images: " + getNBatchImages(pending_image_average_request));
+    }
+
+    /** Returns the number of images in a batch request, including any that have been averaged but
+     *  not kept.
+     */
+    private static int getNBatchImages(Request request) {
+        if( request.best_of_burst != null )
+            return Math.min(request.n_best_of_burst_images, request.best_of_burst.getNKeep());
+        return request.jpeg_images.size() + request.n_dropped_images;
     }
 
     Request getImageBatchRequest() {
@@ -742,7 +1411,7 @@ public class ImageSaver extends Thread {
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(false, pending_image_average_request.jpeg_images.size());
+            int cost = computeRequestCost(false, getNBatchImages(pending_image_average_request));
             addRequest(pending_image_average_request, cost);
         }
         else {
@@ -756,6 +1425,25 @@ public class ImageSaver extends Thread {
     void flushImageBatch() {
         if( MyDebug.LOG )
             Log.d(TAG, "flushImageBatch");
+        if( pending_image_average_request != null && pending_image_average_request.incremental_panorama != null ) {
+            // free the decoded images once any pending tasks have finished with them
+            final PanoramaProcessor.IncrementalPanorama incremental_panorama = pending_image_average_request.incremental_panorama;
+            getBatchExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    incremental_panorama.recycle();
+                }
+            });
+        }
+        if( pending_image_average_request != null && pending_image_average_request.incremental_average != null ) {
+            final IncrementalAverage incremental_average = pending_image_average_request.incremental_average;
+            getBatchExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    incremental_average.recycle();
+                }
+            });
+        }
         // aside from resetting the state, this allows the allocated JPEG data to be garbage collected
         pending_image_average_request = null;
     }
@@ -769,6 +1457,7 @@ public class ImageSaver extends Thread {
                               int suffix_offset,
                               boolean save_expo,
                               List<byte []> jpeg_images,
+                              JpegBufferPool.Buffer jpeg_buffer,
                               RawImage raw_image,
                               boolean image_capture_intent, Uri image_capture_intent_uri,
                               boolean using_camera2,
@@ -778,6 +1467,7 @@ public class ImageSaver extends Thread {
                               boolean mirror,
                               Date current_date,
                               String preference_hdr_contrast_enhancement,
+                              HDRProcessor.HDRBackend hdr_backend,
                               int iso,
                               long exposure_time,
                               float zoom_factor,
@@ -811,6 +1501,7 @@ public class ImageSaver extends Thread {
                 mirror,
                 current_date,
                 preference_hdr_contrast_enhancement,
+                hdr_backend,
                 iso,
                 exposure_time,
                 zoom_factor,
@@ -820,11 +1511,12 @@ public class ImageSaver extends Thread {
                 custom_tag_artist,
                 custom_tag_copyright,
                 sample_factor);
+        request.jpeg_buffer = jpeg_buffer;
 
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(is_raw, is_raw ? 1 : request.jpeg_images.size());
+            int cost = computeRequestCost(is_raw, is_raw ? 1 : getNJpegs(request));
             addRequest(request, cost);
             success = true; // always return true when done in background
         }
@@ -854,18 +1546,34 @@ public class ImageSaver extends Thread {
             // crash if needing to use RenderScript.
             // MainDestroy.onDestroy() does call waitUntilDone(), but this is extra protection in case an image comes in after that.
             Log.e(TAG, "application is destroyed, image lost!");
+            if( request.jpeg_buffer != null ) {
+                request.jpeg_buffer.release();
+                request.jpeg_buffer = null;
+            }
             return;
         }
-        // this should not be synchronized on "this": BlockingQueue is thread safe, and if it's blocking in queue.put(), we'll hang because
-        // the saver queue will need to synchronize on "this" in order to notifyAll() the main thread
+        // computed before synchronizing, as this doesn't change
+        final long request_bytes = request.type == Request.Type.DUMMY ? 0 : computeRequestBytes(request);
+        final int n_raw = request.type == Request.Type.RAW ? 1 : 0;
         boolean done = false;
         while( !done ) {
             try {
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread adding to queue, size: " + queue.size());
                 synchronized( this ) {
-                    // see above for why we don't synchronize the queue.put call
-                    // but we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
+                    if( request.type != Request.Type.DUMMY ) {
+                        // Block until the bytes retained by the requests still to save (including those being
+                        // processed) leave room for this request. wait() releases the lock, so that
+                        // requestsProcessed() can release bytes and notify us.
+                        while( queue_policy.wouldBlock(request_bytes, n_raw) ) {
+                            Log.e(TAG, "ImageSaver thread is going to block, queued bytes: " + queue_policy.getQueuedBytes());
+                            test_queue_blocked = true;
+                            wait();
+                        }
+                        request.queued_bytes = request_bytes;
+                        queue_policy.admit(request_bytes, n_raw, request.type == Request.Type.JPEG ? getNJpegs(request) : 0);
+                    }
+                    // we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
                     // also see FindBugs warning due to inconsistent synchronisation
                     n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
                     if( request.type != Request.Type.DUMMY )
@@ -877,12 +1585,9 @@ public class ImageSaver extends Thread {
                         }
                     });
                 }
-                if( queue.size() + 1 > queue_capacity ) {
-                    Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + queue.size());
-                    test_queue_blocked = true;
-                    //throw new RuntimeException(); // test
-                }
-                queue.put(request); // if queue is full, put() blocks until it isn't full
+                // the queue is unbounded, as admission is handled above, so put() doesn't block; it isn't
+                // synchronized on "this", as BlockingQueue is thread safe
+                queue.put(request);
                 if( MyDebug.LOG ) {
                     synchronized( this ) { // keep FindBugs happy
                         Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
@@ -922,6 +1627,7 @@ public class ImageSaver extends Thread {
                 false,
                 null,
                 null,
+                null,
                 0,
                 0,
                 1.0f,
@@ -977,6 +1683,33 @@ public class ImageSaver extends Thread {
         }
     }
 
+    /** Whether to use HDRProcessor.processHDRStreaming() for the supplied images, rather than
+     *  decoding them all at full resolution, to limit the peak memory for large images.
+     */
+    private boolean useStreamingHDR(List<byte []> jpeg_images) {
+        if( test_streaming_hdr )
+            return true;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        byte [] jpeg = jpeg_images.get(0);
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        long available_bytes;
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
+            // bitmap pixel data is stored in native memory, so the Java heap limit isn't relevant
+            ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            activityManager.getMemoryInfo(memoryInfo);
+            available_bytes = Math.max(memoryInfo.availMem - memoryInfo.threshold, 0);
+        }
+        else {
+            available_bytes = Runtime.getRuntime().maxMemory();
+        }
+        boolean use_streaming = HDRProcessor.useStreaming(options.outWidth, options.outHeight, jpeg_images.size(), available_bytes);
+        if( MyDebug.LOG )
+            Log.d(TAG, "useStreamingHDR: " + use_streaming + " for " + options.outWidth + " x " + options.outHeight + " with available bytes " + available_bytes);
+        return use_streaming;
+    }
+
     /** Loads a single jpeg as a Bitmaps.
      * @param mutable Whether the bitmap should be mutable. Note that when converting to bitmaps
      *                for the image post-processing (auto-stabilise etc), in general we need the
@@ -1003,22 +1736,48 @@ public class ImageSaver extends Thread {
         return bitmap;
     }
 
-    /** Helper class for loadBitmaps().
+    /** Decodes JPEGs for a DecodeQueue.
      */
-    private static class LoadBitmapThread extends Thread {
-        Bitmap bitmap;
-        final BitmapFactory.Options options;
-        final byte [] jpeg;
-        LoadBitmapThread(BitmapFactory.Options options, byte [] jpeg) {
-            this.options = options;
-            this.jpeg = jpeg;
+    private class BitmapDecoder implements DecodeQueue.Decoder<Bitmap> {
+        private final List<byte []> jpeg_images;
+        private final int mutable_id;
+        private final int inSampleSize;
+
+        BitmapDecoder(List<byte []> jpeg_images, int mutable_id, int inSampleSize) {
+            this.jpeg_images = jpeg_images;
+            this.mutable_id = mutable_id;
+            this.inSampleSize = inSampleSize;
+        }
+
+        @Override
+        public Bitmap decode(int index) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            // only the bitmap with index mutable_id needs to be writable
+            options.inMutable = index == mutable_id;
+            setBitmapOptionsSampleSize(options, inSampleSize);
+            if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
+                // setting is ignored in Android 5 onwards
+                options.inPurgeable = true;
+            }
+            byte [] jpeg = jpeg_images.get(index);
+            return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
         }
 
-        public void run() {
-            this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        @Override
+        public void discard(Bitmap bitmap) {
+            bitmap.recycle();
         }
     }
 
+    /** Returns a DecodeQueue for decoding the array of jpegs to Bitmaps on decode_executor. The
+     *  bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable
+     *  bitmaps).
+     * @param max_ahead The maximum number of bitmaps to decode before they're taken.
+     */
+    private DecodeQueue<Bitmap> createDecodeQueue(List<byte []> jpeg_images, int mutable_id, int inSampleSize, int max_ahead) {
+        return new DecodeQueue<>(decode_executor, jpeg_images.size(), max_ahead, new BitmapDecoder(jpeg_images, mutable_id, inSampleSize));
+    }
+
     /** Converts the array of jpegs to Bitmaps. The bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps).
      */
     private List<Bitmap> loadBitmaps(List<byte []> jpeg_images, int mutable_id, int inSampleSize) {
@@ -1026,67 +1785,38 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "loadBitmaps");
             Log.d(TAG, "mutable_id: " + mutable_id);
         }
-        BitmapFactory.Options mutable_options = new BitmapFactory.Options();
-        mutable_options.inMutable = true; // bitmap that needs to be writable
-        setBitmapOptionsSampleSize(mutable_options, inSampleSize);
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inMutable = false; // later bitmaps don't need to be writable
-        setBitmapOptionsSampleSize(options, inSampleSize);
-        if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
-            // setting is ignored in Android 5 onwards
-            mutable_options.inPurgeable = true;
-            options.inPurgeable = true;
-        }
-        LoadBitmapThread [] threads = new LoadBitmapThread[jpeg_images.size()];
-        for(int i=0;i<jpeg_images.size();i++) {
-            threads[i] = new LoadBitmapThread( i==mutable_id ? mutable_options : options, jpeg_images.get(i) );
-        }
-        // start threads
-        if( MyDebug.LOG )
-            Log.d(TAG, "start threads");
-        for(int i=0;i<jpeg_images.size();i++) {
-            threads[i].start();
-        }
-        // wait for threads to complete
+        // all of the bitmaps are returned, so no need to limit how many are decoded ahead; the
+        // number decoded at once is limited by decode_executor
+        DecodeQueue<Bitmap> decode_queue = createDecodeQueue(jpeg_images, mutable_id, inSampleSize, Math.max(1, jpeg_images.size()));
         boolean ok = true;
-        if( MyDebug.LOG )
-            Log.d(TAG, "wait for threads to complete");
+        List<Bitmap> bitmaps = new ArrayList<>();
         try {
-            for(int i=0;i<jpeg_images.size();i++) {
-                threads[i].join();
+            for(int i=0;i<jpeg_images.size() && ok;i++) {
+                Bitmap bitmap = decode_queue.take();
+                if( bitmap == null ) {
+                    Log.e(TAG, "failed to decode bitmap: " + i);
+                    ok = false;
+                }
+                else {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "bitmap " + i + ": " + bitmap + " is mutable? " + bitmap.isMutable());
+                    bitmaps.add(bitmap);
+                }
             }
         }
         catch(InterruptedException e) {
             if( MyDebug.LOG )
-                Log.e(TAG, "threads interrupted");
+                Log.e(TAG, "decoding interrupted");
             e.printStackTrace();
             ok = false;
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "threads completed");
-
-        List<Bitmap> bitmaps = new ArrayList<>();
-        for(int i=0;i<jpeg_images.size() && ok;i++) {
-            Bitmap bitmap = threads[i].bitmap;
-            if( bitmap == null ) {
-                Log.e(TAG, "failed to decode bitmap in thread: " + i);
-                ok = false;
-            }
-            else {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "bitmap " + i + ": " + bitmap + " is mutable? " + bitmap.isMutable());
-            }
-            bitmaps.add(bitmap);
-        }
 
         if( !ok ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "cleanup from failure");
-            for(int i=0;i<jpeg_images.size();i++) {
-                if( threads[i].bitmap != null ) {
-                    threads[i].bitmap.recycle();
-                    threads[i].bitmap = null;
-                }
+            decode_queue.cancel();
+            for(Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
             }
             bitmaps.clear();
             System.gc();
@@ -1197,6 +1927,51 @@ public class ImageSaver extends Thread {
         xmlSerializer.flush();
     }
 
+    /** Saves the panorama input images, along with the gyro debug info and a ReplayManifest, so
+     *  that the session can be replayed through the BurstReplay harness in the benchmark module.
+     *  These are saved to a folder next to the gyro debug info file.
+     * @param gyro_xml The gyro debug info, as written by writeGyroDebugXml().
+     * @param gyro_file The file that the gyro debug info was saved to.
+     */
+    private void saveReplaySession(Request request, String gyro_xml, File gyro_file) throws IOException {
+        String name = gyro_file.getName();
+        if( name.lastIndexOf('.') > 0 )
+            name = name.substring(0, name.lastIndexOf('.'));
+        File folder = new File(gyro_file.getParentFile(), name + "_replay");
+        if( MyDebug.LOG )
+            Log.d(TAG, "save replay session to: " + folder.getAbsolutePath());
+        if( !folder.exists() && !folder.mkdirs() ) {
+            throw new IOException("failed to create replay folder: " + folder.getAbsolutePath());
+        }
+
+        ReplayManifest manifest = new ReplayManifest();
+        manifest.setPhotoMode(ReplayManifest.PhotoMode.PANORAMA);
+        manifest.setViewAngles(request.camera_view_angle_x, request.camera_view_angle_y);
+        manifest.setGyroInfoFilename("gyro_info.xml");
+        //noinspection CharsetObjectCanBeUsed
+        writeFile(new File(folder, "gyro_info.xml"), gyro_xml.getBytes(Charset.forName("UTF-8")));
+        for(int i=0;i<request.jpeg_images.size();i++) {
+            String filename = "IMG_" + i + ".jpg";
+            writeFile(new File(folder, filename), request.jpeg_images.get(i));
+            manifest.addFrame(new ReplayManifest.Frame(filename, request.iso, request.exposure_time));
+        }
+
+        StringWriter writer = new StringWriter();
+        manifest.write(writer);
+        //noinspection CharsetObjectCanBeUsed
+        writeFile(new File(folder, "manifest.txt"), writer.toString().getBytes(Charset.forName("UTF-8")));
+    }
+
+    private static void writeFile(File file, byte [] data) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(data);
+        }
+        finally {
+            outputStream.close();
+        }
+    }
+
     @SuppressWarnings("WeakerAccess")
     public static class GyroDebugInfo {
         public static class GyroImageDebugInfo {
@@ -1309,7 +2084,27 @@ public class ImageSaver extends Thread {
             // throw runtime exception, as this is a programming error
             throw new RuntimeException();
         }
-        else if( request.jpeg_images.size() == 0 ) {
+
+        if( request.jpeg_buffer != null ) {
+            if( canSaveJpegBuffer(request) ) {
+                return saveJpegBufferNow(request);
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "copy image out of pooled buffer for processing");
+            request.jpeg_images.add(request.jpeg_buffer.toByteArray());
+            request.jpeg_buffer.release();
+            request.jpeg_buffer = null;
+        }
+
+        if( request.best_of_burst != null ) {
+            takeBestOfBurstImages(request);
+            if( request.jpeg_images.size() == 0 ) {
+                Log.e(TAG, "no best of burst images to save");
+                return false;
+            }
+        }
+
+        if( request.jpeg_images.size() == 0 ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "saveImageNow called with zero images");
             // throw runtime exception, as this is a programming error
@@ -1358,116 +2153,109 @@ public class ImageSaver extends Thread {
             if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
                 try {
                     long time_s = System.currentTimeMillis();
-                    // initialise allocation from first two bitmaps
-                    //int inSampleSize = hdrProcessor.getAvgSampleSize(request.jpeg_images.size());
-                    int inSampleSize = hdrProcessor.getAvgSampleSize(request.iso, request.exposure_time);
-                    //final boolean use_smp = false;
-                    final boolean use_smp = true;
-                    // n_smp_images is how many bitmaps to decompress at once if use_smp==true. Beware of setting too high -
-                    // e.g., storing 4 16MP bitmaps takes 256MB of heap (NR requires at least 512MB large heap); also need to make
-                    // sure there isn't a knock on effect on performance
-                    //final int n_smp_images = 2;
-                    final int n_smp_images = 4;
-                    long this_time_s = System.currentTimeMillis();
-                    List<Bitmap> bitmaps = null;
-                    Bitmap bitmap0, bitmap1;
-                    if( use_smp ) {
-						/*List<byte []> sub_jpeg_list = new ArrayList<>();
-						sub_jpeg_list.add(request.jpeg_images.get(0));
-						sub_jpeg_list.add(request.jpeg_images.get(1));
-						bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-						bitmap0 = bitmaps.get(0);
-						bitmap1 = bitmaps.get(1);*/
-                        int n_remaining = request.jpeg_images.size();
-                        int n_load = Math.min(n_smp_images, n_remaining);
+                    int width, height;
+                    HDRProcessor.AvgData avg_data;
+                    IncrementalAverage incremental_average = takeIncrementalAverage(request);
+                    if( incremental_average != null ) {
+                        // images were averaged as they were captured
+                        width = incremental_average.getWidth();
+                        height = incremental_average.getHeight();
+                        avg_data = incremental_average.takeAvgData();
                         if( MyDebug.LOG ) {
-                            Log.d(TAG, "n_remaining: " + n_remaining);
-                            Log.d(TAG, "n_load: " + n_load);
+                            Log.d(TAG, "*** time after waiting for incremental average: " + (System.currentTimeMillis() - time_s));
                         }
-                        List<byte []> sub_jpeg_list = new ArrayList<>();
-                        for(int j=0;j<n_load;j++) {
-                            sub_jpeg_list.add(request.jpeg_images.get(j));
-                        }
-                        bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
-                        bitmap0 = bitmaps.get(0);
-                        bitmap1 = bitmaps.get(1);
                     }
-                    else {
-                        bitmap0 = loadBitmap(request.jpeg_images.get(0), false, inSampleSize);
-                        bitmap1 = loadBitmap(request.jpeg_images.get(1), false, inSampleSize);
+                    else if( request.n_dropped_images > 0 ) {
+                        // can't fall back to averaging the JPEGs, as they weren't kept
+                        Log.e(TAG, "failed to average images incrementally");
+                        System.gc();
+                        main_activity.savingImage(false);
+                        return false;
                     }
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "*** time for loading first bitmaps: " + (System.currentTimeMillis() - this_time_s));
-                    }
-                    int width = bitmap0.getWidth();
-                    int height = bitmap0.getHeight();
-                    float avg_factor = 1.0f;
-                    this_time_s = System.currentTimeMillis();
-                    HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(bitmap0, bitmap1, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
-                    if( bitmaps != null ) {
-                        bitmaps.set(0, null);
-                        bitmaps.set(1, null);
-                    }
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "*** time for processing first two bitmaps: " + (System.currentTimeMillis() - this_time_s));
-                    }
-                    Allocation allocation = avg_data.allocation_out;
+                    else {
+                        // initialise allocation from first two bitmaps
+                        //int inSampleSize = hdrProcessor.getAvgSampleSize(request.jpeg_images.size());
+                        int inSampleSize = hdrProcessor.getAvgSampleSize(request.iso, request.exposure_time);
+                        //final boolean use_smp = false;
+                        final boolean use_smp = true;
+                        // n_smp_images is how many bitmaps to hold at once if use_smp==true, including those being
+                        // processed. Beware of setting too high - e.g., storing 4 16MP bitmaps takes 256MB of heap (NR
+                        // requires at least 512MB large heap); also need to make sure there isn't a knock on effect on
+                        // performance
+                        //final int n_smp_images = 2;
+                        final int n_smp_images = 4;
+                        long this_time_s = System.currentTimeMillis();
+                        // with use_smp, later bitmaps are decoded on decode_executor whilst we process the earlier ones;
+                        // the first two bitmaps are both held whilst processing, so we can decode up to n_smp_images-2 ahead
+                        DecodeQueue<Bitmap> decode_queue = use_smp ? createDecodeQueue(request.jpeg_images, -1, inSampleSize, n_smp_images-2) : null;
+                        try {
+                            Bitmap bitmap0, bitmap1;
+                            if( use_smp ) {
+                                bitmap0 = decode_queue.take();
+                                bitmap1 = decode_queue.take();
+                            }
+                            else {
+                                bitmap0 = loadBitmap(request.jpeg_images.get(0), false, inSampleSize);
+                                bitmap1 = loadBitmap(request.jpeg_images.get(1), false, inSampleSize);
+                            }
+                            if( bitmap0 == null || bitmap1 == null ) {
+                                Log.e(TAG, "failed to decode first bitmaps");
+                                throw new RuntimeException();
+                            }
+                            if( MyDebug.LOG ) {
+                                Log.d(TAG, "*** time for loading first bitmaps: " + (System.currentTimeMillis() - this_time_s));
+                            }
+                            width = bitmap0.getWidth();
+                            height = bitmap0.getHeight();
+                            float avg_factor = 1.0f;
+                            this_time_s = System.currentTimeMillis();
+                            avg_data = hdrProcessor.processAvg(bitmap0, bitmap1, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
+                            if( MyDebug.LOG ) {
+                                Log.d(TAG, "*** time for processing first two bitmaps: " + (System.currentTimeMillis() - this_time_s));
+                            }
 
-                    for(int i=2;i<request.jpeg_images.size();i++) {
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "processAvg for image: " + i);
+                            for(int i=2;i<request.jpeg_images.size();i++) {
+                                if( MyDebug.LOG )
+                                    Log.d(TAG, "processAvg for image: " + i);
 
-                        this_time_s = System.currentTimeMillis();
-                        Bitmap new_bitmap;
-                        if( use_smp ) {
-                            // check if we already loaded the bitmap
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "length of bitmaps list: " + bitmaps.size());
-                            if( i < bitmaps.size() ) {
-                                if( MyDebug.LOG ) {
-                                    Log.d(TAG, "already loaded bitmap from previous iteration with SMP");
+                                this_time_s = System.currentTimeMillis();
+                                Bitmap new_bitmap;
+                                if( use_smp ) {
+                                    new_bitmap = decode_queue.take();
+                                }
+                                else {
+                                    new_bitmap = loadBitmap(request.jpeg_images.get(i), false, inSampleSize);
+                                }
+                                if( new_bitmap == null ) {
+                                    Log.e(TAG, "failed to decode bitmap: " + i);
+                                    throw new RuntimeException();
                                 }
-                                new_bitmap = bitmaps.get(i);
-                            }
-                            else {
-                                int n_remaining = request.jpeg_images.size() - i;
-                                int n_load = Math.min(n_smp_images, n_remaining);
                                 if( MyDebug.LOG ) {
-                                    Log.d(TAG, "n_remaining: " + n_remaining);
-                                    Log.d(TAG, "n_load: " + n_load);
+                                    Log.d(TAG, "*** time for loading extra bitmap: " + (System.currentTimeMillis() - this_time_s));
                                 }
-                                List<byte []> sub_jpeg_list = new ArrayList<>();
-                                for(int j=i;j<i+n_load;j++) {
-                                    sub_jpeg_list.add(request.jpeg_images.get(j));
+                                avg_factor = (float)i;
+                                this_time_s = System.currentTimeMillis();
+                                hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
+                                // updateAvg recycles new_bitmap
+                                if( MyDebug.LOG ) {
+                                    Log.d(TAG, "*** time for updating extra bitmap: " + (System.currentTimeMillis() - this_time_s));
                                 }
-                                List<Bitmap> new_bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-                                bitmaps.addAll(new_bitmaps);
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
-                                new_bitmap = bitmaps.get(i);
                             }
                         }
-                        else {
-                            new_bitmap = loadBitmap(request.jpeg_images.get(i), false, inSampleSize);
+                        catch(InterruptedException e) {
+                            e.printStackTrace();
+                            throw new RuntimeException();
                         }
-                        if( MyDebug.LOG ) {
-                            Log.d(TAG, "*** time for loading extra bitmap: " + (System.currentTimeMillis() - this_time_s));
-                        }
-                        avg_factor = (float)i;
-                        this_time_s = System.currentTimeMillis();
-                        hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
-                        // updateAvg recycles new_bitmap
-                        if( bitmaps != null ) {
-                            bitmaps.set(i, null);
-                        }
-                        if( MyDebug.LOG ) {
-                            Log.d(TAG, "*** time for updating extra bitmap: " + (System.currentTimeMillis() - this_time_s));
+                        finally {
+                            if( decode_queue != null ) {
+                                // in case we didn't take all of the bitmaps
+                                decode_queue.cancel();
+                            }
                         }
                     }
+                    Allocation allocation = avg_data.allocation_out;
 
-                    this_time_s = System.currentTimeMillis();
+                    long this_time_s = System.currentTimeMillis();
                     nr_bitmap = hdrProcessor.avgBrighten(allocation, width, height, request.iso, request.exposure_time);
                     if( MyDebug.LOG ) {
                         Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - this_time_s));
@@ -1528,61 +2316,92 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG )
                 Log.d(TAG, "create HDR image");
             main_activity.savingImage(true);
-
-            // see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
-            // the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
-            // see test testTakePhotoHDRPhotoStamp.
-            int base_bitmap = (request.jpeg_images.size()-1)/2;
-            if( MyDebug.LOG )
-                Log.d(TAG, "base_bitmap: " + base_bitmap);
-            List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
-            if( bitmaps == null ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "failed to load bitmaps");
-                main_activity.savingImage(false);
-                return false;
+            if( request.hdr_backend != null ) {
+                hdrProcessor.setHDRBackend(request.hdr_backend);
             }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "HDR performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
-            }
-            float hdr_alpha = getHDRAlpha(request.preference_hdr_contrast_enhancement, request.exposure_time, bitmaps.size());
-            if( MyDebug.LOG )
-                Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
-            try {
-                if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-                    hdrProcessor.processHDR(bitmaps, true, null, true, null, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+
+            Bitmap hdr_bitmap;
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && request.jpeg_images.size() > 1 && useStreamingHDR(request.jpeg_images) ) {
+                // avoid holding all of the full resolution images in memory at once
+                float hdr_alpha = getHDRAlpha(request.preference_hdr_contrast_enhancement, request.exposure_time, request.jpeg_images.size());
+                try {
+                    hdr_bitmap = hdrProcessor.processHDRStreaming(request.jpeg_images, HDRProcessor.streaming_strip_height_c, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD);
                 }
-                else {
-                    Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
-                    throw new RuntimeException();
+                catch(HDRProcessorException e) {
+                    Log.e(TAG, "HDRProcessorException from processHDRStreaming: " + e.getCode());
+                    e.printStackTrace();
+                    if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES || e.getCode() == HDRProcessorException.DECODE_FAILED ) {
+                        main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
+                        System.gc();
+                        main_activity.savingImage(false);
+                        return false;
+                    }
+                    else {
+                        // throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
+                        throw new RuntimeException();
+                    }
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
+                    Log.d(TAG, "HDR peak working bytes: " + hdrProcessor.getPeakWorkingBytes());
                 }
             }
-            catch(HDRProcessorException e) {
-                Log.e(TAG, "HDRProcessorException from processHDR: " + e.getCode());
-                e.printStackTrace();
-                if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
-                    // this can happen on OnePlus 3T with old camera API with front camera, seems to be a bug that resolution changes when exposure compensation is set!
-                    main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
-                    Log.e(TAG, "UNEQUAL_SIZES");
-                    bitmaps.clear();
-                    System.gc();
+            else {
+                // see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
+                // the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
+                // see test testTakePhotoHDRPhotoStamp.
+                int base_bitmap = (request.jpeg_images.size()-1)/2;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "base_bitmap: " + base_bitmap);
+                List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
+                if( bitmaps == null ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "failed to load bitmaps");
                     main_activity.savingImage(false);
                     return false;
                 }
-                else {
-                    // throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
-                    throw new RuntimeException();
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "HDR performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
+                }
+                float hdr_alpha = getHDRAlpha(request.preference_hdr_contrast_enhancement, request.exposure_time, bitmaps.size());
+                if( MyDebug.LOG )
+                    Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
+                try {
+                    if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                        hdrProcessor.processHDR(bitmaps, true, null, true, null, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+                    }
+                    else {
+                        Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
+                        throw new RuntimeException();
+                    }
+                }
+                catch(HDRProcessorException e) {
+                    Log.e(TAG, "HDRProcessorException from processHDR: " + e.getCode());
+                    e.printStackTrace();
+                    if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
+                        // this can happen on OnePlus 3T with old camera API with front camera, seems to be a bug that resolution changes when exposure compensation is set!
+                        main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
+                        Log.e(TAG, "UNEQUAL_SIZES");
+                        bitmaps.clear();
+                        System.gc();
+                        main_activity.savingImage(false);
+                        return false;
+                    }
+                    else {
+                        // throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
+                        throw new RuntimeException();
+                    }
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
                 }
+                if( MyDebug.LOG )
+                    Log.d(TAG, "after HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
+                hdr_bitmap = bitmaps.get(0);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
+                bitmaps.clear();
             }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
-            }
-            if( MyDebug.LOG )
-                Log.d(TAG, "after HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
-            Bitmap hdr_bitmap = bitmaps.get(0);
-            if( MyDebug.LOG )
-                Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
-            bitmaps.clear();
             System.gc();
             main_activity.savingImage(false);
 
@@ -1672,6 +2491,7 @@ public class ImageSaver extends Thread {
 
                     if( saveFile != null ) {
                         storageUtils.broadcastFile(saveFile, false, false, false);
+                        saveReplaySession(request, writer.toString(), saveFile);
                     }
                     else {
                         broadcastSAFFile(saveUri, false, false);
@@ -1701,31 +2521,48 @@ public class ImageSaver extends Thread {
                 Collections.reverse(request.gyro_rotation_matrix);
             }
 
-            List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, -1, 1);
-            if( bitmaps == null ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "failed to load bitmaps");
-                main_activity.savingImage(false);
-                return false;
+            PanoramaProcessor.IncrementalPanorama incremental_panorama = null;
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                incremental_panorama = takeIncrementalPanorama(request);
             }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "panorama performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
+            List<Bitmap> bitmaps;
+            if( incremental_panorama != null ) {
+                // images were already decoded and aligned as they were captured
+                bitmaps = new ArrayList<>();
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "panorama performance: time after waiting for incremental panorama: " + (System.currentTimeMillis() - time_s));
+                }
             }
+            else {
+                bitmaps = loadBitmaps(request.jpeg_images, -1, 1);
+                if( bitmaps == null ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "failed to load bitmaps");
+                    main_activity.savingImage(false);
+                    return false;
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "panorama performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
+                }
 
-            // rotate the bitmaps if necessary for exif tags
-            for(int i=0;i<bitmaps.size();i++) {
-                Bitmap bitmap = bitmaps.get(i);
-                bitmap = rotateForExif(bitmap, request.jpeg_images.get(0));
-                bitmaps.set(i, bitmap);
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "panorama performance: time after rotating for exif: " + (System.currentTimeMillis() - time_s));
+                // rotate the bitmaps if necessary for exif tags
+                for(int i=0;i<bitmaps.size();i++) {
+                    Bitmap bitmap = bitmaps.get(i);
+                    bitmap = rotateForExif(bitmap, request.jpeg_images.get(0));
+                    bitmaps.set(i, bitmap);
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "panorama performance: time after rotating for exif: " + (System.currentTimeMillis() - time_s));
+                }
             }
 
             Bitmap panorama;
             try {
                 if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-                    panorama = panoramaProcessor.panorama(bitmaps, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop);
+                    if( incremental_panorama != null )
+                        panorama = panoramaProcessor.panorama(incremental_panorama, request.camera_view_angle_y, request.panorama_crop);
+                    else
+                        panorama = panoramaProcessor.panorama(bitmaps, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop);
                 }
                 else {
                     Log.e(TAG, "shouldn't have offered panorama as an option if not on Android 5");
@@ -1777,6 +2614,37 @@ public class ImageSaver extends Thread {
         return success;
     }
 
+    /** Whether a request with a pooled buffer can be saved directly from the buffer, i.e., the JPEG
+     *  data is written unchanged and doesn't need any processing.
+     */
+    private static boolean canSaveJpegBuffer(Request request) {
+        return request.process_type == Request.ProcessType.NORMAL &&
+                !request.image_capture_intent &&
+                request.image_format == Request.ImageFormat.STD &&
+                !request.do_auto_stabilise &&
+                !request.mirror &&
+                !request.preference_stamp.equals("preference_stamp_yes") &&
+                request.preference_textstamp.length() == 0;
+    }
+
+    /** Saves a request whose JPEG is held in request.jpeg_buffer (see canSaveJpegBuffer()), and
+     *  releases the buffer.
+     */
+    private boolean saveJpegBufferNow(Request request) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "saveJpegBufferNow");
+        JpegBufferPool.Buffer jpeg_buffer = request.jpeg_buffer;
+        request.jpeg_buffer = null;
+        try {
+            // consistent with saveImages() for a single image
+            String filename_suffix = request.force_suffix ? "_" + request.suffix_offset : "";
+            return saveSingleImageNow(request, jpeg_buffer.getData(), jpeg_buffer.getLength(), null, filename_suffix, true, true, false, false);
+        }
+        finally {
+            jpeg_buffer.release();
+        }
+    }
+
     /** Saves all the JPEG images in request.jpeg_images.
      * @param request The request to save.
      * @param suffix If there is more than one image and first_only is false, the i-th image
@@ -1945,7 +2813,6 @@ public class ImageSaver extends Thread {
     					bitmap.setPixel(x, y, col);
     				}
     			}*/
-            Matrix matrix = new Matrix();
             double level_angle_rad_abs = Math.abs( Math.toRadians(level_angle) );
             int w1 = width, h1 = height;
             double w0 = (w1 * Math.cos(level_angle_rad_abs) + h1 * Math.sin(level_angle_rad_abs));
@@ -1970,7 +2837,6 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "w1 = " + w1 + " , h1 = " + h1);
                 Log.d(TAG, "scale = sqrt " + orig_size + " / " + rotated_size + " = " + scale);
             }
-            matrix.postScale(scale, scale);
             w0 *= scale;
             h0 *= scale;
             w1 *= scale;
@@ -1979,51 +2845,122 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "after scaling: w0 = " + w0 + " , h0 = " + h0);
                 Log.d(TAG, "after scaling: w1 = " + w1 + " , h1 = " + h1);
             }
-            if( is_front_facing ) {
-                matrix.postRotate((float)-level_angle);
+            if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+                // AutoLevelResampler uses a ForkJoinPool, which requires Android 5
+                bitmap = autoStabiliseWithMatrix(bitmap, level_angle, is_front_facing, scale, level_angle_rad_abs, w0, h0, w1, h1);
             }
             else {
-                matrix.postRotate((float)level_angle);
-            }
-            Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
-            // careful, as new_bitmap is sometimes not a copy!
-            if( new_bitmap != bitmap ) {
+                // the size the rotated and scaled image would have - we don't actually create this image,
+                // instead we resample directly into the cropped region
+                int rotated_width = Math.max((int)Math.round(w0), 1);
+                int rotated_height = Math.max((int)Math.round(h0), 1);
+                int dst_width = rotated_width;
+                int dst_height = rotated_height;
+                int [] crop = new int [2];
+                if( autoStabiliseCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, rotated_width, rotated_height) ) {
+                    dst_width = crop[0];
+                    dst_height = crop[1];
+                }
+                if( MyDebug.LOG )
+                    Log.d(TAG, "rotated size " + rotated_width + " x " + rotated_height + " , cropped size " + dst_width + " x " + dst_height);
+
+                double angle = is_front_facing ? -level_angle : level_angle;
+                AutoLevelResampler resampler = new AutoLevelResampler(width, height, angle, scale, dst_width, dst_height);
+                Bitmap new_bitmap = Bitmap.createBitmap(dst_width, dst_height, Bitmap.Config.ARGB_8888);
+                final Bitmap src_bitmap = bitmap;
+                final Bitmap dst_bitmap = new_bitmap;
+                // tiles in different rows of tiles may be written concurrently, as they don't overlap
+                final int tile_size = AutoLevelResampler.default_tile_size_c;
+                final Object [] tile_row_locks = new Object[(dst_height + tile_size - 1)/tile_size];
+                for(int i=0;i<tile_row_locks.length;i++)
+                    tile_row_locks[i] = new Object();
+                resampler.process(ParallelRows.getDefaultPool(), tile_size, new AutoLevelResampler.PixelSource() {
+                    @Override
+                    public void getPixels(int [] pixels, int x, int y, int region_width, int region_height) {
+                        src_bitmap.getPixels(pixels, 0, region_width, x, y, region_width, region_height);
+                    }
+                }, new AutoLevelResampler.PixelSink() {
+                    @Override
+                    public void setPixels(int [] pixels, int x, int y, int region_width, int region_height) {
+                        synchronized( tile_row_locks[y/tile_size] ) {
+                            dst_bitmap.setPixels(pixels, 0, region_width, x, y, region_width, region_height);
+                        }
+                    }
+                });
+                long peak_bytes = src_bitmap.getByteCount() + (long)dst_bitmap.getByteCount() + resampler.getPeakTileBytes();
+                double time_per_mp = (resampler.getLastTimeNs()/1.0e6) / (dst_width*(double)dst_height/1.0e6);
+                last_auto_stabilise_peak_bytes = peak_bytes;
+                last_auto_stabilise_ms_per_mp = time_per_mp;
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "Auto-stabilise performance: time: " + resampler.getLastTimeNs()/1000000 + "ms, " + time_per_mp + " ms per megapixel");
+                    Log.d(TAG, "Auto-stabilise performance: peak memory: " + peak_bytes + " bytes (tile buffers: " + resampler.getPeakTileBytes() + ")");
+                }
                 bitmap.recycle();
                 bitmap = new_bitmap;
-            }
-            System.gc();
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "rotated and scaled bitmap size " + bitmap.getWidth() + ", " + bitmap.getHeight());
-                Log.d(TAG, "rotated and scaled bitmap size: " + bitmap.getWidth()*bitmap.getHeight()*4);
-            }
-
-            int [] crop = new int [2];
-            if( autoStabiliseCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, bitmap.getWidth(), bitmap.getHeight()) ) {
-                int w2 = crop[0];
-                int h2 = crop[1];
-                int x0 = (bitmap.getWidth()-w2)/2;
-                int y0 = (bitmap.getHeight()-h2)/2;
                 if( MyDebug.LOG ) {
-                    Log.d(TAG, "x0 = " + x0 + " , y0 = " + y0);
+                    Log.d(TAG, "rotated and cropped bitmap size " + bitmap.getWidth() + ", " + bitmap.getHeight());
+                    Log.d(TAG, "rotated and cropped bitmap size: " + bitmap.getWidth()*bitmap.getHeight()*4);
                 }
-                new_bitmap = Bitmap.createBitmap(bitmap, x0, y0, w2, h2);
-                if( new_bitmap != bitmap ) {
-                    bitmap.recycle();
-                    bitmap = new_bitmap;
-                }
-                System.gc();
+                // bitmap created by Bitmap.createBitmap(width, height, config) is always mutable, as
+                // required for stamping, see testPhotoStamp()
             }
+        }
+        return bitmap;
+    }
 
-            if( MyDebug.LOG )
-                Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
-            // Usually createBitmap will return a mutable bitmap, but not if the source bitmap (which we set as immutable)
-            // is returned (if the level angle is (tolerantly) 0.
-            // see testPhotoStamp() for testing this.
-            if( !bitmap.isMutable() ) {
-                new_bitmap = bitmap.copy(bitmap.getConfig(), true);
+    /** Rotates, scales and crops the bitmap for auto-stabilise using Bitmap.createBitmap() with a
+     *  Matrix, for devices that can't use AutoLevelResampler. This needs an intermediate bitmap
+     *  large enough to hold the rotated image.
+     */
+    private Bitmap autoStabiliseWithMatrix(Bitmap bitmap, double level_angle, boolean is_front_facing, float scale, double level_angle_rad_abs, double w0, double h0, int w1, int h1) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        if( is_front_facing ) {
+            matrix.postRotate((float)-level_angle);
+        }
+        else {
+            matrix.postRotate((float)level_angle);
+        }
+        Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
+        // careful, as new_bitmap is sometimes not a copy!
+        if( new_bitmap != bitmap ) {
+            bitmap.recycle();
+            bitmap = new_bitmap;
+        }
+        System.gc();
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "rotated and scaled bitmap size " + bitmap.getWidth() + ", " + bitmap.getHeight());
+            Log.d(TAG, "rotated and scaled bitmap size: " + bitmap.getWidth()*bitmap.getHeight()*4);
+        }
+
+        int [] crop = new int [2];
+        if( autoStabiliseCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, bitmap.getWidth(), bitmap.getHeight()) ) {
+            int w2 = crop[0];
+            int h2 = crop[1];
+            int x0 = (bitmap.getWidth()-w2)/2;
+            int y0 = (bitmap.getHeight()-h2)/2;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "x0 = " + x0 + " , y0 = " + y0);
+            }
+            new_bitmap = Bitmap.createBitmap(bitmap, x0, y0, w2, h2);
+            if( new_bitmap != bitmap ) {
                 bitmap.recycle();
                 bitmap = new_bitmap;
             }
+            System.gc();
+        }
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
+        // Usually createBitmap will return a mutable bitmap, but not if the source bitmap (which we set as immutable)
+        // is returned (if the level angle is (tolerantly) 0.
+        // see testPhotoStamp() for testing this.
+        if( !bitmap.isMutable() ) {
+            new_bitmap = bitmap.copy(bitmap.getConfig(), true);
+            bitmap.recycle();
+            bitmap = new_bitmap;
         }
         return bitmap;
     }
@@ -2093,223 +3030,431 @@ public class ImageSaver extends Thread {
                 if( MyDebug.LOG )
                     Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
 
-                String stamp_string = "";
-                /* We now stamp via a TextView instead of using MyApplicationInterface.drawTextWithBackground().
-                 * This is important in order to satisfy the Google emoji policy...
-                 */
-
-                int font_size = request.font_size;
-                int color = request.color;
-                String pref_style = request.pref_style;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "pref_style: " + pref_style);
-                String preference_stamp_dateformat = request.preference_stamp_dateformat;
-                String preference_stamp_timeformat = request.preference_stamp_timeformat;
-                String preference_stamp_gpsformat = request.preference_stamp_gpsformat;
                 int width = bitmap.getWidth();
                 int height = bitmap.getHeight();
                 if( MyDebug.LOG ) {
                     Log.d(TAG, "decoded bitmap size " + width + ", " + height);
                     Log.d(TAG, "bitmap size: " + width*height*4);
                 }
-                Canvas canvas = new Canvas(bitmap);
-                p.setColor(Color.WHITE);
-                // we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
-                // instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
-                int smallest_size = Math.min(width, height);
-                float scale = ((float)smallest_size) / (72.0f*4.0f);
-                int font_size_pixel = (int)(font_size * scale + 0.5f); // convert pt to pixels
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "scale: " + scale);
-                    Log.d(TAG, "font_size: " + font_size);
-                    Log.d(TAG, "font_size_pixel: " + font_size_pixel);
-                }
-                p.setTextSize(font_size_pixel);
-                int offset_x = (int)(8 * scale + 0.5f); // convert pt to pixels
-                int offset_y = (int)(8 * scale + 0.5f); // convert pt to pixels
-                int diff_y = (int)((font_size+4) * scale + 0.5f); // convert pt to pixels
-                int ypos = height - offset_y;
-                p.setTextAlign(Align.RIGHT);
-                MyApplicationInterface.Shadow draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
-                switch( pref_style ) {
-                    case "preference_stamp_style_shadowed":
-                        draw_shadowed = MyApplicationInterface.Shadow.SHADOW_OUTLINE;
-                        break;
-                    case "preference_stamp_style_plain":
-                        draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
-                        break;
-                    case "preference_stamp_style_background":
-                        draw_shadowed = MyApplicationInterface.Shadow.SHADOW_BACKGROUND;
-                        break;
+                StampView stamp_view = createStampView(request, width, height);
+                if( stamp_view != null ) {
+                    Canvas canvas = new Canvas(bitmap);
+                    stamp_view.draw(canvas);
                 }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "draw_shadowed: " + draw_shadowed);
-                if( dategeo_stamp ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "stamp date");
-                    // doesn't respect user preferences such as 12/24 hour - see note about in draw() about DateFormat.getTimeInstance()
-                    String date_stamp = TextFormatter.getDateString(preference_stamp_dateformat, request.current_date);
-                    String time_stamp = TextFormatter.getTimeString(preference_stamp_timeformat, request.current_date);
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "date_stamp: " + date_stamp);
-                        Log.d(TAG, "time_stamp: " + time_stamp);
+            }
+        }
+        return bitmap;
+    }
+
+    /** The laid out view for a photo stamp, see createStampView().
+     */
+    private static class StampView {
+        final View layout;
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+
+        StampView(View layout, int left, int top, int right, int bottom) {
+            this.layout = layout;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        /** Draws the stamp onto a canvas whose coordinates are those of the (correctly rotated)
+         *  image.
+         */
+        void draw(Canvas canvas) {
+            canvas.save();
+            canvas.translate(left, top);
+            layout.draw(canvas);
+            canvas.restore();
+        }
+    }
+
+    /** Creates the view to stamp onto a photo, for the photo stamp options.
+     * @param width  The width of the (correctly rotated) image.
+     * @param height The height of the (correctly rotated) image.
+     * @return The view, or null if there is nothing to stamp.
+     */
+    private StampView createStampView(final Request request, int width, int height) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "createStampView");
+        boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
+        boolean text_stamp = request.preference_textstamp.length() > 0;
+
+        String stamp_string = "";
+        /* We now stamp via a TextView instead of using MyApplicationInterface.drawTextWithBackground().
+         * This is important in order to satisfy the Google emoji policy...
+         */
+
+        int font_size = request.font_size;
+        int color = request.color;
+        String pref_style = request.pref_style;
+        if( MyDebug.LOG )
+            Log.d(TAG, "pref_style: " + pref_style);
+        String preference_stamp_dateformat = request.preference_stamp_dateformat;
+        String preference_stamp_timeformat = request.preference_stamp_timeformat;
+        String preference_stamp_gpsformat = request.preference_stamp_gpsformat;
+        // not shared between requests, as requests may be stamped concurrently in multi-worker mode
+        final Paint p = new Paint();
+        p.setAntiAlias(true);
+        p.setColor(Color.WHITE);
+        // we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
+        // instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
+        int smallest_size = Math.min(width, height);
+        float scale = ((float)smallest_size) / (72.0f*4.0f);
+        int font_size_pixel = (int)(font_size * scale + 0.5f); // convert pt to pixels
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "scale: " + scale);
+            Log.d(TAG, "font_size: " + font_size);
+            Log.d(TAG, "font_size_pixel: " + font_size_pixel);
+        }
+        p.setTextSize(font_size_pixel);
+        int offset_x = (int)(8 * scale + 0.5f); // convert pt to pixels
+        int offset_y = (int)(8 * scale + 0.5f); // convert pt to pixels
+        int diff_y = (int)((font_size+4) * scale + 0.5f); // convert pt to pixels
+        int ypos = height - offset_y;
+        p.setTextAlign(Align.RIGHT);
+        MyApplicationInterface.Shadow draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
+        switch( pref_style ) {
+            case "preference_stamp_style_shadowed":
+                draw_shadowed = MyApplicationInterface.Shadow.SHADOW_OUTLINE;
+                break;
+            case "preference_stamp_style_plain":
+                draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
+                break;
+            case "preference_stamp_style_background":
+                draw_shadowed = MyApplicationInterface.Shadow.SHADOW_BACKGROUND;
+                break;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "draw_shadowed: " + draw_shadowed);
+        if( dategeo_stamp ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "stamp date");
+            // doesn't respect user preferences such as 12/24 hour - see note about in draw() about DateFormat.getTimeInstance()
+            String date_stamp = TextFormatter.getDateString(preference_stamp_dateformat, request.current_date);
+            String time_stamp = TextFormatter.getTimeString(preference_stamp_timeformat, request.current_date);
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "date_stamp: " + date_stamp);
+                Log.d(TAG, "time_stamp: " + time_stamp);
+            }
+            if( date_stamp.length() > 0 || time_stamp.length() > 0 ) {
+                String datetime_stamp = "";
+                if( date_stamp.length() > 0 )
+                    datetime_stamp += date_stamp;
+                if( time_stamp.length() > 0 ) {
+                    if( datetime_stamp.length() > 0 )
+                        datetime_stamp += " ";
+                    datetime_stamp += time_stamp;
+                }
+                //applicationInterface.drawTextWithBackground(canvas, p, datetime_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                if( stamp_string.length() == 0 )
+                    stamp_string = datetime_stamp;
+                else
+                    stamp_string = datetime_stamp + "\n" + stamp_string;
+            }
+            ypos -= diff_y;
+            String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, request.store_location, request.location, request.store_geo_direction, request.geo_direction);
+            if( gps_stamp.length() > 0 ) {
+                // don't log gps_stamp, in case of privacy!
+
+                Address address = null;
+                if( request.store_location && !request.preference_stamp_geo_address.equals("preference_stamp_geo_address_no") ) {
+                    boolean block_geocoder;
+                    synchronized(this) {
+                        block_geocoder = app_is_paused;
                     }
-                    if( date_stamp.length() > 0 || time_stamp.length() > 0 ) {
-                        String datetime_stamp = "";
-                        if( date_stamp.length() > 0 )
-                            datetime_stamp += date_stamp;
-                        if( time_stamp.length() > 0 ) {
-                            if( datetime_stamp.length() > 0 )
-                                datetime_stamp += " ";
-                            datetime_stamp += time_stamp;
-                        }
-                        //applicationInterface.drawTextWithBackground(canvas, p, datetime_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                        if( stamp_string.length() == 0 )
-                            stamp_string = datetime_stamp;
-                        else
-                            stamp_string = datetime_stamp + "\n" + stamp_string;
+                    // try to find an address
+                    // n.b., if we update the class being used, consider whether the info on Geocoder in preference_stamp_geo_address_summary needs updating
+                    if( block_geocoder ) {
+                        // seems safer to not try to initiate potential network connections (via geocoder) if Open Camera
+                        // has paused and we're still saving images
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "don't call geocoder for photostamp as app is paused");
                     }
-                    ypos -= diff_y;
-                    String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, request.store_location, request.location, request.store_geo_direction, request.geo_direction);
-                    if( gps_stamp.length() > 0 ) {
-                        // don't log gps_stamp, in case of privacy!
-
-                        Address address = null;
-                        if( request.store_location && !request.preference_stamp_geo_address.equals("preference_stamp_geo_address_no") ) {
-                            boolean block_geocoder;
-                            synchronized(this) {
-                                block_geocoder = app_is_paused;
-                            }
-                            // try to find an address
-                            // n.b., if we update the class being used, consider whether the info on Geocoder in preference_stamp_geo_address_summary needs updating
-                            if( block_geocoder ) {
-                                // seems safer to not try to initiate potential network connections (via geocoder) if Open Camera
-                                // has paused and we're still saving images
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "don't call geocoder for photostamp as app is paused");
-                            }
-                            else if( Geocoder.isPresent() ) {
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "geocoder is present");
-                                Geocoder geocoder = new Geocoder(main_activity, Locale.getDefault());
-                                try {
-                                    List<Address> addresses = geocoder.getFromLocation(request.location.getLatitude(), request.location.getLongitude(), 1);
-                                    if( addresses != null && addresses.size() > 0 ) {
-                                        address = addresses.get(0);
-                                        // don't log address, in case of privacy!
-                                        if( MyDebug.LOG ) {
-                                            Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
-                                        }
-                                    }
-                                }
-                                catch(Exception e) {
-                                    Log.e(TAG, "failed to read from geocoder");
-                                    e.printStackTrace();
+                    else if( Geocoder.isPresent() ) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "geocoder is present");
+                        Geocoder geocoder = new Geocoder(main_activity, Locale.getDefault());
+                        try {
+                            List<Address> addresses = geocoder.getFromLocation(request.location.getLatitude(), request.location.getLongitude(), 1);
+                            if( addresses != null && addresses.size() > 0 ) {
+                                address = addresses.get(0);
+                                // don't log address, in case of privacy!
+                                if( MyDebug.LOG ) {
+                                    Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
                                 }
                             }
-                            else {
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "geocoder not present");
-                            }
-                        }
-
-                        if( address == null || request.preference_stamp_geo_address.equals("preference_stamp_geo_address_both") ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "display gps coords");
-                            // want GPS coords (either in addition to the address, or we don't have an address)
-                            // we'll also enter here if store_location is false, but we have geo direction to display
-                            //applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                            if( stamp_string.length() == 0 )
-                                stamp_string = gps_stamp;
-                            else
-                                stamp_string = gps_stamp + "\n" + stamp_string;
-                            ypos -= diff_y;
-                        }
-                        else if( request.store_geo_direction ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "not displaying gps coords, but need to display geo direction");
-                            // we are displaying an address instead of GPS coords, but we still need to display the geo direction
-                            gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, false, null, request.store_geo_direction, request.geo_direction);
-                            if( gps_stamp.length() > 0 ) {
-                                // don't log gps_stamp, in case of privacy!
-                                //applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                                if( stamp_string.length() == 0 )
-                                    stamp_string = gps_stamp;
-                                else
-                                    stamp_string = gps_stamp + "\n" + stamp_string;
-                                ypos -= diff_y;
-                            }
                         }
-
-                        if( address != null ) {
-                            for(int i=0;i<=address.getMaxAddressLineIndex();i++) {
-                                // write in reverse order
-                                String addressLine = address.getAddressLine(address.getMaxAddressLineIndex()-i);
-                                //applicationInterface.drawTextWithBackground(canvas, p, addressLine, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                                if( stamp_string.length() == 0 )
-                                    stamp_string = addressLine;
-                                else
-                                    stamp_string = addressLine + "\n" + stamp_string;
-                                ypos -= diff_y;
-                            }
+                        catch(Exception e) {
+                            Log.e(TAG, "failed to read from geocoder");
+                            e.printStackTrace();
                         }
                     }
+                    else {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "geocoder not present");
+                    }
                 }
-                if( text_stamp ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "stamp text");
 
-                    //applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                if( address == null || request.preference_stamp_geo_address.equals("preference_stamp_geo_address_both") ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "display gps coords");
+                    // want GPS coords (either in addition to the address, or we don't have an address)
+                    // we'll also enter here if store_location is false, but we have geo direction to display
+                    //applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
                     if( stamp_string.length() == 0 )
-                        stamp_string = request.preference_textstamp;
+                        stamp_string = gps_stamp;
                     else
-                        stamp_string = request.preference_textstamp + "\n" + stamp_string;
-
-                    //noinspection UnusedAssignment
+                        stamp_string = gps_stamp + "\n" + stamp_string;
                     ypos -= diff_y;
                 }
+                else if( request.store_geo_direction ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "not displaying gps coords, but need to display geo direction");
+                    // we are displaying an address instead of GPS coords, but we still need to display the geo direction
+                    gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, false, null, request.store_geo_direction, request.geo_direction);
+                    if( gps_stamp.length() > 0 ) {
+                        // don't log gps_stamp, in case of privacy!
+                        //applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                        if( stamp_string.length() == 0 )
+                            stamp_string = gps_stamp;
+                        else
+                            stamp_string = gps_stamp + "\n" + stamp_string;
+                        ypos -= diff_y;
+                    }
+                }
 
-                if( stamp_string.length() > 0 ) {
-                    // don't log stamp_string, in case of privacy!
+                if( address != null ) {
+                    for(int i=0;i<=address.getMaxAddressLineIndex();i++) {
+                        // write in reverse order
+                        String addressLine = address.getAddressLine(address.getMaxAddressLineIndex()-i);
+                        //applicationInterface.drawTextWithBackground(canvas, p, addressLine, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                        if( stamp_string.length() == 0 )
+                            stamp_string = addressLine;
+                        else
+                            stamp_string = addressLine + "\n" + stamp_string;
+                        ypos -= diff_y;
+                    }
+                }
+            }
+        }
+        if( text_stamp ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "stamp text");
 
-                    @SuppressLint("InflateParams")
-                    final View stamp_view = LayoutInflater.from(main_activity).inflate(R.layout.stamp_image_text, null);
-                    final LinearLayout layout = stamp_view.findViewById(R.id.layout);
-                    final TextView textview = stamp_view.findViewById(R.id.text_view);
+            //applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+            if( stamp_string.length() == 0 )
+                stamp_string = request.preference_textstamp;
+            else
+                stamp_string = request.preference_textstamp + "\n" + stamp_string;
 
-                    textview.setVisibility(View.VISIBLE);
-                    textview.setTextColor(color);
-                    textview.setTextSize(TypedValue.COMPLEX_UNIT_PX, font_size_pixel);
-                    textview.setText(stamp_string);
-                    if( draw_shadowed == MyApplicationInterface.Shadow.SHADOW_OUTLINE ) {
-                        //noinspection PointlessArithmeticExpression
-                        float shadow_radius = (1.0f * scale + 0.5f); // convert pt to pixels
-                        shadow_radius = Math.max(shadow_radius, 1.0f);
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "shadow_radius: " + shadow_radius);
-                        textview.setShadowLayer(shadow_radius, 0.0f, 0.0f, Color.BLACK);
-                    }
-                    else if( draw_shadowed == MyApplicationInterface.Shadow.SHADOW_BACKGROUND ) {
-                        textview.setBackgroundColor(Color.argb(64, 0, 0, 0));
-                    }
-                    //textview.setBackgroundColor(Color.BLACK); // test
-                    textview.setGravity(Gravity.END); // so text is right-aligned - important when there are multiple lines
+            //noinspection UnusedAssignment
+            ypos -= diff_y;
+        }
+
+        if( stamp_string.length() == 0 ) {
+            return null;
+        }
+        // don't log stamp_string, in case of privacy!
+
+        @SuppressLint("InflateParams")
+        final View stamp_view = LayoutInflater.from(main_activity).inflate(R.layout.stamp_image_text, null);
+        final LinearLayout layout = stamp_view.findViewById(R.id.layout);
+        final TextView textview = stamp_view.findViewById(R.id.text_view);
+
+        textview.setVisibility(View.VISIBLE);
+        textview.setTextColor(color);
+        textview.setTextSize(TypedValue.COMPLEX_UNIT_PX, font_size_pixel);
+        textview.setText(stamp_string);
+        if( draw_shadowed == MyApplicationInterface.Shadow.SHADOW_OUTLINE ) {
+            //noinspection PointlessArithmeticExpression
+            float shadow_radius = (1.0f * scale + 0.5f); // convert pt to pixels
+            shadow_radius = Math.max(shadow_radius, 1.0f);
+            if( MyDebug.LOG )
+                Log.d(TAG, "shadow_radius: " + shadow_radius);
+            textview.setShadowLayer(shadow_radius, 0.0f, 0.0f, Color.BLACK);
+        }
+        else if( draw_shadowed == MyApplicationInterface.Shadow.SHADOW_BACKGROUND ) {
+            textview.setBackgroundColor(Color.argb(64, 0, 0, 0));
+        }
+        //textview.setBackgroundColor(Color.BLACK); // test
+        textview.setGravity(Gravity.END); // so text is right-aligned - important when there are multiple lines
 
-                    layout.measure(canvas.getWidth(), canvas.getHeight());
-                    layout.layout(0, 0, canvas.getWidth(), canvas.getHeight());
-                    canvas.translate(width - offset_x - textview.getWidth(), height - offset_y - textview.getHeight());
-                    layout.draw(canvas);
+        layout.measure(width, height);
+        layout.layout(0, 0, width, height);
+        // the text view is at the top left of the layout, and drawing is clipped to its bounds
+        int left = width - offset_x - textview.getWidth();
+        int top = height - offset_y - textview.getHeight();
+        return new StampView(layout, left, top, left + textview.getWidth(), top + textview.getHeight());
+    }
+
+    /** Returns the rotation in degrees (clockwise) specified by the Exif orientation tag in the
+     *  jpeg data, or -1 if the orientation isn't a rotation (i.e., it's flipped) or couldn't be
+     *  read.
+     */
+    private static int getExifRotation(byte [] data, int data_length) {
+        InputStream inputStream = null;
+        try {
+            inputStream = new ByteArrayInputStream(data, 0, data_length);
+            ExifInterface exif = new ExifInterface(inputStream);
+            int exif_orientation_s = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+            switch( exif_orientation_s ) {
+                case ExifInterface.ORIENTATION_UNDEFINED:
+                case ExifInterface.ORIENTATION_NORMAL:
+                    return 0;
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "unsupported exif orientation: " + exif_orientation_s);
+                    return -1;
+            }
+        }
+        catch(IOException | NoClassDefFoundError e) {
+            // see rotateForExif() for NoClassDefFoundError
+            Log.e(TAG, "failed to read exif orientation");
+            e.printStackTrace();
+            return -1;
+        }
+        finally {
+            if( inputStream != null ) {
+                try {
+                    inputStream.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
                 }
             }
         }
-        return bitmap;
+    }
+
+    /** Applies the photo stamp options by only decoding the region of the jpeg under the stamp,
+     *  and re-encoding the blocks of the jpeg that have changed (see JpegRegionEditor), rather than
+     *  decoding and re-encoding the whole image as stampImage() does. This is much faster and
+     *  needs far less memory for large photos, and means the rest of the image doesn't suffer any
+     *  further loss of quality.
+     * @param data The jpeg data.
+     * @return The new jpeg data (which is data if there is nothing to stamp), or null if the jpeg
+     *         isn't supported, in which case the caller should fall back to stampImage().
+     */
+    private byte [] stampImageRegion(final Request request, byte [] data) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "stampImageRegion");
+        long time_s = System.currentTimeMillis();
+        Bitmap region_bitmap = null;
+        try {
+            JpegRegionEditor editor = new JpegRegionEditor(data, data.length);
+            int rotation = getExifRotation(data, data.length);
+            if( rotation == -1 ) {
+                return null;
+            }
+            int jpeg_width = editor.getWidth();
+            int jpeg_height = editor.getHeight();
+            boolean swap = rotation == 90 || rotation == 270;
+            int width = swap ? jpeg_height : jpeg_width;
+            int height = swap ? jpeg_width : jpeg_height;
+            StampView stamp_view = createStampView(request, width, height);
+            if( stamp_view == null ) {
+                return data;
+            }
+
+            // maps from the coordinates of the rotated image to those of the jpeg
+            Matrix matrix = new Matrix();
+            matrix.setRotate(-rotation);
+            switch( rotation ) {
+                case 90:
+                    matrix.postTranslate(0, jpeg_height);
+                    break;
+                case 180:
+                    matrix.postTranslate(jpeg_width, jpeg_height);
+                    break;
+                case 270:
+                    matrix.postTranslate(jpeg_width, 0);
+                    break;
+            }
+            RectF stamp_rect = new RectF(stamp_view.left, stamp_view.top, stamp_view.right, stamp_view.bottom);
+            matrix.mapRect(stamp_rect);
+            int [] region = editor.getAlignedRegion((int)stamp_rect.left, (int)stamp_rect.top, (int)Math.ceil(stamp_rect.width()), (int)Math.ceil(stamp_rect.height()));
+            int region_x = region[0], region_y = region[1], region_width = region[2], region_height = region[3];
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "jpeg size: " + jpeg_width + " x " + jpeg_height);
+                Log.d(TAG, "rotation: " + rotation);
+                Log.d(TAG, "region: " + region_x + " , " + region_y + " size " + region_width + " x " + region_height);
+            }
+            if( region_width == 0 || region_height == 0 ) {
+                // stamp is outside of the image
+                return data;
+            }
+
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inMutable = true;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            region_bitmap = decoder.decodeRegion(new Rect(region_x, region_y, region_x + region_width, region_y + region_height), options);
+            decoder.recycle();
+            if( region_bitmap == null || region_bitmap.getWidth() != region_width || region_bitmap.getHeight() != region_height ) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "failed to decode region");
+                return null;
+            }
+            if( !region_bitmap.isMutable() ) {
+                Bitmap new_bitmap = region_bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                region_bitmap.recycle();
+                region_bitmap = new_bitmap;
+            }
+            int [] original_pixels = new int[region_width*region_height];
+            region_bitmap.getPixels(original_pixels, 0, region_width, 0, 0, region_width, region_height);
+
+            Canvas canvas = new Canvas(region_bitmap);
+            matrix.postTranslate(-region_x, -region_y);
+            canvas.concat(matrix);
+            stamp_view.draw(canvas);
+            int [] new_pixels = new int[region_width*region_height];
+            region_bitmap.getPixels(new_pixels, 0, region_width, 0, 0, region_width, region_height);
+
+            byte [] new_data = editor.replaceRegion(region_x, region_y, region_width, region_height, original_pixels, new_pixels);
+            if( new_data == null ) {
+                // stamp didn't change any pixels
+                new_data = data;
+            }
+            test_n_stamp_region++;
+            if( MyDebug.LOG )
+                Log.d(TAG, "stampImageRegion time: " + (System.currentTimeMillis() - time_s));
+            return new_data;
+        }
+        catch(JpegRegionEditorException e) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "can't stamp region of jpeg, error code: " + e.getCode());
+            return null;
+        }
+        catch(IOException | IllegalArgumentException e) {
+            Log.e(TAG, "failed to decode region of jpeg");
+            e.printStackTrace();
+            return null;
+        }
+        finally {
+            if( region_bitmap != null ) {
+                region_bitmap.recycle();
+            }
+        }
     }
 
     private static class PostProcessBitmapResult {
         final Bitmap bitmap;
+        final byte [] data; // the jpeg data to save if bitmap is null - may differ from the supplied data if the jpeg was modified
 
-        PostProcessBitmapResult(Bitmap bitmap) {
+        PostProcessBitmapResult(Bitmap bitmap, byte [] data) {
             this.bitmap = bitmap;
+            this.data = data;
         }
     }
 
@@ -2352,11 +3497,22 @@ public class ImageSaver extends Thread {
                 throw new IOException();
             }
         }
-        bitmap = stampImage(request, data, bitmap);
+        if( bitmap == null && request.image_format == Request.ImageFormat.STD && ( dategeo_stamp || text_stamp ) && !test_no_stamp_region ) {
+            // try to stamp without decoding the whole image
+            byte [] stamped_data = stampImageRegion(request, data);
+            if( stamped_data != null ) {
+                data = stamped_data;
+                dategeo_stamp = false;
+                text_stamp = false;
+            }
+        }
+        if( dategeo_stamp || text_stamp ) {
+            bitmap = stampImage(request, data, bitmap);
+        }
         if( MyDebug.LOG ) {
             Log.d(TAG, "Save single image performance: time after photostamp: " + (System.currentTimeMillis() - time_s));
         }
-        return new PostProcessBitmapResult(bitmap);
+        return new PostProcessBitmapResult(bitmap, data);
     }
 
     /** May be run in saver thread or picture callback thread (depending on whether running in background).
@@ -2372,8 +3528,16 @@ public class ImageSaver extends Thread {
      * @param ignore_exif_orientation - If bitmap is non-null, then set this to true if the bitmap has already
      *                                  been rotated to account for Exif orientation tags in the data.
      */
-    @SuppressLint("SimpleDateFormat")
     private boolean saveSingleImageNow(final Request request, byte [] data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation) {
+        return saveSingleImageNow(request, data, data != null ? data.length : 0, bitmap, filename_suffix, update_thumbnail, share_image, ignore_raw_only, ignore_exif_orientation);
+    }
+
+    /** As saveSingleImageNow() above, but only the first data_length bytes of data hold the JPEG (as
+     *  for a pooled buffer). If data_length is less than data.length, then the request must not need
+     *  any processing of the data, see canSaveJpegBuffer().
+     */
+    @SuppressLint("SimpleDateFormat")
+    private boolean saveSingleImageNow(final Request request, byte [] data, int data_length, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation) {
         if( MyDebug.LOG )
             Log.d(TAG, "saveSingleImageNow");
 
@@ -2425,8 +3589,13 @@ public class ImageSaver extends Thread {
             if( !raw_only ) {
                 PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap, ignore_exif_orientation);
                 bitmap = postProcessBitmapResult.bitmap;
+                if( postProcessBitmapResult.data != data ) {
+                    data = postProcessBitmapResult.data;
+                    data_length = data.length;
+                }
             }
 
+            waitForFilenameTurn(request);
             if( raw_only ) {
                 // don't save the JPEG
                 success = true;
@@ -2559,6 +3728,11 @@ public class ImageSaver extends Thread {
                     outputStream = new FileOutputStream(picFile);
                 else
                     outputStream = main_activity.getContentResolver().openOutputStream(saveUri);
+                if( request.jpeg_images.size() <= 1 ) {
+                    // the file now exists, so the next request can choose its filename whilst we compress and write the image
+                    // (for requests with multiple images, this is done once all of the images are saved)
+                    finishFilenameTurn(request);
+                }
                 try {
                     if( bitmap != null ) {
                         if( MyDebug.LOG )
@@ -2578,7 +3752,7 @@ public class ImageSaver extends Thread {
                         bitmap.compress(compress_format, request.image_quality, outputStream);
                     }
                     else {
-                        outputStream.write(data);
+                        outputStream.write(data, 0, data_length);
                     }
                 }
                 finally {
@@ -2674,6 +3848,7 @@ public class ImageSaver extends Thread {
                                 // we also want to save the uri - we can use the media uri directly, rather than having to scan it
                                 storageUtils.setLastMediaScanned(saveUri, false);
                             }
+                            storageUtils.addLatestMedia(saveUri, true, false);
                         }
                     }
                     else {
@@ -2740,7 +3915,7 @@ public class ImageSaver extends Thread {
                     options.inPurgeable = true;
                 }
                 options.inSampleSize = sample_size;
-                thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                thumbnail = BitmapFactory.decodeByteArray(data, 0, data_length, options);
                 if( MyDebug.LOG ) {
                     Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
                     Log.d(TAG, "thumbnail height: " + thumbnail.getHeight());
@@ -2784,6 +3959,12 @@ public class ImageSaver extends Thread {
                     Log.e(TAG, "failed to create thumbnail bitmap");
             }
             else {
+                if( !request.image_capture_intent ) {
+                    // cache the thumbnail, so MainActivity.updateGalleryIcon() won't need to decode it from the saved image
+                    // n.b., must be done before passing to updateThumbnail(), as the thumbnail may be recycled on the UI thread
+                    String filename = picFile != null ? picFile.getName() : saveUri != null ? storageUtils.getFileName(saveUri) : null;
+                    applicationInterface.getThumbnailCache().putSavedThumbnail(filename, thumbnail, request.sample_factor == 1);
+                }
                 final Bitmap thumbnail_f = thumbnail;
                 main_activity.runOnUiThread(new Runnable() {
                     public void run() {
@@ -3182,6 +4363,7 @@ public class ImageSaver extends Thread {
 
             String suffix = "_";
             String filename_suffix = (request.force_suffix) ? suffix + (request.suffix_offset) : "";
+            waitForFilenameTurn(request);
             if( storageUtils.isUsingSAF() ) {
                 saveUri = storageUtils.createOutputMediaFileSAF(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, "dng", request.current_date);
                 if( MyDebug.LOG )
@@ -3239,6 +4421,8 @@ public class ImageSaver extends Thread {
             else {
                 output = main_activity.getContentResolver().openOutputStream(saveUri);
             }
+            // the file now exists, so the next request can choose its filename whilst we write the image
+            finishFilenameTurn(request);
             raw_image.writeImage(output);
             raw_image.close();
             raw_image = null;
@@ -3291,6 +4475,7 @@ public class ImageSaver extends Thread {
                     // we also want to save the uri - we can use the media uri directly, rather than having to scan it
                     storageUtils.setLastMediaScanned(saveUri, true);
                 }
+                storageUtils.addLatestMedia(saveUri, true, false);
             }
             else {
                 storageUtils.broadcastUri(saveUri, true, false, raw_only, false);
@@ -0,0 +1,275 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Admission policy for the ImageSaver queue. Requests are admitted according to the number of
+ *  heap bytes they retain (the JPEG data), against a budget derived from the maximum heap size.
+ *  RAW images are held in native memory by the camera's ImageReader, so instead are limited by
+ *  count, to the number of images the ImageReader is created with (see getMaxRawImages()).
+ *  Bursts can be simulated with simulate(). It isn't thread safe - ImageSaver synchronizes access
+ *  to it.
+ */
+public class ImageSaverQueuePolicy {
+    public static final long MB = 1024*1024;
+
+    // estimates for the heap size of a photo, before we've seen any real requests (RAW images don't
+    // normally retain any heap memory, see RawImage.getHeapByteCount())
+    static final long default_jpeg_bytes_c = 5*MB;
+    static final long default_raw_bytes_c = 0;
+    // memory that must be left for post-processing (e.g., HDR) and the rest of the application
+    private static final long min_reserve_c = 80*MB;
+    // we always allow at least this much to be queued, even on low memory devices
+    private static final long min_budget_c = 16*MB;
+
+    private final long budget;
+    private long queued_bytes;
+    private long peak_queued_bytes;
+    private int n_requests;
+    private final int max_raw_images;
+    private int n_raw_images;
+    private long estimated_jpeg_bytes = default_jpeg_bytes_c;
+    private long estimated_raw_bytes = default_raw_bytes_c;
+    private boolean have_jpeg_estimate;
+    private boolean have_raw_estimate;
+
+    /** Computes the budget for the bytes retained by queued requests.
+     * @param max_memory The maximum heap size, as returned by Runtime.maxMemory() (which will be the
+     *                   large heap size, as we set android:largeHeap).
+     */
+    public static long computeBudget(long max_memory) {
+        // reserve 5/16ths of the heap for post-processing, e.g., 160MB for a 512MB heap
+        long reserve = Math.max(max_memory*5/16, min_reserve_c);
+        return Math.max(max_memory - reserve, min_budget_c);
+    }
+
+    /** Computes the maximum number of RAW images that may be queued at once. This is the same as
+     *  when the queue had a fixed number of slots for each memory class, with a RAW image costing 6
+     *  slots.
+     * @param large_heap_memory The large heap memory class, in MB.
+     */
+    public static int computeMaxRawImages(int large_heap_memory) {
+        int n_slots; // the old queue capacity, plus 1 for the image being saved
+        if( large_heap_memory >= 512 )
+            n_slots = 35;
+        else if( large_heap_memory >= 256 )
+            n_slots = 13;
+        else if( large_heap_memory >= 128 )
+            n_slots = 9;
+        else
+            n_slots = 7;
+        return n_slots/6;
+    }
+
+    /**
+     * @param budget         The budget for the heap bytes retained by queued requests, see
+     *                       computeBudget().
+     * @param max_raw_images The maximum number of RAW images that may be queued at once, see
+     *                       computeMaxRawImages().
+     */
+    public ImageSaverQueuePolicy(long budget, int max_raw_images) {
+        this.budget = budget;
+        this.max_raw_images = max_raw_images;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /** Returns the number of bytes retained by requests that have been admitted, but not yet
+     *  released.
+     */
+    public long getQueuedBytes() {
+        return queued_bytes;
+    }
+
+    public long getPeakQueuedBytes() {
+        return peak_queued_bytes;
+    }
+
+    public int getNRequests() {
+        return n_requests;
+    }
+
+    /** Returns the maximum number of RAW images that may be queued at once.
+     */
+    public int getMaxRawImages() {
+        return max_raw_images;
+    }
+
+    /** Returns the estimated number of bytes that a new photo will retain, based on the sizes of
+     *  previously admitted requests.
+     * @param n_raw   The number of RAW images that will be taken.
+     * @param n_jpegs The number of JPEGs that will be taken.
+     */
+    public long estimatePhotoBytes(int n_raw, int n_jpegs) {
+        return n_raw * estimated_raw_bytes + n_jpegs * estimated_jpeg_bytes;
+    }
+
+    /** Returns the maximum number of requests of the supplied size that can be queued at once.
+     */
+    public int getMaxRequests(long request_bytes) {
+        return (int)Math.max(1, budget / Math.max(request_bytes, 1));
+    }
+
+    /** Whether admitting a request of the supplied size would exceed the budget, or the maximum
+     *  number of RAW images. A request is always allowed if nothing is queued, so that an image
+     *  larger than the budget can still be saved.
+     * @param request_bytes The total bytes retained by the request.
+     * @param n_raw         The number of RAW images in the request.
+     */
+    public boolean wouldBlock(long request_bytes, int n_raw) {
+        if( n_requests == 0 )
+            return false;
+        if( n_raw > 0 && n_raw_images + n_raw > max_raw_images )
+            return true;
+        return queued_bytes + request_bytes > budget;
+    }
+
+    /** Records that a request has been admitted to the queue. This should be matched by a call to
+     *  release() once the request has been processed.
+     * @param request_bytes The total bytes retained by the request.
+     * @param n_raw         The number of RAW images in the request.
+     * @param n_jpegs       The number of JPEG images in the request.
+     */
+    public void admit(long request_bytes, int n_raw, int n_jpegs) {
+        queued_bytes += request_bytes;
+        n_requests++;
+        n_raw_images += n_raw;
+        if( queued_bytes > peak_queued_bytes )
+            peak_queued_bytes = queued_bytes;
+
+        if( n_raw > 0 && n_jpegs == 0 ) {
+            estimated_raw_bytes = updateEstimate(estimated_raw_bytes, request_bytes/n_raw, have_raw_estimate);
+            have_raw_estimate = true;
+        }
+        else if( n_jpegs > 0 && n_raw == 0 ) {
+            estimated_jpeg_bytes = updateEstimate(estimated_jpeg_bytes, request_bytes/n_jpegs, have_jpeg_estimate);
+            have_jpeg_estimate = true;
+        }
+    }
+
+    /** Records that a request previously passed to admit() has been processed.
+     */
+    public void release(long request_bytes, int n_raw) {
+        queued_bytes -= request_bytes;
+        n_requests--;
+        n_raw_images -= n_raw;
+        if( queued_bytes < 0 || n_requests < 0 || n_raw_images < 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("released more than admitted");
+        }
+    }
+
+    private static long updateEstimate(long estimate, long value, boolean have_estimate) {
+        if( !have_estimate ) {
+            // replace the default with the first real value
+            return value;
+        }
+        // moving average, so we adapt if the resolution or quality changes
+        return (3*estimate + value)/4;
+    }
+
+    /** A request for simulate().
+     */
+    public static class SimulatedRequest {
+        final long capture_time_ms;
+        final long bytes;
+        final int n_raw;
+        final int n_jpegs;
+        final long processing_time_ms;
+
+        /**
+         * @param capture_time_ms    The time the photo would be taken if the queue wasn't blocked.
+         * @param processing_time_ms The time taken to save the request, once a worker is free.
+         */
+        public SimulatedRequest(long capture_time_ms, long bytes, int n_raw, int n_jpegs, long processing_time_ms) {
+            this.capture_time_ms = capture_time_ms;
+            this.bytes = bytes;
+            this.n_raw = n_raw;
+            this.n_jpegs = n_jpegs;
+            this.processing_time_ms = processing_time_ms;
+        }
+    }
+
+    public static class SimulationResult {
+        public final long [] admit_times_ms; // the time each request was admitted
+        public final int n_stalled; // the number of requests that had to wait to be admitted
+        public final long total_stall_ms; // the total time that capture was stalled
+        public final long peak_queued_bytes;
+        public final long finish_time_ms; // the time the last request finished
+
+        SimulationResult(long [] admit_times_ms, int n_stalled, long total_stall_ms, long peak_queued_bytes, long finish_time_ms) {
+            this.admit_times_ms = admit_times_ms;
+            this.n_stalled = n_stalled;
+            this.total_stall_ms = total_stall_ms;
+            this.peak_queued_bytes = peak_queued_bytes;
+            this.finish_time_ms = finish_time_ms;
+        }
+    }
+
+    /** Simulates a burst of requests being admitted with this policy, and processed in order by
+     *  n_workers workers (as ImageSaver does for NORMAL requests). Capture is stalled whenever the
+     *  policy would block, until enough earlier requests have finished.
+     * @param requests The requests, in order of capture time.
+     */
+    public static SimulationResult simulate(long budget, int max_raw_images, List<SimulatedRequest> requests, int n_workers) {
+        ImageSaverQueuePolicy policy = new ImageSaverQueuePolicy(budget, max_raw_images);
+        long [] worker_free_ms = new long[Math.max(n_workers, 1)];
+        long [] admit_times_ms = new long[requests.size()];
+        List<long []> in_flight = new ArrayList<>(); // finish time, bytes and number of RAW images
+        int n_stalled = 0;
+        long total_stall_ms = 0;
+        long time_ms = 0;
+        long last_start_ms = 0;
+        long finish_time_ms = 0;
+
+        for(int i=0;i<requests.size();i++) {
+            SimulatedRequest request = requests.get(i);
+            // photos are taken in turn, so can't be taken before the previous one was admitted
+            long desired_ms = Math.max(request.capture_time_ms, time_ms);
+            time_ms = desired_ms;
+            releaseFinished(policy, in_flight, time_ms);
+            while( policy.wouldBlock(request.bytes, request.n_raw) ) {
+                // wait for the next request to finish
+                long next_finish_ms = Long.MAX_VALUE;
+                for(long [] entry : in_flight) {
+                    next_finish_ms = Math.min(next_finish_ms, entry[0]);
+                }
+                time_ms = Math.max(time_ms, next_finish_ms);
+                releaseFinished(policy, in_flight, time_ms);
+            }
+            if( time_ms > desired_ms ) {
+                n_stalled++;
+                total_stall_ms += time_ms - desired_ms;
+            }
+            admit_times_ms[i] = time_ms;
+            policy.admit(request.bytes, request.n_raw, request.n_jpegs);
+
+            // requests are started in order, on the first free worker
+            int worker = 0;
+            for(int j=1;j<worker_free_ms.length;j++) {
+                if( worker_free_ms[j] < worker_free_ms[worker] )
+                    worker = j;
+            }
+            long start_ms = Math.max(time_ms, Math.max(worker_free_ms[worker], last_start_ms));
+            long end_ms = start_ms + request.processing_time_ms;
+            worker_free_ms[worker] = end_ms;
+            last_start_ms = start_ms;
+            finish_time_ms = Math.max(finish_time_ms, end_ms);
+            in_flight.add(new long[]{end_ms, request.bytes, request.n_raw});
+        }
+
+        return new SimulationResult(admit_times_ms, n_stalled, total_stall_ms, policy.getPeakQueuedBytes(), finish_time_ms);
+    }
+
+    private static void releaseFinished(ImageSaverQueuePolicy policy, List<long []> in_flight, long time_ms) {
+        for(int i=in_flight.size()-1;i>=0;i--) {
+            long [] entry = in_flight.get(i);
+            if( entry[0] <= time_ms ) {
+                policy.release(entry[1], (int)entry[2]);
+                in_flight.remove(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** The histograms of an image that HDRProcessor uses to choose its parameters, computed together
+ *  in a single sweep over the pixels rather than a separate pass for each:
+ *  - value (maximum of the RGB components), as histogram_compute_by_value in histogram_compute.rs,
+ *    used for the median and maximum brightness.
+ *  - intensity (mean of the RGB components), as histogram_compute_by_intensity.
+ *  - luminance (Rec. 601 weights), as histogram_compute_by_luminance.
+ *  - each of the red, green and blue components.
+ *  - optionally, the values restricted to a region of the image, e.g., the region used for the
+ *    median threshold bitmaps of auto-alignment.
+ *  Pixels are supplied as strips of rows with accumulate(), so the whole image needn't be held as
+ *  an int[] at once. Each strip is split into bands of rows that are processed on a ForkJoinPool,
+ *  with each band counting into its own histograms that are then added together.
+ */
+public class ImageStatistics {
+    private static final int n_histograms_c = 7; // value, intensity, luminance, red, green, blue, region value
+    private static final int value_c = 0;
+    private static final int intensity_c = 1;
+    private static final int luminance_c = 2;
+    private static final int red_c = 3;
+    private static final int green_c = 4;
+    private static final int blue_c = 5;
+    private static final int region_value_c = 6;
+
+    private final int width;
+    private final int height;
+    private final int region_x;
+    private final int region_y;
+    private final int region_width;
+    private final int region_height;
+    private final int [] histograms = new int[n_histograms_c*256];
+
+    public ImageStatistics(int width, int height) {
+        this(width, height, 0, 0, width, height);
+    }
+
+    /**
+     * @param region_x      The region to also compute the histogram of values for.
+     * @param region_y      The region to also compute the histogram of values for.
+     * @param region_width  The region to also compute the histogram of values for.
+     * @param region_height The region to also compute the histogram of values for.
+     */
+    public ImageStatistics(int width, int height, int region_x, int region_y, int region_width, int region_height) {
+        if( region_x < 0 || region_y < 0 || region_width < 0 || region_height < 0 || region_x + region_width > width || region_y + region_height > height ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid region: " + region_x + " , " + region_y + " , " + region_width + " x " + region_height + " for image " + width + " x " + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.region_x = region_x;
+        this.region_y = region_y;
+        this.region_width = region_width;
+        this.region_height = region_height;
+    }
+
+    /** Computes the statistics for a whole image.
+     * @param pixels The ARGB pixels.
+     */
+    public static ImageStatistics compute(ForkJoinPool pool, int tile_height, int [] pixels, int width, int height) {
+        ImageStatistics statistics = new ImageStatistics(width, height);
+        statistics.accumulate(pool, tile_height, pixels, 0, height);
+        return statistics;
+    }
+
+    /** Adds a strip of rows to the statistics.
+     * @param pixels  The ARGB pixels of the rows [y_start, y_start+n_rows), with a stride of the
+     *                image width.
+     */
+    public void accumulate(ForkJoinPool pool, int tile_height, final int [] pixels, final int y_start, int n_rows) {
+        ParallelRows.run(pool, tile_height, n_rows, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int row_start, int row_stop) {
+                // accumulate locally, to avoid contention between tasks
+                int [] local_histograms = new int[n_histograms_c*256];
+                for(int row=row_start;row<row_stop;row++) {
+                    int y = y_start + row;
+                    boolean in_region_y = y >= region_y && y < region_y + region_height;
+                    int indx = row*width;
+                    for(int x=0;x<width;x++) {
+                        int color = pixels[indx+x];
+                        int r = (color >> 16) & 0xFF;
+                        int g = (color >> 8) & 0xFF;
+                        int b = color & 0xFF;
+                        int value = Math.max(r, Math.max(g, b));
+                        local_histograms[value_c*256 + value]++;
+                        local_histograms[intensity_c*256 + intensity(r, g, b)]++;
+                        local_histograms[luminance_c*256 + luminance(r, g, b)]++;
+                        local_histograms[red_c*256 + r]++;
+                        local_histograms[green_c*256 + g]++;
+                        local_histograms[blue_c*256 + b]++;
+                        if( in_region_y && x >= region_x && x < region_x + region_width ) {
+                            local_histograms[region_value_c*256 + value]++;
+                        }
+                    }
+                }
+                synchronized( histograms ) {
+                    for(int k=0;k<histograms.length;k++)
+                        histograms[k] += local_histograms[k];
+                }
+            }
+        });
+    }
+
+    /** The mean of the RGB components, rounded to nearest. This is exact, as the fractional part
+     *  of the sum divided by 3 can never be 0.5.
+     */
+    static int intensity(int r, int g, int b) {
+        return (r + g + b + 1)/3;
+    }
+
+    /** The luminance using Rec. 601 weights, rounded to nearest.
+     */
+    static int luminance(int r, int g, int b) {
+        return Math.min((int)(0.299f*r + 0.587f*g + 0.114f*b + 0.5f), 255);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Whether the region histogram was computed for the supplied region.
+     */
+    public boolean hasRegion(int region_x, int region_y, int region_width, int region_height) {
+        return this.region_x == region_x && this.region_y == region_y && this.region_width == region_width && this.region_height == region_height;
+    }
+
+    private int [] getHistogram(int type) {
+        int [] histogram = new int[256];
+        System.arraycopy(histograms, type*256, histogram, 0, 256);
+        return histogram;
+    }
+
+    /** Returns a copy of the histogram of values (maximum of the RGB components), as
+     *  HDRProcessor.computeHistogram() with avg==false.
+     */
+    public int [] getValueHistogram() {
+        return getHistogram(value_c);
+    }
+
+    /** Returns a copy of the histogram of intensities (mean of the RGB components), as
+     *  HDRProcessor.computeHistogram() with avg==true.
+     */
+    public int [] getIntensityHistogram() {
+        return getHistogram(intensity_c);
+    }
+
+    /** Returns a copy of the histogram of luminance.
+     */
+    public int [] getLuminanceHistogram() {
+        return getHistogram(luminance_c);
+    }
+
+    public int [] getRedHistogram() {
+        return getHistogram(red_c);
+    }
+
+    public int [] getGreenHistogram() {
+        return getHistogram(green_c);
+    }
+
+    public int [] getBlueHistogram() {
+        return getHistogram(blue_c);
+    }
+
+    /** Returns a copy of the histogram of values within the region passed to the constructor.
+     */
+    public int [] getRegionValueHistogram() {
+        return getHistogram(region_value_c);
+    }
+
+    /** Returns the value at a percentile of a histogram: the lowest value such that the count of
+     *  that value and below is at least fraction of the total. A fraction of 0.5 gives the same
+     *  median as HDRProcessor.getHistogramInfo().
+     */
+    public static int getPercentile(int [] histogram, float fraction) {
+        int total = 0;
+        for(int count : histogram)
+            total += count;
+        int threshold = (int)(total*fraction);
+        int count = 0;
+        for(int i=0;i<histogram.length;i++) {
+            count += histogram[i];
+            if( count >= threshold ) {
+                return i;
+            }
+        }
+        return histogram.length-1;
+    }
+}
@@ -0,0 +1,247 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Pure Java implementation of the DRO (single image "HDR") tone mapping done by
+ *  HDRProcessor.processSingleImage(): the gain/gamma brightening of dro_brighten in
+ *  avg_brighten.rs, followed by the local contrast enhancement of histogram_adjust.rs.
+ *  The RenderScript version needs four passes over the image (histogram, brighten, per-tile
+ *  histograms, equalisation). Since the brightening maps each pixel's value (maximum of the RGB
+ *  components) to a new value that only depends on the old one, the histograms of the brightened
+ *  image can instead be computed by remapping the histograms of the input image. So here we only
+ *  need two passes:
+ *  1. computeTileHistograms() computes the per-tile histograms of the input in parallel (their
+ *  sum is the histogram used to choose the brighten factors).
+ *  2. process() remaps the tile histograms through the brighten function, computes a lookup table
+ *  for each tile, and then brightens and equalises each pixel in a single fused parallel pass.
+ *  The results are identical to brighten() followed by JavaHDRProcessor.adjustHistogram().
+ *  Images are passed as packed ARGB int[] arrays (as returned by Bitmap.getPixels()).
+ */
+public class JavaDROProcessor {
+    private final ForkJoinPool pool;
+    private final int tile_height;
+    private final JavaHDRProcessor hdr_processor;
+
+    private long last_time_ns; // time taken by the last call to computeTileHistograms() or process(), for performance measurement
+
+    public JavaDROProcessor() {
+        this(ParallelRows.getDefaultPool(), 32);
+    }
+
+    /**
+     * @param pool        The pool to run the kernels on.
+     * @param tile_height The number of rows each task processes before no longer being split.
+     */
+    public JavaDROProcessor(ForkJoinPool pool, int tile_height) {
+        this.pool = pool;
+        this.tile_height = Math.max(tile_height, 1);
+        this.hdr_processor = new JavaHDRProcessor(pool, tile_height);
+    }
+
+    public long getLastTimeNs() {
+        return last_time_ns;
+    }
+
+    /** The parameters for brightening, equivalent to setBrightenParameters() in avg_brighten.rs.
+     *  Since the scale applied to a pixel only depends on its value, this is stored as a lookup
+     *  table.
+     */
+    public static class BrightenParameters {
+        final float [] scale = new float[256]; // the factor to multiply the RGB components by, for each value
+        final int [] new_value = new int[256]; // the brightened value, for each value
+
+        /**
+         * @param gain  As HDRProcessor.BrightenFactors.
+         * @param gamma As HDRProcessor.BrightenFactors.
+         * @param low_x As HDRProcessor.BrightenFactors.
+         * @param mid_x As HDRProcessor.BrightenFactors.
+         * @param max_x The maximum value in the input image.
+         */
+        public BrightenParameters(float gain, float gamma, float low_x, float mid_x, float max_x) {
+            float gain_A = 1.0f;
+            float gain_B = 0.0f;
+            if( mid_x > low_x ) {
+                // see avg_brighten.rs for the derivation
+                gain_A = (gain * mid_x - low_x) / (mid_x - low_x);
+                gain_B = low_x*mid_x*(1.0f-gain)/ (mid_x - low_x);
+            }
+            for(int value=0;value<256;value++) {
+                if( value <= low_x ) {
+                    // don't scale
+                    scale[value] = 1.0f;
+                }
+                else if( value <= mid_x ) {
+                    scale[value] = gain_A + gain_B/value;
+                }
+                else {
+                    float gamma_value = (float)Math.pow(value/max_x, gamma) * 255.0f;
+                    scale[value] = gamma_value / value;
+                }
+                new_value[value] = scaleComponent(value, scale[value]);
+            }
+        }
+    }
+
+    private static int scaleComponent(int component, float scale) {
+        // need to add +0.5 so that we round to nearest - see avg_brighten.rs
+        return Math.min(255, (int)(component * scale + 0.5f));
+    }
+
+    /** Computes the histograms of values for each of n_tiles x n_tiles tiles, in parallel.
+     * @return Array of size n_tiles*n_tiles*256, in the layout used by
+     *         JavaHDRProcessor.computeCumulativeHistograms().
+     */
+    public int [] computeTileHistograms(int [] input, int width, int height, int n_tiles) {
+        long time_s = System.nanoTime();
+        int [] histograms = new int[n_tiles*n_tiles*256];
+        hdr_processor.accumulateTileHistograms(input, width, height, 0, height, n_tiles, histograms);
+        last_time_ns = System.nanoTime() - time_s;
+        return histograms;
+    }
+
+    /** Sums the per-tile histograms from computeTileHistograms() to give the histogram of values
+     *  for the whole image, as HDRProcessor.computeHistogram() with avg==false.
+     */
+    public static int [] sumTileHistograms(int [] histograms) {
+        int [] histogram = new int[256];
+        for(int i=0;i<histograms.length;i++) {
+            histogram[i % 256] += histograms[i];
+        }
+        return histogram;
+    }
+
+    /** Applies just the brightening, equivalent to dro_brighten in avg_brighten.rs.
+     * @param output Array to store the output, may be the same as input.
+     */
+    public void brighten(final int [] input, final int [] output, final int width, final int height, final BrightenParameters params) {
+        ParallelRows.run(pool, tile_height, height, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                for(int indx=y_start*width;indx<y_stop*width;indx++) {
+                    int in = input[indx];
+                    float scale = params.scale[JavaHDRProcessor.pixelValue(in)];
+                    int r = scaleComponent((in >> 16) & 0xFF, scale);
+                    int g = scaleComponent((in >> 8) & 0xFF, scale);
+                    int b = scaleComponent(in & 0xFF, scale);
+                    output[indx] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+            }
+        });
+    }
+
+    /** Brightens the image and applies local contrast enhancement in a single pass, equivalent to
+     *  brighten() followed by JavaHDRProcessor.adjustHistogram().
+     * @param input      The input ARGB pixels.
+     * @param output     Array to store the output, may be the same as input.
+     * @param histograms The per-tile histograms of input from computeTileHistograms(), computed
+     *                   with the same n_tiles. This array is not modified.
+     * @param params     The brighten parameters, or null to not brighten.
+     */
+    public void process(final int [] input, final int [] output, final int width, final int height, int [] histograms, BrightenParameters params, final float hdr_alpha, final int n_tiles, boolean ce_preserve_blacks) {
+        long time_s = System.nanoTime();
+        final int [] new_value = new int[256];
+        final float [] scale = new float[256];
+        if( params != null ) {
+            System.arraycopy(params.new_value, 0, new_value, 0, 256);
+            System.arraycopy(params.scale, 0, scale, 0, 256);
+        }
+        else {
+            for(int value=0;value<256;value++) {
+                new_value[value] = value;
+                scale[value] = 1.0f;
+            }
+        }
+
+        // the histograms of the brightened image
+        int [] brightened_histograms = new int[histograms.length];
+        for(int i=0;i<histograms.length;i+=256) {
+            for(int value=0;value<256;value++) {
+                brightened_histograms[i + new_value[value]] += histograms[i + value];
+            }
+        }
+        int [] c_histogram = JavaHDRProcessor.computeCumulativeHistograms(brightened_histograms, width, height, n_tiles, ce_preserve_blacks);
+
+        // for each tile, the equalised value indexed by the input (unbrightened) value
+        final int [] equal_values = new int[c_histogram.length];
+        for(int i=0;i<c_histogram.length;i+=256) {
+            for(int value=0;value<256;value++) {
+                equal_values[i + value] = JavaHDRProcessor.getEqualValue(c_histogram, i, new_value[value]);
+            }
+        }
+
+        // the tiles and interpolation weights only depend on the column, so compute them once
+        final int [] tile_x0 = new int[width];
+        final int [] tile_x1 = new int[width];
+        final float [] tile_alpha = new float[width];
+        for(int x=0;x<width;x++) {
+            float tx = ((float)x*n_tiles)/(float)width - 0.5f;
+            setInterpolation(tx, n_tiles, tile_x0, tile_x1, tile_alpha, x);
+        }
+
+        ParallelRows.run(pool, tile_height, height, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                int [] tile_y0 = new int[1];
+                int [] tile_y1 = new int[1];
+                float [] tile_beta = new float[1];
+                for(int y=y_start;y<y_stop;y++) {
+                    float ty = ((float)y*n_tiles)/(float)height - 0.5f;
+                    setInterpolation(ty, n_tiles, tile_y0, tile_y1, tile_beta, 0);
+                    final float beta = tile_beta[0];
+                    final int row = y*width;
+                    for(int x=0;x<width;x++) {
+                        int in = input[row+x];
+                        int value = JavaHDRProcessor.pixelValue(in);
+                        int brightened_value = new_value[value];
+                        if( brightened_value == 0 ) {
+                            // black pixels stay black (avoids division by zero)
+                            output[row+x] = 0xFF000000;
+                            continue;
+                        }
+
+                        // same interpolation (and rounding) as JavaHDRProcessor.applyHistogramRows()
+                        int x0 = tile_x0[x]*n_tiles, x1 = tile_x1[x]*n_tiles;
+                        float alpha = tile_alpha[x];
+                        int equal_value00 = equal_values[256*(x0+tile_y0[0]) + value];
+                        int equal_value10 = equal_values[256*(x1+tile_y0[0]) + value];
+                        int equal_value01 = equal_values[256*(x0+tile_y1[0]) + value];
+                        int equal_value11 = equal_values[256*(x1+tile_y1[0]) + value];
+                        float equal_value0 = (1.0f-alpha)*equal_value00 + alpha*equal_value10;
+                        float equal_value1 = (1.0f-alpha)*equal_value01 + alpha*equal_value11;
+                        int equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+
+                        int adjusted_value = (int)( (1.0f-hdr_alpha) * brightened_value + hdr_alpha * equal_value );
+                        float adjust_scale = ((float)adjusted_value) / (float)brightened_value;
+
+                        float brighten_scale = scale[value];
+                        int r = scaleComponent(scaleComponent((in >> 16) & 0xFF, brighten_scale), adjust_scale);
+                        int g = scaleComponent(scaleComponent((in >> 8) & 0xFF, brighten_scale), adjust_scale);
+                        int b = scaleComponent(scaleComponent(in & 0xFF, brighten_scale), adjust_scale);
+                        output[row+x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                    }
+                }
+            }
+        });
+        last_time_ns = System.nanoTime() - time_s;
+    }
+
+    /** Computes the pair of tiles to interpolate between for a tile coordinate t, and the weight
+     *  of the second. At the borders of the image, where there's only one tile, both tiles are
+     *  the same and the weight is 0, which gives the same result as the separate cases in
+     *  JavaHDRProcessor.applyHistogramRows().
+     */
+    private static void setInterpolation(float t, int n_tiles, int [] tile0, int [] tile1, float [] weight, int indx) {
+        int i = (int)Math.floor(t);
+        if( i >= 0 && i < n_tiles-1 ) {
+            tile0[indx] = i;
+            tile1[indx] = i+1;
+            weight[indx] = t - i;
+        }
+        else {
+            int this_i = (i<0) ? i+1 : i;
+            tile0[indx] = this_i;
+            tile1[indx] = this_i;
+            weight[indx] = 0.0f;
+        }
+    }
+}
@@ -0,0 +1,704 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Pure Java implementation of the per-pixel HDR kernels used by HDRProcessor (process_hdr.rs and
+ *  histogram_adjust.rs). Images are passed as packed ARGB int[] arrays (as returned by
+ *  Bitmap.getPixels()), and the work is split into bands of rows that are processed on a
+ *  ForkJoinPool.
+ *  This class deliberately doesn't depend on any Android classes, so that it can be run and
+ *  benchmarked on a desktop JVM.
+ */
+public class JavaHDRProcessor {
+    // should match the values in process_hdr.rs
+    public static final int tonemap_algorithm_clamp_c = 0;
+    public static final int tonemap_algorithm_exponential_c = 1;
+    public static final int tonemap_algorithm_reinhard_c = 2;
+    public static final int tonemap_algorithm_filmic_c = 3;
+    public static final int tonemap_algorithm_aces_c = 4;
+
+    public static final float exposure_c = 1.2f; // for exponential tonemapping
+    public static final float filmic_exposure_bias_c = 2.0f / 255.0f; // for filmic tonemapping
+
+    private static final int max_bitmaps_c = 7;
+    private static final float safe_range_c = 96.0f;
+    private static final float wiener_C_lo = 2000.0f;
+    private static final float wiener_C_hi = 8000.0f;
+
+    private final ForkJoinPool pool;
+    private final int tile_height;
+
+    private long last_time_ns; // time taken by the last call to processHDR(), for performance measurement
+
+    public JavaHDRProcessor() {
+        this(ParallelRows.getDefaultPool(), 32);
+    }
+
+    /**
+     * @param pool        The pool to run the kernels on.
+     * @param tile_height The number of rows each task processes before no longer being split.
+     */
+    public JavaHDRProcessor(ForkJoinPool pool, int tile_height) {
+        this.pool = pool;
+        this.tile_height = Math.max(tile_height, 1);
+    }
+
+    /** Runs the kernel over the rows [0, height), in parallel, and waits for it to complete.
+     */
+    public void runRows(int height, ParallelRows.RowKernel kernel) {
+        ParallelRows.run(pool, tile_height, height, kernel);
+    }
+
+    public long getLastTimeNs() {
+        return last_time_ns;
+    }
+
+    /** Returns the throughput in megapixels per second, given a number of pixels and the time
+     *  taken to process them.
+     */
+    public static double megapixelsPerSecond(long n_pixels, long time_ns) {
+        if( time_ns <= 0 )
+            return 0.0;
+        return (n_pixels / 1.0e6) / (time_ns / 1.0e9);
+    }
+
+    /** The parameters for the HDR merge, equivalent to the globals set on ScriptC_process_hdr.
+     */
+    public static class MergeParameters {
+        final int n_bitmaps;
+        final int base_bitmap;
+        final float [] parameter_A;
+        final float [] parameter_B;
+        final int [] offsets_x;
+        final int [] offsets_y;
+        int tonemap_algorithm = tonemap_algorithm_reinhard_c;
+        float tonemap_scale = 1.0f;
+        float linear_scale = 1.0f;
+        float W = 11.2f;
+
+        /**
+         * @param n_bitmaps   The number of input images (2 to 7), sorted from darkest to brightest.
+         * @param base_bitmap The index of the image with the base exposure, which is the image that
+         *                    has no offset. For an even number of images, this should be the
+         *                    brighter of the middle pair (as for HDRProcessor.processHDRCore()).
+         */
+        public MergeParameters(int n_bitmaps, int base_bitmap) {
+            if( n_bitmaps < 2 || n_bitmaps > max_bitmaps_c ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("n_bitmaps not supported: " + n_bitmaps);
+            }
+            this.n_bitmaps = n_bitmaps;
+            this.base_bitmap = base_bitmap;
+            this.parameter_A = new float[n_bitmaps];
+            this.parameter_B = new float[n_bitmaps];
+            this.offsets_x = new int[n_bitmaps];
+            this.offsets_y = new int[n_bitmaps];
+            for(int i=0;i<n_bitmaps;i++) {
+                parameter_A[i] = 1.0f;
+                parameter_B[i] = 0.0f;
+            }
+        }
+
+        /** Sets the response function for image i, so its pixel values are mapped to
+         *  parameter_A * value + parameter_B.
+         */
+        public void setResponseFunction(int i, float parameter_A, float parameter_B) {
+            this.parameter_A[i] = parameter_A;
+            this.parameter_B[i] = parameter_B;
+        }
+
+        public void setOffset(int i, int offset_x, int offset_y) {
+            this.offsets_x[i] = offset_x;
+            this.offsets_y[i] = offset_y;
+        }
+
+        /** Sets the tonemapping algorithm, and computes the algorithm specific scaling in the same
+         *  way as HDRProcessor.processHDRCore().
+         * @param tonemap_algorithm  One of the tonemap_algorithm_*_c constants.
+         * @param max_possible_value The estimated maximum HDR value (should be at least 255).
+         * @param tonemap_scale      The "C" constant for Reinhard tonemapping.
+         */
+        public void setTonemapping(int tonemap_algorithm, float max_possible_value, float tonemap_scale) {
+            this.tonemap_algorithm = tonemap_algorithm;
+            this.tonemap_scale = tonemap_scale;
+            switch( tonemap_algorithm ) {
+                case tonemap_algorithm_exponential_c:
+                    this.linear_scale = (float)(1.0 / (1.0 - Math.exp(-exposure_c * max_possible_value / 255.0)));
+                    break;
+                case tonemap_algorithm_reinhard_c:
+                    this.linear_scale = (max_possible_value + tonemap_scale) / max_possible_value;
+                    break;
+                case tonemap_algorithm_filmic_c:
+                    this.W = filmic_exposure_bias_c * max_possible_value;
+                    break;
+            }
+        }
+    }
+
+    /** Merges the supplied images into a tonemapped HDR image, equivalent to the hdr_n kernel in
+     *  process_hdr.rs (which for 3 images gives the same result as the hdr kernel).
+     * @param inputs  The input images as ARGB pixels, sorted from darkest to brightest, each of
+     *                size width*height.
+     * @param output  Array of size width*height to store the result. May be the same as
+     *                inputs[params.base_bitmap], since the base image has no offset.
+     */
+    public void processHDR(final int [][] inputs, final int width, final int height, final int [] output, final MergeParameters params) {
+        if( inputs.length != params.n_bitmaps ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("unexpected number of inputs: " + inputs.length);
+        }
+        final int [] inputs_y0 = new int[inputs.length]; // whole images, so all start at row 0
+        long time_s = System.nanoTime();
+        runRows(height, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                mergeRows(inputs, inputs_y0, width, height, output, 0, params, y_start, y_stop);
+            }
+        });
+        last_time_ns = System.nanoTime() - time_s;
+    }
+
+    /** Merges a horizontal strip of the output image, for streaming processing where only a band
+     *  of rows of each input is held in memory at once.
+     * @param inputs    For each input image, a strip of full width rows.
+     * @param inputs_y0 For each input image, the row of the full image that the first row of its
+     *                  strip corresponds to. The strip for input i must contain the rows
+     *                  [y_start+offset_y, y_stop+offset_y) clamped to [0, height), where offset_y
+     *                  is the offset set on params for that image.
+     * @param height    The height of the full image.
+     * @param output    Array of size width*(y_stop-y_start) to store the strip of the result.
+     * @param y_start   The first row (inclusive) of the full image to compute.
+     * @param y_stop    The last row (exclusive) of the full image to compute.
+     */
+    public void processHDRStrip(final int [][] inputs, final int [] inputs_y0, final int width, final int height, final int [] output, final int y_start, final int y_stop, final MergeParameters params) {
+        if( inputs.length != params.n_bitmaps || inputs_y0.length != params.n_bitmaps ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("unexpected number of inputs: " + inputs.length);
+        }
+        long time_s = System.nanoTime();
+        runRows(y_stop - y_start, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int row_start, int row_stop) {
+                mergeRows(inputs, inputs_y0, width, height, output, y_start, params, y_start + row_start, y_start + row_stop);
+            }
+        });
+        last_time_ns = System.nanoTime() - time_s;
+    }
+
+    private static void mergeRows(int [][] inputs, int [] inputs_y0, int width, int height, int [] output, int output_y0, MergeParameters params, int y_start, int y_stop) {
+        final int n_bitmaps = params.n_bitmaps;
+        final int mid_indx = (n_bitmaps-1)/2; // round down to dark image for even number of bitmaps
+        final boolean even = n_bitmaps % 2 == 0;
+        final int n_adj = (n_bitmaps-1)/2;
+        final int [] base = inputs[params.base_bitmap];
+        final int base_y0 = inputs_y0[params.base_bitmap];
+        final int [] pixels = new int[n_bitmaps];
+        final float [] parameter_A = new float[n_bitmaps];
+        final float [] parameter_B = new float[n_bitmaps];
+        final float [] rgb = new float[3];
+        final float [] base_rgb = new float[3];
+
+        for(int y=y_start;y<y_stop;y++) {
+            for(int x=0;x<width;x++) {
+                final int in = base[(y-base_y0)*width+x];
+                for(int i=0;i<n_bitmaps;i++) {
+                    int sx = x + params.offsets_x[i];
+                    int sy = y + params.offsets_y[i];
+                    if( sx >= 0 && sy >= 0 && sx < width && sy < height ) {
+                        pixels[i] = inputs[i][(sy-inputs_y0[i])*width+sx];
+                        parameter_A[i] = params.parameter_A[i];
+                        parameter_B[i] = params.parameter_B[i];
+                    }
+                    else {
+                        pixels[i] = in;
+                        parameter_A[i] = params.parameter_A[mid_indx];
+                        parameter_B[i] = params.parameter_B[mid_indx];
+                    }
+                }
+
+                float hdr_r = 0.0f, hdr_g = 0.0f, hdr_b = 0.0f;
+                float sum_weight = 0.0f;
+
+                setRGB(rgb, pixels[mid_indx]);
+                float avg = (rgb[0]+rgb[1]+rgb[2]) / 3.0f;
+                float diff = Math.abs( avg - 127.5f );
+                float weight = 1.0f;
+                if( diff > safe_range_c ) {
+                    // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+                    weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                }
+
+                // response function
+                applyResponse(rgb, parameter_A[mid_indx], parameter_B[mid_indx]);
+
+                hdr_r += weight * rgb[0];
+                hdr_g += weight * rgb[1];
+                hdr_b += weight * rgb[2];
+                sum_weight += weight;
+
+                if( even ) {
+                    float r1 = (pixels[mid_indx+1] >> 16) & 0xFF;
+                    float g1 = (pixels[mid_indx+1] >> 8) & 0xFF;
+                    float b1 = pixels[mid_indx+1] & 0xFF;
+                    float avg1 = (r1+g1+b1) / 3.0f;
+                    float diff1 = Math.abs( avg1 - 127.5f );
+                    float weight1 = 1.0f;
+                    if( diff1 > safe_range_c ) {
+                        weight1 = 1.0f - 0.99f * (diff1 - safe_range_c) / (127.5f - safe_range_c);
+                    }
+                    float a1 = parameter_A[mid_indx+1];
+                    float c1 = parameter_B[mid_indx+1];
+                    hdr_r += weight1 * (a1 * r1 + c1);
+                    hdr_g += weight1 * (a1 * g1 + c1);
+                    hdr_b += weight1 * (a1 * b1 + c1);
+                    sum_weight += weight1;
+
+                    avg = (avg+avg1)/2.0f;
+                    weight = (weight+weight1)/2.0f;
+                }
+
+                if( weight < 1.0f ) {
+                    base_rgb[0] = rgb[0];
+                    base_rgb[1] = rgb[1];
+                    base_rgb[2] = rgb[2];
+                    int adj_indx = mid_indx;
+                    int step_dir = avg <= 127.5f ? 1 : -1;
+                    if( even && step_dir == 1 ) {
+                        adj_indx++; // so we move one beyond the middle pair of images (since mid_indx will be the darker of the pair)
+                    }
+
+                    for(int k=0;k<n_adj;k++) {
+                        // now look at a neighbour image
+                        weight = 1.0f - weight;
+                        adj_indx += step_dir;
+
+                        setRGB(rgb, pixels[adj_indx]);
+                        if( k+1 < n_adj ) {
+                            // there will be at least one more adjacent image to look at
+                            avg = (rgb[0]+rgb[1]+rgb[2]) / 3.0f;
+                            diff = Math.abs( avg - 127.5f );
+                            if( diff > safe_range_c ) {
+                                weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                            }
+                        }
+                        applyResponse(rgb, parameter_A[adj_indx], parameter_B[adj_indx]);
+
+                        float value = Math.max(rgb[0], Math.max(rgb[1], rgb[2]));
+                        if( value <= 250.0f ) {
+                            // deghosting, see process_hdr.rs for details
+                            float wiener_C = wiener_C_lo; // higher value means more HDR but less ghosting
+                            float wx = Math.abs( value - 127.5f ) - 96.0f;
+                            if( wx > 0.0f ) {
+                                final float scale = (wiener_C_hi-wiener_C_lo)/(127.5f-96.0f);
+                                wiener_C = wiener_C_lo + wx*scale;
+                            }
+                            float d_r = base_rgb[0] - rgb[0];
+                            float d_g = base_rgb[1] - rgb[1];
+                            float d_b = base_rgb[2] - rgb[2];
+                            float L = d_r*d_r + d_g*d_g + d_b*d_b;
+                            float ghost_weight = L/(L+wiener_C);
+                            rgb[0] = ghost_weight * base_rgb[0] + (1.0f-ghost_weight) * rgb[0];
+                            rgb[1] = ghost_weight * base_rgb[1] + (1.0f-ghost_weight) * rgb[1];
+                            rgb[2] = ghost_weight * base_rgb[2] + (1.0f-ghost_weight) * rgb[2];
+                        }
+
+                        hdr_r += weight * rgb[0];
+                        hdr_g += weight * rgb[1];
+                        hdr_b += weight * rgb[2];
+                        sum_weight += weight;
+
+                        if( diff <= safe_range_c ) {
+                            break;
+                        }
+                    }
+                }
+
+                hdr_r /= sum_weight;
+                hdr_g /= sum_weight;
+                hdr_b /= sum_weight;
+
+                output[(y-output_y0)*width+x] = tonemap(params, hdr_r, hdr_g, hdr_b);
+            }
+        }
+    }
+
+    private static void setRGB(float [] rgb, int color) {
+        rgb[0] = (color >> 16) & 0xFF;
+        rgb[1] = (color >> 8) & 0xFF;
+        rgb[2] = color & 0xFF;
+    }
+
+    private static void applyResponse(float [] rgb, float parameter_A, float parameter_B) {
+        rgb[0] = parameter_A * rgb[0] + parameter_B;
+        rgb[1] = parameter_A * rgb[1] + parameter_B;
+        rgb[2] = parameter_A * rgb[2] + parameter_B;
+    }
+
+    private static int clamp255(float value) {
+        // equivalent of (uchar)clamp(value+0.5f, 0.0f, 255.0f)
+        int i = (int)(value + 0.5f);
+        return Math.max(0, Math.min(255, i));
+    }
+
+    private static int packRGB(int r, int g, int b) {
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static float uncharted2Tonemap(float x) {
+        final float A = 0.15f;
+        final float B = 0.50f;
+        final float C = 0.10f;
+        final float D = 0.20f;
+        final float E = 0.02f;
+        final float F = 0.30f;
+        return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
+    }
+
+    private static int tonemap(MergeParameters params, float hdr_r, float hdr_g, float hdr_b) {
+        switch( params.tonemap_algorithm ) {
+            case tonemap_algorithm_clamp_c:
+            {
+                // Simple clamp
+                return packRGB(clamp255(hdr_r), clamp255(hdr_g), clamp255(hdr_b));
+            }
+            case tonemap_algorithm_exponential_c:
+            {
+                float scale = params.linear_scale * 255.0f;
+                float r = scale * (1.0f - (float)Math.exp( - exposure_c * hdr_r / 255.0f ));
+                float g = scale * (1.0f - (float)Math.exp( - exposure_c * hdr_g / 255.0f ));
+                float b = scale * (1.0f - (float)Math.exp( - exposure_c * hdr_b / 255.0f ));
+                return packRGB(clamp255(r), clamp255(g), clamp255(b));
+            }
+            case tonemap_algorithm_reinhard_c:
+            default:
+            {
+                float value = Math.max(hdr_r, Math.max(hdr_g, hdr_b));
+                float scale = 255.0f / ( params.tonemap_scale + value );
+                scale *= params.linear_scale;
+                // shouldn't need to clamp - linear_scale should be such that values don't map to more than 255, but
+                // unlike Renderscript, we need to guarantee that we don't overflow into the other channels
+                return packRGB(clamp255(scale * hdr_r), clamp255(scale * hdr_g), clamp255(scale * hdr_b));
+            }
+            case tonemap_algorithm_filmic_c:
+            {
+                // Filmic Uncharted 2
+                float white_scale = 255.0f / uncharted2Tonemap(params.W);
+                float r = uncharted2Tonemap(filmic_exposure_bias_c * hdr_r) * white_scale;
+                float g = uncharted2Tonemap(filmic_exposure_bias_c * hdr_g) * white_scale;
+                float b = uncharted2Tonemap(filmic_exposure_bias_c * hdr_b) * white_scale;
+                return packRGB(clamp255(r), clamp255(g), clamp255(b));
+            }
+            case tonemap_algorithm_aces_c:
+            {
+                final float a = 2.51f;
+                final float b = 0.03f;
+                final float c = 2.43f;
+                final float d = 0.59f;
+                final float e = 0.14f;
+                float x_r = hdr_r/255.0f;
+                float x_g = hdr_g/255.0f;
+                float x_b = hdr_b/255.0f;
+                float r = 255.0f * (x_r*(a*x_r+b))/(x_r*(c*x_r+d)+e);
+                float g = 255.0f * (x_g*(a*x_g+b))/(x_g*(c*x_g+d)+e);
+                float bl = 255.0f * (x_b*(a*x_b+b))/(x_b*(c*x_b+d)+e);
+                return packRGB(clamp255(r), clamp255(g), clamp255(bl));
+            }
+        }
+    }
+
+    /** Returns the "value" of a pixel (maximum of the RGB components), as used by
+     *  histogram_compute_by_value in histogram_compute.rs.
+     */
+    static int pixelValue(int color) {
+        int r = (color >> 16) & 0xFF;
+        int g = (color >> 8) & 0xFF;
+        int b = color & 0xFF;
+        return Math.max(r, Math.max(g, b));
+    }
+
+    /** Computes the cumulative histogram for a single tile, for the contrast limited adaptive
+     *  histogram equalisation in adjustHistogram(). This follows the same steps as
+     *  HDRProcessor.adjustHistogram().
+     * @param histogram The histogram of values for the tile. This array is modified.
+     * @param n_pixels  The number of pixels in the tile.
+     * @param c_histogram Array to store the cumulative histogram.
+     * @param c_histogram_offset Offset into c_histogram.
+     */
+    static void computeTileCumulativeHistogram(int [] histogram, int n_pixels, boolean ce_preserve_blacks, int [] c_histogram, int c_histogram_offset) {
+        // clip histogram, for Contrast Limited AHE algorithm
+        int clip_limit = (5 * n_pixels) / 256;
+        {
+            // find real clip limit
+            int bottom = 0, top = clip_limit;
+            while( top - bottom > 1 ) {
+                int middle = (top + bottom)/2;
+                int sum = 0;
+                for(int x=0;x<256;x++) {
+                    if( histogram[x] > middle ) {
+                        sum += (histogram[x] - clip_limit);
+                    }
+                }
+                if( sum > (clip_limit - middle) * 256 )
+                    top = middle;
+                else
+                    bottom = middle;
+            }
+            clip_limit = (top + bottom)/2;
+        }
+        int n_clipped = 0;
+        for(int x=0;x<256;x++) {
+            if( histogram[x] > clip_limit ) {
+                n_clipped += (histogram[x] - clip_limit);
+                histogram[x] = clip_limit;
+            }
+        }
+        int n_clipped_per_bucket = n_clipped / 256;
+        for(int x=0;x<256;x++) {
+            histogram[x] += n_clipped_per_bucket;
+        }
+
+        if( ce_preserve_blacks ) {
+            // see HDRProcessor.adjustHistogram() for details
+            int [] temp_c_histogram = new int[256];
+            temp_c_histogram[0] = histogram[0];
+            for(int x=1;x<256;x++) {
+                temp_c_histogram[x] = temp_c_histogram[x-1] + histogram[x];
+            }
+
+            // avoid making pixels too dark
+            int equal_limit = n_pixels / 256;
+            final int dark_threshold_c = 128;
+            for(int x=0;x<dark_threshold_c;x++) {
+                int c_equal_limit = equal_limit * (x+1);
+                if( temp_c_histogram[x] >= c_equal_limit ) {
+                    continue;
+                }
+                float alpha = 1.0f - ((float)x)/((float)dark_threshold_c);
+                int limit = (int)(alpha * equal_limit);
+                if( histogram[x] < limit ) {
+                    // top up by redistributing later values
+                    for(int y=x+1;y<256 && histogram[x] < limit;y++) {
+                        if( histogram[y] > equal_limit ) {
+                            int move = histogram[y] - equal_limit;
+                            move = Math.min(move, limit - histogram[x]);
+                            histogram[x] += move;
+                            histogram[y] -= move;
+                        }
+                    }
+                }
+            }
+        }
+
+        // compute cumulative histogram
+        c_histogram[c_histogram_offset] = histogram[0];
+        for(int x=1;x<256;x++) {
+            c_histogram[c_histogram_offset+x] = c_histogram[c_histogram_offset+x-1] + histogram[x];
+        }
+    }
+
+    /** Applies local contrast enhancement, equivalent to HDRProcessor.adjustHistogram() (with the
+     *  histogram_adjust kernel in histogram_adjust.rs). The per-tile histograms are computed in
+     *  parallel, followed by a parallel pass to apply the interpolated equalisation.
+     * @param input  The input ARGB pixels.
+     * @param output Array to store the output, may be the same as input.
+     */
+    public void adjustHistogram(final int [] input, final int [] output, final int width, final int height, final float hdr_alpha, final int n_tiles, final boolean ce_preserve_blacks) {
+        final int [] c_histogram = new int[n_tiles*n_tiles*256];
+
+        // each row of tiles is processed by one task - so use a tile height of 1, as the processor's
+        // tile_height is in image rows, and would otherwise mean all the tiles are done by one task
+        ParallelRows.run(pool, 1, n_tiles, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int j_start, int j_stop) {
+                int [] histogram = new int[256];
+                for(int j=j_start;j<j_stop;j++) {
+                    int start_y = (int)((((double)j)/(double)n_tiles) * height);
+                    int stop_y = (int)((((double)j+1.0)/(double)n_tiles) * height);
+                    if( stop_y == start_y )
+                        continue;
+                    for(int i=0;i<n_tiles;i++) {
+                        int start_x = (int)((((double)i)/(double)n_tiles) * width);
+                        int stop_x = (int)((((double)i+1.0)/(double)n_tiles) * width);
+                        if( stop_x == start_x )
+                            continue;
+                        for(int k=0;k<256;k++)
+                            histogram[k] = 0;
+                        for(int y=start_y;y<stop_y;y++) {
+                            int indx = y*width;
+                            for(int x=start_x;x<stop_x;x++) {
+                                histogram[pixelValue(input[indx+x])]++;
+                            }
+                        }
+                        int n_pixels = (stop_x - start_x) * (stop_y - start_y);
+                        computeTileCumulativeHistogram(histogram, n_pixels, ce_preserve_blacks, c_histogram, 256*(i*n_tiles+j));
+                    }
+                }
+            }
+        });
+
+        runRows(height, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                applyHistogramRows(input, output, 0, width, height, c_histogram, hdr_alpha, n_tiles, y_start, y_stop);
+            }
+        });
+    }
+
+    /** Adds the histogram of values of a horizontal strip to the per-tile histograms used for
+     *  contrast enhancement, so that the histograms for a full image can be built up a strip at a
+     *  time, see computeCumulativeHistograms().
+     * @param input      The strip of ARGB pixels, of size width*(y_stop-y_start).
+     * @param height     The height of the full image.
+     * @param y_start    The row of the full image that the first row of the strip corresponds to.
+     * @param y_stop     The last row (exclusive) of the strip.
+     * @param histograms Array of size n_tiles*n_tiles*256 to accumulate the histograms into, in the
+     *                   same layout as the cumulative histograms.
+     */
+    public void accumulateTileHistograms(final int [] input, final int width, final int height, final int y_start, final int y_stop, final int n_tiles, final int [] histograms) {
+        final int [] tile_x = new int[width];
+        for(int i=0;i<n_tiles;i++) {
+            int start_x = (int)((((double)i)/(double)n_tiles) * width);
+            int stop_x = (int)((((double)i+1.0)/(double)n_tiles) * width);
+            for(int x=start_x;x<stop_x;x++)
+                tile_x[x] = i;
+        }
+        final int [] tile_y = new int[height];
+        for(int j=0;j<n_tiles;j++) {
+            int start_y = (int)((((double)j)/(double)n_tiles) * height);
+            int stop_y = (int)((((double)j+1.0)/(double)n_tiles) * height);
+            for(int y=start_y;y<stop_y;y++)
+                tile_y[y] = j;
+        }
+
+        runRows(y_stop - y_start, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int row_start, int row_stop) {
+                // accumulate locally, to avoid contention between tasks
+                int [] local_histograms = new int[histograms.length];
+                for(int y=y_start+row_start;y<y_start+row_stop;y++) {
+                    int indx = (y-y_start)*width;
+                    int j = tile_y[y];
+                    for(int x=0;x<width;x++) {
+                        local_histograms[256*(tile_x[x]*n_tiles+j) + pixelValue(input[indx+x])]++;
+                    }
+                }
+                synchronized( histograms ) {
+                    for(int k=0;k<histograms.length;k++)
+                        histograms[k] += local_histograms[k];
+                }
+            }
+        });
+    }
+
+    /** Computes the cumulative histograms for contrast enhancement from the per-tile histograms
+     *  built up with accumulateTileHistograms().
+     * @param histograms The per-tile histograms. This array is modified.
+     * @return The cumulative histograms to pass to applyHistogramStrip().
+     */
+    public static int [] computeCumulativeHistograms(int [] histograms, int width, int height, int n_tiles, boolean ce_preserve_blacks) {
+        int [] c_histogram = new int[n_tiles*n_tiles*256];
+        int [] histogram = new int[256];
+        for(int i=0;i<n_tiles;i++) {
+            int start_x = (int)((((double)i)/(double)n_tiles) * width);
+            int stop_x = (int)((((double)i+1.0)/(double)n_tiles) * width);
+            for(int j=0;j<n_tiles;j++) {
+                int start_y = (int)((((double)j)/(double)n_tiles) * height);
+                int stop_y = (int)((((double)j+1.0)/(double)n_tiles) * height);
+                if( stop_x == start_x || stop_y == start_y )
+                    continue;
+                int offset = 256*(i*n_tiles+j);
+                System.arraycopy(histograms, offset, histogram, 0, 256);
+                int n_pixels = (stop_x - start_x) * (stop_y - start_y);
+                computeTileCumulativeHistogram(histogram, n_pixels, ce_preserve_blacks, c_histogram, offset);
+            }
+        }
+        return c_histogram;
+    }
+
+    /** Applies the contrast enhancement to a horizontal strip, given the cumulative histograms for
+     *  the full image from computeCumulativeHistograms().
+     * @param input  The strip of ARGB pixels, of size width*(y_stop-y_start).
+     * @param output Array to store the output strip, may be the same as input.
+     * @param height The height of the full image.
+     */
+    public void applyHistogramStrip(final int [] input, final int [] output, final int width, final int height, final int y_start, final int y_stop, final int [] c_histogram, final float hdr_alpha, final int n_tiles) {
+        runRows(y_stop - y_start, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int row_start, int row_stop) {
+                applyHistogramRows(input, output, y_start, width, height, c_histogram, hdr_alpha, n_tiles, y_start + row_start, y_start + row_stop);
+            }
+        });
+    }
+
+    static int getEqualValue(int [] c_histogram, int histogram_offset, int value) {
+        int cdf_v = c_histogram[histogram_offset+value];
+        int cdf_0 = c_histogram[histogram_offset];
+        int n_pixels = c_histogram[histogram_offset+255];
+        float num = (float)(cdf_v - cdf_0);
+        float den = (float)(n_pixels - cdf_0);
+        return (int)( 255.0f * (num/den) ); // value that we should choose to fully equalise the histogram
+    }
+
+    /**
+     * @param input_y0 The row of the full image that the first row of input (and output)
+     *                 corresponds to.
+     */
+    static void applyHistogramRows(int [] input, int [] output, int input_y0, int width, int height, int [] c_histogram, float hdr_alpha, int n_tiles, int y_start, int y_stop) {
+        for(int y=y_start;y<y_stop;y++) {
+            float ty = ((float)y*n_tiles)/(float)height - 0.5f;
+            int iy = (int)Math.floor(ty);
+            float beta = ty - iy;
+            final int row = (y-input_y0)*width;
+            for(int x=0;x<width;x++) {
+                int in = input[row+x];
+                int value = pixelValue(in);
+
+                float tx = ((float)x*n_tiles)/(float)width - 0.5f;
+                int ix = (int)Math.floor(tx);
+                int equal_value;
+                if( ix >= 0 && ix < n_tiles-1 && iy >= 0 && iy < n_tiles-1 ) {
+                    int equal_value00 = getEqualValue(c_histogram, 256*(ix*n_tiles+iy), value);
+                    int equal_value10 = getEqualValue(c_histogram, 256*((ix+1)*n_tiles+iy), value);
+                    int equal_value01 = getEqualValue(c_histogram, 256*(ix*n_tiles+iy+1), value);
+                    int equal_value11 = getEqualValue(c_histogram, 256*((ix+1)*n_tiles+iy+1), value);
+                    float alpha = tx - ix;
+                    float equal_value0 = (1.0f-alpha)*equal_value00 + alpha*equal_value10;
+                    float equal_value1 = (1.0f-alpha)*equal_value01 + alpha*equal_value11;
+                    equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+                }
+                else if( ix >= 0 && ix < n_tiles-1 ) {
+                    int this_y = (iy<0) ? iy+1 : iy;
+                    int equal_value0 = getEqualValue(c_histogram, 256*(ix*n_tiles+this_y), value);
+                    int equal_value1 = getEqualValue(c_histogram, 256*((ix+1)*n_tiles+this_y), value);
+                    float alpha = tx - ix;
+                    equal_value = (int)((1.0f-alpha)*equal_value0 + alpha*equal_value1);
+                }
+                else if( iy >= 0 && iy < n_tiles-1 ) {
+                    int this_x = (ix<0) ? ix+1 : ix;
+                    int equal_value0 = getEqualValue(c_histogram, 256*(this_x*n_tiles+iy), value);
+                    int equal_value1 = getEqualValue(c_histogram, 256*(this_x*n_tiles+iy+1), value);
+                    equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+                }
+                else {
+                    int this_x = (ix<0) ? ix+1 : ix;
+                    int this_y = (iy<0) ? iy+1 : iy;
+                    equal_value = getEqualValue(c_histogram, 256*(this_x*n_tiles+this_y), value);
+                }
+
+                if( value == 0 ) {
+                    // black pixels stay black (avoids division by zero)
+                    output[row+x] = 0xFF000000;
+                    continue;
+                }
+                int new_value = (int)( (1.0f-hdr_alpha) * value + hdr_alpha * equal_value );
+                float scale = ((float)new_value) / (float)value;
+
+                // need to add +0.5 so that we round to nearest - see histogram_adjust.rs
+                int r = Math.min(255, (int)(((in >> 16) & 0xFF) * scale + 0.5f));
+                int g = Math.min(255, (int)(((in >> 8) & 0xFF) * scale + 0.5f));
+                int b = Math.min(255, (int)((in & 0xFF) * scale + 0.5f));
+                output[row+x] = packRGB(r, g, b);
+            }
+        }
+    }
+}
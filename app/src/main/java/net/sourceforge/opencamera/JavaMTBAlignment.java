@@ -0,0 +1,256 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Pure Java implementation of the median threshold bitmap (MTB) alignment used by
+ *  HDRProcessor.autoAlignment() (create_mtb.rs and align_mtb.rs).
+ *  Rather than storing a byte per pixel, each MTB is packed into two bitsets of 64 pixels per long:
+ *  the threshold bits (set for pixels brighter than the median), and the exclusion bits (set for
+ *  pixels that aren't within min_diff_c of the median, i.e., that aren't treated as noise). The
+ *  error for an offset can then be computed 64 pixels at a time, as the number of bits set in
+ *  (threshold0 ^ threshold1) & exclusion0 & exclusion1. The errors give the same results as
+ *  align_mtb.rs.
+ */
+public class JavaMTBAlignment {
+    public static final int min_diff_c = 4; // should be same value as in create_mtb.rs/create_mtb()
+
+    private final ForkJoinPool pool;
+    private final int tile_height;
+
+    /** A median threshold bitmap. Row y is stored in words [y*words_per_row, (y+1)*words_per_row)
+     *  of each bitset, with pixel x in bit (x % 64) of word (x / 64).
+     */
+    public static class MTB {
+        private final int width;
+        private final int height;
+        private final int words_per_row;
+        private final long [] threshold;
+        private final long [] exclusion;
+
+        public MTB(int width, int height) {
+            if( width <= 0 || height <= 0 ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("invalid mtb size: " + width + " x " + height);
+            }
+            this.width = width;
+            this.height = height;
+            this.words_per_row = (width + 63)/64;
+            this.threshold = new long[words_per_row*height];
+            this.exclusion = new long[words_per_row*height];
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /** Returns the value of the pixel in the same form as create_mtb.rs: 0 if darker than the
+         *  median, 255 if brighter, or 127 if treated as noise.
+         */
+        public int getValue(int x, int y) {
+            int indx = y*words_per_row + (x >> 6);
+            long bit = 1L << (x & 63);
+            if( (exclusion[indx] & bit) == 0 )
+                return 127;
+            return (threshold[indx] & bit) != 0 ? 255 : 0;
+        }
+
+        /** Returns the 64 bits of a row starting at pixel x (which may be negative, or beyond the
+         *  width, in which case pixels outside of the row are returned as 0).
+         */
+        private static long getBits(long [] bits, int row_offset, int words_per_row, int x) {
+            int word = x >> 6;
+            int shift = x & 63;
+            long lo = (word >= 0 && word < words_per_row) ? bits[row_offset+word] : 0L;
+            if( shift == 0 )
+                return lo;
+            long hi = (word+1 >= 0 && word+1 < words_per_row) ? bits[row_offset+word+1] : 0L;
+            return (lo >>> shift) | (hi << (64-shift));
+        }
+    }
+
+    public JavaMTBAlignment() {
+        this(ParallelRows.getDefaultPool(), 16);
+    }
+
+    /**
+     * @param pool        The pool to run on.
+     * @param tile_height The number of rows each task processes before no longer being split.
+     */
+    public JavaMTBAlignment(ForkJoinPool pool, int tile_height) {
+        this.pool = pool;
+        this.tile_height = Math.max(tile_height, 1);
+    }
+
+    /** Sets rows of the MTB from ARGB pixels, equivalent to create_mtb.rs/create_mtb(). This allows
+     *  the MTB to be created a strip at a time.
+     * @param pixels       The ARGB pixels for the rows, of size mtb.getWidth()*n_rows.
+     * @param y_start      The first row of the MTB to set.
+     * @param n_rows       The number of rows to set.
+     * @param median_value The median value of the image.
+     */
+    public void setRows(final MTB mtb, final int [] pixels, final int y_start, final int n_rows, final int median_value) {
+        if( y_start < 0 || n_rows < 0 || y_start + n_rows > mtb.height ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid rows: " + y_start + " to " + (y_start + n_rows));
+        }
+        ParallelRows.run(pool, tile_height, n_rows, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int row_start, int row_stop) {
+                final int width = mtb.width;
+                final int words_per_row = mtb.words_per_row;
+                for(int row=row_start;row<row_stop;row++) {
+                    int pixel_indx = row*width;
+                    int word_indx = (y_start+row)*words_per_row;
+                    for(int x0=0;x0<width;x0+=64,word_indx++) {
+                        long threshold_word = 0L;
+                        long exclusion_word = 0L;
+                        int n = Math.min(64, width-x0);
+                        for(int i=0;i<n;i++) {
+                            int color = pixels[pixel_indx++];
+                            int value = Math.max((color >> 16) & 0xff, Math.max((color >> 8) & 0xff, color & 0xff));
+                            int diff = Math.abs(value - median_value);
+                            if( diff > min_diff_c ) {
+                                exclusion_word |= 1L << i;
+                                if( value > median_value )
+                                    threshold_word |= 1L << i;
+                            }
+                        }
+                        mtb.threshold[word_indx] = threshold_word;
+                        mtb.exclusion[word_indx] = exclusion_word;
+                    }
+                }
+            }
+        });
+    }
+
+    /** Creates the MTB for an image of ARGB pixels.
+     */
+    public MTB createMTB(int [] pixels, int width, int height, int median_value) {
+        MTB mtb = new MTB(width, height);
+        setRows(mtb, pixels, 0, height, median_value);
+        return mtb;
+    }
+
+    /** Computes the alignment errors for the 9 offsets (off_x + dx*step_size, off_y + dy*step_size)
+     *  of mtb1 relative to mtb0, for dx, dy in {-1, 0, 1}. This is equivalent to
+     *  align_mtb.rs/align_mtb(): pixels of mtb0 are sampled every step_size pixels, and pixels
+     *  where either MTB is treated as noise are ignored.
+     * @return Array of 9 errors, where errors[(dy+1)*3 + (dx+1)] is the error for offset (dx, dy).
+     */
+    public long [] computeErrors(final MTB mtb0, final MTB mtb1, final int off_x, final int off_y, final int step_size) {
+        if( mtb0.width != mtb1.width || mtb0.height != mtb1.height ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("mtbs not of same size");
+        }
+        if( step_size <= 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid step_size: " + step_size);
+        }
+        final int width = mtb0.width;
+        final int height = mtb0.height;
+        final int words_per_row = mtb0.words_per_row;
+        final long [] errors = new long[9];
+
+        // the sampled pixels of a row of mtb0, whose offset pixel (before applying dx) is far enough
+        // inside mtb1 for all 9 offsets - this is the same for every row
+        final int stop_x = (width/step_size)*step_size;
+        final long [] sample_mask = new long[words_per_row];
+        boolean any_samples = false;
+        for(int x=0;x<stop_x;x+=step_size) {
+            if( x+off_x >= step_size && x+off_x < width-step_size ) {
+                sample_mask[x >> 6] |= 1L << (x & 63);
+                any_samples = true;
+            }
+        }
+        if( !any_samples )
+            return errors;
+
+        final int n_sample_rows = height/step_size;
+        ParallelRows.run(pool, tile_height, n_sample_rows, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int row_start, int row_stop) {
+                // accumulate locally, to avoid contention between tasks
+                long [] local_errors = new long[9];
+                for(int row=row_start;row<row_stop;row++) {
+                    int y = row*step_size;
+                    if( y+off_y < step_size || y+off_y >= height-step_size )
+                        continue;
+                    int row_offset0 = y*words_per_row;
+                    int c = 0;
+                    for(int dy=-1;dy<=1;dy++) {
+                        int row_offset1 = (y+off_y+dy*step_size)*words_per_row;
+                        for(int dx=-1;dx<=1;dx++) {
+                            int shift = off_x + dx*step_size;
+                            long error = 0;
+                            for(int w=0;w<words_per_row;w++) {
+                                long mask = sample_mask[w];
+                                if( mask == 0 )
+                                    continue;
+                                int x = (w << 6) + shift;
+                                long threshold1 = MTB.getBits(mtb1.threshold, row_offset1, words_per_row, x);
+                                long exclusion1 = MTB.getBits(mtb1.exclusion, row_offset1, words_per_row, x);
+                                long diff = (mtb0.threshold[row_offset0+w] ^ threshold1) & mtb0.exclusion[row_offset0+w] & exclusion1 & mask;
+                                error += Long.bitCount(diff);
+                            }
+                            local_errors[c++] += error;
+                        }
+                    }
+                }
+                synchronized( errors ) {
+                    for(int c=0;c<9;c++)
+                        errors[c] += local_errors[c];
+                }
+            }
+        });
+        return errors;
+    }
+
+    /** Returns the initial step size for align(), as used by HDRProcessor.autoAlignment().
+     *  The initial step size is a power of 2, and the maximum offset that can be found is one less
+     *  than this.
+     * @param full_width  The width of the full image (rather than of the MTB).
+     * @param full_height The height of the full image (rather than of the MTB).
+     */
+    public static int computeInitialStepSize(int full_width, int full_height, int max_align_scale) {
+        int max_dim = Math.max(full_width, full_height);
+        int max_ideal_size = (max_align_scale * max_dim) / 150;
+        int initial_step_size = 1;
+        while( initial_step_size < max_ideal_size ) {
+            initial_step_size *= 2;
+        }
+        return initial_step_size;
+    }
+
+    /** Finds the offset of mtb1 relative to mtb0, by searching the 9 neighbouring offsets at each
+     *  step size from initial_step_size/2 down to min_step_size, in the same way as
+     *  HDRProcessor.autoAlignment().
+     * @param offset Array of size 2 for the offset, which should be initialised to the starting
+     *               offset (normally 0), and is set to the resultant offset (x, y).
+     */
+    public void align(MTB mtb0, MTB mtb1, int initial_step_size, int min_step_size, int [] offset) {
+        int step_size = initial_step_size;
+        while( step_size > min_step_size ) {
+            step_size /= 2;
+            long [] errors = computeErrors(mtb0, mtb1, offset[0], offset[1], step_size);
+            int best_id = chooseBestOffset(errors);
+            offset[0] += (best_id % 3 - 1) * step_size;
+            offset[1] += (best_id / 3 - 1) * step_size;
+        }
+    }
+
+    /** Returns the index of the lowest of the 9 errors, preferring the first in case of ties.
+     */
+    public static int chooseBestOffset(long [] errors) {
+        int best_id = 0;
+        for(int j=1;j<9;j++) {
+            if( errors[j] < errors[best_id] ) {
+                best_id = j;
+            }
+        }
+        return best_id;
+    }
+}
@@ -0,0 +1,896 @@
+package net.sourceforge.opencamera;
+
+import java.util.Arrays;
+
+/** Replaces a rectangular region of a JPEG image, without decoding and re-encoding the rest of the
+ *  image. This is used for stamping text onto photos: rather than decoding the whole JPEG to a
+ *  bitmap, drawing the text and compressing the whole bitmap again, the caller only decodes the
+ *  region under the stamp, draws onto that, and passes the result here.
+ *  Only the MCUs (minimum coded units, e.g., 16x16 pixel blocks for 4:2:0 images) whose pixels have
+ *  changed are re-encoded (using the JPEG's own quantization tables), so the rest of the image has
+ *  no generation loss. The entropy coded data before the first changed MCU is copied unchanged.
+ *  If the JPEG has restart markers, then the restart intervals after the last changed MCU are also
+ *  copied unchanged, and those before the first changed MCU are skipped over without needing to be
+ *  Huffman decoded, so the cost is proportional to the size of the region rather than the image.
+ *  Without restart markers, the data before the first changed MCU still needs to be Huffman
+ *  decoded (but no IDCT is required), and the data after needs to be Huffman decoded and
+ *  re-encoded.
+ *  Only baseline (or extended sequential Huffman) JPEGs with 8-bit samples and a single scan are
+ *  supported, with either 1 (greyscale) or 3 (YCbCr) components; other JPEGs will throw
+ *  JpegRegionEditorException, and the caller should fall back to decoding the whole image.
+ */
+public class JpegRegionEditor {
+    // index in natural (row major) order for each position in zigzag order
+    private static final int [] zigzag_c = new int[] {
+            0,  1,  8, 16,  9,  2,  3, 10,
+            17, 24, 32, 25, 18, 11,  4,  5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13,  6,  7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+    private static final float [][] dct_c = new float[8][8]; // dct_c[u][x] = C(u)/2 * cos((2x+1)u.pi/16)
+
+    static {
+        for(int u=0;u<8;u++) {
+            double c = u == 0 ? 1.0/Math.sqrt(2.0) : 1.0;
+            for(int x=0;x<8;x++) {
+                dct_c[u][x] = (float)(0.5 * c * Math.cos((2*x+1)*u*Math.PI/16.0));
+            }
+        }
+    }
+
+    private final byte [] data;
+    private final int length;
+
+    private int width;
+    private int height;
+    private int n_components;
+    private int [] h_samp;
+    private int [] v_samp;
+    private int [] quant_table_index;
+    private final int [][] quant_tables = new int[4][]; // in natural order
+    private final HuffmanTable [] dc_tables = new HuffmanTable[4];
+    private final HuffmanTable [] ac_tables = new HuffmanTable[4];
+    private int [] dc_table_index; // for each frame component
+    private int [] ac_table_index; // for each frame component
+    private int restart_interval;
+    private int scan_start; // offset of the entropy coded data
+
+    private int mcu_width;
+    private int mcu_height;
+    private int mcus_x;
+    private int mcus_y;
+
+    /** A Huffman table, with lookups for both decoding and encoding.
+     */
+    private static class HuffmanTable {
+        private static final int fast_bits_c = 9;
+
+        final int [] fast_lookup = new int[1 << fast_bits_c]; // (length << 8) | symbol, or 0 if the code is longer than fast_bits_c
+        final int [] min_code = new int[17];
+        final int [] max_code = new int[17]; // -1 if no codes of this length
+        final int [] val_ptr = new int[17];
+        final int [] values;
+        final int [] encode_code = new int[256];
+        final int [] encode_size = new int[256]; // 0 if the symbol has no code
+
+        HuffmanTable(int [] counts, int [] values) throws JpegRegionEditorException {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for(int l=1;l<=16;l++) {
+                val_ptr[l] = k;
+                min_code[l] = code;
+                max_code[l] = -1;
+                for(int i=0;i<counts[l];i++) {
+                    if( code >= (1 << l) ) {
+                        throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+                    }
+                    int symbol = values[k];
+                    encode_code[symbol] = code;
+                    encode_size[symbol] = l;
+                    if( l <= fast_bits_c ) {
+                        int shift = fast_bits_c - l;
+                        for(int j=0;j<(1 << shift);j++) {
+                            fast_lookup[(code << shift) | j] = (l << 8) | symbol;
+                        }
+                    }
+                    max_code[l] = code;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+        int decode(BitReader reader) throws JpegRegionEditorException {
+            int entry = fast_lookup[reader.peekBits(fast_bits_c)];
+            if( entry != 0 ) {
+                reader.skipBits(entry >> 8);
+                return entry & 0xff;
+            }
+            int bits = reader.peekBits(16);
+            for(int l=fast_bits_c+1;l<=16;l++) {
+                int code = bits >>> (16-l);
+                if( max_code[l] != -1 && code <= max_code[l] ) {
+                    reader.skipBits(l);
+                    return values[val_ptr[l] + code - min_code[l]];
+                }
+            }
+            throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+        }
+
+        void encode(BitWriter writer, int symbol) throws JpegRegionEditorException {
+            int size = encode_size[symbol];
+            if( size == 0 ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.MISSING_HUFFMAN_CODE);
+            }
+            writer.writeBits(encode_code[symbol], size);
+        }
+    }
+
+    /** Reads bits from entropy coded data, removing stuffed bytes, and stopping at markers.
+     */
+    private static class BitReader {
+        private final byte [] data;
+        private final int end;
+        private int pos; // next byte to read
+        private long buffer;
+        private int n_bits; // number of unread bits in the low bits of buffer
+        private boolean hit_marker;
+        // the offsets in data of the most recently buffered bytes, or -1 for padding
+        private final int [] byte_offsets = new int[16];
+        private int n_buffered;
+
+        BitReader(byte [] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        private void fill() {
+            while( n_bits <= 56 ) {
+                int b = 0;
+                int offset = -1;
+                if( !hit_marker && pos < end ) {
+                    b = data[pos] & 0xff;
+                    if( b == 0xff ) {
+                        int b2 = pos+1 < end ? data[pos+1] & 0xff : 0;
+                        if( b2 == 0 ) {
+                            // stuffed byte
+                            offset = pos;
+                            pos += 2;
+                        }
+                        else {
+                            // a marker - pad with zeros
+                            hit_marker = true;
+                            b = 0;
+                        }
+                    }
+                    else {
+                        offset = pos;
+                        pos++;
+                    }
+                }
+                buffer = (buffer << 8) | b;
+                n_bits += 8;
+                byte_offsets[n_buffered & 15] = offset;
+                n_buffered++;
+            }
+        }
+
+        int peekBits(int n) {
+            if( n_bits < n )
+                fill();
+            return (int)(buffer >>> (n_bits - n)) & ((1 << n) - 1);
+        }
+
+        void skipBits(int n) {
+            n_bits -= n;
+        }
+
+        int getBits(int n) {
+            int value = peekBits(n);
+            n_bits -= n;
+            return value;
+        }
+
+        /** Returns the offset in data of the byte containing the next unread bit.
+         */
+        int getByteOffset() throws JpegRegionEditorException {
+            if( n_bits == 0 )
+                return pos;
+            int offset = byte_offsets[(n_buffered - 1 - (n_bits-1)/8) & 15];
+            if( offset == -1 ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            return offset;
+        }
+
+        /** Returns the number of bits that have been read from the byte at getByteOffset().
+         */
+        int getBitsReadInByte() {
+            if( n_bits == 0 )
+                return 0;
+            return 7 - (n_bits-1) % 8;
+        }
+
+        /** Discards any unread bits (which should be padding), and returns the offset of the next
+         *  marker.
+         */
+        int findMarker() throws JpegRegionEditorException {
+            n_bits = 0;
+            hit_marker = false;
+            while( pos+1 < end ) {
+                if( (data[pos] & 0xff) == 0xff && (data[pos+1] & 0xff) != 0 && (data[pos+1] & 0xff) != 0xff ) {
+                    return pos;
+                }
+                pos++;
+            }
+            throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+        }
+
+        /** Reads the restart marker that should be at the end of a restart interval.
+         */
+        void readRestartMarker() throws JpegRegionEditorException {
+            int marker_pos = findMarker();
+            int marker = data[marker_pos+1] & 0xff;
+            if( marker < 0xd0 || marker > 0xd7 ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            pos = marker_pos + 2;
+        }
+    }
+
+    /** Writes entropy coded data, stuffing bytes as required.
+     */
+    private static class BitWriter {
+        private byte [] buffer;
+        private int size;
+        private long acc;
+        private int n_acc; // number of bits in acc
+
+        BitWriter(int capacity) {
+            buffer = new byte[Math.max(capacity, 1024)];
+        }
+
+        private void ensureCapacity(int extra) {
+            if( size + extra > buffer.length ) {
+                buffer = Arrays.copyOf(buffer, Math.max(2*buffer.length, size + extra));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensureCapacity(2);
+            buffer[size++] = (byte)b;
+            if( b == 0xff )
+                buffer[size++] = 0;
+        }
+
+        void writeBits(int value, int n) {
+            acc = (acc << n) | (value & ((1L << n) - 1));
+            n_acc += n;
+            while( n_acc >= 8 ) {
+                writeByte((int)(acc >>> (n_acc - 8)) & 0xff);
+                n_acc -= 8;
+            }
+        }
+
+        /** Pads to a byte boundary with 1 bits.
+         */
+        void flush() {
+            if( n_acc > 0 ) {
+                int n = 8 - n_acc;
+                writeBits((1 << n) - 1, n);
+            }
+        }
+
+        /** Writes bytes verbatim, must be at a byte boundary.
+         */
+        void writeBytes(byte [] data, int offset, int length) {
+            if( n_acc != 0 ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("not at byte boundary");
+            }
+            ensureCapacity(length);
+            System.arraycopy(data, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeMarker(int marker) {
+            if( n_acc != 0 ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("not at byte boundary");
+            }
+            ensureCapacity(2);
+            buffer[size++] = (byte)0xff;
+            buffer[size++] = (byte)marker;
+        }
+
+        byte [] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    /** Parses the headers of the supplied JPEG.
+     * @param data   The JPEG data, which isn't copied, so shouldn't be modified whilst this object is
+     *               in use.
+     * @param length The length of the JPEG data (which may be less than data.length).
+     */
+    public JpegRegionEditor(byte [] data, int length) throws JpegRegionEditorException {
+        this.data = data;
+        this.length = length;
+        parseHeaders();
+    }
+
+    private int readUnsignedShort(int offset) throws JpegRegionEditorException {
+        if( offset+1 >= length ) {
+            throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+        }
+        return ((data[offset] & 0xff) << 8) | (data[offset+1] & 0xff);
+    }
+
+    private int readUnsignedByte(int offset) throws JpegRegionEditorException {
+        if( offset >= length ) {
+            throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+        }
+        return data[offset] & 0xff;
+    }
+
+    private void parseHeaders() throws JpegRegionEditorException {
+        if( readUnsignedByte(0) != 0xff || readUnsignedByte(1) != 0xd8 ) {
+            throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+        }
+        int pos = 2;
+        boolean have_frame = false;
+        while( true ) {
+            if( readUnsignedByte(pos) != 0xff ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            while( readUnsignedByte(pos) == 0xff ) {
+                pos++; // skip fill bytes
+            }
+            int marker = readUnsignedByte(pos);
+            pos++;
+            if( marker == 0xd8 || marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7) ) {
+                // markers without a length
+                continue;
+            }
+            if( marker == 0xd9 ) {
+                // end of image before the scan
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            int segment_length = readUnsignedShort(pos);
+            int segment_start = pos + 2;
+            int segment_end = pos + segment_length;
+            if( segment_length < 2 || segment_end > length ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            if( marker == 0xc0 || marker == 0xc1 ) {
+                parseFrame(segment_start);
+                have_frame = true;
+            }
+            else if( marker == 0xc4 ) {
+                parseHuffmanTables(segment_start, segment_end);
+            }
+            else if( marker == 0xdb ) {
+                parseQuantizationTables(segment_start, segment_end);
+            }
+            else if( marker == 0xdd ) {
+                restart_interval = readUnsignedShort(segment_start);
+            }
+            else if( marker == 0xda ) {
+                if( !have_frame ) {
+                    throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+                }
+                parseScan(segment_start);
+                scan_start = segment_end;
+                return;
+            }
+            else if( (marker >= 0xc2 && marker <= 0xcf) || marker == 0xdc ) {
+                // progressive, lossless, hierarchical or arithmetic coding, or DNL
+                throw new JpegRegionEditorException(JpegRegionEditorException.UNSUPPORTED_FORMAT);
+            }
+            // else skip (e.g., APPn, COM)
+            pos = segment_end;
+        }
+    }
+
+    private void parseFrame(int pos) throws JpegRegionEditorException {
+        int precision = readUnsignedByte(pos);
+        height = readUnsignedShort(pos+1);
+        width = readUnsignedShort(pos+3);
+        n_components = readUnsignedByte(pos+5);
+        if( precision != 8 || height == 0 || width == 0 || (n_components != 1 && n_components != 3) ) {
+            throw new JpegRegionEditorException(JpegRegionEditorException.UNSUPPORTED_FORMAT);
+        }
+        h_samp = new int[n_components];
+        v_samp = new int[n_components];
+        quant_table_index = new int[n_components];
+        int h_max = 1, v_max = 1;
+        for(int i=0;i<n_components;i++) {
+            int offset = pos + 6 + 3*i;
+            int sampling = readUnsignedByte(offset+1);
+            h_samp[i] = sampling >> 4;
+            v_samp[i] = sampling & 0xf;
+            quant_table_index[i] = readUnsignedByte(offset+2);
+            if( h_samp[i] < 1 || h_samp[i] > 4 || v_samp[i] < 1 || v_samp[i] > 4 || quant_table_index[i] > 3 ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            h_max = Math.max(h_max, h_samp[i]);
+            v_max = Math.max(v_max, v_samp[i]);
+        }
+        if( n_components == 1 ) {
+            // a single component scan is non-interleaved, so each MCU is a single block
+            h_samp[0] = 1;
+            v_samp[0] = 1;
+            h_max = 1;
+            v_max = 1;
+        }
+        for(int i=0;i<n_components;i++) {
+            if( h_max % h_samp[i] != 0 || v_max % v_samp[i] != 0 ) {
+                // non-integral subsampling
+                throw new JpegRegionEditorException(JpegRegionEditorException.UNSUPPORTED_FORMAT);
+            }
+        }
+        mcu_width = 8*h_max;
+        mcu_height = 8*v_max;
+        mcus_x = (width + mcu_width - 1)/mcu_width;
+        mcus_y = (height + mcu_height - 1)/mcu_height;
+    }
+
+    private void parseHuffmanTables(int pos, int end) throws JpegRegionEditorException {
+        while( pos < end ) {
+            int info = readUnsignedByte(pos);
+            int table_class = info >> 4;
+            int table_id = info & 0xf;
+            if( table_class > 1 || table_id > 3 ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            int [] counts = new int[17];
+            int total = 0;
+            for(int l=1;l<=16;l++) {
+                counts[l] = readUnsignedByte(pos + l);
+                total += counts[l];
+            }
+            if( total > 256 ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            int [] values = new int[total];
+            for(int i=0;i<total;i++) {
+                values[i] = readUnsignedByte(pos + 17 + i);
+            }
+            HuffmanTable table = new HuffmanTable(counts, values);
+            if( table_class == 0 )
+                dc_tables[table_id] = table;
+            else
+                ac_tables[table_id] = table;
+            pos += 17 + total;
+        }
+    }
+
+    private void parseQuantizationTables(int pos, int end) throws JpegRegionEditorException {
+        while( pos < end ) {
+            int info = readUnsignedByte(pos);
+            int table_precision = info >> 4;
+            int table_id = info & 0xf;
+            if( table_precision > 1 || table_id > 3 ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            pos++;
+            int [] table = new int[64];
+            for(int i=0;i<64;i++) {
+                if( table_precision == 0 ) {
+                    table[zigzag_c[i]] = readUnsignedByte(pos);
+                    pos++;
+                }
+                else {
+                    table[zigzag_c[i]] = readUnsignedShort(pos);
+                    pos += 2;
+                }
+                if( table[zigzag_c[i]] == 0 ) {
+                    throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+                }
+            }
+            quant_tables[table_id] = table;
+        }
+    }
+
+    private void parseScan(int pos) throws JpegRegionEditorException {
+        int n_scan_components = readUnsignedByte(pos);
+        if( n_scan_components != n_components ) {
+            // multiple scans (e.g., a non-interleaved colour image)
+            throw new JpegRegionEditorException(JpegRegionEditorException.UNSUPPORTED_FORMAT);
+        }
+        dc_table_index = new int[n_components];
+        ac_table_index = new int[n_components];
+        for(int i=0;i<n_components;i++) {
+            int tables = readUnsignedByte(pos + 2 + 2*i);
+            dc_table_index[i] = tables >> 4;
+            ac_table_index[i] = tables & 0xf;
+            if( dc_table_index[i] > 3 || ac_table_index[i] > 3 || dc_tables[dc_table_index[i]] == null || ac_tables[ac_table_index[i]] == null || quant_tables[quant_table_index[i]] == null ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+        }
+        int spectral_start = readUnsignedByte(pos + 1 + 2*n_components);
+        int spectral_end = readUnsignedByte(pos + 2 + 2*n_components);
+        int approximation = readUnsignedByte(pos + 3 + 2*n_components);
+        if( spectral_start != 0 || spectral_end != 63 || approximation != 0 ) {
+            throw new JpegRegionEditorException(JpegRegionEditorException.UNSUPPORTED_FORMAT);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Returns the width of an MCU in pixels. Regions passed to replaceRegion() must be aligned to
+     *  this.
+     */
+    public int getMCUWidth() {
+        return mcu_width;
+    }
+
+    /** Returns the height of an MCU in pixels. Regions passed to replaceRegion() must be aligned
+     *  to this.
+     */
+    public int getMCUHeight() {
+        return mcu_height;
+    }
+
+    public int getRestartInterval() {
+        return restart_interval;
+    }
+
+    /** Returns the smallest region aligned to MCU boundaries (and clipped to the image) that
+     *  contains the supplied region.
+     * @return Array of {x, y, width, height}.
+     */
+    public int [] getAlignedRegion(int x, int y, int region_width, int region_height) {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + region_width, width);
+        int y1 = Math.min(y + region_height, height);
+        x0 = (x0/mcu_width)*mcu_width;
+        y0 = (y0/mcu_height)*mcu_height;
+        x1 = Math.min(((x1 + mcu_width - 1)/mcu_width)*mcu_width, width);
+        y1 = Math.min(((y1 + mcu_height - 1)/mcu_height)*mcu_height, height);
+        return new int[]{x0, y0, Math.max(x1 - x0, 0), Math.max(y1 - y0, 0)};
+    }
+
+    private int getBlocksPerMCU() {
+        int n = 0;
+        for(int c=0;c<n_components;c++) {
+            n += h_samp[c]*v_samp[c];
+        }
+        return n;
+    }
+
+    /** Replaces the pixels in a region of the JPEG.
+     * @param region_x      The region, which must be aligned as returned by getAlignedRegion().
+     * @param original_argb The pixels of the region as decoded from this JPEG, in ARGB format with
+     *                      a stride of region_width. If non-null, only MCUs where new_argb differs
+     *                      from original_argb are re-encoded; if null, all MCUs in the region are
+     *                      re-encoded.
+     * @param new_argb      The new pixels of the region, in ARGB format with a stride of
+     *                      region_width. The alpha channel is ignored.
+     * @return The new JPEG data, or null if no pixels have changed.
+     */
+    public byte [] replaceRegion(int region_x, int region_y, int region_width, int region_height, int [] original_argb, int [] new_argb) throws JpegRegionEditorException {
+        if( region_x < 0 || region_y < 0 || region_width <= 0 || region_height <= 0 ||
+                region_x % mcu_width != 0 || region_y % mcu_height != 0 ||
+                ( (region_x + region_width) % mcu_width != 0 && region_x + region_width != width ) ||
+                ( (region_y + region_height) % mcu_height != 0 && region_y + region_height != height ) ||
+                region_x + region_width > width || region_y + region_height > height ||
+                new_argb.length < region_width*region_height || ( original_argb != null && original_argb.length < region_width*region_height ) ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid region");
+        }
+
+        // find which MCUs have changed
+        int region_mcu_x = region_x/mcu_width;
+        int region_mcu_y = region_y/mcu_height;
+        int region_mcus_x = (region_width + mcu_width - 1)/mcu_width;
+        int region_mcus_y = (region_height + mcu_height - 1)/mcu_height;
+        boolean [] changed = new boolean[region_mcus_x*region_mcus_y];
+        int first_changed = -1;
+        int last_changed = -1;
+        for(int my=0;my<region_mcus_y;my++) {
+            for(int mx=0;mx<region_mcus_x;mx++) {
+                boolean this_changed = original_argb == null || mcuChanged(mx, my, region_width, region_height, original_argb, new_argb);
+                if( this_changed ) {
+                    changed[my*region_mcus_x + mx] = true;
+                    int mcu_index = (region_mcu_y + my)*mcus_x + region_mcu_x + mx;
+                    if( first_changed == -1 )
+                        first_changed = mcu_index;
+                    last_changed = mcu_index;
+                }
+            }
+        }
+        if( first_changed == -1 ) {
+            return null;
+        }
+
+        int n_mcus = mcus_x*mcus_y;
+        int start_mcu = 0;
+        int end_mcu = n_mcus;
+        int reader_start = scan_start;
+        if( restart_interval > 0 ) {
+            // skip whole restart intervals before the first changed MCU, and copy whole intervals
+            // after the last changed MCU
+            int first_interval = first_changed/restart_interval;
+            start_mcu = first_interval*restart_interval;
+            end_mcu = Math.min((last_changed/restart_interval + 1)*restart_interval, n_mcus);
+            reader_start = findRestartInterval(first_interval);
+        }
+
+        BitReader reader = new BitReader(data, reader_start, length);
+        int blocks_per_mcu = getBlocksPerMCU();
+        int [][] blocks = new int[blocks_per_mcu][64];
+        int [] decode_preds = new int[n_components];
+
+        // decode the MCUs before the first changed MCU, only in order to find where it starts
+        for(int mcu=start_mcu;mcu<first_changed;mcu++) {
+            if( restart_interval > 0 && mcu > start_mcu && mcu % restart_interval == 0 ) {
+                reader.readRestartMarker();
+                Arrays.fill(decode_preds, 0);
+            }
+            decodeMCU(reader, decode_preds, blocks);
+        }
+
+        // copy everything up to here unchanged
+        int copy_end = reader.getByteOffset();
+        int bits_read = reader.getBitsReadInByte();
+        BitWriter writer = new BitWriter(length + length/8);
+        writer.writeBytes(data, 0, copy_end);
+        if( bits_read > 0 ) {
+            writer.writeBits((data[copy_end] & 0xff) >>> (8 - bits_read), bits_read);
+        }
+        int [] encode_preds = decode_preds.clone();
+
+        float [][] ycc = new float[3][mcu_width*mcu_height];
+        for(int mcu=first_changed;mcu<end_mcu;mcu++) {
+            if( restart_interval > 0 && mcu > start_mcu && mcu % restart_interval == 0 ) {
+                reader.readRestartMarker();
+                Arrays.fill(decode_preds, 0);
+                writer.flush();
+                writer.writeMarker(0xd0 + ((mcu/restart_interval - 1) & 7));
+                Arrays.fill(encode_preds, 0);
+            }
+            decodeMCU(reader, decode_preds, blocks);
+            int mcu_x = mcu % mcus_x;
+            int mcu_y = mcu / mcus_x;
+            int mx = mcu_x - region_mcu_x;
+            int my = mcu_y - region_mcu_y;
+            if( mx >= 0 && mx < region_mcus_x && my >= 0 && my < region_mcus_y && changed[my*region_mcus_x + mx] ) {
+                convertMCU(mcu_x, mcu_y, region_x, region_y, region_width, new_argb, ycc);
+                forwardDCTMCU(mcu_x, mcu_y, ycc, blocks);
+            }
+            encodeMCU(writer, encode_preds, blocks);
+        }
+        writer.flush();
+
+        // copy the rest unchanged - either from the restart marker after the last re-encoded
+        // interval, or the marker at the end of the scan
+        int rest_start = reader.findMarker();
+        writer.writeBytes(data, rest_start, length - rest_start);
+        return writer.toByteArray();
+    }
+
+    /** Returns the offset of the start of the entropy coded data for the supplied restart interval.
+     */
+    private int findRestartInterval(int interval) throws JpegRegionEditorException {
+        int pos = scan_start;
+        int count = 0;
+        while( count < interval ) {
+            if( pos+1 >= length ) {
+                throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+            }
+            if( (data[pos] & 0xff) == 0xff ) {
+                int marker = data[pos+1] & 0xff;
+                if( marker >= 0xd0 && marker <= 0xd7 ) {
+                    count++;
+                    pos += 2;
+                    continue;
+                }
+                else if( marker != 0 && marker != 0xff ) {
+                    // end of scan before the expected number of restart markers
+                    throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+                }
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private boolean mcuChanged(int mx, int my, int region_width, int region_height, int [] original_argb, int [] new_argb) {
+        int x0 = mx*mcu_width;
+        int y0 = my*mcu_height;
+        int x1 = Math.min(x0 + mcu_width, region_width);
+        int y1 = Math.min(y0 + mcu_height, region_height);
+        for(int y=y0;y<y1;y++) {
+            int index = y*region_width;
+            for(int x=x0;x<x1;x++) {
+                if( ((original_argb[index+x] ^ new_argb[index+x]) & 0xffffff) != 0 )
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void decodeMCU(BitReader reader, int [] preds, int [][] blocks) throws JpegRegionEditorException {
+        int block = 0;
+        for(int c=0;c<n_components;c++) {
+            HuffmanTable dc_table = dc_tables[dc_table_index[c]];
+            HuffmanTable ac_table = ac_tables[ac_table_index[c]];
+            int n_blocks = h_samp[c]*v_samp[c];
+            for(int b=0;b<n_blocks;b++) {
+                int [] coeffs = blocks[block++];
+                Arrays.fill(coeffs, 0);
+                int size = dc_table.decode(reader);
+                if( size > 11 ) {
+                    throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+                }
+                int diff = size == 0 ? 0 : extend(reader.getBits(size), size);
+                preds[c] += diff;
+                coeffs[0] = preds[c];
+                int k = 1;
+                while( k < 64 ) {
+                    int rs = ac_table.decode(reader);
+                    int run = rs >> 4;
+                    size = rs & 0xf;
+                    if( size == 0 ) {
+                        if( run == 15 ) {
+                            k += 16;
+                            continue;
+                        }
+                        break; // end of block
+                    }
+                    k += run;
+                    if( k > 63 ) {
+                        throw new JpegRegionEditorException(JpegRegionEditorException.INVALID_DATA);
+                    }
+                    coeffs[zigzag_c[k]] = extend(reader.getBits(size), size);
+                    k++;
+                }
+            }
+        }
+    }
+
+    private void encodeMCU(BitWriter writer, int [] preds, int [][] blocks) throws JpegRegionEditorException {
+        int block = 0;
+        for(int c=0;c<n_components;c++) {
+            HuffmanTable dc_table = dc_tables[dc_table_index[c]];
+            HuffmanTable ac_table = ac_tables[ac_table_index[c]];
+            int n_blocks = h_samp[c]*v_samp[c];
+            for(int b=0;b<n_blocks;b++) {
+                int [] coeffs = blocks[block++];
+                int diff = coeffs[0] - preds[c];
+                preds[c] = coeffs[0];
+                int size = bitLength(diff);
+                dc_table.encode(writer, size);
+                if( size > 0 )
+                    writer.writeBits(diff < 0 ? diff - 1 : diff, size);
+                int run = 0;
+                for(int k=1;k<64;k++) {
+                    int value = coeffs[zigzag_c[k]];
+                    if( value == 0 ) {
+                        run++;
+                        continue;
+                    }
+                    while( run > 15 ) {
+                        ac_table.encode(writer, 0xf0);
+                        run -= 16;
+                    }
+                    size = bitLength(value);
+                    ac_table.encode(writer, (run << 4) | size);
+                    writer.writeBits(value < 0 ? value - 1 : value, size);
+                    run = 0;
+                }
+                if( run > 0 ) {
+                    ac_table.encode(writer, 0x00); // end of block
+                }
+            }
+        }
+    }
+
+    private static int extend(int value, int size) {
+        return value < (1 << (size-1)) ? value - (1 << size) + 1 : value;
+    }
+
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /** Converts the pixels of an MCU to YCbCr (or just Y for greyscale), at full resolution, with
+     *  pixels outside of the image repeating the edge pixels.
+     */
+    private void convertMCU(int mcu_x, int mcu_y, int region_x, int region_y, int region_width, int [] argb, float [][] ycc) {
+        int x0 = mcu_x*mcu_width;
+        int y0 = mcu_y*mcu_height;
+        for(int y=0;y<mcu_height;y++) {
+            int py = Math.min(y0 + y, height-1) - region_y;
+            for(int x=0;x<mcu_width;x++) {
+                int px = Math.min(x0 + x, width-1) - region_x;
+                int color = argb[py*region_width + px];
+                int r = (color >> 16) & 0xff;
+                int g = (color >> 8) & 0xff;
+                int b = color & 0xff;
+                int index = y*mcu_width + x;
+                ycc[0][index] = 0.299f*r + 0.587f*g + 0.114f*b;
+                if( n_components == 3 ) {
+                    ycc[1][index] = -0.168736f*r - 0.331264f*g + 0.5f*b + 128.0f;
+                    ycc[2][index] = 0.5f*r - 0.418688f*g - 0.081312f*b + 128.0f;
+                }
+            }
+        }
+    }
+
+    /** Computes the quantized DCT coefficients for each block of an MCU, from the full resolution
+     *  YCbCr values (downsampling chroma components as required).
+     */
+    private void forwardDCTMCU(int mcu_x, int mcu_y, float [][] ycc, int [][] blocks) {
+        float [] samples = new float[64];
+        float [] temp = new float[64];
+        int block = 0;
+        for(int c=0;c<n_components;c++) {
+            int scale_x = mcu_width/(8*h_samp[c]);
+            int scale_y = mcu_height/(8*v_samp[c]);
+            float inv_n = 1.0f/(scale_x*scale_y);
+            int [] quant_table = quant_tables[quant_table_index[c]];
+            for(int by=0;by<v_samp[c];by++) {
+                for(int bx=0;bx<h_samp[c];bx++) {
+                    for(int y=0;y<8;y++) {
+                        for(int x=0;x<8;x++) {
+                            float sum = 0.0f;
+                            int sx0 = (bx*8 + x)*scale_x;
+                            int sy0 = (by*8 + y)*scale_y;
+                            for(int dy=0;dy<scale_y;dy++) {
+                                int index = (sy0 + dy)*mcu_width + sx0;
+                                for(int dx=0;dx<scale_x;dx++) {
+                                    sum += ycc[c][index + dx];
+                                }
+                            }
+                            samples[y*8 + x] = sum*inv_n - 128.0f;
+                        }
+                    }
+                    forwardDCT(samples, temp, quant_table, blocks[block++]);
+                }
+            }
+        }
+    }
+
+    private static void forwardDCT(float [] samples, float [] temp, int [] quant_table, int [] coeffs) {
+        // rows
+        for(int y=0;y<8;y++) {
+            for(int u=0;u<8;u++) {
+                float sum = 0.0f;
+                for(int x=0;x<8;x++) {
+                    sum += dct_c[u][x]*samples[y*8 + x];
+                }
+                temp[y*8 + u] = sum;
+            }
+        }
+        // columns
+        for(int u=0;u<8;u++) {
+            for(int v=0;v<8;v++) {
+                float sum = 0.0f;
+                for(int y=0;y<8;y++) {
+                    sum += dct_c[v][y]*temp[y*8 + u];
+                }
+                int index = v*8 + u;
+                int value = Math.round(sum/quant_table[index]);
+                // clamp to the range allowed for baseline
+                int max = index == 0 ? 2047 : 1023;
+                coeffs[index] = Math.max(Math.min(value, max), -max);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package net.sourceforge.opencamera;
+
+/** Exception for JpegRegionEditor class.
+ */
+@SuppressWarnings("WeakerAccess")
+public class JpegRegionEditorException extends Exception {
+    final static public int UNSUPPORTED_FORMAT = 0; // the JPEG isn't baseline (or extended sequential Huffman) with 8-bit samples and a single scan
+    final static public int INVALID_DATA = 1; // the JPEG data is corrupt
+    final static public int MISSING_HUFFMAN_CODE = 2; // the new region needs a Huffman code that isn't in the JPEG's tables
+
+    final private int code;
+
+    JpegRegionEditorException(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,132 @@
+package net.sourceforge.opencamera;
+
+import java.util.Locale;
+
+/** An in-process index of the most recent media in the save folder, so that StorageUtils doesn't
+ *  need to query MediaStore (or worse, walk the Storage Access Framework folder) every time the
+ *  gallery icon is updated.
+ *  The index is set from a full scan of the folder, and then updated directly whenever Open Camera
+ *  saves a new photo or video. In order to detect changes made outside of Open Camera (e.g., the
+ *  user deleting files with another application), the caller supplies a token that should change
+ *  whenever the folder is modified (such as the folder's last modified time); if the token differs
+ *  from when the index was built, the index is no longer valid, and the caller should rescan. Since
+ *  our own writes also modify the folder, after adding media the token is refreshed on the next
+ *  call to isValid().
+ *  The preference for non-RAW images matches StorageUtils.getLatestMedia(): if the most recent
+ *  image is a RAW (DNG) file, and the previous image has the same filename (apart from the
+ *  extension), then that image is preferred (as happens when saving in RAW+JPEG mode).
+ *  It is thread safe.
+ */
+public class LatestMediaIndex<T> {
+    public static final long token_unknown_c = -1;
+
+    private boolean valid;
+    private String folder_key; // identifies the folder that the index is for
+    private long token;
+    private boolean refresh_token; // whether to take the next token as the current value, due to our own writes
+    private T latest; // may be null if the folder has no media
+    private String latest_filename;
+    private boolean latest_video;
+
+    private int n_hits;
+    private int n_misses;
+
+    /** Returns whether the index can be used for the supplied folder.
+     * @param folder_key Identifies the folder.
+     * @param token      Should change whenever the folder is modified, or token_unknown_c if no
+     *                   such token is available - in which case the index is never valid, so the
+     *                   caller always rescans.
+     */
+    public synchronized boolean isValid(String folder_key, long token) {
+        boolean ok = valid && token != token_unknown_c && folder_key != null && folder_key.equals(this.folder_key);
+        if( ok ) {
+            if( refresh_token ) {
+                this.token = token;
+                refresh_token = false;
+            }
+            else if( token != this.token ) {
+                // modified outside of Open Camera, so need to rescan
+                valid = false;
+                ok = false;
+            }
+        }
+        if( ok )
+            n_hits++;
+        else
+            n_misses++;
+        return ok;
+    }
+
+    /** Returns the most recent media, only meaningful if isValid() returned true.
+     */
+    public synchronized T getLatest() {
+        return latest;
+    }
+
+    /** Sets the index from a full scan of the folder.
+     * @param token    The token from before the scan was started.
+     * @param latest   The most recent media, or null if there isn't any.
+     * @param filename The filename of the media (including the extension).
+     * @param video    Whether the media is a video.
+     */
+    public synchronized void setFromScan(String folder_key, long token, T latest, String filename, boolean video) {
+        this.valid = true;
+        this.folder_key = folder_key;
+        this.token = token;
+        this.refresh_token = false;
+        this.latest = latest;
+        this.latest_filename = filename;
+        this.latest_video = video;
+    }
+
+    /** Updates the index for new media that has been saved to the folder. If the index isn't
+     *  currently valid for this folder, this does nothing (a rescan will find the new media).
+     * @param filename The filename of the media (including the extension).
+     * @param video    Whether the media is a video.
+     */
+    public synchronized void add(String folder_key, T media, String filename, boolean video) {
+        if( !valid || folder_key == null || !folder_key.equals(this.folder_key) ) {
+            return;
+        }
+        refresh_token = true;
+        if( !video && filename != null && filenameIsRaw(filename) && latest != null && !latest_video && latest_filename != null &&
+                !filenameIsRaw(latest_filename) && filenameWithoutExtension(filename).equals(filenameWithoutExtension(latest_filename)) ) {
+            // prefer the non-RAW version of this image
+            return;
+        }
+        this.latest = media;
+        this.latest_filename = filename;
+        this.latest_video = video;
+    }
+
+    /** Forces the next call to isValid() to return false, e.g., if media has been deleted.
+     */
+    public synchronized void invalidate() {
+        valid = false;
+        latest = null;
+        latest_filename = null;
+    }
+
+    /** Returns the number of calls to isValid() that returned true.
+     */
+    public synchronized int getNHits() {
+        return n_hits;
+    }
+
+    /** Returns the number of calls to isValid() that returned false.
+     */
+    public synchronized int getNMisses() {
+        return n_misses;
+    }
+
+    static boolean filenameIsRaw(String filename) {
+        return filename.toLowerCase(Locale.US).endsWith(".dng");
+    }
+
+    static String filenameWithoutExtension(String filename) {
+        String filename_without_ext = filename.toLowerCase(Locale.US);
+        if( filename_without_ext.indexOf(".") > 0 )
+            filename_without_ext = filename_without_ext.substring(0, filename_without_ext.lastIndexOf("."));
+        return filename_without_ext;
+    }
+}
@@ -0,0 +1,142 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A least recently used cache, bounded by the total size of its entries (e.g., in bytes) rather
+ *  than the number of entries. Subclasses define the size of each entry with sizeOf(), and can be
+ *  notified when entries are removed with onRemoved() (e.g., to delete a corresponding file).
+ *  Similar to android.util.LruCache, but this class doesn't depend on any Android classes, so that
+ *  it can be unit tested. It is thread safe.
+ */
+public abstract class LruSizeCache<K, V> {
+    private final long max_size;
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<>(16, 0.75f, true); // in order of access, least recent first
+    private long size;
+
+    private int n_hits;
+    private int n_misses;
+
+    /**
+     * @param max_size The maximum total size of the entries.
+     */
+    public LruSizeCache(long max_size) {
+        if( max_size <= 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid max_size: " + max_size);
+        }
+        this.max_size = max_size;
+    }
+
+    /** Returns the size of an entry, in the same units as max_size.
+     */
+    protected abstract long sizeOf(K key, V value);
+
+    /** Called when an entry is removed, whether due to being evicted, replaced, or explicitly
+     *  removed. Called whilst holding the cache's lock.
+     */
+    protected void onRemoved(K key, V value) {
+    }
+
+    /** Returns the value for key, or null if not in the cache. Marks the entry as most recently
+     *  used.
+     */
+    public synchronized V get(K key) {
+        V value = map.get(key);
+        if( value != null )
+            n_hits++;
+        else
+            n_misses++;
+        return value;
+    }
+
+    public synchronized boolean contains(K key) {
+        return map.containsKey(key);
+    }
+
+    /** Adds or replaces an entry, as the most recently used, and then evicts the least recently used
+     *  entries until the total size is within the maximum. Note that an entry that is larger than
+     *  the maximum size is removed straight away.
+     */
+    public synchronized void put(K key, V value) {
+        if( key == null || value == null ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("null key or value");
+        }
+        V old_value = map.put(key, value);
+        size += sizeOf(key, value);
+        if( old_value != null ) {
+            size -= sizeOf(key, old_value);
+            if( old_value != value ) {
+                onRemoved(key, old_value);
+            }
+        }
+        trimToSize(max_size);
+    }
+
+    /** Removes the entry for key, if present.
+     * @return The removed value, or null if not present.
+     */
+    public synchronized V remove(K key) {
+        V value = map.remove(key);
+        if( value != null ) {
+            size -= sizeOf(key, value);
+            onRemoved(key, value);
+        }
+        return value;
+    }
+
+    /** Evicts the least recently used entries until the total size is at most the supplied size.
+     */
+    public synchronized void trimToSize(long max_size) {
+        Iterator<Map.Entry<K, V>> iter = map.entrySet().iterator();
+        while( size > max_size && iter.hasNext() ) {
+            Map.Entry<K, V> entry = iter.next();
+            iter.remove();
+            size -= sizeOf(entry.getKey(), entry.getValue());
+            onRemoved(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** Returns the keys, in order of least recently used first. The returned list is a copy, so
+     *  may be used to remove entries.
+     */
+    public synchronized List<K> getKeys() {
+        return new ArrayList<>(map.keySet());
+    }
+
+    /** Removes all entries.
+     */
+    public synchronized void clear() {
+        trimToSize(-1);
+    }
+
+    /** Returns the total size of the entries.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return max_size;
+    }
+
+    public synchronized int getNEntries() {
+        return map.size();
+    }
+
+    /** Returns the number of calls to get() that found an entry.
+     */
+    public synchronized int getNHits() {
+        return n_hits;
+    }
+
+    /** Returns the number of calls to get() that didn't find an entry.
+     */
+    public synchronized int getNMisses() {
+        return n_misses;
+    }
+}
@@ -2337,7 +2337,9 @@ public class MainActivity extends AppCompatActivity {
                 case "preference_zebra_stripes_background_color":
                 case "preference_focus_peaking":
                 case "preference_focus_peaking_color":
+                case "preference_overlay_cpu_budget":
                 case "preference_show_video_max_amp":
+                case "preference_show_frame_stats":
                 case "preference_grid":
                 case "preference_crop_guide":
                 case "preference_thumbnail_animation":
@@ -2369,8 +2371,10 @@ public class MainActivity extends AppCompatActivity {
                     //case "preference_raw_expo_bracketing": // as above
                     //case "preference_raw_focus_bracketing": // as above
                     //case "preference_nr_save": // we could probably whitelist this, but have not done so in case in future we allow RAW to be saved for the base image
+                case "preference_fast_burst_keep_best":
                     //case "preference_hdr_save_expo": // we need to update if this is changed, as it affects whether we request RAW or not in HDR mode when RAW is enabled
                 case "preference_hdr_contrast_enhancement":
+                case "preference_hdr_backend":
                     //case "preference_expo_bracketing_n_images": // need to set up camera controller
                     //case "preference_expo_bracketing_stops": // need to set up camera controller
                 case "preference_panorama_crop":
@@ -2479,6 +2483,7 @@ public class MainActivity extends AppCompatActivity {
         bundle.putBoolean("supports_burst_raw", this.supportsBurstRaw());
         bundle.putBoolean("supports_hdr", this.supportsHDR());
         bundle.putBoolean("supports_nr", this.supportsNoiseReduction());
+        bundle.putBoolean("supports_fast_burst", this.supportsFastBurst());
         bundle.putBoolean("supports_panorama", this.supportsPanorama());
         bundle.putBoolean("has_gyro_sensors", applicationInterface.getGyroSensor().hasSensors());
         bundle.putBoolean("supports_expo_bracketing", this.supportsExpoBracketing());
@@ -3688,10 +3693,19 @@ public class MainActivity extends AppCompatActivity {
                     is_raw = media.filename != null && StorageUtils.filenameIsRaw(media.filename);
                     is_video = media.video;
 
-                    if( ghost_image_last && !media.video ) {
+                    ThumbnailCache thumbnailCache = applicationInterface.getThumbnailCache();
+                    boolean want_full_resolution = ghost_image_last && !media.video;
+                    thumbnail = thumbnailCache.get(media, want_full_resolution);
+                    final boolean from_cache = thumbnail != null;
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "from_cache: " + from_cache);
+                    boolean full_resolution = from_cache && want_full_resolution;
+
+                    if( thumbnail == null && want_full_resolution ) {
                         if( MyDebug.LOG )
                             Log.d(TAG, "load full size bitmap for ghost image last photo");
                         thumbnail = loadThumbnailFromUri(media.uri, 1, media.mediastore);
+                        full_resolution = thumbnail != null;
                     }
                     if( thumbnail == null ) {
                         try {
@@ -3752,7 +3766,7 @@ public class MainActivity extends AppCompatActivity {
                             exception.printStackTrace();
                         }
                     }
-                    if( thumbnail != null ) {
+                    if( thumbnail != null && !from_cache ) {
                         if( MyDebug.LOG )
                             Log.d(TAG, "thumbnail orientation is " + media.orientation);
                         if( media.orientation != 0 ) {
@@ -3773,6 +3787,7 @@ public class MainActivity extends AppCompatActivity {
                                     Log.d(TAG, "failed to rotate thumbnail");
                             }
                         }
+                        thumbnailCache.put(media, full_resolution, thumbnail);
                     }
                 }
                 //return thumbnail;
@@ -14,6 +14,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.JpegBufferPool;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 import net.sourceforge.opencamera.preview.ApplicationInterface;
 import net.sourceforge.opencamera.preview.BasicApplicationInterface;
@@ -48,6 +49,7 @@ import android.preference.PreferenceManager;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.provider.Settings;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.Pair;
 import android.view.MotionEvent;
@@ -76,6 +78,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
     private final LocationSupplier locationSupplier;
     private final GyroSensor gyroSensor;
     private final StorageUtils storageUtils;
+    private final ThumbnailCache thumbnailCache;
     private final DrawPreview drawPreview;
     private final ImageSaver imageSaver;
 
@@ -168,6 +171,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         this.storageUtils = new StorageUtils(main_activity, this);
         if( MyDebug.LOG )
             Log.d(TAG, "MyApplicationInterface: time after creating storage utils: " + (System.currentTimeMillis() - debug_time));
+        DisplayMetrics display_metrics = main_activity.getResources().getDisplayMetrics();
+        this.thumbnailCache = new ThumbnailCache(new File(main_activity.getCacheDir(), "thumbnails"), Math.max(display_metrics.widthPixels, display_metrics.heightPixels));
         this.drawPreview = new DrawPreview(main_activity, this);
 
         this.imageSaver = new ImageSaver(main_activity);
@@ -221,6 +226,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         if( imageSaver != null ) {
             imageSaver.onDestroy();
         }
+        thumbnailCache.onDestroy();
     }
 
     LocationSupplier getLocationSupplier() {
@@ -235,6 +241,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return storageUtils;
     }
 
+    public ThumbnailCache getThumbnailCache() {
+        return thumbnailCache;
+    }
+
     public ImageSaver getImageSaver() {
         return imageSaver;
     }
@@ -1367,14 +1377,14 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             }
         }
 
-        int photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
-        if( imageSaver.queueWouldBlock(photo_cost) ) {
+        if( imageSaver.queueWouldBlock(n_raw, n_jpegs) ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "canTakeNewPhoto: no, as queue would block");
             return false;
         }
 
         // even if the queue isn't full, we may apply additional limits
+        int photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
         int n_images_to_save = imageSaver.getNImagesToSave();
         PhotoMode photo_mode = getPhotoMode();
         if( photo_mode == PhotoMode.FastBurst || photo_mode == PhotoMode.Panorama ) {
@@ -1508,6 +1518,35 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return 1;
     }
 
+    /** Returns which implementation to use for processing HDR and DRO photos.
+     */
+    public HDRProcessor.HDRBackend getHDRBackendPref() {
+        String value = sharedPreferences.getString(PreferenceKeys.HDRBackendPreferenceKey, "preference_hdr_backend_renderscript");
+        if( value.equals("preference_hdr_backend_java") )
+            return HDRProcessor.HDRBackend.HDRBACKEND_JAVA;
+        return HDRProcessor.HDRBackend.HDRBACKEND_RENDERSCRIPT;
+    }
+
+    /** Returns the number of the sharpest images of a fast burst to save, or 0 to save all of the
+     *  images.
+     */
+    public int getFastBurstKeepBestPref() {
+        if( getPhotoMode() != PhotoMode.FastBurst )
+            return 0;
+        String keep_best_value = sharedPreferences.getString(PreferenceKeys.FastBurstKeepBestPreferenceKey, "0");
+        int keep_best;
+        try {
+            keep_best = Integer.parseInt(keep_best_value);
+        }
+        catch(NumberFormatException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to parse FastBurstKeepBestPreferenceKey value: " + keep_best_value);
+            e.printStackTrace();
+            keep_best = 0;
+        }
+        return Math.max(keep_best, 0);
+    }
+
     @Override
     public boolean getBurstForNoiseReduction() {
         PhotoMode photo_mode = getPhotoMode();
@@ -1746,6 +1785,11 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return imageSaver.getMaxDNG();
     }
 
+    @Override
+    public JpegBufferPool getJpegBufferPool() {
+        return imageSaver.getJpegBufferPool();
+    }
+
     @Override
     public boolean useCamera2FakeFlash() {
         return sharedPreferences.getBoolean(PreferenceKeys.Camera2FakeFlashPreferenceKey, false);
@@ -1916,6 +1960,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     panorama_dir_left_to_right = indx == 0;
                     if( MyDebug.LOG )
                         Log.d(TAG, "set panorama_dir_left_to_right to " + panorama_dir_left_to_right);
+                    // also set on the request now, so the following images can be aligned as they're captured
+                    ImageSaver.Request request = imageSaver.getImageBatchRequest();
+                    if( request != null )
+                        request.panorama_dir_left_to_right = panorama_dir_left_to_right;
                 }
                 main_activity.takePicturePressed(false, false);
             }
@@ -2398,6 +2446,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                         thumbnail = scaled_thumbnail;
                     }
                 }
+                // cache the thumbnail, so MainActivity.updateGalleryIcon() won't need to extract it from the video again
+                // n.b., must be done before passing to updateThumbnail(), as the thumbnail may be recycled on the UI thread
+                String thumbnail_filename = video_method == VideoMethod.FILE ? new File(filename).getName() : storageUtils.getFileName(uri);
+                thumbnailCache.putSavedThumbnail(thumbnail_filename, thumbnail, false);
                 final Bitmap thumbnail_f = thumbnail;
                 main_activity.runOnUiThread(new Runnable() {
                     public void run() {
@@ -2468,6 +2520,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
                 // we also want to save the uri - we can use the media uri directly, rather than having to scan it
                 storageUtils.setLastMediaScanned(uri, false);
+                storageUtils.addLatestMedia(uri, true, true);
 
                 done = true;
             }
@@ -2687,7 +2740,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             // must be in photo snapshot while recording video mode, only support standard photo mode
             photo_mode = PhotoMode.Standard;
         }
-        if( photo_mode == PhotoMode.NoiseReduction ) {
+        if( photo_mode == PhotoMode.NoiseReduction || (photo_mode == PhotoMode.FastBurst && getFastBurstKeepBestPref() > 0) ) {
             boolean image_capture_intent = isImageCaptureIntent();
             boolean do_in_background = saveInBackground(image_capture_intent);
             imageSaver.finishImageBatch(do_in_background);
@@ -3159,7 +3212,13 @@ public class MyApplicationInterface extends BasicApplicationInterface {
      * @param current_date The current date/time stamp for the images.
      * @return Whether saving was successful.
      */
-    private boolean saveImage(boolean save_expo, List<byte []> images, Date current_date) {
+    /** Saves the supplied images.
+     * @param jpeg_buffer If non-null, then images should be null, and the single image is taken from
+     *                    this pooled buffer instead - this is only supported for photo modes that
+     *                    don't use image batches (see onPooledPictureTaken()). Ownership of the
+     *                    buffer passes to the ImageSaver.
+     */
+    private boolean saveImage(boolean save_expo, List<byte []> images, JpegBufferPool.Buffer jpeg_buffer, Date current_date) {
         if( MyDebug.LOG )
             Log.d(TAG, "saveImage");
 
@@ -3269,6 +3328,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             photo_mode = PhotoMode.Standard;
         }
 
+        // if non-zero, only save the sharpest images of a fast burst
+        int fast_burst_keep_best = photo_mode == PhotoMode.FastBurst ? getFastBurstKeepBestPref() : 0;
+
         if( !main_activity.is_test && photo_mode == PhotoMode.Panorama && gyroSensor.isRecording() && gyroSensor.hasTarget() && !gyroSensor.isTargetAchieved() ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "ignore panorama image as target no longer achieved!");
@@ -3276,7 +3338,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             panorama_pic_accepted = false;
             success = true; // still treat as success
         }
-        else if( photo_mode == PhotoMode.NoiseReduction || photo_mode == PhotoMode.Panorama ) {
+        else if( photo_mode == PhotoMode.NoiseReduction || photo_mode == PhotoMode.Panorama || fast_burst_keep_best > 0 ) {
             boolean first_image;
             if( photo_mode == PhotoMode.Panorama ) {
                 panorama_pic_accepted = true;
@@ -3309,8 +3371,16 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     }
                 }
 
+                ImageSaver.Request.ProcessType process_type;
+                if( photo_mode == PhotoMode.NoiseReduction )
+                    process_type = ImageSaver.Request.ProcessType.AVERAGE;
+                else if( photo_mode == PhotoMode.Panorama )
+                    process_type = ImageSaver.Request.ProcessType.PANORAMA;
+                else
+                    process_type = ImageSaver.Request.ProcessType.BEST_OF_BURST;
+
                 imageSaver.startImageBatch(true,
-                        photo_mode == PhotoMode.NoiseReduction ? ImageSaver.Request.ProcessType.AVERAGE : ImageSaver.Request.ProcessType.PANORAMA,
+                        process_type,
                         save_base,
                         image_capture_intent, image_capture_intent_uri,
                         using_camera2,
@@ -3333,6 +3403,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     imageSaver.getImageBatchRequest().camera_view_angle_x = main_activity.getPreview().getViewAngleX(false);
                     imageSaver.getImageBatchRequest().camera_view_angle_y = main_activity.getPreview().getViewAngleY(false);
                 }
+                else if( process_type == ImageSaver.Request.ProcessType.BEST_OF_BURST ) {
+                    imageSaver.getImageBatchRequest().best_of_burst = new BestOfBurstSelector<>(fast_burst_keep_best);
+                }
             }
 
             float [] gyro_rotation_matrix = null;
@@ -3353,7 +3426,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     // (It wouldn't be a huge problem if we did start from _1, but it would be inconsistent with the naming
                     // of images where images.size() > 1 (e.g., expo bracketing mode) where we also start from _0.)
                     force_suffix ? (n_capture_images-1) : 0,
-                    save_expo, images,
+                    save_expo, images, jpeg_buffer,
                     image_capture_intent, image_capture_intent_uri,
                     using_camera2,
                     image_format, image_quality,
@@ -3362,6 +3435,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     mirror,
                     current_date,
                     preference_hdr_contrast_enhancement,
+                    getHDRBackendPref(),
                     iso,
                     exposure_time,
                     zoom_factor,
@@ -3391,7 +3465,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         List<byte []> images = new ArrayList<>();
         images.add(data);
 
-        boolean success = saveImage(false, images, current_date);
+        boolean success = saveImage(false, images, null, current_date);
 
         if( MyDebug.LOG )
             Log.d(TAG, "onPictureTaken complete, success: " + success);
@@ -3399,6 +3473,29 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return success;
     }
 
+    @Override
+    public boolean onPooledPictureTaken(JpegBufferPool.Buffer buffer, Date current_date) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onPooledPictureTaken");
+
+        PhotoMode photo_mode = getPhotoMode();
+        if( !main_activity.getPreview().isVideo() && (photo_mode == PhotoMode.NoiseReduction || photo_mode == PhotoMode.Panorama || getFastBurstKeepBestPref() > 0) ) {
+            // image batches hold onto the images until the batch is processed, so copy out of the pooled buffer
+            return super.onPooledPictureTaken(buffer, current_date);
+        }
+
+        n_capture_images++;
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_capture_images is now " + n_capture_images);
+
+        boolean success = saveImage(false, null, buffer, current_date);
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "onPooledPictureTaken complete, success: " + success);
+
+        return success;
+    }
+
     @Override
     public boolean onBurstPictureTaken(List<byte []> images, Date current_date) {
         if( MyDebug.LOG )
@@ -3419,7 +3516,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             if( MyDebug.LOG )
                 Log.d(TAG, "save_expo: " + save_expo);
 
-            success = saveImage(save_expo, images, current_date);
+            success = saveImage(save_expo, images, null, current_date);
         }
         else {
             if( MyDebug.LOG ) {
@@ -3428,7 +3525,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     Log.e(TAG, "onBurstPictureTaken called with unexpected photo mode?!: " + photo_mode);
             }
 
-            success = saveImage(true, images, current_date);
+            success = saveImage(true, images, null, current_date);
         }
         return success;
     }
@@ -3491,7 +3588,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         last_images_type = LastImagesType.FILE;
         LastImage last_image = new LastImage(file.getAbsolutePath(), share);
-        last_images.add(last_image);
+        synchronized( last_images ) {
+            // may be called from multiple ImageSaver workers
+            last_images.add(last_image);
+        }
     }
 
     void addLastImageSAF(Uri uri, boolean share) {
@@ -3501,7 +3601,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         last_images_type = LastImagesType.SAF;
         LastImage last_image = new LastImage(uri, share);
-        last_images.add(last_image);
+        synchronized( last_images ) {
+            // may be called from multiple ImageSaver workers
+            last_images.add(last_image);
+        }
     }
 
     void addLastImageMediaStore(Uri uri, boolean share) {
@@ -3511,14 +3614,19 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         last_images_type = LastImagesType.MEDIASTORE;
         LastImage last_image = new LastImage(uri, share);
-        last_images.add(last_image);
+        synchronized( last_images ) {
+            // may be called from multiple ImageSaver workers
+            last_images.add(last_image);
+        }
     }
 
     void clearLastImages() {
         if( MyDebug.LOG )
             Log.d(TAG, "clearLastImages");
         last_images_type = LastImagesType.FILE;
-        last_images.clear();
+        synchronized( last_images ) {
+            last_images.clear();
+        }
         drawPreview.clearLastImage();
     }
 
@@ -3564,6 +3672,13 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         if( MyDebug.LOG )
             Log.d(TAG, "trashImage");
         Preview preview  = main_activity.getPreview();
+        // the image may have been the latest media
+        storageUtils.invalidateLatestMedia();
+        // remove any cached thumbnails (need to get the filename before deleting)
+        if( image_uri != null )
+            thumbnailCache.remove(storageUtils.getFileName(image_uri));
+        else if( image_name != null )
+            thumbnailCache.remove(new File(image_name).getName());
         if( image_type == LastImagesType.SAF && image_uri != null ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "Delete SAF: " + image_uri);
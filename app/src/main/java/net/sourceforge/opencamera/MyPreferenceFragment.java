@@ -394,6 +394,10 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
             pref = findPreference("preference_hdr_contrast_enhancement");
             pg = (PreferenceGroup)this.findPreference("preference_screen_photo_settings");
             pg.removePreference(pref);
+
+            pref = findPreference("preference_hdr_backend");
+            pg = (PreferenceGroup)this.findPreference("preference_screen_photo_settings");
+            pg.removePreference(pref);
         }
 
 
@@ -433,6 +437,16 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
             pg.removePreference(pref);
         }
 
+        final boolean supports_fast_burst = bundle.getBoolean("supports_fast_burst");
+        if( MyDebug.LOG )
+            Log.d(TAG, "supports_fast_burst: " + supports_fast_burst);
+
+        if( !supports_fast_burst ) {
+            Preference pref = findPreference("preference_fast_burst_keep_best");
+            PreferenceGroup pg = (PreferenceGroup)this.findPreference("preference_screen_photo_settings");
+            pg.removePreference(pref);
+        }
+
         final boolean supports_exposure_compensation = bundle.getBoolean("supports_exposure_compensation");
         final int exposure_compensation_min = bundle.getInt("exposure_compensation_min");
         final int exposure_compensation_max = bundle.getInt("exposure_compensation_max");
@@ -687,6 +701,9 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
 
             pref = findPreference("preference_focus_peaking_color");
             pg.removePreference(pref);
+
+            pref = findPreference("preference_overlay_cpu_budget");
+            pg.removePreference(pref);
         }
 
         final boolean supports_photo_video_recording = bundle.getBoolean("supports_photo_video_recording");
@@ -714,6 +731,21 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
             }
         }
 
+        {
+            // the number of workers for saving photos is only read when Open Camera starts
+            final Preference pref = findPreference("preference_parallel_photo_saving");
+            pref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference arg0, Object newValue) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "user changed parallel photo saving - need to restart");
+                    MainActivity main_activity = (MainActivity)MyPreferenceFragment.this.getActivity();
+                    main_activity.restartOpenCamera();
+                    return true;
+                }
+            });
+        }
+
         final int tonemap_max_curve_points = bundle.getInt("tonemap_max_curve_points");
         final boolean supports_tonemap_curve = bundle.getBoolean("supports_tonemap_curve");
         if( MyDebug.LOG ) {
@@ -41,19 +41,105 @@ public class PanoramaProcessor {
     // panorama photo
     // these should be set to null in freeScript(), to help garbage collection
     private ScriptC_pyramid_blending pyramidBlendingScript = null;
-    private ScriptC_feature_detector featureDetectorScript = null;
+
+    // pools of the allocations and bitmaps used for pyramid blending, so these can be reused for
+    // each pair of images, rather than allocated and freed each time; created in renderPanorama(),
+    // and freed in freeScripts()
+    private final static int pool_format_rgba_c = 0;
+    private final static int pool_format_f32_3_c = 1; // n.b., F32_3 is padded to 4 floats
+    private final static long max_pooled_bytes_c = 64*1024*1024;
+    private BufferPool<Allocation> allocation_pool;
+    private BufferPool<Bitmap> bitmap_pool;
+    private BufferPool.Stats last_allocation_pool_stats;
+    private BufferPool.Stats last_bitmap_pool_stats;
+
+    private FeatureDetector featureDetector; // lazily created, as requires Android 5 (for ForkJoinPool)
+    private PanoramaRansac panoramaRansac; // lazily created, as requires Android 5 (for ForkJoinPool)
+    // statistics for the RANSAC of each pair of images aligned for the most recent panorama
+    private final List<PanoramaRansac.Result> ransac_results = new ArrayList<>();
 
     public PanoramaProcessor(Context context, HDRProcessor hdrProcessor) {
         this.context = context;
         this.hdrProcessor = hdrProcessor;
     }
 
+    /** Returns the RANSAC statistics (number of hypotheses evaluated and time taken) for each
+     *  pair of images aligned by feature, for the most recent panorama.
+     */
+    public List<PanoramaRansac.Result> getRansacResults() {
+        synchronized( ransac_results ) {
+            return new ArrayList<>(ransac_results);
+        }
+    }
+
     private void freeScripts() {
         if( MyDebug.LOG )
             Log.d(TAG, "freeScripts");
 
         pyramidBlendingScript = null;
-        featureDetectorScript = null;
+        freePools();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void initPools() {
+        if( allocation_pool == null ) {
+            allocation_pool = new BufferPool<>(new BufferPool.Allocator<Allocation>() {
+                @Override
+                public Allocation allocate(int width, int height, int format) {
+                    Element element = format == pool_format_f32_3_c ? Element.F32_3(rs) : Element.RGBA_8888(rs);
+                    return Allocation.createTyped(rs, Type.createXY(rs, element, width, height));
+                }
+
+                @Override
+                public void free(Allocation allocation) {
+                    allocation.destroy();
+                }
+            }, new int[]{4, 16}, max_pooled_bytes_c);
+        }
+        if( bitmap_pool == null ) {
+            bitmap_pool = new BufferPool<>(new BufferPool.Allocator<Bitmap>() {
+                @Override
+                public Bitmap allocate(int width, int height, int format) {
+                    return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                }
+
+                @Override
+                public void free(Bitmap bitmap) {
+                    bitmap.recycle();
+                }
+            }, new int[]{4}, max_pooled_bytes_c);
+        }
+    }
+
+    private void freePools() {
+        if( allocation_pool != null ) {
+            last_allocation_pool_stats = allocation_pool.getStats();
+            if( MyDebug.LOG )
+                Log.d(TAG, "allocation pool: " + last_allocation_pool_stats);
+            allocation_pool.clear();
+            allocation_pool = null;
+        }
+        if( bitmap_pool != null ) {
+            last_bitmap_pool_stats = bitmap_pool.getStats();
+            if( MyDebug.LOG )
+                Log.d(TAG, "bitmap pool: " + last_bitmap_pool_stats);
+            bitmap_pool.clear();
+            bitmap_pool = null;
+        }
+    }
+
+    /** Returns the statistics of the pool of allocations used for pyramid blending, for the most
+     *  recent panorama (or null if none).
+     */
+    public BufferPool.Stats getAllocationPoolStats() {
+        return last_allocation_pool_stats;
+    }
+
+    /** Returns the statistics of the pool of bitmaps used for pyramid blending, for the most
+     *  recent panorama (or null if none).
+     */
+    public BufferPool.Stats getBitmapPoolStats() {
+        return last_bitmap_pool_stats;
     }
     public void onDestroy() {
         if( MyDebug.LOG )
@@ -93,7 +179,7 @@ public class PanoramaProcessor {
         int width = allocation.getType().getX();
         int height = allocation.getType().getY();
 
-        Allocation reduced_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), width/2, height/2));
+        Allocation reduced_allocation = allocation_pool.acquire(width/2, height/2, pool_format_rgba_c);
 
         script.set_bitmap(allocation);
         script.forEach_reduce(reduced_allocation, reduced_allocation);
@@ -113,7 +199,7 @@ public class PanoramaProcessor {
         int height = allocation.getType().getY();
         Allocation result_allocation;
 
-        Allocation expanded_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
+        Allocation expanded_allocation = allocation_pool.acquire(2*width, 2*height, pool_format_rgba_c);
         if( MyDebug.LOG )
             Log.d(TAG, "### expandBitmap: time after creating expanded_allocation: " + (System.currentTimeMillis() - time_s));
 
@@ -124,18 +210,18 @@ public class PanoramaProcessor {
 
         final boolean use_blur_2d = false; // faster to do blue as two 1D passes
         if( use_blur_2d ) {
-            result_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
+            result_allocation = allocation_pool.acquire(2*width, 2*height, pool_format_rgba_c);
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after creating result_allocation: " + (System.currentTimeMillis() - time_s));
             script.set_bitmap(expanded_allocation);
             script.forEach_blur(expanded_allocation, result_allocation);
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after blur: " + (System.currentTimeMillis() - time_s));
-            expanded_allocation.destroy();
+            allocation_pool.release(expanded_allocation);
             //result_allocation = expanded_allocation;
         }
         else {
-            Allocation temp_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
+            Allocation temp_allocation = allocation_pool.acquire(2*width, 2*height, pool_format_rgba_c);
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after creating temp_allocation: " + (System.currentTimeMillis() - time_s));
             script.set_bitmap(expanded_allocation);
@@ -150,7 +236,7 @@ public class PanoramaProcessor {
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after blur1dY: " + (System.currentTimeMillis() - time_s));
 
-            temp_allocation.destroy();
+            allocation_pool.release(temp_allocation);
         }
 
         return result_allocation;
@@ -169,7 +255,7 @@ public class PanoramaProcessor {
             Log.e(TAG, "allocations of different dimensions");
             throw new RuntimeException();
         }
-        Allocation result_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
+        Allocation result_allocation = allocation_pool.acquire(width, height, pool_format_f32_3_c);
         script.set_bitmap(allocation1);
         script.forEach_subtract(allocation0, result_allocation);
 
@@ -200,7 +286,8 @@ public class PanoramaProcessor {
             Log.d(TAG, "createGaussianPyramid");
         List<Allocation> pyramid = new ArrayList<>();
 
-        Allocation allocation = Allocation.createFromBitmap(rs, bitmap);
+        Allocation allocation = allocation_pool.acquire(bitmap.getWidth(), bitmap.getHeight(), pool_format_rgba_c);
+        allocation.copyFrom(bitmap);
         pyramid.add(allocation);
         for(int i=0;i<n_levels;i++ ) {
             allocation = reduceBitmap(script, allocation);
@@ -265,9 +352,9 @@ public class PanoramaProcessor {
             pyramid.add(difference);
             //pyramid.add(this_gauss);
 
-            this_gauss.destroy();
+            allocation_pool.release(this_gauss);
             gaussianPyramid.set(i, null); // to help garbage collection
-            next_gauss_expanded.destroy();
+            allocation_pool.release(next_gauss_expanded);
             if( MyDebug.LOG )
                 Log.d(TAG, "### createLaplacianPyramid: time after level " + i + ": " + (System.currentTimeMillis() - time_s));
         }
@@ -286,7 +373,7 @@ public class PanoramaProcessor {
         for(int i=pyramid.size()-2;i>=0;i--) {
             Allocation expanded_allocation = expandBitmap(script, allocation);
             if( !first ) {
-                allocation.destroy();
+                allocation_pool.release(allocation);
             }
             addBitmap(script, expanded_allocation, pyramid.get(i));
             allocation = expanded_allocation;
@@ -295,10 +382,10 @@ public class PanoramaProcessor {
 
         int width = allocation.getType().getX();
         int height = allocation.getType().getY();
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Bitmap bitmap = bitmap_pool.acquire(width, height, 0);
         allocation.copyTo(bitmap);
         if( !first ) {
-            allocation.destroy();
+            allocation_pool.release(allocation);
         }
         return bitmap;
     }
@@ -742,10 +829,10 @@ public class PanoramaProcessor {
         }*/
 
         for(Allocation allocation : lhs_pyramid) {
-            allocation.destroy();
+            allocation_pool.release(allocation);
         }
         for(Allocation allocation : rhs_pyramid) {
-            allocation.destroy();
+            allocation_pool.release(allocation);
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### blendPyramids: time taken: " + (System.currentTimeMillis() - time_s));
@@ -779,108 +866,6 @@ public class PanoramaProcessor {
         }
     }
 
-    private static void computeDistancesBetweenMatches(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-        final int wid = 2*feature_descriptor_radius+1;
-        final int wid2 = wid*wid;
-        for(int indx=st_indx;indx<nd_indx;indx++) {
-            FeatureMatch match = matches.get(indx);
-
-				/*float distance = 0;
-				for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-					for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-						int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-						int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-						//int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-						//int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-						int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-						int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-						int dist2 = value0*value0 + value1+value1;
-						distance += ((float)dist2)/65025.0f; // so distance for a given pixel is from 0 to 1
-					}
-				}
-				distance /= (float)wid2; // normalise from 0 to 1
-				match.distance = distance;*/
-
-            float fsum = 0, gsum = 0;
-            float f2sum = 0, g2sum = 0;
-            float fgsum = 0;
-
-            // much faster to read via getPixels() rather than pixel by pixel
-            //bitmaps.get(0).getPixels(pixels0, 0, wid, point0.x - feature_descriptor_radius, point0.y - feature_descriptor_radius, wid, wid);
-            //bitmaps.get(1).getPixels(pixels1, 0, wid, point1.x - feature_descriptor_radius, point1.y - feature_descriptor_radius, wid, wid);
-            //int pixel_idx = 0;
-
-            int pixel_idx0 = match.index0*wid2;
-            int pixel_idx1 = match.index1*wid2;
-
-            for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-                for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-                    //int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-                    //int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-
-                    //int pixel0 = pixels0[pixel_idx];
-                    //int pixel1 = pixels1[pixel_idx];
-                    //pixel_idx++;
-
-                    //int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-                    //int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-                    //int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-                    //int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-
-                    int value0 = pixels0[pixel_idx0];
-                    int value1 = pixels1[pixel_idx1];
-                    pixel_idx0++;
-                    pixel_idx1++;
-
-                    fsum += value0;
-                    f2sum += value0*value0;
-                    gsum += value1;
-                    g2sum += value1*value1;
-                    fgsum += value0*value1;
-                }
-            }
-            float fden = wid2*f2sum - fsum*fsum;
-            float f_recip = fden==0 ? 0.0f : 1/ fden;
-            float gden = wid2*g2sum - gsum*gsum;
-            float g_recip = gden==0 ? 0.0f : 1/ gden;
-            float fg_corr = wid2*fgsum-fsum*gsum;
-            //if( MyDebug.LOG ) {
-            //	Log.d(TAG, "match distance: ");
-            //	Log.d(TAG, "    fg_corr: " + fg_corr);
-            //	Log.d(TAG, "    fden: " + fden);
-            //	Log.d(TAG, "    gden: " + gden);
-            //	Log.d(TAG, "    f_recip: " + f_recip);
-            //	Log.d(TAG, "    g_recip: " + g_recip);
-            //}
-            // negate, as we want it so that lower value means better match, and normalise to 0-1
-            match.distance = 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
-        }
-    }
-
-    private static class ComputeDistancesBetweenMatchesThread extends Thread {
-        private final List<FeatureMatch> matches;
-        private final int st_indx;
-        private final int nd_indx;
-        private final int feature_descriptor_radius;
-        private final List<Bitmap> bitmaps;
-        private final int [] pixels0;
-        private final int [] pixels1;
-
-        ComputeDistancesBetweenMatchesThread(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-            this.matches = matches;
-            this.st_indx = st_indx;
-            this.nd_indx = nd_indx;
-            this.feature_descriptor_radius = feature_descriptor_radius;
-            this.bitmaps = bitmaps;
-            this.pixels0 = pixels0;
-            this.pixels1 = pixels1;
-        }
-
-        public void run() {
-            computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-        }
-    }
-
     static class AutoAlignmentByFeatureResult {
         final int offset_x;
         final int offset_y;
@@ -909,296 +894,39 @@ public class PanoramaProcessor {
             Log.e(TAG, "must have 2 bitmaps");
             throw new PanoramaProcessorException(PanoramaProcessorException.INVALID_N_IMAGES);
         }
-
-        initRenderscript();
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after initRenderscript: " + (System.currentTimeMillis() - time_s));
-        Allocation [] allocations = new Allocation[bitmaps.size()];
-        for(int i=0;i<bitmaps.size();i++) {
-            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+        if( featureDetector == null ) {
+            featureDetector = new FeatureDetector();
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after creating allocations: " + (System.currentTimeMillis() - time_s));
-
-        // create RenderScript
-		if( featureDetectorScript == null ) {
-            featureDetectorScript = new ScriptC_feature_detector(rs);
+        if( panoramaRansac == null ) {
+            panoramaRansac = new PanoramaRansac();
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after create featureDetectorScript: " + (System.currentTimeMillis() - time_s));
 
         //final int feature_descriptor_radius = 2; // radius of square used to compare features
         final int feature_descriptor_radius = 3; // radius of square used to compare features
         //final int feature_descriptor_radius = 5; // radius of square used to compare features
+        //final int n_y_chunks = 1;
+        final int n_y_chunks = 2;
+        //final int n_y_chunks = 3;
+        //final int n_y_chunks = 4;
+        //final int total_max_corners = 500;
+        final int total_max_corners = 200;
+        int [][] pixels_arrays = new int[2][];
+        int [][] corners_arrays = new int[2][]; // packed x, y pairs
         Point [][] points_arrays = new Point[2][];
 
         for(int i=0;i<bitmaps.size();i++) {
             if( MyDebug.LOG )
                 Log.d(TAG, "detect features for image: " + i);
-
-            if( MyDebug.LOG )
-                Log.d(TAG, "convert to greyscale");
-            Allocation gs_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
-            //createMTBScript.set_out_bitmap(gs_allocation);
-            //createMTBScript.forEach_create_greyscale(allocations[i]);
-            featureDetectorScript.forEach_create_greyscale(allocations[i], gs_allocation);
-            //saveAllocation("gs_bitmap" + debug_index + "_" + i + ".png", gs_allocation);
-
-            if( MyDebug.LOG )
-                Log.d(TAG, "compute derivatives");
-            Allocation ix_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
-            Allocation iy_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
-            featureDetectorScript.set_bitmap(gs_allocation);
-            featureDetectorScript.set_bitmap_Ix(ix_allocation);
-            featureDetectorScript.set_bitmap_Iy(iy_allocation);
-            featureDetectorScript.forEach_compute_derivatives(gs_allocation);
-
-			/*if( MyDebug.LOG ) {
-				// debugging
-                byte [] bytes_x = new byte[width*height];
-                byte [] bytes_y = new byte[width*height];
-                ix_allocation.copyTo(bytes_x);
-                iy_allocation.copyTo(bytes_y);
-                int [] pixels_x = new int[width*height];
-                int [] pixels_y = new int[width*height];
-				for(int j=0;j<width*height;j++) {
-                    int b = bytes_x[j];
-                    if( b < 0 )
-                        b += 255;
-                    pixels_x[j] = Color.argb(255, b, b, b);
-                    b = bytes_y[j];
-                    if( b < 0 )
-                        b += 255;
-                    pixels_y[j] = Color.argb(255, b, b, b);
-				}
-                Bitmap bitmap_x = Bitmap.createBitmap(pixels_x, width, height, Bitmap.Config.ARGB_8888);
-                Bitmap bitmap_y = Bitmap.createBitmap(pixels_y, width, height, Bitmap.Config.ARGB_8888);
-                File file_x = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/ix_bitmap" + debug_index + "_" + i + ".png");
-                File file_y = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/iy_bitmap" + debug_index + "_" + i + ".png");
-				try {
-                    MainActivity mActivity = (MainActivity) context;
-
-					OutputStream outputStream = new FileOutputStream(file_x);
-					bitmap_x.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-					outputStream.close();
-					mActivity.getStorageUtils().broadcastFile(file_x, true, false, true);
-
-                    outputStream = new FileOutputStream(file_y);
-                    bitmap_y.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-                    outputStream.close();
-                    mActivity.getStorageUtils().broadcastFile(file_y, true, false, true);
-				}
-				catch(IOException e) {
-					e.printStackTrace();
-				}
-                bitmap_x.recycle();
-                bitmap_y.recycle();
-			}*/
-
-            if( MyDebug.LOG )
-                Log.d(TAG, "call corner detector script for image: " + i);
-            Allocation strength_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32(rs), width, height));
-            featureDetectorScript.set_bitmap(gs_allocation);
-            featureDetectorScript.set_bitmap_Ix(ix_allocation);
-            featureDetectorScript.set_bitmap_Iy(iy_allocation);
-            featureDetectorScript.forEach_corner_detector(gs_allocation, strength_allocation);
-
-			/*if( MyDebug.LOG ) {
-				// debugging
-				float [] bytes = new float[width*height];
-				strength_allocation.copyTo(bytes);
-				int [] pixels = new int[width*height];
-				float max_value = 0.0f;
-				for(int j=0;j<width*height;j++) {
-					if( bytes[j] < 1.0f )
-						bytes[j] = 0.0f;
-					else
-						bytes[j] = (float)Math.log10(bytes[j]);
-					if( bytes[j] > max_value )
-						max_value = bytes[j];
-				}
-				if( MyDebug.LOG )
-					Log.d(TAG, "strength max_value: " + max_value);
-				for(int j=0;j<width*height;j++) {
-					float value = bytes[j]/max_value;
-					int c = (int)(255.0f*value+0.5f);
-					if( c > 255 )
-						c = 255;
-					else if( c < 0 )
-						c = 0;
-					pixels[j] = Color.argb(255, c, c, c);
-				}
-				Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
-				File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/corner_strength_bitmap" + debug_index + "_" + i + ".jpg");
-				try {
-					OutputStream outputStream = new FileOutputStream(file);
-					bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
-					outputStream.close();
-					MainActivity mActivity = (MainActivity) context;
-					mActivity.getStorageUtils().broadcastFile(file, true, false, true);
-				}
-				catch(IOException e) {
-					e.printStackTrace();
-				}
-				bitmap.recycle();
-			}*/
-
-            ix_allocation.destroy();
-            //noinspection UnusedAssignment
-            ix_allocation = null;
-            iy_allocation.destroy();
-            //noinspection UnusedAssignment
-            iy_allocation = null;
-
-            if( MyDebug.LOG )
-                Log.d(TAG, "find local maxima for image: " + i);
-            // reuse gs_allocation (since it's on the same U8 type that we want)
-            Allocation local_max_features_allocation = gs_allocation;
-            //noinspection UnusedAssignment
-            gs_allocation = null;
-
-			/*featureDetectorScript.set_corner_threshold(100000000.0f);
-			featureDetectorScript.set_bitmap(strength_allocation);
-			featureDetectorScript.forEach_local_maximum(strength_allocation, local_max_features_allocation);
-			// collect points
-			byte [] bytes = new byte[width*height];
-			local_max_features_allocation.copyTo(bytes);
-			// find points
-			List<Point> points = new ArrayList<>();
-			for(int y=feature_descriptor_radius;y<height-feature_descriptor_radius;y++) {
-				for(int x=feature_descriptor_radius;x<width-feature_descriptor_radius;x++) {
-					int j = y*width + x;
-					// remember, bytes are signed!
-					if( bytes[j] != 0 ) {
-						Point point = new Point(x, y);
-						points.add(point);
-					}
-				}
-			}
-			points_arrays[i] = points.toArray(new Point[0]);
-			*/
-
-            featureDetectorScript.set_bitmap(strength_allocation);
-            //final int n_y_chunks = 1;
-            final int n_y_chunks = 2;
-            //final int n_y_chunks = 3;
-            //final int n_y_chunks = 4;
-            //final int total_max_corners = 500;
-            final int total_max_corners = 200;
-            final int max_corners = total_max_corners/n_y_chunks;
-            final int min_corners = max_corners/2;
-            byte [] bytes = new byte[width*height];
-
-            List<Point> all_points = new ArrayList<>();
-            for(int cy=0;cy<n_y_chunks;cy++) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, ">>> find corners, chunk " + cy + " / " + n_y_chunks);
-                float threshold = 5000000.0f;
-                // setting a min_threshold fixes testPanorama11, also helps testPanorama1
-                // note that this needs to be at least 1250000.0f - at 625000.0f, testPanorama1
-                // still has problems and in fact ends up being worse than having no min threshold
-                final float min_threshold = 1250000.0f;
-                //final float min_threshold = 625000.0f;
-                float low_threshold = 0.0f;
-                float high_threshold = -1.0f;
-                int start_y = (cy*height)/n_y_chunks;
-                int stop_y = ((cy+1)*height)/n_y_chunks;
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "    start_y: " + start_y);
-                    Log.d(TAG, "    stop_y: " + stop_y);
-                }
-                final int max_iter = 10;
-                for(int count=0;;count++) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "### attempt " + count + " try threshold: " + threshold + " [ " + low_threshold + " : " + high_threshold + " ]");
-                    featureDetectorScript.set_corner_threshold(threshold);
-                    Script.LaunchOptions launch_options = new Script.LaunchOptions();
-                    launch_options.setX(0, width);
-                    launch_options.setY(start_y, stop_y);
-                    featureDetectorScript.forEach_local_maximum(strength_allocation, local_max_features_allocation, launch_options);
-
-                    // collect points
-                    local_max_features_allocation.copyTo(bytes);
-                    // find points
-                    List<Point> points = new ArrayList<>();
-                    for(int y=Math.max(start_y, feature_descriptor_radius);y<Math.min(stop_y, height-feature_descriptor_radius);y++) {
-                        for(int x=feature_descriptor_radius;x<width-feature_descriptor_radius;x++) {
-                            int j = y*width + x;
-                            // remember, bytes are signed!
-                            if( bytes[j] != 0 ) {
-                                Point point = new Point(x, y);
-                                points.add(point);
-                            }
-                        }
-                    }
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "    " + points.size() + " points");
-                    if( points.size() >= min_corners && points.size() <= max_corners ) {
-                        all_points.addAll(points);
-                        break;
-                    }
-                    else if( points.size() < min_corners ) {
-                        if( threshold <= min_threshold ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "    hit minimum threshold: " + threshold);
-                            all_points.addAll(points);
-                            break;
-                        }
-                        else if( count+1 == max_iter ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "    too few points but hit max iterations: " + points.size());
-                            all_points.addAll(points);
-                            //if( true )
-                            //    throw new RuntimeException("too few points: " + points.size()); // test
-                            break;
-                        }
-                        else {
-                            high_threshold = threshold;
-                            threshold = 0.5f * ( low_threshold + threshold );
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "    reduced threshold to: " + threshold);
-							/*if( low_threshold == 0.0f ) {
-								throw new RuntimeException();
-							}*/
-							/*if( count == 0 ) {
-								throw new RuntimeException();
-							}*/
-                        }
-                    }
-                    else if( count+1 == max_iter ) {
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "    too many points but hit max iterations: " + points.size());
-                        // arbitrarily take a subset
-                        points.subList(max_corners,points.size()).clear();
-                        all_points.addAll(points);
-                        //if( true )
-                        //    throw new RuntimeException("too many points: " + points.size()); // test
-                        break;
-                    }
-                    else {
-                        low_threshold = threshold;
-                        if( high_threshold < 0.0f ) {
-                            threshold *= 10.0f;
-                        }
-                        else
-                            threshold = 0.5f * ( threshold + high_threshold );
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "    increased threshold to: " + threshold);
-                    }
-                }
+            pixels_arrays[i] = new int[width*height];
+            bitmaps.get(i).getPixels(pixels_arrays[i], 0, width, 0, 0, width, height);
+            corners_arrays[i] = featureDetector.detectCorners(pixels_arrays[i], width, height, feature_descriptor_radius, n_y_chunks, total_max_corners);
+            points_arrays[i] = new Point[corners_arrays[i].length/2];
+            for(int j=0;j<points_arrays[i].length;j++) {
+                points_arrays[i][j] = new Point(corners_arrays[i][2*j], corners_arrays[i][2*j+1]);
             }
-            points_arrays[i] = all_points.toArray(new Point[0]);
 
             if( MyDebug.LOG )
                 Log.d(TAG, "### image: " + i + " has " + points_arrays[i].length + " points");
-
-            strength_allocation.destroy();
-            //noinspection UnusedAssignment
-            strength_allocation = null;
-
-            local_max_features_allocation.destroy();
-            //noinspection UnusedAssignment
-            local_max_features_allocation = null;
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after feature detection: " + (System.currentTimeMillis() - time_s));
@@ -1211,14 +939,6 @@ public class PanoramaProcessor {
 			/*if( true )
 				throw new RuntimeException();*/
 
-            // free allocations
-            for(int i=0;i<allocations.length;i++) {
-                if( allocations[i] != null ) {
-                    allocations[i].destroy();
-                    allocations[i] = null;
-                }
-            }
-
             return new AutoAlignmentByFeatureResult(0, 0, 0.0f, 1.0f);
         }
 
@@ -1232,101 +952,23 @@ public class PanoramaProcessor {
             Log.d(TAG, "max_match_dist_y: " + max_match_dist_y);
             Log.d(TAG, "max_match_dist2: " + max_match_dist2);
         }
-        List<FeatureMatch> matches = new ArrayList<>();
-        for(int i=0;i<points_arrays[0].length;i++) {
-            int x0 = points_arrays[0][i].x;
-            int y0 = points_arrays[0][i].y;
-            for(int j=0;j<points_arrays[1].length;j++) {
-                int x1 = points_arrays[1][j].x;
-                int y1 = points_arrays[1][j].y;
-                // only consider a match if close enough in actual distance
-                int dx = x1 - x0;
-                int dy = y1 - y0;
-                int dist2 = dx*dx + dy*dy;
-                if( dist2 < max_match_dist2 )
-                {
-                    FeatureMatch match = new FeatureMatch(i, j);
-                    matches.add(match);
-                }
-            }
-        }
+        int [] candidate_matches = FeatureDetector.findCandidateMatches(corners_arrays[0], corners_arrays[1], max_match_dist2);
         if( MyDebug.LOG )
-            Log.d(TAG, "### possible matches: " + matches.size());
+            Log.d(TAG, "### possible matches: " + candidate_matches.length/2);
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after finding possible matches: " + (System.currentTimeMillis() - time_s));
 
         // compute distances between matches
-        {
-            final int wid = 2*feature_descriptor_radius+1;
-            final int wid2 = wid*wid;
-            int [] pixels0 = new int[points_arrays[0].length*wid2];
-            int [] pixels1 = new int[points_arrays[1].length*wid2];
-            for(int i=0;i<points_arrays[0].length;i++) {
-                int x = points_arrays[0][i].x;
-                int y = points_arrays[0][i].y;
-                bitmaps.get(0).getPixels(pixels0, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            for(int i=0;i<points_arrays[1].length;i++) {
-                int x = points_arrays[1][i].x;
-                int y = points_arrays[1][i].y;
-                bitmaps.get(1).getPixels(pixels1, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            // convert to greyscale
-            for(int i=0;i<pixels0.length;i++) {
-                int pixel = pixels0[i];
-                pixels0[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
-            }
-            for(int i=0;i<pixels1.length;i++) {
-                int pixel = pixels1[i];
-                pixels1[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
-            }
-
-            final boolean use_smp = true;
-            if( use_smp ) {
-                // testing shows 2 threads gives slightly better than using more threads, or not using smp
-                //int n_threads = Math.min(matches.size(), Runtime.getRuntime().availableProcessors());
-                int n_threads = Math.min(matches.size(), 2);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "n_threads: " + n_threads);
-                ComputeDistancesBetweenMatchesThread [] threads = new ComputeDistancesBetweenMatchesThread[n_threads];
-                int st_indx = 0;
-                for(int i=0;i<n_threads;i++) {
-                    int nd_indx = (((i+1)*matches.size())/n_threads);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "thread " + i + " from " + st_indx + " to " + nd_indx);
-                    threads[i] = new ComputeDistancesBetweenMatchesThread(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-                    st_indx = nd_indx;
-                }
-                // start threads
-                if( MyDebug.LOG )
-                    Log.d(TAG, "start threads");
-                for(int i=0;i<n_threads;i++) {
-                    threads[i].start();
-                }
-                // wait for threads to complete
-                if( MyDebug.LOG )
-                    Log.d(TAG, "wait for threads to complete");
-                try {
-                    for(int i=0;i<n_threads;i++) {
-                        threads[i].join();
-                    }
-                }
-                catch(InterruptedException e) {
-                    Log.e(TAG, "ComputeDistancesBetweenMatchesThread threads interrupted");
-                    e.printStackTrace();
-                    Thread.currentThread().interrupt();
-                }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "threads completed");
-            }
-            else {
-                int st_indx = 0, nd_indx = matches.size();
-				/*final int wid = 2*feature_descriptor_radius+1;
-				final int wid2 = wid*wid;
-				int [] pixels0 = new int[wid2];
-				int [] pixels1 = new int[wid2];*/
-                computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-            }
+        int [] descriptors0 = FeatureDetector.extractDescriptors(pixels_arrays[0], width, corners_arrays[0], feature_descriptor_radius);
+        int [] descriptors1 = FeatureDetector.extractDescriptors(pixels_arrays[1], width, corners_arrays[1], feature_descriptor_radius);
+        //noinspection UnusedAssignment
+        pixels_arrays = null; // allow the pixels to be garbage collected
+        float [] distances = featureDetector.computeMatchDistances(descriptors0, descriptors1, feature_descriptor_radius, candidate_matches);
+        List<FeatureMatch> matches = new ArrayList<>(distances.length);
+        for(int i=0;i<distances.length;i++) {
+            FeatureMatch match = new FeatureMatch(candidate_matches[2*i], candidate_matches[2*i+1]);
+            match.distance = distances[i];
+            matches.add(match);
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after computing match distances: " + (System.currentTimeMillis() - time_s));
@@ -1434,14 +1076,6 @@ public class PanoramaProcessor {
 			/*if( true )
 				throw new RuntimeException();*/
 
-            // free allocations
-            for(int i=0;i<allocations.length;i++) {
-                if( allocations[i] != null ) {
-                    allocations[i].destroy();
-                    allocations[i] = null;
-                }
-            }
-
             return new AutoAlignmentByFeatureResult(0, 0, 0.0f, 1.0f);
         }
 
@@ -1462,14 +1096,10 @@ public class PanoramaProcessor {
         final float min_rotation_dist = Math.max(5.0f, Math.max(width, height)/4.0f);
         if( MyDebug.LOG )
             Log.d(TAG, "min_rotation_dist: " + min_rotation_dist);
-        //final float min_rotation_dist2 = 1.0e-5f;
-        final float min_rotation_dist2 = min_rotation_dist*min_rotation_dist;
 
         List<FeatureMatch> ransac_matches = new ArrayList<>(); // used for debugging: the matches that were used to define the transform
         if( use_ransac ) {
             // RANSAC
-            List<FeatureMatch> best_inliers = new ArrayList<>();
-            List<FeatureMatch> inliers = new ArrayList<>();
             //final float max_inlier_dist = 2.01f;
             //final float max_inlier_dist = 5.01f;
             //final float max_inlier_dist = 10.01f;
@@ -1480,197 +1110,42 @@ public class PanoramaProcessor {
             //final float max_inlier_dist = Math.max(1.26f, Math.max(width, height)/400.0f);
             if( MyDebug.LOG )
                 Log.d(TAG, "max_inlier_dist: " + max_inlier_dist);
-            final float max_inlier_dist2 = max_inlier_dist*max_inlier_dist;
-            for(int i=0;i<actual_matches.size();i++) {
+            PanoramaRansac.Parameters ransac_params = new PanoramaRansac.Parameters(height, max_inlier_dist, min_rotation_dist);
+            ransac_params.setEstimateRotation(estimate_rotation);
+            ransac_params.setEstimateYScale(estimate_y_scale, max_y_scale);
+
+            final int n_ransac_matches = actual_matches.size();
+            int [] match_x0 = new int[n_ransac_matches];
+            int [] match_y0 = new int[n_ransac_matches];
+            int [] match_x1 = new int[n_ransac_matches];
+            int [] match_y1 = new int[n_ransac_matches];
+            for(int i=0;i<n_ransac_matches;i++) {
                 FeatureMatch match = actual_matches.get(i);
+                match_x0[i] = points_arrays[0][match.index0].x;
+                match_y0[i] = points_arrays[0][match.index0].y;
+                match_x1[i] = points_arrays[1][match.index1].x;
+                match_y1[i] = points_arrays[1][match.index1].y;
+            }
 
-                {
-                    // compute exact translation from the i-th match only
-                    int candidate_offset_x = points_arrays[1][match.index1].x - points_arrays[0][match.index0].x;
-                    int candidate_offset_y = points_arrays[1][match.index1].y - points_arrays[0][match.index0].y;
-                    // find the inliers from this
-                    inliers.clear();
-                    for(FeatureMatch other_match : actual_matches) {
-                        int x0 = points_arrays[0][other_match.index0].x;
-                        int y0 = points_arrays[0][other_match.index0].y;
-                        int x1 = points_arrays[1][other_match.index1].x;
-                        int y1 = points_arrays[1][other_match.index1].y;
-                        int transformed_x0 = x0 + candidate_offset_x;
-                        int transformed_y0 = y0 + candidate_offset_y;
-                        float dx = transformed_x0 - x1;
-                        float dy = transformed_y0 - y1;
-                        float error2 = dx*dx + dy*dy;
-                        if( error2 + 1.0e-5 <= max_inlier_dist2 ) {
-                            inliers.add(other_match);
-                        }
-                    }
-                    if( inliers.size() > best_inliers.size() ) {
-                        // found an improved model!
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "match " + i + " gives better translation model: " + inliers.size() + " inliers vs " + best_inliers.size());
-                        ransac_matches.clear();
-                        ransac_matches.add(match);
-                        best_inliers.clear();
-                        best_inliers.addAll(inliers);
-                        use_rotation = false;
-                        use_y_scale = false;
-                        if( best_inliers.size() == actual_matches.size() ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "all matches are inliers");
-                            // no point trying any further
-                            break;
-                        }
-                    }
-                }
-
-                if( estimate_rotation ) {
-                    // compute exact rotation and translation
-                    // we need two points, so compare to every other point
-                    for(int j=0;j<i;j++) {
-                        FeatureMatch match2 = actual_matches.get(j);
-                        final int c0_x = (points_arrays[0][match.index0].x + points_arrays[0][match2.index0].x)/2;
-                        final int c0_y = (points_arrays[0][match.index0].y + points_arrays[0][match2.index0].y)/2;
-                        final int c1_x = (points_arrays[1][match.index1].x + points_arrays[1][match2.index1].x)/2;
-                        final int c1_y = (points_arrays[1][match.index1].y + points_arrays[1][match2.index1].y)/2;
-                        // model is a (scale about c0, followed by) rotation about c0, followed by translation
-                        final float dx0 = (points_arrays[0][match.index0].x - points_arrays[0][match2.index0].x);
-                        final float dy0 = (points_arrays[0][match.index0].y - points_arrays[0][match2.index0].y);
-                        final float dx1 = (points_arrays[1][match.index1].x - points_arrays[1][match2.index1].x);
-                        final float dy1 = (points_arrays[1][match.index1].y - points_arrays[1][match2.index1].y);
-                        final float mag_sq0 = dx0*dx0 + dy0*dy0;
-                        final float mag_sq1 = dx1*dx1 + dy1*dy1;
-                        if( mag_sq0 < min_rotation_dist2 || mag_sq1 < min_rotation_dist2 ) {
-                            continue;
-                        }
-                        //final float min_height = 0.25f*height;
-                        //final float max_height = 0.75f*height;
-                        final float min_height = 0.3f*height;
-                        final float max_height = 0.7f*height;
-                        if( points_arrays[0][match.index0].y < min_height || points_arrays[0][match.index0].y > max_height ||
-                                points_arrays[1][match.index1].y < min_height || points_arrays[1][match.index1].y > max_height ||
-                                points_arrays[0][match2.index0].y < min_height || points_arrays[0][match2.index0].y > max_height ||
-                                points_arrays[1][match2.index1].y < min_height || points_arrays[1][match2.index1].y > max_height
-                                ) {
-                            // for testPanorama28 - can get poor rotations if using matches too low or high, as photos more likely to be distorted
-                            // also helps testPanorama31, testPanorama34, testPanorama35
-                            continue;
-                        }
-
-						/*float y_scale = 1.0f;
-						boolean found_y_scale = false;
-						if( estimate_y_scale && Math.abs(dy0) > min_rotation_dist && Math.abs(dy1) > min_rotation_dist ) {
-							y_scale = dy1 / dy0;
-							if( y_scale <= max_y_scale && y_scale >= 1.0f/max_y_scale ) {
-								found_y_scale = true;
-							}
-							else {
-								y_scale = 1.0f;
-							}
-							dy0 *= y_scale;
-						}*/
-
-                        float angle = (float)(Math.atan2(dy1, dx1) - Math.atan2(dy0, dx0));
-                        if( angle < -Math.PI )
-                            angle += 2.0f*Math.PI;
-                        else if( angle > Math.PI )
-                            angle -= 2.0f*Math.PI;
-                        if( Math.abs(angle) > 30.0f*Math.PI/180.0f ) {
-                            // reject too large angles
-                            continue;
-                        }
-						/*if( MyDebug.LOG ) {
-							Log.d(TAG, "ransac: " + i + " , " + j + ": ");
-							Log.d(TAG, "    match 0: " + points_arrays[0][match.index0].x + " , " + points_arrays[0][match.index0].y);
-							Log.d(TAG, "    match 1: " + points_arrays[1][match.index1].x + " , " + points_arrays[1][match.index1].y);
-							Log.d(TAG, "    match2 0: " + points_arrays[0][match2.index0].x + " , " + points_arrays[0][match2.index0].y);
-							Log.d(TAG, "    match2 1: " + points_arrays[1][match2.index1].x + " , " + points_arrays[1][match2.index1].y);
-							Log.d(TAG, "    y_scale: " + y_scale);
-							Log.d(TAG, "    angle: " + angle);
-							Log.d(TAG, "    mag0: " + Math.sqrt(mag_sq0));
-							Log.d(TAG, "    mag1: " + Math.sqrt(mag_sq1));
-						}*/
-
-                        float y_scale = 1.0f;
-                        boolean found_y_scale = false;
-                        if( estimate_y_scale ) {
-                            //int transformed_dx0 = (int)(dx0 * Math.cos(angle) - dy0 * Math.sin(angle));
-                            int transformed_dy0 = (int)(dx0 * Math.sin(angle) + dy0 * Math.cos(angle));
-                            if( Math.abs(transformed_dy0) > min_rotation_dist && Math.abs(dy1) > min_rotation_dist ) {
-                                y_scale = dy1 / transformed_dy0;
-                                if( y_scale <= max_y_scale && y_scale >= 1.0f/max_y_scale ) {
-                                    found_y_scale = true;
-                                }
-                                else {
-                                    y_scale = 1.0f;
-                                }
-                            }
-                        }
-
-                        // find the inliers from this
-                        inliers.clear();
-                        for(FeatureMatch other_match : actual_matches) {
-                            int x0 = points_arrays[0][other_match.index0].x;
-                            int y0 = points_arrays[0][other_match.index0].y;
-                            int x1 = points_arrays[1][other_match.index1].x;
-                            int y1 = points_arrays[1][other_match.index1].y;
-                            x0 -= c0_x;
-                            y0 -= c0_y;
-                            //y0 *= y_scale;
-                            int transformed_x0 = (int)(x0 * Math.cos(angle) - y0 * Math.sin(angle));
-                            int transformed_y0 = (int)(x0 * Math.sin(angle) + y0 * Math.cos(angle));
-                            transformed_y0 *= y_scale;
-                            transformed_x0 += c1_x;
-                            transformed_y0 += c1_y;
-
-                            float dx = transformed_x0 - x1;
-                            float dy = transformed_y0 - y1;
-							/*if( MyDebug.LOG ) {
-								if( other_match == match )
-									Log.d(TAG, "    ransac on match: " + i + " , " + j + " : " + dx + " , " + dy);
-								else if( other_match == match2 )
-									Log.d(TAG, "    ransac on match2: " + i + " , " + j + " : " + dx + " , " + dy);
-							}*/
-                            float error2 = dx*dx + dy*dy;
-                            if( error2 + 1.0e-5 <= max_inlier_dist2 ) {
-                                inliers.add(other_match);
-                            }
-                        }
-
-                        if( inliers.size() > best_inliers.size() && inliers.size() >= 5 ) {
-                            // found an improved model!
-                            if( MyDebug.LOG ) {
-                                Log.d(TAG, "match " + i + " gives better rotation model: " + inliers.size() + " inliers vs " + best_inliers.size());
-                                Log.d(TAG, "    c0_x: " + c0_x + " , c0_y: " + c0_y);
-                                Log.d(TAG, "    c1_x: " + c1_x + " , c1_y: " + c1_y);
-                                Log.d(TAG, "    dx0: " + dx0 + " , dy0: " + dy0);
-                                Log.d(TAG, "    dx1: " + dx1 + " , dy1: " + dy1);
-                                Log.d(TAG, "    rotate by " + angle + " about: " + c0_x + " , " + c0_y);
-                                Log.d(TAG, "    y scale by " + y_scale);
-                                Log.d(TAG, "    translate by: " + (c1_x-c0_x) + " , " + (c1_y-c0_y));
-                            }
-                            ransac_matches.clear();
-                            ransac_matches.add(match);
-                            ransac_matches.add(match2);
-                            best_inliers.clear();
-                            best_inliers.addAll(inliers);
-                            use_rotation = true;
-                            use_y_scale = found_y_scale;
-                            if( best_inliers.size() == actual_matches.size() ) {
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "all matches are inliers");
-                                // no point trying any further
-                                break;
-                            }
-                        }
-                    }
+            PanoramaRansac.Result ransac_result = panoramaRansac.run(match_x0, match_y0, match_x1, match_y1, ransac_params);
+            synchronized( ransac_results ) {
+                ransac_results.add(ransac_result);
+            }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "RANSAC evaluated " + ransac_result.n_iterations + " of " + ransac_result.n_hypotheses + " hypotheses in " + (ransac_result.time_ns/1000) + " us");
+                Log.d(TAG, "RANSAC model from matches " + ransac_result.match0 + " , " + ransac_result.match1 + " has " + ransac_result.inliers.length + " inliers");
+            }
 
-                    if( best_inliers.size() == actual_matches.size() ) {
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "all matches are inliers");
-                        // no point trying any further
-                        break;
-                    }
-                }
+            if( ransac_result.match0 != -1 ) {
+                ransac_matches.add(actual_matches.get(ransac_result.match0));
+                if( ransac_result.match1 != -1 )
+                    ransac_matches.add(actual_matches.get(ransac_result.match1));
+            }
+            use_rotation = ransac_result.use_rotation;
+            use_y_scale = ransac_result.use_y_scale;
+            List<FeatureMatch> best_inliers = new ArrayList<>();
+            for(int index : ransac_result.inliers) {
+                best_inliers.add(actual_matches.get(index));
             }
             actual_matches = best_inliers;
             if( MyDebug.LOG )
@@ -1965,14 +1440,6 @@ public class PanoramaProcessor {
             bitmap.recycle();
         }
 
-        // free allocations
-        for(int i=0;i<allocations.length;i++) {
-            if( allocations[i] != null ) {
-                allocations[i].destroy();
-                allocations[i] = null;
-            }
-        }
-
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: total time: " + (System.currentTimeMillis() - time_s));
         return new AutoAlignmentByFeatureResult(offset_x, offset_y, rotation, y_scale);
@@ -2130,7 +1597,8 @@ public class PanoramaProcessor {
             // For the y crop, there isn't any advantage to shifting.
 
             //Bitmap lhs = Bitmap.createBitmap(panorama, offset_x + dst_offset_x - blend_hwidth, 0, 2*blend_hwidth, bitmap_height);
-            Bitmap lhs = Bitmap.createBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
+            Bitmap lhs = bitmap_pool.acquire(blend_width, blend_height, 0);
+            lhs.eraseColor(Color.TRANSPARENT); // may be reused from the pool, and we don't necessarily draw over the whole bitmap
             {
                 Canvas lhs_canvas = new Canvas(lhs);
                 src_rect_workspace.set(offset_x + dst_offset_x - blend_hwidth, 0, offset_x + dst_offset_x + blend_hwidth, bitmap_height);
@@ -2141,7 +1609,8 @@ public class PanoramaProcessor {
             }
 
             //Bitmap rhs = Bitmap.createBitmap(projected_bitmap, offset_x - blend_hwidth, 0, 2*blend_hwidth, bitmap_height);
-            Bitmap rhs = Bitmap.createBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
+            Bitmap rhs = bitmap_pool.acquire(blend_width, blend_height, 0);
+            rhs.eraseColor(Color.TRANSPARENT);
             {
                 Canvas rhs_canvas = new Canvas(rhs);
                 src_rect_workspace.set(offset_x - blend_hwidth, 0, offset_x + blend_hwidth, bitmap_height);
@@ -2183,9 +1652,9 @@ public class PanoramaProcessor {
             // note it's intentional that we don't shift for crop_y0, see comment above
             canvas.drawBitmap(blended_bitmap, offset_x + dst_offset_x - blend_hwidth - crop_x0, 0, p);
 
-            lhs.recycle();
-            rhs.recycle();
-            blended_bitmap.recycle();
+            bitmap_pool.release(lhs);
+            bitmap_pool.release(rhs);
+            bitmap_pool.release(blended_bitmap);
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after blending for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
         }
@@ -2556,9 +2025,138 @@ public class PanoramaProcessor {
         }
     }
 
+    /** The transformation to map an image onto the previous image, as computed by alignPair().
+     */
+    private static class PairAlignment {
+        final int align_x; // in the coordinates of the full resolution images
+        final int align_y;
+        final double angle_z;
+        final float y_scale;
+
+        PairAlignment(int align_x, int align_y, double angle_z, float y_scale) {
+            this.align_x = align_x;
+            this.align_y = align_y;
+            this.angle_z = angle_z;
+            this.y_scale = y_scale;
+        }
+    }
+
+    /** Computes the transformation to map bitmap onto prev_bitmap. This only depends on the pair of
+     *  images, so can be done as each image is captured (see IncrementalPanorama).
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private PairAlignment alignPair(Bitmap bitmap, Bitmap prev_bitmap, final int bitmap_height,
+                                    final int offset_x, final int slice_width, final int align_hwidth,
+                                    int debug_index, long time_s) throws PanoramaProcessorException {
+        List<Bitmap> alignment_bitmaps = new ArrayList<>();
+        //alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, offset_x+slice_width-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
+        //alignment_bitmaps.add( Bitmap.createBitmap(bitmap, offset_x-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
+        // tall:
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "    offset_x: " + offset_x);
+            Log.d(TAG, "    slice_width: " + slice_width);
+            Log.d(TAG, "    offset_x+slice_width-align_hwidth: " + (offset_x + slice_width - align_hwidth));
+            Log.d(TAG, "    bitmap(i-1) width: " + prev_bitmap.getWidth());
+        }
+
+        //final boolean use_align_by_feature = false;
+        final boolean use_align_by_feature = true;
+        float align_downsample = 1.0f;
+        if( use_align_by_feature ) {
+            // scale height to 520
+            // although in theory the alignment algorithm should work on any size, it is best to standardise, as most testing
+            // was done where input images had height 2080 or 2048, and the alignment images were downscaled by a factor of 4
+            align_downsample = bitmap_height/520.0f;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "downscale by: " + align_downsample);
+                Log.d(TAG, "### time before downscaling creating alignment bitmaps for " + debug_index + "th bitmap: " + (System.currentTimeMillis() - time_s));
+            }
+            // snap to power of 2
+            for(int k=0,power=1;k<=4;k++,power*=2) {
+                double ratio = power/align_downsample;
+                if( ratio >= 0.95f && ratio <= 1.05f ) {
+                    align_downsample = power;
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "snapped downscale to: " + align_downsample);
+                    break;
+                }
+            }
+        }
+
+        int align_bitmap_height = (3*bitmap_height)/4;
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time before creating alignment bitmaps for " + debug_index + "th bitmap: " + (System.currentTimeMillis() - time_s));
+        // n.b., we add in reverse order, so we find the transformation to map the next image (i) onto the previous image (i-1)
+        //alignment_bitmaps.add( Bitmap.createBitmap(bitmap, offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
+        //alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
+        Matrix align_scale_matrix = new Matrix();
+        align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
+        alignment_bitmaps.add( Bitmap.createBitmap(bitmap, offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
+        alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating alignment bitmaps for " + debug_index + "th bitmap: " + (System.currentTimeMillis() - time_s));
+
+        /*if( use_align_by_feature ) {
+            Matrix align_scale_matrix = new Matrix();
+            align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
+            for(int j=0;j<alignment_bitmaps.size();j++) {
+                Bitmap new_bitmap = Bitmap.createBitmap(alignment_bitmaps.get(j), 0, 0, alignment_bitmaps.get(j).getWidth(), alignment_bitmaps.get(j).getHeight(), align_scale_matrix, true);
+                alignment_bitmaps.get(j).recycle();
+                alignment_bitmaps.set(j, new_bitmap);
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after downscaling creating alignment bitmaps for " + debug_index + "th bitmap: " + (System.currentTimeMillis() - time_s));
+        }*/
+
+        // save bitmaps used for alignments
+        /*if( MyDebug.LOG ) {
+            for(int j=0;j<alignment_bitmaps.size();j++) {
+                Bitmap alignment_bitmap = alignment_bitmaps.get(j);
+                saveBitmap(alignment_bitmap, "alignment_bitmap_" + i + "_" + j +".png");
+            }
+        }*/
+
+        int this_align_x, this_align_y;
+        double angle_z = 0.0;
+        float y_scale = 1.0f;
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time before auto-alignment for " + debug_index + "th bitmap: " + (System.currentTimeMillis() - time_s));
+        if( use_align_by_feature ) {
+            PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, debug_index);
+            this_align_x = res.offset_x;
+            this_align_y = res.offset_y;
+            angle_z = res.rotation;
+            y_scale = res.y_scale;
+        }
+        else {
+            final boolean use_mtb = false;
+            //final boolean use_mtb = true;
+            int [] offsets_x = new int[alignment_bitmaps.size()];
+            int [] offsets_y = new int[alignment_bitmaps.size()];
+            hdrProcessor.autoAlignment(offsets_x, offsets_y, alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, 0, use_mtb, 8);
+            this_align_x = offsets_x[1];
+            this_align_y = offsets_y[1];
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after auto-alignment for " + debug_index + "th bitmap: " + (System.currentTimeMillis() - time_s));
+        this_align_x *= align_downsample;
+        this_align_y *= align_downsample;
+        for(Bitmap alignment_bitmap : alignment_bitmaps) {
+            alignment_bitmap.recycle();
+        }
+        alignment_bitmaps.clear();
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "    this_align_x: " + this_align_x);
+            Log.d(TAG, "    this_align_y: " + this_align_y);
+        }
+
+        return new PairAlignment(this_align_x, this_align_y, angle_z, y_scale);
+    }
+
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private void computePanoramaTransforms(List<Matrix> cumulative_transforms, List<Integer> align_x_values, List<Integer> dst_offset_x_values,
-                                           List<Bitmap> bitmaps, final int bitmap_width, final int bitmap_height,
+                                           List<Bitmap> bitmaps, List<PairAlignment> pair_alignments, final int bitmap_width, final int bitmap_height,
                                            final int offset_x, final int slice_width, final int align_hwidth,
                                            long time_s) throws PanoramaProcessorException {
         Matrix cumulative_transform = new Matrix();
@@ -2577,107 +2175,17 @@ public class PanoramaProcessor {
 
             if( use_auto_align && i > 0 ) {
                 // autoalignment
-                List<Bitmap> alignment_bitmaps = new ArrayList<>();
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), offset_x+slice_width-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), offset_x-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
-                // tall:
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "    align_x: " + align_x);
-                    Log.d(TAG, "    offset_x: " + offset_x);
-                    Log.d(TAG, "    slice_width: " + slice_width);
-                    Log.d(TAG, "    align_x+offset_x+slice_width-align_hwidth: " + (align_x + offset_x + slice_width - align_hwidth));
-                    Log.d(TAG, "    bitmap(i-1) width: " + bitmaps.get(i - 1).getWidth());
+                PairAlignment pair_alignment = pair_alignments != null ? pair_alignments.get(i) : null;
+                if( pair_alignment == null ) {
+                    pair_alignment = alignPair(bitmaps.get(i), bitmaps.get(i-1), bitmap_height, offset_x, slice_width, align_hwidth, i, time_s);
                 }
-
-                //final boolean use_align_by_feature = false;
-                final boolean use_align_by_feature = true;
-                float align_downsample = 1.0f;
-                if( use_align_by_feature ) {
-                    // scale height to 520
-                    // although in theory the alignment algorithm should work on any size, it is best to standardise, as most testing
-                    // was done where input images had height 2080 or 2048, and the alignment images were downscaled by a factor of 4
-                    align_downsample = bitmap_height/520.0f;
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "downscale by: " + align_downsample);
-                        Log.d(TAG, "### time before downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                    }
-                    // snap to power of 2
-                    for(int k=0,power=1;k<=4;k++,power*=2) {
-                        double ratio = power/align_downsample;
-                        if( ratio >= 0.95f && ratio <= 1.05f ) {
-                            align_downsample = power;
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "snapped downscale to: " + align_downsample);
-                            break;
-                        }
-                    }
-                }
-
-                int align_bitmap_height = (3*bitmap_height)/4;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time before creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                // n.b., we add in reverse order, so we find the transformation to map the next image (i) onto the previous image (i-1)
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
-                Matrix align_scale_matrix = new Matrix();
-                align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
-                alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
-                alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time after creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-
-                /*if( use_align_by_feature ) {
-                    Matrix align_scale_matrix = new Matrix();
-                    align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
-                    for(int j=0;j<alignment_bitmaps.size();j++) {
-                        Bitmap new_bitmap = Bitmap.createBitmap(alignment_bitmaps.get(j), 0, 0, alignment_bitmaps.get(j).getWidth(), alignment_bitmaps.get(j).getHeight(), align_scale_matrix, true);
-                        alignment_bitmaps.get(j).recycle();
-                        alignment_bitmaps.set(j, new_bitmap);
-                    }
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "### time after downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                }*/
-
-                // save bitmaps used for alignments
-                /*if( MyDebug.LOG ) {
-                    for(int j=0;j<alignment_bitmaps.size();j++) {
-                        Bitmap alignment_bitmap = alignment_bitmaps.get(j);
-                        saveBitmap(alignment_bitmap, "alignment_bitmap_" + i + "_" + j +".png");
-                    }
-                }*/
-
-                int this_align_x, this_align_y;
-                float y_scale = 1.0f;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time before auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                if( use_align_by_feature ) {
-                    PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, i);
-                    this_align_x = res.offset_x;
-                    this_align_y = res.offset_y;
-                    angle_z = res.rotation;
-                    y_scale = res.y_scale;
-                }
-                else {
-                    final boolean use_mtb = false;
-                    //final boolean use_mtb = true;
-                    int [] offsets_x = new int[alignment_bitmaps.size()];
-                    int [] offsets_y = new int[alignment_bitmaps.size()];
-                    hdrProcessor.autoAlignment(offsets_x, offsets_y, alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, 0, use_mtb, 8);
-                    this_align_x = offsets_x[1];
-                    this_align_y = offsets_y[1];
-                }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time after auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                this_align_x *= align_downsample;
-                this_align_y *= align_downsample;
-                for(Bitmap alignment_bitmap : alignment_bitmaps) {
-                    alignment_bitmap.recycle();
-                }
-                alignment_bitmaps.clear();
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "    this_align_x: " + this_align_x);
-                    Log.d(TAG, "    this_align_y: " + this_align_y);
+                else if( MyDebug.LOG ) {
+                    Log.d(TAG, "using alignment computed during capture for " + i + "th bitmap");
                 }
+                int this_align_x = pair_alignment.align_x;
+                int this_align_y = pair_alignment.align_y;
+                angle_z = pair_alignment.angle_z;
+                float y_scale = pair_alignment.y_scale;
 
                 Matrix this_transform = new Matrix();
                 this_transform.postRotate((float)Math.toDegrees(angle_z), align_x+offset_x-align_hwidth, 0);
@@ -2812,6 +2320,8 @@ public class PanoramaProcessor {
                                 final Bitmap panorama, final int crop_x0, final int crop_y0,
                                 final double camera_angle, long time_s) {
 
+        initPools();
+
         Rect src_rect = new Rect();
         Rect dst_rect = new Rect();
         //Paint p = new Paint();
@@ -2918,8 +2428,185 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Computes the width of the slice of each image that contributes to the panorama.
+     */
+    private static int getSliceWidth(int bitmap_width, float panorama_pics_per_screen) {
+        return (int) (bitmap_width / panorama_pics_per_screen);
+    }
+
+    /** Computes the half-width of the region of each pair of images used for alignment.
+     */
+    private static int getAlignHWidth(int bitmap_width) {
+        return bitmap_width/10;
+        //return bitmap_width/5;
+    }
+
+    /** Creates an IncrementalPanorama, so that images can be aligned while the panorama is still
+     *  being captured.
+     */
+    public IncrementalPanorama createIncrementalPanorama(float panorama_pics_per_screen) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "createIncrementalPanorama");
+        synchronized( ransac_results ) {
+            ransac_results.clear();
+        }
+        return new IncrementalPanorama(panorama_pics_per_screen);
+    }
+
+    /** Aligns each image of a panorama against the previous one as it's captured, so that the user
+     *  doesn't have to wait for this once the last image is taken. The images are then passed to
+     *  panorama(IncrementalPanorama, ...), which only has to do the remaining steps (levelling,
+     *  exposure adjustment, cropping and rendering) - these depend on all of the images, so can't
+     *  be done until the panorama is complete.
+     *  Images are added in the order they are captured. Since the direction of the panorama is only
+     *  known once the second image is captured, it is supplied with each image.
+     *  This class isn't thread safe - the caller should add images from a single background thread,
+     *  and ensure that has completed before calling panorama().
+     */
+    public class IncrementalPanorama {
+        private final float panorama_pics_per_screen;
+        private final List<Bitmap> bitmaps = new ArrayList<>(); // in the order captured
+        // i-th entry maps the i-th captured image onto the (i-1)-th for left to right, or the
+        // (i-1)-th onto the i-th for right to left; the 0th entry is null
+        private final List<PairAlignment> pair_alignments = new ArrayList<>();
+        private boolean left_to_right = true;
+        private boolean failed;
+
+        private IncrementalPanorama(float panorama_pics_per_screen) {
+            this.panorama_pics_per_screen = panorama_pics_per_screen;
+        }
+
+        /** Adds the next captured image, and aligns it against the previous one. Ownership of the
+         *  bitmap passes to this class.
+         * @param left_to_right The direction of the panorama; only used from the second image.
+         */
+        @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+        public void addImage(Bitmap bitmap, boolean left_to_right) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "IncrementalPanorama.addImage: " + bitmaps.size());
+            bitmaps.add(bitmap);
+            if( failed ) {
+                return;
+            }
+            else if( bitmaps.size() == 1 ) {
+                pair_alignments.add(null);
+                return;
+            }
+
+            int index = bitmaps.size()-1;
+            Bitmap prev_bitmap = bitmaps.get(index-1);
+            if( index == 1 ) {
+                this.left_to_right = left_to_right;
+            }
+            else if( left_to_right != this.left_to_right ) {
+                Log.e(TAG, "IncrementalPanorama: direction changed");
+                failed = true;
+                return;
+            }
+            int bitmap_width = bitmap.getWidth();
+            int bitmap_height = bitmap.getHeight();
+            if( prev_bitmap.getWidth() != bitmap_width || prev_bitmap.getHeight() != bitmap_height ) {
+                Log.e(TAG, "IncrementalPanorama: bitmaps not of equal sizes");
+                failed = true;
+                return;
+            }
+
+            long time_s = 0;
+            if( MyDebug.LOG )
+                time_s = System.currentTimeMillis();
+            final int slice_width = getSliceWidth(bitmap_width, panorama_pics_per_screen);
+            final int offset_x = (bitmap_width - slice_width)/2;
+            final int align_hwidth = getAlignHWidth(bitmap_width);
+            try {
+                // for right to left, the images will be reversed by panorama(), so the previous
+                // image is the one that will be mapped onto the new image
+                PairAlignment pair_alignment = this.left_to_right ?
+                        alignPair(bitmap, prev_bitmap, bitmap_height, offset_x, slice_width, align_hwidth, index, time_s) :
+                        alignPair(prev_bitmap, bitmap, bitmap_height, offset_x, slice_width, align_hwidth, index, time_s);
+                pair_alignments.add(pair_alignment);
+            }
+            catch(PanoramaProcessorException e) {
+                Log.e(TAG, "IncrementalPanorama: failed to align: " + e.getCode());
+                e.printStackTrace();
+                failed = true;
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "IncrementalPanorama: time to align " + index + "th image: " + (System.currentTimeMillis() - time_s));
+        }
+
+        /** Records that an image failed to be added, so this can't be used for the panorama.
+         */
+        public void setFailed() {
+            this.failed = true;
+        }
+
+        /** Whether this can be used to create the panorama for the supplied images.
+         * @param n_images      The number of images in the panorama.
+         * @param left_to_right The direction of the panorama.
+         */
+        public boolean isValid(int n_images, boolean left_to_right) {
+            if( failed || bitmaps.size() != n_images )
+                return false;
+            // direction is irrelevant for a single image
+            return n_images <= 1 || left_to_right == this.left_to_right;
+        }
+
+        /** Frees the images, if this isn't going to be passed to panorama().
+         */
+        public void recycle() {
+            if( MyDebug.LOG )
+                Log.d(TAG, "IncrementalPanorama.recycle");
+            for(Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+            bitmaps.clear();
+            pair_alignments.clear();
+        }
+    }
+
+    /** Creates the panorama from the images of an IncrementalPanorama, reusing the alignments
+     *  computed as the images were captured. The caller must have checked
+     *  IncrementalPanorama.isValid(). The images will be recycled.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap panorama(IncrementalPanorama incremental_panorama, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
+        if( MyDebug.LOG )
+            Log.d(TAG, "panorama from incremental panorama");
+        int n_images = incremental_panorama.bitmaps.size();
+        List<Bitmap> bitmaps = new ArrayList<>(incremental_panorama.bitmaps);
+        List<PairAlignment> pair_alignments = new ArrayList<>();
+        if( incremental_panorama.left_to_right ) {
+            pair_alignments.addAll(incremental_panorama.pair_alignments);
+        }
+        else {
+            Collections.reverse(bitmaps);
+            // the i-th reversed image is mapped onto the (i-1)-th reversed image by the alignment
+            // computed when capturing the (n_images-i)-th image
+            pair_alignments.add(null);
+            for(int i=1;i<n_images;i++) {
+                pair_alignments.add(incremental_panorama.pair_alignments.get(n_images-i));
+            }
+        }
+        // ownership of the bitmaps passes to panorama()
+        incremental_panorama.bitmaps.clear();
+        incremental_panorama.pair_alignments.clear();
+        return panorama(bitmaps, pair_alignments, incremental_panorama.panorama_pics_per_screen, camera_angle_y, crop);
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     public Bitmap panorama(List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
+        synchronized( ransac_results ) {
+            ransac_results.clear();
+        }
+        return panorama(bitmaps, null, panorama_pics_per_screen, camera_angle_y, crop);
+    }
+
+    /**
+     * @param pair_alignments If non-null, the i-th entry (for i > 0) is the alignment of the i-th
+     *                        bitmap against the (i-1)-th, if already computed (else null).
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private Bitmap panorama(List<Bitmap> bitmaps, List<PairAlignment> pair_alignments, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "panorama");
             Log.d(TAG, "camera_angle_y: " + camera_angle_y);
@@ -2929,6 +2616,9 @@ public class PanoramaProcessor {
         if( MyDebug.LOG )
             time_s = System.currentTimeMillis();
 
+        // needed for the pyramid blending and contrast enhancement (alignment no longer uses RenderScript)
+        initRenderscript();
+
         int bitmap_width = bitmaps.get(0).getWidth();
         int bitmap_height = bitmaps.get(0).getHeight();
         if( MyDebug.LOG ) {
@@ -2951,7 +2641,7 @@ public class PanoramaProcessor {
             }
         }*/
 
-        final int slice_width = (int) (bitmap_width / panorama_pics_per_screen);
+        final int slice_width = getSliceWidth(bitmap_width, panorama_pics_per_screen);
         if( MyDebug.LOG )
             Log.d(TAG, "slice_width: " + slice_width);
 
@@ -2985,8 +2675,7 @@ public class PanoramaProcessor {
         //final int blend_hwidth = nextPowerOf2(bitmap_width/10);
         final int blend_hwidth = nextMultiple((int)(bitmap_width/6.1f+0.5f), getBlendDimension()/2);
         //final int blend_hwidth = nextPowerOf2(bitmap_width/5);
-        final int align_hwidth = bitmap_width/10;
-        //final int align_hwidth = bitmap_width/5;
+        final int align_hwidth = getAlignHWidth(bitmap_width);
         if( MyDebug.LOG ) {
             Log.d(TAG, "    blend_hwidth: " + blend_hwidth);
             Log.d(TAG, "    align_hwidth: " + align_hwidth);
@@ -2997,7 +2686,7 @@ public class PanoramaProcessor {
         List<Integer> align_x_values = new ArrayList<>();
         List<Integer> dst_offset_x_values = new ArrayList<>();
 
-        computePanoramaTransforms(cumulative_transforms, align_x_values, dst_offset_x_values, bitmaps,
+        computePanoramaTransforms(cumulative_transforms, align_x_values, dst_offset_x_values, bitmaps, pair_alignments,
                 bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, time_s);
 
         // note that we crop the panorama_width later on, but for now we still need an estimate, before finalising
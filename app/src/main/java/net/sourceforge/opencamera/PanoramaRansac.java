@@ -0,0 +1,309 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** RANSAC for the transform between a pair of panorama images, used by
+ *  PanoramaProcessor.autoAlignmentByFeature(). Each match gives a translation hypothesis, and each
+ *  pair of matches gives a rotation (plus translation) hypothesis. Hypotheses are enumerated in a
+ *  fixed order - since the matches are sorted with the best first, the most promising hypotheses
+ *  are tried first - and evaluated in parallel in rounds. After each round, we stop once enough
+ *  hypotheses have been tried for the required confidence, given the inlier ratio of the best
+ *  model so far.
+ *  The result only depends on the number of rounds evaluated, not on the number of threads. The
+ *  chosen model is the first in the enumeration order with the most inliers, so if all hypotheses
+ *  are evaluated, the result is the same as an exhaustive serial search.
+ */
+public class PanoramaRansac {
+    private static final int round_size_c = 256; // number of hypotheses evaluated between checks for termination
+    private static final int min_rotation_inliers_c = 5; // rotation models need at least this many inliers
+
+    private final ForkJoinPool pool;
+
+    /** The parameters for the RANSAC.
+     */
+    public static class Parameters {
+        final int height;
+        final float max_inlier_dist2;
+        final float min_rotation_dist;
+        final float min_rotation_dist2;
+        boolean estimate_rotation = true;
+        boolean estimate_y_scale = false;
+        float max_y_scale = 1.05f + 1.0e-5f;
+        double confidence = 0.999;
+
+        /**
+         * @param height            The height of the images.
+         * @param max_inlier_dist   The maximum distance for a match to be an inlier of a model.
+         * @param min_rotation_dist The minimum distance between the two matches used for a rotation
+         *                          model.
+         */
+        public Parameters(int height, float max_inlier_dist, float min_rotation_dist) {
+            this.height = height;
+            this.max_inlier_dist2 = max_inlier_dist*max_inlier_dist;
+            this.min_rotation_dist = min_rotation_dist;
+            this.min_rotation_dist2 = min_rotation_dist*min_rotation_dist;
+        }
+
+        public void setEstimateRotation(boolean estimate_rotation) {
+            this.estimate_rotation = estimate_rotation;
+        }
+
+        public void setEstimateYScale(boolean estimate_y_scale, float max_y_scale) {
+            this.estimate_y_scale = estimate_y_scale;
+            this.max_y_scale = max_y_scale;
+        }
+
+        /** Sets the probability that we require of having tried a hypothesis made only of inliers,
+         *  before terminating. A value of 1 or more means all hypotheses are always evaluated.
+         */
+        public void setConfidence(double confidence) {
+            this.confidence = confidence;
+        }
+    }
+
+    public static class Result {
+        public final int [] inliers; // indices of the matches that are inliers of the chosen model, in increasing order
+        public final int match0; // index of the (first) match used to define the chosen model, or -1 if no model found
+        public final int match1; // index of the second match used to define the chosen model, or -1 for a translation
+        public final boolean use_rotation;
+        public final boolean use_y_scale;
+        public final int n_iterations; // the number of hypotheses evaluated
+        public final int n_hypotheses; // the total number of possible hypotheses
+        public final long time_ns;
+
+        Result(int [] inliers, int match0, int match1, boolean use_rotation, boolean use_y_scale, int n_iterations, int n_hypotheses, long time_ns) {
+            this.inliers = inliers;
+            this.match0 = match0;
+            this.match1 = match1;
+            this.use_rotation = use_rotation;
+            this.use_y_scale = use_y_scale;
+            this.n_iterations = n_iterations;
+            this.n_hypotheses = n_hypotheses;
+            this.time_ns = time_ns;
+        }
+    }
+
+    /** The best hypothesis found so far, by a task or overall.
+     */
+    private static class Best {
+        int hypothesis = -1;
+        int n_inliers;
+        boolean found_y_scale;
+
+        /** Whether the supplied hypothesis would be chosen over this one: it has more inliers, or
+         *  the same number but comes first.
+         */
+        boolean isImprovedBy(int hypothesis, int n_inliers) {
+            if( this.hypothesis == -1 )
+                return true;
+            return n_inliers > this.n_inliers || (n_inliers == this.n_inliers && hypothesis < this.hypothesis);
+        }
+
+        void set(int hypothesis, int n_inliers, boolean found_y_scale) {
+            this.hypothesis = hypothesis;
+            this.n_inliers = n_inliers;
+            this.found_y_scale = found_y_scale;
+        }
+    }
+
+    public PanoramaRansac() {
+        this(ParallelRows.getDefaultPool());
+    }
+
+    public PanoramaRansac(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Returns the number of hypotheses needed to have the supplied confidence of having tried at
+     *  least one made only of inliers, given the inlier ratio and the number of matches per
+     *  hypothesis.
+     */
+    public static int requiredIterations(double confidence, double inlier_ratio, int sample_size) {
+        if( confidence >= 1.0 )
+            return Integer.MAX_VALUE;
+        double p_good_sample = Math.pow(inlier_ratio, sample_size);
+        if( p_good_sample >= 1.0 )
+            return 1;
+        else if( p_good_sample <= 0.0 )
+            return Integer.MAX_VALUE;
+        double n = Math.log(1.0 - confidence) / Math.log(1.0 - p_good_sample);
+        return n >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)Math.ceil(n);
+    }
+
+    /** Runs the RANSAC on a set of matches, where the i-th match is from (x0[i], y0[i]) in the
+     *  first image to (x1[i], y1[i]) in the second image.
+     */
+    public Result run(final int [] x0, final int [] y0, final int [] x1, final int [] y1, final Parameters params) {
+        long time_s = System.nanoTime();
+        final int n_matches = x0.length;
+
+        // enumerate the hypotheses in the order: translation from match i, then rotations from
+        // matches (i, j) for j < i
+        final int n_hypotheses = params.estimate_rotation ? n_matches + (n_matches*(n_matches-1))/2 : n_matches;
+        final int [] hyp_i = new int[n_hypotheses];
+        final int [] hyp_j = new int[n_hypotheses];
+        {
+            int h = 0;
+            for(int i=0;i<n_matches;i++) {
+                hyp_i[h] = i;
+                hyp_j[h] = -1;
+                h++;
+                if( params.estimate_rotation ) {
+                    for(int j=0;j<i;j++) {
+                        hyp_i[h] = i;
+                        hyp_j[h] = j;
+                        h++;
+                    }
+                }
+            }
+        }
+
+        final Best best = new Best();
+        int n_iterations = 0;
+        while( n_iterations < n_hypotheses ) {
+            final int round_start = n_iterations;
+            final int round_stop = Math.min(n_iterations + round_size_c, n_hypotheses);
+            ParallelRows.run(pool, 16, round_stop - round_start, new ParallelRows.RowKernel() {
+                @Override
+                public void processRows(int start, int stop) {
+                    Best task_best = new Best();
+                    boolean [] found_y_scale = new boolean[1];
+                    for(int h=round_start+start;h<round_start+stop;h++) {
+                        int n_inliers = countInliers(x0, y0, x1, y1, params, hyp_i[h], hyp_j[h], null, found_y_scale);
+                        if( n_inliers > 0 && task_best.isImprovedBy(h, n_inliers) )
+                            task_best.set(h, n_inliers, found_y_scale[0]);
+                    }
+                    if( task_best.hypothesis != -1 ) {
+                        synchronized( best ) {
+                            if( best.isImprovedBy(task_best.hypothesis, task_best.n_inliers) )
+                                best.set(task_best.hypothesis, task_best.n_inliers, task_best.found_y_scale);
+                        }
+                    }
+                }
+            });
+            n_iterations = round_stop;
+
+            if( best.hypothesis != -1 ) {
+                if( best.n_inliers == n_matches ) {
+                    // all matches are inliers, so no point trying any further
+                    break;
+                }
+                int sample_size = params.estimate_rotation ? 2 : 1;
+                if( n_iterations >= requiredIterations(params.confidence, best.n_inliers/(double)n_matches, sample_size) )
+                    break;
+            }
+        }
+
+        if( best.hypothesis == -1 ) {
+            return new Result(new int[0], -1, -1, false, false, n_iterations, n_hypotheses, System.nanoTime() - time_s);
+        }
+        int [] inliers = new int[best.n_inliers];
+        countInliers(x0, y0, x1, y1, params, hyp_i[best.hypothesis], hyp_j[best.hypothesis], inliers, new boolean[1]);
+        boolean use_rotation = hyp_j[best.hypothesis] != -1;
+        return new Result(inliers, hyp_i[best.hypothesis], hyp_j[best.hypothesis], use_rotation, use_rotation && best.found_y_scale, n_iterations, n_hypotheses, System.nanoTime() - time_s);
+    }
+
+    /** Returns the number of inliers for the hypothesis defined by match i (and match j, if not
+     *  -1), or 0 if the hypothesis is rejected.
+     * @param inliers       If non-null, the indices of the inliers are stored in this array.
+     * @param found_y_scale Returns whether a y scale was found for a rotation hypothesis.
+     */
+    private static int countInliers(int [] x0, int [] y0, int [] x1, int [] y1, Parameters params, int i, int j, int [] inliers, boolean [] found_y_scale) {
+        final int n_matches = x0.length;
+        int n_inliers = 0;
+        found_y_scale[0] = false;
+        if( j == -1 ) {
+            // compute exact translation from the i-th match only
+            int candidate_offset_x = x1[i] - x0[i];
+            int candidate_offset_y = y1[i] - y0[i];
+            for(int k=0;k<n_matches;k++) {
+                int transformed_x0 = x0[k] + candidate_offset_x;
+                int transformed_y0 = y0[k] + candidate_offset_y;
+                float dx = transformed_x0 - x1[k];
+                float dy = transformed_y0 - y1[k];
+                float error2 = dx*dx + dy*dy;
+                if( error2 + 1.0e-5 <= params.max_inlier_dist2 ) {
+                    if( inliers != null )
+                        inliers[n_inliers] = k;
+                    n_inliers++;
+                }
+            }
+            return n_inliers;
+        }
+
+        // compute exact rotation and translation from two matches
+        final int c0_x = (x0[i] + x0[j])/2;
+        final int c0_y = (y0[i] + y0[j])/2;
+        final int c1_x = (x1[i] + x1[j])/2;
+        final int c1_y = (y1[i] + y1[j])/2;
+        // model is a (scale about c0, followed by) rotation about c0, followed by translation
+        final float dx0 = (x0[i] - x0[j]);
+        final float dy0 = (y0[i] - y0[j]);
+        final float dx1 = (x1[i] - x1[j]);
+        final float dy1 = (y1[i] - y1[j]);
+        final float mag_sq0 = dx0*dx0 + dy0*dy0;
+        final float mag_sq1 = dx1*dx1 + dy1*dy1;
+        if( mag_sq0 < params.min_rotation_dist2 || mag_sq1 < params.min_rotation_dist2 ) {
+            return 0;
+        }
+        final float min_height = 0.3f*params.height;
+        final float max_height = 0.7f*params.height;
+        if( y0[i] < min_height || y0[i] > max_height ||
+                y1[i] < min_height || y1[i] > max_height ||
+                y0[j] < min_height || y0[j] > max_height ||
+                y1[j] < min_height || y1[j] > max_height
+                ) {
+            // for testPanorama28 - can get poor rotations if using matches too low or high, as photos more likely to be distorted
+            // also helps testPanorama31, testPanorama34, testPanorama35
+            return 0;
+        }
+
+        float angle = (float)(Math.atan2(dy1, dx1) - Math.atan2(dy0, dx0));
+        if( angle < -Math.PI )
+            angle += 2.0f*Math.PI;
+        else if( angle > Math.PI )
+            angle -= 2.0f*Math.PI;
+        if( Math.abs(angle) > 30.0f*Math.PI/180.0f ) {
+            // reject too large angles
+            return 0;
+        }
+        final double cos_angle = Math.cos(angle);
+        final double sin_angle = Math.sin(angle);
+
+        float y_scale = 1.0f;
+        if( params.estimate_y_scale ) {
+            int transformed_dy0 = (int)(dx0 * sin_angle + dy0 * cos_angle);
+            if( Math.abs(transformed_dy0) > params.min_rotation_dist && Math.abs(dy1) > params.min_rotation_dist ) {
+                y_scale = dy1 / transformed_dy0;
+                if( y_scale <= params.max_y_scale && y_scale >= 1.0f/params.max_y_scale ) {
+                    found_y_scale[0] = true;
+                }
+                else {
+                    y_scale = 1.0f;
+                }
+            }
+        }
+
+        for(int k=0;k<n_matches;k++) {
+            int rx0 = x0[k] - c0_x;
+            int ry0 = y0[k] - c0_y;
+            int transformed_x0 = (int)(rx0 * cos_angle - ry0 * sin_angle);
+            int transformed_y0 = (int)(rx0 * sin_angle + ry0 * cos_angle);
+            transformed_y0 *= y_scale;
+            transformed_x0 += c1_x;
+            transformed_y0 += c1_y;
+
+            float dx = transformed_x0 - x1[k];
+            float dy = transformed_y0 - y1[k];
+            float error2 = dx*dx + dy*dy;
+            if( error2 + 1.0e-5 <= params.max_inlier_dist2 ) {
+                if( inliers != null )
+                    inliers[n_inliers] = k;
+                n_inliers++;
+            }
+        }
+        if( n_inliers < min_rotation_inliers_c )
+            return 0;
+        return n_inliers;
+    }
+}
@@ -0,0 +1,64 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Runs image processing kernels over bands of rows in parallel, on a ForkJoinPool shared by the
+ *  pure Java image processing classes.
+ *  Note that ForkJoinPool requires Android 5 (API level 21) - callers that can run on older
+ *  versions must check Build.VERSION.SDK_INT first.
+ */
+public class ParallelRows {
+    private static ForkJoinPool default_pool; // lazily created, see getDefaultPool()
+
+    /** Callback for processing a band of rows from y_start (inclusive) to y_stop (exclusive).
+     */
+    public interface RowKernel {
+        void processRows(int y_start, int y_stop);
+    }
+
+    /** Returns the shared pool, with one thread per available core.
+     */
+    public static synchronized ForkJoinPool getDefaultPool() {
+        if( default_pool == null ) {
+            default_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return default_pool;
+    }
+
+    /** Recursively splits a range of rows until it's no larger than the tile height.
+     */
+    private static class RowsAction extends RecursiveAction {
+        private final RowKernel kernel;
+        private final int y_start, y_stop;
+        private final int tile_height;
+
+        RowsAction(RowKernel kernel, int y_start, int y_stop, int tile_height) {
+            this.kernel = kernel;
+            this.y_start = y_start;
+            this.y_stop = y_stop;
+            this.tile_height = tile_height;
+        }
+
+        @Override
+        protected void compute() {
+            if( y_stop - y_start <= tile_height ) {
+                kernel.processRows(y_start, y_stop);
+            }
+            else {
+                int y_mid = (y_start + y_stop)/2;
+                invokeAll(new RowsAction(kernel, y_start, y_mid, tile_height), new RowsAction(kernel, y_mid, y_stop, tile_height));
+            }
+        }
+    }
+
+    /** Runs the kernel over the rows [0, height) on the supplied pool, split into bands of at most
+     *  tile_height rows, and waits for it to complete. The "rows" may be any range of independent
+     *  work items, e.g., tiles or matches.
+     */
+    public static void run(ForkJoinPool pool, int tile_height, int height, RowKernel kernel) {
+        if( height <= 0 )
+            return;
+        pool.invoke(new RowsAction(kernel, 0, height, Math.max(tile_height, 1)));
+    }
+}
@@ -120,10 +120,14 @@ public class PreferenceKeys {
 
     public static final String HDRContrastEnhancementPreferenceKey = "preference_hdr_contrast_enhancement";
 
+    public static final String HDRBackendPreferenceKey = "preference_hdr_backend";
+
     public static final String NRSaveExpoPreferenceKey = "preference_nr_save";
 
     public static final String FastBurstNImagesPreferenceKey = "preference_fast_burst_n_images";
 
+    public static final String FastBurstKeepBestPreferenceKey = "preference_fast_burst_keep_best";
+
     public static final String LocationPreferenceKey = "preference_location";
 
     public static final String GPSDirectionPreferenceKey = "preference_gps_direction";
@@ -168,6 +172,8 @@ public class PreferenceKeys {
 
     //public static final String BackgroundPhotoSavingPreferenceKey = "preference_background_photo_saving";
 
+    public static final String ParallelPhotoSavingPreferenceKey = "preference_parallel_photo_saving";
+
     public static final String Camera2FakeFlashPreferenceKey = "preference_camera2_fake_flash";
 
     public static final String Camera2FastBurstPreferenceKey = "preference_camera2_fast_burst";
@@ -256,8 +262,12 @@ public class PreferenceKeys {
 
     public static final String FocusPeakingColorPreferenceKey = "preference_focus_peaking_color";
 
+    public static final String OverlayCPUBudgetPreferenceKey = "preference_overlay_cpu_budget";
+
     public static final String ShowVideoMaxAmpPreferenceKey = "preference_show_video_max_amp";
 
+    public static final String ShowFrameStatsPreferenceKey = "preference_show_frame_stats";
+
     public static final String ShowAnglePreferenceKey = "preference_show_angle";
 
     public static final String ShowAngleLinePreferenceKey = "preference_show_angle_line";
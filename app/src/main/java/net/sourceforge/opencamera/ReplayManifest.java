@@ -0,0 +1,217 @@
+package net.sourceforge.opencamera;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** A recorded capture session, that can be replayed through the pure Java processing code (see
+ *  the BurstReplay harness in the benchmark module) to give reproducible performance numbers.
+ *  ImageSaver records a session when saving panoramas with debug info (see
+ *  ImageSaver.saveReplaySession()).
+ *  The manifest is a text file, with one entry per line, e.g.:
+ *  <pre>
+ *  # comment
+ *  mode panorama
+ *  view_angle 66.0 50.0
+ *  gyro_info gyro_info.xml
+ *  frame IMG_0.jpg iso=100 exposure=2500000
+ *  frame IMG_1.jpg iso=100 exposure=10000000
+ *  </pre>
+ *  Filenames are relative to the folder containing the manifest, and may not contain spaces. The
+ *  gyro info is optional, and is only used for panorama: it's in the format written by
+ *  ImageSaver for the panorama debug info (see ImageSaver.readGyroDebugXml()), with an image
+ *  for each frame.
+ */
+public class ReplayManifest {
+    public enum PhotoMode {
+        STANDARD("std"),
+        DRO("dro"),
+        HDR("hdr"),
+        PANORAMA("panorama");
+
+        private final String name;
+
+        PhotoMode(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        static PhotoMode fromName(String name) {
+            for(PhotoMode mode : values()) {
+                if( mode.name.equals(name) )
+                    return mode;
+            }
+            return null;
+        }
+    }
+
+    public static class Frame {
+        public final String filename;
+        public final int iso;
+        public final long exposure_time; // in nanoseconds
+
+        public Frame(String filename, int iso, long exposure_time) {
+            checkFilename(filename);
+            this.filename = filename;
+            this.iso = iso;
+            this.exposure_time = exposure_time;
+        }
+    }
+
+    private PhotoMode photo_mode = PhotoMode.STANDARD;
+    private float view_angle_x;
+    private float view_angle_y;
+    private String gyro_info_filename; // may be null
+    private final List<Frame> frames = new ArrayList<>();
+
+    private static void checkFilename(String filename) {
+        if( filename.isEmpty() || filename.contains(" ") ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid filename: " + filename);
+        }
+    }
+
+    public PhotoMode getPhotoMode() {
+        return photo_mode;
+    }
+
+    public void setPhotoMode(PhotoMode photo_mode) {
+        this.photo_mode = photo_mode;
+    }
+
+    public float getViewAngleX() {
+        return view_angle_x;
+    }
+
+    public float getViewAngleY() {
+        return view_angle_y;
+    }
+
+    public void setViewAngles(float view_angle_x, float view_angle_y) {
+        this.view_angle_x = view_angle_x;
+        this.view_angle_y = view_angle_y;
+    }
+
+    /** Returns the filename of the gyro info, or null if there isn't any.
+     */
+    public String getGyroInfoFilename() {
+        return gyro_info_filename;
+    }
+
+    public void setGyroInfoFilename(String gyro_info_filename) {
+        if( gyro_info_filename != null )
+            checkFilename(gyro_info_filename);
+        this.gyro_info_filename = gyro_info_filename;
+    }
+
+    public List<Frame> getFrames() {
+        return frames;
+    }
+
+    public void addFrame(Frame frame) {
+        frames.add(frame);
+    }
+
+    /** Writes the manifest in the format read by read().
+     */
+    public void write(Writer writer) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append("# Open Camera replay manifest\n");
+        builder.append("mode ").append(photo_mode.getName()).append('\n');
+        builder.append("view_angle ").append(view_angle_x).append(' ').append(view_angle_y).append('\n');
+        if( gyro_info_filename != null )
+            builder.append("gyro_info ").append(gyro_info_filename).append('\n');
+        for(Frame frame : frames) {
+            builder.append("frame ").append(frame.filename);
+            builder.append(" iso=").append(frame.iso);
+            builder.append(" exposure=").append(frame.exposure_time);
+            builder.append('\n');
+        }
+        writer.write(builder.toString());
+        writer.flush();
+    }
+
+    /** Reads a manifest.
+     * @throws IOException If reading fails, or the manifest is malformed.
+     */
+    public static ReplayManifest read(Reader reader) throws IOException {
+        ReplayManifest manifest = new ReplayManifest();
+        BufferedReader buffered_reader = new BufferedReader(reader);
+        String line;
+        int line_number = 0;
+        while( (line = buffered_reader.readLine()) != null ) {
+            line_number++;
+            line = line.trim();
+            if( line.isEmpty() || line.startsWith("#") )
+                continue;
+            String [] tokens = line.split("\\s+");
+            try {
+                switch( tokens[0] ) {
+                    case "mode":
+                        if( tokens.length != 2 )
+                            throw new IOException("expected: mode <name>");
+                        manifest.photo_mode = PhotoMode.fromName(tokens[1].toLowerCase(Locale.US));
+                        if( manifest.photo_mode == null )
+                            throw new IOException("unknown mode: " + tokens[1]);
+                        break;
+                    case "view_angle":
+                        if( tokens.length != 3 )
+                            throw new IOException("expected: view_angle <x> <y>");
+                        manifest.setViewAngles(Float.parseFloat(tokens[1]), Float.parseFloat(tokens[2]));
+                        break;
+                    case "gyro_info":
+                        if( tokens.length != 2 )
+                            throw new IOException("expected: gyro_info <filename>");
+                        manifest.gyro_info_filename = tokens[1];
+                        break;
+                    case "frame":
+                        manifest.frames.add(parseFrame(tokens));
+                        break;
+                    default:
+                        throw new IOException("unknown entry: " + tokens[0]);
+                }
+            }
+            catch(NumberFormatException e) {
+                throw new IOException("line " + line_number + ": invalid number: " + e.getMessage());
+            }
+            catch(IOException e) {
+                throw new IOException("line " + line_number + ": " + e.getMessage());
+            }
+        }
+        if( manifest.frames.size() == 0 )
+            throw new IOException("no frames");
+        return manifest;
+    }
+
+    private static Frame parseFrame(String [] tokens) throws IOException {
+        if( tokens.length < 2 )
+            throw new IOException("expected: frame <filename> [key=value...]");
+        int iso = 0;
+        long exposure_time = 0;
+        for(int i=2;i<tokens.length;i++) {
+            int index = tokens[i].indexOf('=');
+            if( index == -1 )
+                throw new IOException("expected key=value: " + tokens[i]);
+            String key = tokens[i].substring(0, index);
+            String value = tokens[i].substring(index+1);
+            switch( key ) {
+                case "iso":
+                    iso = Integer.parseInt(value);
+                    break;
+                case "exposure":
+                    exposure_time = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IOException("unknown frame key: " + key);
+            }
+        }
+        return new Frame(tokens[1], iso, exposure_time);
+    }
+}
@@ -0,0 +1,110 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Scores how sharp an image is perceived to be, as the sum of the absolute values of the
+ *  Laplacian (https://en.wikipedia.org/wiki/Discrete_Laplace_operator) of its luminance. The
+ *  higher the score, the sharper the image. Scores are only comparable between images of the same
+ *  size, scored with the same sample factor.
+ *  The image is first box filtered down to a luminance plane, which both reduces the work and
+ *  stops the score being dominated by pixel level noise. Both passes are split into bands of rows
+ *  that are processed on a ForkJoinPool, with each band summing into a long (so there's no risk of
+ *  overflow, and no contention between threads) that are then added together. The luminance plane
+ *  is kept between calls, so a scorer can be reused for each image of a burst without allocating.
+ */
+public class SharpnessScorer {
+    private final ForkJoinPool pool;
+    private final int tile_height;
+
+    private int [] plane; // the luminance plane, reused between calls
+    private long last_time_ns; // time taken by the last call to score(), for performance measurement
+
+    public SharpnessScorer() {
+        this(ParallelRows.getDefaultPool(), 32);
+    }
+
+    /**
+     * @param pool        The pool to run the kernels on.
+     * @param tile_height The number of rows each task processes before no longer being split.
+     */
+    public SharpnessScorer(ForkJoinPool pool, int tile_height) {
+        this.pool = pool;
+        this.tile_height = Math.max(tile_height, 1);
+    }
+
+    public long getLastTimeNs() {
+        return last_time_ns;
+    }
+
+    /** Returns the luminance of a pixel, using the Rec. 601 weights in 8 bit fixed point.
+     */
+    private static int luminance(int color) {
+        int r = (color >> 16) & 0xFF;
+        int g = (color >> 8) & 0xFF;
+        int b = color & 0xFF;
+        return (77*r + 150*g + 29*b) >> 8;
+    }
+
+    /** Computes the sharpness score of an image.
+     * @param pixels        The ARGB pixels.
+     * @param sample_factor The size of the blocks of pixels averaged for each value of the
+     *                      luminance plane, e.g., 2 to score at half the resolution.
+     */
+    public synchronized long score(final int [] pixels, final int width, final int height, final int sample_factor) {
+        if( width <= 0 || height <= 0 || sample_factor <= 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid size: " + width + " x " + height + " sample_factor: " + sample_factor);
+        }
+        long time_s = System.nanoTime();
+        final int plane_width = Math.max(width/sample_factor, 1);
+        final int plane_height = Math.max(height/sample_factor, 1);
+        if( plane == null || plane.length < plane_width*plane_height ) {
+            plane = new int[plane_width*plane_height];
+        }
+        final int [] plane = this.plane;
+
+        // box filter down to the luminance plane
+        ParallelRows.run(pool, tile_height, plane_height, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                int block_width = Math.min(sample_factor, width);
+                int block_height = Math.min(sample_factor, height);
+                int n_pixels = block_width*block_height;
+                for(int py=y_start;py<y_stop;py++) {
+                    for(int px=0;px<plane_width;px++) {
+                        int sum = 0;
+                        for(int y=py*sample_factor;y<py*sample_factor+block_height;y++) {
+                            int indx = y*width + px*sample_factor;
+                            for(int x=0;x<block_width;x++) {
+                                sum += luminance(pixels[indx+x]);
+                            }
+                        }
+                        plane[py*plane_width+px] = sum/n_pixels;
+                    }
+                }
+            }
+        });
+
+        // sum the absolute Laplacian, over the pixels that have all four neighbours
+        final long [] total = new long[1];
+        ParallelRows.run(pool, tile_height, plane_height-2, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                long sum = 0;
+                for(int y=y_start+1;y<y_stop+1;y++) {
+                    int indx = y*plane_width;
+                    for(int x=1;x<plane_width-1;x++) {
+                        int centre = plane[indx+x];
+                        int laplacian = plane[indx+x-1] + plane[indx+x+1] + plane[indx+x-plane_width] + plane[indx+x+plane_width] - 4*centre;
+                        sum += Math.abs(laplacian);
+                    }
+                }
+                synchronized( total ) {
+                    total[0] += sum;
+                }
+            }
+        });
+        last_time_ns = System.nanoTime() - time_s;
+        return total[0];
+    }
+}
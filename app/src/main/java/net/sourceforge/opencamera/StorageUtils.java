@@ -56,6 +56,7 @@ public class StorageUtils {
     private final MyApplicationInterface applicationInterface;
     private Uri last_media_scanned;
     private boolean last_media_scanned_is_raw;
+    private final LatestMediaIndex<Media> latest_media_index = new LatestMediaIndex<>(); // cache for getLatestMedia()
 
     private final static String RELATIVE_FOLDER_BASE = Environment.DIRECTORY_DCIM;
 
@@ -262,6 +263,12 @@ public class StorageUtils {
                                 boolean is_raw = filenameIsRaw(file.getName());
                                 setLastMediaScanned(uri, is_raw);
                             }
+                            if( (is_new_picture || is_new_video) && uri != null && !latestMediaUsesSAF() ) {
+                                String save_folder = getImageFolderPath();
+                                if( save_folder != null && save_folder.equals(file.getParent()) ) {
+                                    addLatestMedia(uri, true, is_new_video);
+                                }
+                            }
                             announceUri(uri, is_new_picture, is_new_video);
                             applicationInterface.scannedFile(file, uri);
 
@@ -299,6 +306,9 @@ public class StorageUtils {
                getting the latest media via SAF APIs is (if not cached) very slow! N.B., most gallery apps need a
                mediastore uri, not the SAF uri.
         */
+        if( (is_new_picture || is_new_video) && !image_capture_intent && latestMediaUsesSAF() ) {
+            addLatestMedia(uri, false, is_new_video);
+        }
         File real_file = getFileFromDocumentUriSAF(uri, false);
         if( MyDebug.LOG )
             Log.d(TAG, "real_file: " + real_file);
@@ -903,14 +913,11 @@ public class StorageUtils {
     }
 
     static boolean filenameIsRaw(String filename) {
-        return filename.toLowerCase(Locale.US).endsWith(".dng");
+        return LatestMediaIndex.filenameIsRaw(filename);
     }
 
     private static String filenameWithoutExtension(String filename) {
-        String filename_without_ext = filename.toLowerCase(Locale.US);
-        if( filename_without_ext.indexOf(".") > 0 )
-            filename_without_ext = filename_without_ext.substring(0, filename_without_ext.lastIndexOf("."));
-        return filename_without_ext;
+        return LatestMediaIndex.filenameWithoutExtension(filename);
     }
 
     private enum UriType {
@@ -1349,7 +1356,12 @@ public class StorageUtils {
         return media;
     }
 
-    private Media getLatestMedia(UriType uri_type) {
+    /** Returns the most recent media of the supplied type in the save folder, or if there isn't
+     *  any, the most recent media in any folder.
+     * @param from_any_folder Must be an array of length 1; on return, the value is set to whether
+     *                        the returned media was from the fall back of checking any folder.
+     */
+    private Media getLatestMedia(UriType uri_type, boolean [] from_any_folder) {
         if( MyDebug.LOG )
             Log.d(TAG, "getLatestMedia: " + uri_type);
         if( !MainActivity.useScopedStorage() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && ContextCompat.checkSelfPermission(context, Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED ) {
@@ -1389,23 +1401,213 @@ public class StorageUtils {
         if( MyDebug.LOG )
             Log.d(TAG, "baseUri: " + baseUri);
         Media media = getLatestMediaCore(baseUri, bucket_id, uri_type);
+        from_any_folder[0] = false;
         if( media == null && bucket_id != null ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "fall back to checking any folder");
             media = getLatestMediaCore(baseUri, null, uri_type);
+            from_any_folder[0] = media != null;
         }
 
         return media;
     }
 
+    /** Whether getLatestMedia() searches using the Storage Access Framework rather than
+     *  mediastore.
+     */
+    private boolean latestMediaUsesSAF() {
+        return MainActivity.useScopedStorage() && this.isUsingSAF();
+    }
+
+    /** Returns a key identifying the folder searched by getLatestMedia(), or null if not known.
+     */
+    private String getLatestMediaFolderKey() {
+        if( latestMediaUsesSAF() ) {
+            Uri treeUri = this.getTreeUriSAF();
+            return treeUri == null ? null : "saf:" + treeUri;
+        }
+        String save_folder = getImageFolderPath();
+        return save_folder == null ? null : "file:" + save_folder;
+    }
+
+    /** Returns a token for the folder searched by getLatestMedia() that changes whenever files are
+     *  added to or removed from the folder (the last modified time of the folder), or
+     *  LatestMediaIndex.token_unknown_c if not available. This only needs to query a single
+     *  document or file, so is much faster than searching the folder.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private long getLatestMediaToken() {
+        long token = LatestMediaIndex.token_unknown_c;
+        try {
+            if( latestMediaUsesSAF() ) {
+                Uri treeUri = this.getTreeUriSAF();
+                Uri folderUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+                Cursor cursor = null;
+                try {
+                    cursor = context.getContentResolver().query(folderUri, new String[] {DocumentsContract.Document.COLUMN_LAST_MODIFIED}, null, null, null);
+                    if( cursor != null && cursor.moveToFirst() && !cursor.isNull(0) ) {
+                        token = cursor.getLong(0);
+                    }
+                }
+                finally {
+                    if( cursor != null ) {
+                        cursor.close();
+                    }
+                }
+            }
+            else {
+                String save_folder = getImageFolderPath();
+                if( save_folder != null ) {
+                    File folder = new File(save_folder);
+                    if( folder.exists() ) {
+                        token = folder.lastModified();
+                    }
+                }
+            }
+        }
+        catch(Exception e) {
+            // catch Exception for same reasons as in getLatestMediaSAF()
+            if( MyDebug.LOG )
+                Log.e(TAG, "exception trying to find latest media token");
+            e.printStackTrace();
+        }
+        if( token == 0 ) {
+            // 0 means the last modified time isn't available
+            token = LatestMediaIndex.token_unknown_c;
+        }
+        return token;
+    }
+
+    /** Returns the Media for a single uri, or null if it can't be found.
+     * @param mediastore Whether uri is a mediastore uri, rather than a Storage Access Framework
+     *                   uri.
+     */
+    @SuppressLint("InlinedApi") // see note for getLatestMediaCore()
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private Media getMedia(Uri uri, boolean mediastore, boolean video) {
+        final int column_date_c = 0;
+        final int column_name_c = 1;
+        final int column_orientation_c = 2; // for mediastore images only
+        String [] projection;
+        if( !mediastore )
+            projection = new String[] {DocumentsContract.Document.COLUMN_LAST_MODIFIED, DocumentsContract.Document.COLUMN_DISPLAY_NAME};
+        else if( video )
+            projection = new String[] {VideoColumns.DATE_TAKEN, VideoColumns.DISPLAY_NAME};
+        else
+            projection = new String[] {ImageColumns.DATE_TAKEN, ImageColumns.DISPLAY_NAME, ImageColumns.ORIENTATION};
+
+        Media media = null;
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri, projection, null, null, null);
+            if( cursor != null && cursor.moveToFirst() ) {
+                long date = cursor.getLong(column_date_c);
+                String filename = cursor.getString(column_name_c);
+                int orientation = (mediastore && !video) ? cursor.getInt(column_orientation_c) : 0;
+                long id = mediastore ? ContentUris.parseId(uri) : 0;
+                media = new Media(mediastore, id, video, uri, date, orientation, filename);
+            }
+        }
+        catch(Exception e) {
+            // catch Exception for same reasons as in getLatestMediaCore()
+            if( MyDebug.LOG )
+                Log.e(TAG, "exception trying to find media for: " + uri);
+            e.printStackTrace();
+        }
+        finally {
+            if( cursor != null ) {
+                cursor.close();
+            }
+        }
+        return media;
+    }
+
+    /** Updates the cache used by getLatestMedia(), for a newly saved photo or video, so that
+     *  getLatestMedia() doesn't need to search the folder again. Also passes the media to the
+     *  ThumbnailCache, so that the thumbnail created when saving can be cached.
+     * @param mediastore Whether uri is a mediastore uri, rather than a Storage Access Framework
+     *                   uri.
+     */
+    void addLatestMedia(Uri uri, boolean mediastore, boolean video) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "addLatestMedia: " + uri);
+        if( mediastore == latestMediaUsesSAF() ) {
+            // uri is of a different type to those returned by getLatestMedia()
+            return;
+        }
+        Media media = getMedia(uri, mediastore, video);
+        if( media == null ) {
+            // can't use the cache, as we don't know what the latest media is
+            invalidateLatestMedia();
+            return;
+        }
+        applicationInterface.getThumbnailCache().onMediaSaved(media);
+        String folder_key = getLatestMediaFolderKey();
+        if( folder_key != null ) {
+            latest_media_index.add(folder_key, media, media.filename, video);
+        }
+    }
+
+    /** Should be called when media is deleted, so that getLatestMedia() searches the folder
+     *  again.
+     */
+    void invalidateLatestMedia() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "invalidateLatestMedia");
+        latest_media_index.invalidate();
+    }
+
+    /** Returns the most recent media in the save folder. The result is cached, and only searched
+     *  for again if the folder has been modified by something other than Open Camera (or if media
+     *  has been deleted).
+     */
     Media getLatestMedia() {
-        if( MainActivity.useScopedStorage() && this.isUsingSAF() ) {
+        String folder_key = getLatestMediaFolderKey();
+        long token = getLatestMediaToken();
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "getLatestMedia folder_key: " + folder_key);
+            Log.d(TAG, "getLatestMedia token: " + token);
+        }
+        synchronized( latest_media_index ) {
+            if( latest_media_index.isValid(folder_key, token) ) {
+                Media media = latest_media_index.getLatest();
+                if( MyDebug.LOG )
+                    Log.d(TAG, "return cached latest media: " + media);
+                return media;
+            }
+        }
+
+        boolean [] from_any_folder = new boolean[1];
+        Media media = searchLatestMedia(from_any_folder);
+        // don't cache media from outside the save folder, as the index only tracks changes to the save
+        // folder (so we wouldn't know if the media was deleted)
+        if( folder_key != null && !from_any_folder[0] ) {
+            latest_media_index.setFromScan(folder_key, token, media, media == null ? null : media.filename, media != null && media.video);
+        }
+        return media;
+    }
+
+    /** For testing: returns the number of calls to getLatestMedia() that used the cached result.
+     */
+    public int getLatestMediaNCacheHits() {
+        return latest_media_index.getNHits();
+    }
+
+    /** Searches for the most recent media, see getLatestMedia().
+     * @param from_any_folder Must be an array of length 1; on return, the value is set to whether
+     *                        the returned media was from outside the save folder.
+     */
+    private Media searchLatestMedia(boolean [] from_any_folder) {
+        from_any_folder[0] = false;
+        if( latestMediaUsesSAF() ) {
             Uri treeUri = this.getTreeUriSAF();
             return getLatestMediaSAF(treeUri);
         }
 
-        Media image_media = getLatestMedia(UriType.MEDIASTORE_IMAGES);
-        Media video_media = getLatestMedia(UriType.MEDIASTORE_VIDEOS);
+        boolean [] image_from_any_folder = new boolean[1];
+        boolean [] video_from_any_folder = new boolean[1];
+        Media image_media = getLatestMedia(UriType.MEDIASTORE_IMAGES, image_from_any_folder);
+        Media video_media = getLatestMedia(UriType.MEDIASTORE_VIDEOS, video_from_any_folder);
         Media media = null;
         if( image_media != null && video_media == null ) {
             if( MyDebug.LOG )
@@ -1434,6 +1636,8 @@ public class StorageUtils {
                 media = video_media;
             }
         }
+        if( media != null )
+            from_any_folder[0] = media == image_media ? image_from_any_folder[0] : video_from_any_folder[0];
         if( MyDebug.LOG )
             Log.d(TAG, "return latest media: " + media);
         return media;
@@ -0,0 +1,394 @@
+package net.sourceforge.opencamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Caches the thumbnails used for the gallery icon (and for ghosting the last image), so that
+ *  MainActivity.updateGalleryIcon() doesn't need to decode the latest media each time it's
+ *  called.
+ *  Thumbnails are keyed by the media's uri and date, so a thumbnail is never returned for media
+ *  that has since been modified, and are grouped by filename so that they can be removed when
+ *  media is deleted. There are two levels: an LRU cache in memory bounded by the number of bytes
+ *  of the bitmaps, and an LRU cache of pre-scaled JPEGs in the application's cache folder, bounded
+ *  by the size of the files. Thumbnails at the resolution of the display are scaled so that they
+ *  are no larger than the display, and thumbnails too large for the memory cache aren't cached.
+ *  Bitmaps passed to the cache are copied, and get() returns a new copy, as callers of
+ *  updateGalleryIcon() recycle the bitmaps when they're no longer needed.
+ *  When saving photos and videos, the thumbnail we already have is added with
+ *  putSavedThumbnail(), so that it doesn't need to be decoded again; as the uri of the media may
+ *  only be known after saving (e.g., from the media scanner), the thumbnail is matched by filename
+ *  to the media passed to onMediaSaved().
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    private static final int max_thumbnail_size_c = 512; // thumbnails that aren't full resolution are scaled so that the largest dimension is at most this
+    private static final long max_disk_bytes_c = 16*1024*1024;
+    private static final int jpeg_quality_c = 90;
+    private static final int max_pending_c = 4;
+
+    private final File folder;
+    private final int max_full_resolution_size; // thumbnails at the resolution of the display are scaled so that the largest dimension is at most this
+    private final LruSizeCache<String, Bitmap> memory_cache;
+    private LruSizeCache<String, Long> disk_cache; // lazily created, as need to read the folder; values are the file sizes
+    private ExecutorService disk_executor; // lazily created, for writing to the disk cache
+
+    /** A thumbnail for media that's been saved, but whose uri isn't yet known.
+     */
+    private static class PendingThumbnail {
+        final Bitmap bitmap;
+        final boolean full_resolution;
+
+        PendingThumbnail(Bitmap bitmap, boolean full_resolution) {
+            this.bitmap = bitmap;
+            this.full_resolution = full_resolution;
+        }
+    }
+    private final Map<String, PendingThumbnail> pending_thumbnails = new LinkedHashMap<String, PendingThumbnail>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PendingThumbnail> eldest) {
+            return size() > max_pending_c;
+        }
+    }; // by filename
+    private final Map<String, StorageUtils.Media> saved_media = new LinkedHashMap<String, StorageUtils.Media>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StorageUtils.Media> eldest) {
+            return size() > max_pending_c;
+        }
+    }; // media that's been saved, but whose thumbnail hasn't yet been passed to putSavedThumbnail(), by filename
+
+    /**
+     * @param folder                   The folder to use for the disk cache, which is created if
+     *                                 necessary.
+     * @param max_full_resolution_size The largest dimension of the display.
+     */
+    ThumbnailCache(File folder, int max_full_resolution_size) {
+        this.folder = folder;
+        this.max_full_resolution_size = Math.max(max_full_resolution_size, max_thumbnail_size_c);
+        long max_memory_bytes = Math.min(Runtime.getRuntime().maxMemory()/16, 32*1024*1024);
+        if( MyDebug.LOG )
+            Log.d(TAG, "max_memory_bytes: " + max_memory_bytes);
+        this.memory_cache = new LruSizeCache<String, Bitmap>(max_memory_bytes) {
+            @Override
+            protected long sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+            // n.b., we don't recycle bitmaps that are removed, as they may still be being written to
+            // the disk cache
+        };
+    }
+
+    private static String getHash(String string) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            //noinspection CharsetObjectCanBeUsed
+            byte [] hash = digest.digest(string.getBytes(Charset.forName("UTF-8")));
+            StringBuilder builder = new StringBuilder();
+            for(byte b : hash) {
+                builder.append(String.format(Locale.US, "%02x", b));
+            }
+            return builder.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            // shouldn't happen, as SHA-1 is always available
+            e.printStackTrace();
+            return Integer.toHexString(string.hashCode());
+        }
+    }
+
+    /** Returns the prefix used for the keys (and disk filenames) of all thumbnails of media with
+     *  the supplied filename.
+     */
+    private static String getFilenamePrefix(String filename) {
+        return getHash(filename != null ? filename : "") + "_";
+    }
+
+    /** Returns the key for the thumbnail of a media.
+     * @param full_resolution Whether the thumbnail is at the resolution of the display (as used for
+     *                        ghosting the last image), rather than a smaller thumbnail.
+     */
+    private static String getKey(StorageUtils.Media media, boolean full_resolution) {
+        return getFilenamePrefix(media.filename) + (full_resolution ? "full:" : "thumb:") + media.date + ":" + media.uri;
+    }
+
+    private static String getDiskFilename(String key) {
+        // keep the filename prefix, see remove()
+        int index = key.indexOf('_');
+        return key.substring(0, index+1) + getHash(key) + ".jpg";
+    }
+
+    private synchronized LruSizeCache<String, Long> getDiskCache() {
+        if( disk_cache == null ) {
+            disk_cache = new LruSizeCache<String, Long>(max_disk_bytes_c) {
+                @Override
+                protected long sizeOf(String key, Long value) {
+                    return value;
+                }
+
+                @Override
+                protected void onRemoved(String key, Long value) {
+                    File file = new File(folder, key);
+                    if( !file.delete() ) {
+                        if( MyDebug.LOG )
+                            Log.e(TAG, "failed to delete: " + file);
+                    }
+                }
+            };
+            if( !folder.exists() && !folder.mkdirs() ) {
+                Log.e(TAG, "failed to create folder: " + folder);
+            }
+            File [] files = folder.listFiles();
+            if( files != null ) {
+                // add in order of last modified, so that the least recently used are evicted first
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File o1, File o2) {
+                        // n.b., Long.compare() requires Android 4.4
+                        long time0 = o1.lastModified();
+                        long time1 = o2.lastModified();
+                        return time0 < time1 ? -1 : (time0 == time1 ? 0 : 1);
+                    }
+                });
+                for(File file : files) {
+                    disk_cache.put(file.getName(), file.length());
+                }
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "disk cache has " + disk_cache.getNEntries() + " files, " + disk_cache.getSize() + " bytes");
+        }
+        return disk_cache;
+    }
+
+    /** Returns a copy of the cached thumbnail, or null if not cached. Should not be called on the UI
+     *  thread, as this may need to read from the disk cache.
+     */
+    Bitmap get(StorageUtils.Media media, boolean full_resolution) {
+        String key = getKey(media, full_resolution);
+        Bitmap bitmap = memory_cache.get(key);
+        if( bitmap == null ) {
+            String disk_filename = getDiskFilename(key);
+            LruSizeCache<String, Long> disk_cache = getDiskCache();
+            if( disk_cache.get(disk_filename) != null ) {
+                File file = new File(folder, disk_filename);
+                bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+                if( bitmap == null ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "failed to decode: " + file);
+                    disk_cache.remove(disk_filename);
+                    return null;
+                }
+                if( MyDebug.LOG )
+                    Log.d(TAG, "found in disk cache: " + key);
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis()); // so we remember this is recently used
+                memory_cache.put(key, bitmap);
+            }
+            else {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "not cached: " + key);
+                return null;
+            }
+        }
+        else if( MyDebug.LOG ) {
+            Log.d(TAG, "found in memory cache: " + key);
+        }
+        return bitmap.copy(bitmap.getConfig(), false);
+    }
+
+    /** Adds a thumbnail to the cache. The supplied bitmap is copied (or scaled), so remains owned
+     *  by the caller.
+     */
+    void put(StorageUtils.Media media, boolean full_resolution, Bitmap thumbnail) {
+        Bitmap copy = createCopy(thumbnail, full_resolution);
+        if( copy != null ) {
+            putOwned(media, full_resolution, copy);
+        }
+    }
+
+    /** Returns a copy of the thumbnail, scaled down if it's larger than the maximum size for the
+     *  type of thumbnail, or null if the copy would be too large to cache.
+     */
+    private Bitmap createCopy(Bitmap thumbnail, boolean full_resolution) {
+        int width = thumbnail.getWidth();
+        int height = thumbnail.getHeight();
+        int max_size = full_resolution ? max_full_resolution_size : max_thumbnail_size_c;
+        int new_width = width, new_height = height;
+        if( Math.max(width, height) > max_size ) {
+            float scale = max_size / (float)Math.max(width, height);
+            new_width = Math.max(Math.round(scale * width), 1);
+            new_height = Math.max(Math.round(scale * height), 1);
+        }
+        if( 4L*new_width*new_height > memory_cache.getMaxSize() ) {
+            // would be evicted from the memory cache straight away
+            if( MyDebug.LOG )
+                Log.d(TAG, "thumbnail too large to cache: " + new_width + " x " + new_height);
+            return null;
+        }
+        if( new_width != width || new_height != height ) {
+            Bitmap scaled = Bitmap.createScaledBitmap(thumbnail, new_width, new_height, true);
+            if( scaled != thumbnail ) {
+                return scaled;
+            }
+        }
+        return thumbnail.copy(thumbnail.getConfig(), false);
+    }
+
+    /** As put(), but takes ownership of the bitmap.
+     */
+    private void putOwned(StorageUtils.Media media, boolean full_resolution, final Bitmap bitmap) {
+        final String key = getKey(media, full_resolution);
+        if( MyDebug.LOG )
+            Log.d(TAG, "put: " + key);
+        memory_cache.put(key, bitmap);
+
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                writeToDisk(key, bitmap);
+            }
+        });
+    }
+
+    private synchronized ExecutorService getDiskExecutor() {
+        if( disk_executor == null ) {
+            disk_executor = Executors.newSingleThreadExecutor();
+        }
+        return disk_executor;
+    }
+
+    private void writeToDisk(String key, Bitmap bitmap) {
+        String disk_filename = getDiskFilename(key);
+        LruSizeCache<String, Long> disk_cache = getDiskCache();
+        if( disk_cache.contains(disk_filename) ) {
+            return;
+        }
+        File file = new File(folder, disk_filename);
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, jpeg_quality_c, outputStream);
+            outputStream.close();
+            outputStream = null;
+            disk_cache.put(disk_filename, file.length());
+        }
+        catch(IOException e) {
+            Log.e(TAG, "failed to write thumbnail to disk cache");
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        finally {
+            if( outputStream != null ) {
+                try {
+                    outputStream.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /** Adds the thumbnail for a photo or video that's just been saved. The supplied bitmap is
+     *  copied (or scaled), so remains owned by the caller.
+     * @param filename The filename (without the path) of the saved media.
+     */
+    synchronized void putSavedThumbnail(String filename, Bitmap thumbnail, boolean full_resolution) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "putSavedThumbnail: " + filename);
+        if( filename == null )
+            return;
+        StorageUtils.Media media = saved_media.remove(filename);
+        if( media != null ) {
+            put(media, full_resolution, thumbnail);
+        }
+        else {
+            Bitmap copy = createCopy(thumbnail, full_resolution);
+            if( copy != null ) {
+                pending_thumbnails.put(filename, new PendingThumbnail(copy, full_resolution));
+            }
+        }
+    }
+
+    /** Should be called when the uri for a saved photo or video is known.
+     */
+    synchronized void onMediaSaved(StorageUtils.Media media) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onMediaSaved: " + media.uri);
+        if( media.filename == null )
+            return;
+        PendingThumbnail pending_thumbnail = pending_thumbnails.remove(media.filename);
+        if( pending_thumbnail != null ) {
+            putOwned(media, pending_thumbnail.full_resolution, pending_thumbnail.bitmap);
+        }
+        else {
+            saved_media.put(media.filename, media);
+        }
+    }
+
+    /** Removes all thumbnails for media with the supplied filename, e.g., when the media is
+     *  deleted.
+     * @param filename The filename (without the path) of the media.
+     */
+    synchronized void remove(String filename) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "remove: " + filename);
+        pending_thumbnails.remove(filename);
+        saved_media.remove(filename);
+        final String prefix = getFilenamePrefix(filename);
+        for(String key : memory_cache.getKeys()) {
+            if( key.startsWith(prefix) )
+                memory_cache.remove(key);
+        }
+        // remove from the disk cache on the disk thread, as this may need to read the folder
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                LruSizeCache<String, Long> disk_cache = getDiskCache();
+                for(String disk_filename : disk_cache.getKeys()) {
+                    if( disk_filename.startsWith(prefix) )
+                        disk_cache.remove(disk_filename); // also deletes the file
+                }
+            }
+        });
+    }
+
+    /** For testing: returns the number of calls to get() that found the thumbnail in memory.
+     */
+    public int getNMemoryHits() {
+        return memory_cache.getNHits();
+    }
+
+    /** Should be called when the cache is no longer needed.
+     */
+    void onDestroy() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onDestroy");
+        synchronized( this ) {
+            if( disk_executor != null ) {
+                // allow any pending writes to complete
+                disk_executor.shutdown();
+                disk_executor = null;
+            }
+            pending_thumbnails.clear();
+            saved_media.clear();
+        }
+        memory_cache.clear();
+    }
+}
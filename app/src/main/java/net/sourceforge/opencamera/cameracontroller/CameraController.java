@@ -237,6 +237,11 @@ public abstract class CameraController {
         void onStarted(); // called immediately before we start capturing the picture
         void onCompleted(); // called after all relevant on*PictureTaken() callbacks have been called and returned
         void onPictureTaken(byte[] data);
+        /** Called instead of onPictureTaken() if a pool was set with setJpegBufferPool(), for
+         *  images that aren't part of a burst returned by onBurstPictureTaken().
+         *  Caller should call buffer.release() when done with the data.
+         */
+        void onPooledPictureTaken(JpegBufferPool.Buffer buffer);
         /** Only called if RAW is requested.
          *  Caller should call raw_image.close() when done with the image.
          */
@@ -431,6 +436,11 @@ public abstract class CameraController {
      *                       caught by the callera).
      */
     public abstract void setRaw(boolean want_raw, int max_raw_images);
+    /** If non-null, JPEG images are copied into buffers from the supplied pool and returned via
+     *  PictureCallback.onPooledPictureTaken(), rather than allocating a new array for each image.
+     *  Only supported for Camera2 API.
+     */
+    public abstract void setJpegBufferPool(JpegBufferPool jpeg_buffer_pool);
 
     /** Request a capture session compatible with high speed frame rates.
      *  This should be called only when the preview is paused or not yet started.
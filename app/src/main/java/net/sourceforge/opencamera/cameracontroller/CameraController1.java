@@ -872,6 +872,11 @@ public class CameraController1 extends CameraController {
         // not supported for CameraController1
     }
 
+    @Override
+    public void setJpegBufferPool(JpegBufferPool jpeg_buffer_pool) {
+        // not supported for CameraController1
+    }
+
     @Override
     public void setVideoHighSpeed(boolean setVideoHighSpeed) {
         // not supported for CameraController1
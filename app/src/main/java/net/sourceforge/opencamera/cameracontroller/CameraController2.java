@@ -206,6 +206,7 @@ public class CameraController2 extends CameraController {
     private int n_burst_raw; // number of expected (remaining) burst RAW images in this capture
     private boolean burst_single_request; // if true then the burst images are returned in a single call to onBurstPictureTaken(), if false, then multiple calls to onPictureTaken() are made as soon as the image is available
     private final List<byte []> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+    private volatile JpegBufferPool jpeg_buffer_pool; // if non-null, used for JPEGs that aren't part of a burst with burst_single_request==true
     private final List<RawImage> pending_burst_images_raw = new ArrayList<>();
     private List<CaptureRequest> slow_burst_capture_requests; // the set of burst capture requests - used when not using captureBurst() (e.g., when use_expo_fast_burst==false, or for focus bracketing)
     private long slow_burst_start_ms = 0; // time when burst started (used for measuring performance of captures when not using captureBurst())
@@ -1334,10 +1335,20 @@ public class CameraController2 extends CameraController {
             if( MyDebug.LOG )
                 Log.d(TAG, "image timestamp: " + image.getTimestamp());
             ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-            byte [] bytes = new byte[buffer.remaining()];
+            // images for burst_single_request are held until the burst is complete, so they still need their own arrays
+            JpegBufferPool pool = burst_single_request ? null : jpeg_buffer_pool;
+            byte [] bytes = null;
+            JpegBufferPool.Buffer pooled_buffer = null;
             if( MyDebug.LOG )
-                Log.d(TAG, "read " + bytes.length + " bytes");
-            buffer.get(bytes);
+                Log.d(TAG, "read " + buffer.remaining() + " bytes");
+            if( pool != null ) {
+                pooled_buffer = pool.acquire(buffer.remaining());
+                buffer.get(pooled_buffer.getData(), 0, pooled_buffer.getLength());
+            }
+            else {
+                bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+            }
             image.close();
 
             synchronized( background_camera_lock ) {
@@ -1375,6 +1386,9 @@ public class CameraController2 extends CameraController {
             if( single_burst_complete_images != null ) {
                 picture_cb.onBurstPictureTaken(single_burst_complete_images);
             }
+            else if( pooled_buffer != null ) {
+                picture_cb.onPooledPictureTaken(pooled_buffer);
+            }
             else if( !burst_single_request ) {
                 picture_cb.onPictureTaken(bytes);
             }
@@ -3825,6 +3839,13 @@ public class CameraController2 extends CameraController {
         this.picture_height = height;
     }
 
+    @Override
+    public void setJpegBufferPool(JpegBufferPool jpeg_buffer_pool) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setJpegBufferPool: " + jpeg_buffer_pool);
+        this.jpeg_buffer_pool = jpeg_buffer_pool;
+    }
+
     @Override
     public void setRaw(boolean want_raw, int max_raw_images) {
         if( MyDebug.LOG ) {
@@ -0,0 +1,1128 @@
+package net.sourceforge.opencamera.cameracontroller;
+
+import net.sourceforge.opencamera.MyDebug;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.location.Location;
+import android.media.MediaRecorder;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.TextureView;
+
+/** A CameraController that doesn't use a real camera, instead returning recorded JPEG (and
+ *  optionally DNG) frames from a folder, with timings from a SimulatedSensor. This allows the
+ *  capture pipeline (Preview, MyApplicationInterface and ImageSaver) to be load tested and
+ *  profiled with reproducible input, and the controller itself can be driven without a device
+ *  (e.g., from unit tests on a desktop JVM), as it doesn't call into the Android framework.
+ *  Frames are the files in the folder with a ".jpg" or ".jpeg" extension, in order of filename,
+ *  and are returned in turn (wrapping round). If a file with the same name but a ".dng" extension
+ *  exists, it's returned as the RAW image for that frame. The picture size is that of the first
+ *  JPEG.
+ *  Callbacks are run on the supplied executor - on a device, this should post to the UI thread, to
+ *  match the other CameraControllers.
+ *  There is no preview - the preview surface is never drawn to.
+ */
+public class CameraControllerSimulated extends CameraController {
+    private static final String TAG = "CameraControllerSimul";
+
+    private final File [] jpeg_files;
+    private final File [] dng_files; // entries are null if no DNG for that frame
+    private final SimulatedSensor sensor;
+    private final Executor callback_executor;
+    private final ErrorCallback camera_error_cb;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final long start_time_ns = System.nanoTime(); // time 0 for the sensor
+    private final CameraController.Size picture_size;
+    private CameraController.Size preview_size;
+    private int next_frame; // index into jpeg_files of the next frame to return
+
+    private boolean preview_started;
+    private String scene_mode = SCENE_MODE_DEFAULT;
+    private String color_effect = COLOR_EFFECT_DEFAULT;
+    private String white_balance = WHITE_BALANCE_DEFAULT;
+    private int white_balance_temperature = 5000;
+    private String antibanding = ANTIBANDING_DEFAULT;
+    private String edge_mode = EDGE_MODE_DEFAULT;
+    private String noise_reduction_mode = NOISE_REDUCTION_MODE_DEFAULT;
+    private boolean manual_iso;
+    private int iso = 800;
+    private long exposure_time = EXPOSURE_TIME_DEFAULT;
+    private int exposure_compensation;
+    private BurstType burst_type = BurstType.BURSTTYPE_NONE;
+    private int burst_requested_n_images;
+    private boolean burst_for_noise_reduction;
+    private boolean noise_reduction_low_light;
+    private int expo_bracketing_n_images = 3;
+    private int focus_bracketing_n_images = 3;
+    private boolean focus_bracketing_add_infinity;
+    private float focus_bracketing_source_distance;
+    private float focus_bracketing_target_distance;
+    private boolean want_raw;
+    private JpegBufferPool jpeg_buffer_pool;
+    private boolean video_stabilization;
+    private TonemapProfile tonemap_profile = TonemapProfile.TONEMAPPROFILE_OFF;
+    private int jpeg_quality = 90;
+    private int zoom;
+    private String focus_value = "focus_mode_auto";
+    private float focus_distance;
+    private String flash_value = "flash_off";
+    private boolean auto_exposure_lock;
+    private boolean auto_white_balance_lock;
+    private List<CameraController.Area> focus_areas;
+    private int display_orientation;
+
+    private Capture capture; // the capture in progress, or null if none
+    private volatile boolean continuous_burst_in_progress;
+
+    // for testing:
+    public volatile int test_n_frames_captured;
+    public volatile long test_last_capture_latency_ns; // time from takePicture() to the last image of that capture being returned
+
+    /** The state of a call to takePicture().
+     */
+    private class Capture {
+        final PictureCallback picture;
+        final ErrorCallback error;
+        final BurstType capture_burst_type;
+        final int n_images; // 0 for continuous burst
+        final boolean single_request; // whether all images are returned together via onBurstPictureTaken()
+        final long start_ns;
+        final List<byte []> jpegs = new ArrayList<>();
+        final List<RawImage> raws = new ArrayList<>();
+        int n_requested;
+        int n_taken;
+        boolean finished;
+        boolean stop_requested;
+
+        Capture(PictureCallback picture, ErrorCallback error, BurstType capture_burst_type, int n_images, long start_ns) {
+            this.picture = picture;
+            this.error = error;
+            this.capture_burst_type = capture_burst_type;
+            this.n_images = n_images;
+            this.single_request = capture_burst_type == BurstType.BURSTTYPE_EXPO || capture_burst_type == BurstType.BURSTTYPE_NORMAL;
+            this.start_ns = start_ns;
+        }
+    }
+
+    /**
+     * @param folder            The folder containing the recorded frames.
+     * @param sensor            The timing model.
+     * @param callback_executor Executor to run the callbacks on.
+     * @param camera_error_cb   Called on the callback executor if the simulated camera fails.
+     * @throws CameraControllerException If the folder doesn't contain any JPEGs, or the size of
+     *                                   the first JPEG can't be read.
+     */
+    public CameraControllerSimulated(int cameraId, File folder, SimulatedSensor sensor, Executor callback_executor, ErrorCallback camera_error_cb) throws CameraControllerException {
+        super(cameraId);
+        if( MyDebug.LOG )
+            Log.d(TAG, "create new CameraControllerSimulated: " + folder);
+        this.sensor = sensor;
+        this.callback_executor = callback_executor;
+        this.camera_error_cb = camera_error_cb;
+
+        File [] files = folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                String lower = name.toLowerCase(Locale.US);
+                return lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+            }
+        });
+        if( files == null || files.length == 0 ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "no jpegs in folder: " + folder);
+            throw new CameraControllerException();
+        }
+        Arrays.sort(files);
+        this.jpeg_files = files;
+        this.dng_files = new File[files.length];
+        for(int i=0;i<files.length;i++) {
+            String name = files[i].getName();
+            File dng_file = new File(folder, name.substring(0, name.lastIndexOf('.')) + ".dng");
+            if( dng_file.exists() )
+                dng_files[i] = dng_file;
+        }
+
+        int [] size;
+        try {
+            size = readJpegSize(readFile(jpeg_files[0]));
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+            throw new CameraControllerException();
+        }
+        if( size == null ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "can't read size of: " + jpeg_files[0]);
+            throw new CameraControllerException();
+        }
+        this.picture_size = new CameraController.Size(size[0], size[1]);
+        this.preview_size = getPreviewSizes().get(0);
+        if( MyDebug.LOG )
+            Log.d(TAG, "n frames: " + jpeg_files.length + " picture size: " + picture_size.width + " x " + picture_size.height);
+    }
+
+    private static byte [] readFile(File file) throws IOException {
+        byte [] data = new byte[(int)file.length()];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while( offset < data.length ) {
+                int n_read = inputStream.read(data, offset, data.length - offset);
+                if( n_read < 0 )
+                    throw new IOException("unexpected end of file: " + file);
+                offset += n_read;
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+        return data;
+    }
+
+    /** Returns the {width, height} from the frame header of a JPEG, or null if not found.
+     */
+    static int [] readJpegSize(byte [] data) {
+        int pos = 2;
+        while( pos + 8 < data.length ) {
+            if( (data[pos] & 0xff) != 0xff ) {
+                return null;
+            }
+            int marker = data[pos+1] & 0xff;
+            if( marker == 0xff ) {
+                pos++; // fill byte
+                continue;
+            }
+            int length = ((data[pos+2] & 0xff) << 8) | (data[pos+3] & 0xff);
+            if( marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc ) {
+                int height = ((data[pos+5] & 0xff) << 8) | (data[pos+6] & 0xff);
+                int width = ((data[pos+7] & 0xff) << 8) | (data[pos+8] & 0xff);
+                return new int[]{width, height};
+            }
+            else if( marker == 0xda || marker == 0xd9 ) {
+                return null;
+            }
+            pos += 2 + length;
+        }
+        return null;
+    }
+
+    private List<CameraController.Size> getPreviewSizes() {
+        List<CameraController.Size> sizes = new ArrayList<>();
+        // preview sizes with the same aspect ratio as the picture size
+        for(int width : new int[]{1920, 1280, 640}) {
+            if( width <= picture_size.width ) {
+                sizes.add(new CameraController.Size(width, (int)((long)width*picture_size.height/picture_size.width)));
+            }
+        }
+        if( sizes.size() == 0 )
+            sizes.add(new CameraController.Size(picture_size.width, picture_size.height));
+        return sizes;
+    }
+
+    private long getTimeNs() {
+        return System.nanoTime() - start_time_ns;
+    }
+
+    @Override
+    public void release() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "release");
+        scheduler.shutdownNow();
+        synchronized( this ) {
+            if( capture != null ) {
+                capture.finished = true;
+                capture = null;
+            }
+            continuous_burst_in_progress = false;
+        }
+    }
+
+    @Override
+    public void onError() {
+        Log.e(TAG, "onError");
+        callback_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if( camera_error_cb != null )
+                    camera_error_cb.onError();
+            }
+        });
+    }
+
+    @Override
+    public String getAPI() {
+        return "Simulated";
+    }
+
+    @Override
+    public CameraFeatures getCameraFeatures() {
+        CameraFeatures camera_features = new CameraFeatures();
+        camera_features.is_zoom_supported = false;
+        camera_features.supports_face_detection = false;
+        camera_features.picture_sizes = new ArrayList<>();
+        camera_features.picture_sizes.add(new CameraController.Size(picture_size.width, picture_size.height));
+        camera_features.video_sizes = new ArrayList<>();
+        List<int []> fps_ranges = new ArrayList<>();
+        fps_ranges.add(new int[]{15, 30});
+        camera_features.video_sizes.add(new CameraController.Size(1920, 1080, fps_ranges, false));
+        camera_features.preview_sizes = getPreviewSizes();
+        camera_features.supported_focus_values = new ArrayList<>();
+        camera_features.supported_focus_values.add("focus_mode_auto");
+        camera_features.supported_focus_values.add("focus_mode_infinity");
+        camera_features.supported_focus_values.add("focus_mode_manual2");
+        camera_features.max_num_focus_areas = 1;
+        camera_features.minimum_focus_distance = 10.0f;
+        camera_features.is_exposure_lock_supported = true;
+        camera_features.is_white_balance_lock_supported = true;
+        camera_features.supports_iso_range = true;
+        camera_features.min_iso = 100;
+        camera_features.max_iso = 3200;
+        camera_features.supports_exposure_time = true;
+        camera_features.min_exposure_time = 1000000L;
+        camera_features.max_exposure_time = 1000000000L;
+        camera_features.min_exposure = -6;
+        camera_features.max_exposure = 6;
+        camera_features.exposure_step = 1.0f/3.0f;
+        camera_features.supports_expo_bracketing = true;
+        camera_features.max_expo_bracketing_n_images = 5;
+        camera_features.supports_focus_bracketing = true;
+        camera_features.supports_burst = true;
+        camera_features.supports_raw = dng_files[0] != null;
+        camera_features.view_angle_x = 65.0f;
+        camera_features.view_angle_y = 50.0f;
+        return camera_features;
+    }
+
+    @Override
+    public SupportedValues setSceneMode(String value) {
+        scene_mode = value;
+        return null;
+    }
+
+    @Override
+    public String getSceneMode() {
+        return scene_mode;
+    }
+
+    @Override
+    public boolean sceneModeAffectsFunctionality() {
+        return false;
+    }
+
+    @Override
+    public SupportedValues setColorEffect(String value) {
+        color_effect = value;
+        return null;
+    }
+
+    @Override
+    public String getColorEffect() {
+        return color_effect;
+    }
+
+    @Override
+    public SupportedValues setWhiteBalance(String value) {
+        white_balance = value;
+        return null;
+    }
+
+    @Override
+    public String getWhiteBalance() {
+        return white_balance;
+    }
+
+    @Override
+    public boolean setWhiteBalanceTemperature(int temperature) {
+        if( white_balance_temperature == temperature )
+            return false;
+        white_balance_temperature = temperature;
+        return true;
+    }
+
+    @Override
+    public int getWhiteBalanceTemperature() {
+        return white_balance_temperature;
+    }
+
+    @Override
+    public SupportedValues setAntiBanding(String value) {
+        antibanding = value;
+        return null;
+    }
+
+    @Override
+    public String getAntiBanding() {
+        return antibanding;
+    }
+
+    @Override
+    public SupportedValues setEdgeMode(String value) {
+        edge_mode = value;
+        return null;
+    }
+
+    @Override
+    public String getEdgeMode() {
+        return edge_mode;
+    }
+
+    @Override
+    public SupportedValues setNoiseReductionMode(String value) {
+        noise_reduction_mode = value;
+        return null;
+    }
+
+    @Override
+    public String getNoiseReductionMode() {
+        return noise_reduction_mode;
+    }
+
+    @Override
+    public SupportedValues setISO(String value) {
+        // not supported, as supports_iso_range is true
+        return null;
+    }
+
+    @Override
+    public void setManualISO(boolean manual_iso, int iso) {
+        this.manual_iso = manual_iso;
+        if( manual_iso )
+            this.iso = Math.max(Math.min(iso, 3200), 100);
+    }
+
+    @Override
+    public boolean isManualISO() {
+        return manual_iso;
+    }
+
+    @Override
+    public boolean setISO(int iso) {
+        if( this.iso == iso )
+            return false;
+        this.iso = iso;
+        return true;
+    }
+
+    @Override
+    public String getISOKey() {
+        return "";
+    }
+
+    @Override
+    public int getISO() {
+        return iso;
+    }
+
+    @Override
+    public long getExposureTime() {
+        return exposure_time;
+    }
+
+    @Override
+    public boolean setExposureTime(long exposure_time) {
+        if( this.exposure_time == exposure_time )
+            return false;
+        this.exposure_time = exposure_time;
+        return true;
+    }
+
+    @Override
+    public void setAperture(float aperture) {
+        // not supported
+    }
+
+    @Override
+    public CameraController.Size getPictureSize() {
+        return picture_size;
+    }
+
+    @Override
+    public void setPictureSize(int width, int height) {
+        // only the size of the recorded frames is supported
+    }
+
+    @Override
+    public CameraController.Size getPreviewSize() {
+        return preview_size;
+    }
+
+    @Override
+    public void setPreviewSize(int width, int height) {
+        preview_size = new CameraController.Size(width, height);
+    }
+
+    @Override
+    public void setBurstType(BurstType new_burst_type) {
+        burst_type = new_burst_type;
+    }
+
+    @Override
+    public BurstType getBurstType() {
+        return burst_type;
+    }
+
+    @Override
+    public void setBurstNImages(int burst_requested_n_images) {
+        this.burst_requested_n_images = burst_requested_n_images;
+    }
+
+    @Override
+    public void setBurstForNoiseReduction(boolean burst_for_noise_reduction, boolean noise_reduction_low_light) {
+        this.burst_for_noise_reduction = burst_for_noise_reduction;
+        this.noise_reduction_low_light = noise_reduction_low_light;
+    }
+
+    @Override
+    public boolean isContinuousBurstInProgress() {
+        return continuous_burst_in_progress;
+    }
+
+    @Override
+    public void stopContinuousBurst() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "stopContinuousBurst");
+        continuous_burst_in_progress = false;
+    }
+
+    @Override
+    public void stopFocusBracketingBurst() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "stopFocusBracketingBurst");
+        synchronized( this ) {
+            if( capture != null && capture.capture_burst_type == BurstType.BURSTTYPE_FOCUS ) {
+                capture.stop_requested = true;
+            }
+        }
+    }
+
+    @Override
+    public void setExpoBracketingNImages(int n_images) {
+        expo_bracketing_n_images = n_images;
+    }
+
+    @Override
+    public void setExpoBracketingStops(double stops) {
+        // the recorded frames are returned unchanged
+    }
+
+    @Override
+    public void setUseExpoFastBurst(boolean use_expo_fast_burst) {
+        // not relevant
+    }
+
+    @Override
+    public boolean isBurstOrExpo() {
+        return burst_type != BurstType.BURSTTYPE_NONE;
+    }
+
+    @Override
+    public synchronized boolean isCapturingBurst() {
+        return capture != null && capture.capture_burst_type != BurstType.BURSTTYPE_NONE;
+    }
+
+    @Override
+    public synchronized int getNBurstTaken() {
+        return capture != null ? capture.n_taken : 0;
+    }
+
+    @Override
+    public synchronized int getBurstTotal() {
+        return capture != null ? capture.n_images : 0;
+    }
+
+    @Override
+    public void setOptimiseAEForDRO(boolean optimise_ae_for_dro) {
+        // not relevant
+    }
+
+    @Override
+    public void setRaw(boolean want_raw, int max_raw_images) {
+        this.want_raw = want_raw;
+    }
+
+    @Override
+    public void setJpegBufferPool(JpegBufferPool jpeg_buffer_pool) {
+        this.jpeg_buffer_pool = jpeg_buffer_pool;
+    }
+
+    @Override
+    public void setVideoHighSpeed(boolean setVideoHighSpeed) {
+        // not supported
+    }
+
+    @Override
+    public boolean getOpticalStabilization() {
+        return false;
+    }
+
+    @Override
+    public void setVideoStabilization(boolean enabled) {
+        video_stabilization = enabled;
+    }
+
+    @Override
+    public boolean getVideoStabilization() {
+        return video_stabilization;
+    }
+
+    @Override
+    public void setTonemapProfile(TonemapProfile tonemap_profile, float log_profile_strength, float gamma) {
+        this.tonemap_profile = tonemap_profile;
+    }
+
+    @Override
+    public TonemapProfile getTonemapProfile() {
+        return tonemap_profile;
+    }
+
+    @Override
+    public int getJpegQuality() {
+        return jpeg_quality;
+    }
+
+    @Override
+    public void setJpegQuality(int quality) {
+        jpeg_quality = quality;
+    }
+
+    @Override
+    public int getZoom() {
+        return zoom;
+    }
+
+    @Override
+    public void setZoom(int value) {
+        zoom = value;
+    }
+
+    @Override
+    public void setZoomFloat(float f) {
+        // zoom not supported
+    }
+
+    @Override
+    public void setHardwareZoom(float f) {
+        // zoom not supported
+    }
+
+    @Override
+    public int getExposureCompensation() {
+        return exposure_compensation;
+    }
+
+    @Override
+    public boolean setExposureCompensation(int new_exposure) {
+        if( exposure_compensation == new_exposure )
+            return false;
+        exposure_compensation = new_exposure;
+        return true;
+    }
+
+    @Override
+    public void setPreviewFpsRange(int min, int max) {
+        // the frame rate is set by the SimulatedSensor
+    }
+
+    @Override
+    public void clearPreviewFpsRange() {
+        // the frame rate is set by the SimulatedSensor
+    }
+
+    @Override
+    public List<int []> getSupportedPreviewFpsRange() {
+        int fps = (int)(1000000000L/sensor.getFrameDurationNs());
+        List<int []> ranges = new ArrayList<>();
+        ranges.add(new int[]{fps*1000, fps*1000});
+        return ranges;
+    }
+
+    @Override
+    public void setFocusValue(String focus_value) {
+        this.focus_value = focus_value;
+    }
+
+    @Override
+    public String getFocusValue() {
+        return focus_value;
+    }
+
+    @Override
+    public float getFocusDistance() {
+        return focus_distance;
+    }
+
+    @Override
+    public boolean setFocusDistance(float focus_distance) {
+        if( this.focus_distance == focus_distance )
+            return false;
+        this.focus_distance = focus_distance;
+        return true;
+    }
+
+    @Override
+    public void setFocusBracketingNImages(int n_images) {
+        focus_bracketing_n_images = n_images;
+    }
+
+    @Override
+    public void setFocusBracketingAddInfinity(boolean focus_bracketing_add_infinity) {
+        this.focus_bracketing_add_infinity = focus_bracketing_add_infinity;
+    }
+
+    @Override
+    public void setFocusBracketingSourceDistance(float focus_bracketing_source_distance) {
+        this.focus_bracketing_source_distance = focus_bracketing_source_distance;
+    }
+
+    @Override
+    public float getFocusBracketingSourceDistance() {
+        return focus_bracketing_source_distance;
+    }
+
+    @Override
+    public void setFocusBracketingTargetDistance(float focus_bracketing_target_distance) {
+        this.focus_bracketing_target_distance = focus_bracketing_target_distance;
+    }
+
+    @Override
+    public float getFocusBracketingTargetDistance() {
+        return focus_bracketing_target_distance;
+    }
+
+    @Override
+    public void setFlashValue(String flash_value) {
+        this.flash_value = flash_value;
+    }
+
+    @Override
+    public String getFlashValue() {
+        return flash_value;
+    }
+
+    @Override
+    public void setRecordingHint(boolean hint) {
+        // not relevant
+    }
+
+    @Override
+    public void setAutoExposureLock(boolean enabled) {
+        auto_exposure_lock = enabled;
+    }
+
+    @Override
+    public boolean getAutoExposureLock() {
+        return auto_exposure_lock;
+    }
+
+    @Override
+    public void setAutoWhiteBalanceLock(boolean enabled) {
+        auto_white_balance_lock = enabled;
+    }
+
+    @Override
+    public boolean getAutoWhiteBalanceLock() {
+        return auto_white_balance_lock;
+    }
+
+    @Override
+    public void setRotation(int rotation) {
+        // the recorded frames are returned unchanged
+    }
+
+    @Override
+    public void setLocationInfo(Location location) {
+        // the recorded frames are returned unchanged
+    }
+
+    @Override
+    public void removeLocationInfo() {
+        // the recorded frames are returned unchanged
+    }
+
+    @Override
+    public void enableShutterSound(boolean enabled) {
+        // no shutter sound
+    }
+
+    @Override
+    public boolean setFocusAndMeteringArea(List<CameraController.Area> areas) {
+        focus_areas = areas;
+        return true;
+    }
+
+    @Override
+    public void clearFocusAndMetering() {
+        focus_areas = null;
+    }
+
+    @Override
+    public List<CameraController.Area> getFocusAreas() {
+        return focus_areas;
+    }
+
+    @Override
+    public List<CameraController.Area> getMeteringAreas() {
+        return focus_areas;
+    }
+
+    @Override
+    public boolean supportsAutoFocus() {
+        return focus_value.equals("focus_mode_auto");
+    }
+
+    @Override
+    public boolean supportsMetering() {
+        return true;
+    }
+
+    @Override
+    public boolean focusIsContinuous() {
+        return false;
+    }
+
+    @Override
+    public boolean focusIsVideo() {
+        return false;
+    }
+
+    @Override
+    public void reconnect() {
+        // nothing to reconnect
+    }
+
+    @Override
+    public void setPreviewDisplay(SurfaceHolder holder) {
+        // preview isn't drawn
+    }
+
+    @Override
+    public void setPreviewTexture(TextureView texture) {
+        // preview isn't drawn
+    }
+
+    @Override
+    public void startPreview() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "startPreview");
+        preview_started = true;
+    }
+
+    @Override
+    public void stopPreview() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "stopPreview");
+        preview_started = false;
+    }
+
+    @Override
+    public boolean startFaceDetection() {
+        return false;
+    }
+
+    @Override
+    public void setFaceDetectionListener(FaceDetectionListener listener) {
+        // face detection not supported
+    }
+
+    @Override
+    public void autoFocus(final AutoFocusCallback cb, boolean capture_follows_autofocus_hint) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "autoFocus");
+        // focusing takes a few frames
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback_executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        cb.onAutoFocus(true);
+                    }
+                });
+            }
+        }, 3*sensor.getFrameDurationNs(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void setCaptureFollowAutofocusHint(boolean capture_follows_autofocus_hint) {
+        // not relevant
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+        // autofocus always completes
+    }
+
+    @Override
+    public void setContinuousFocusMoveCallback(ContinuousFocusMoveCallback cb) {
+        // continuous focus not supported
+    }
+
+    /** Returns the number of images to capture for the current burst type, or 0 for a continuous
+     *  burst.
+     */
+    private int getNImagesToCapture() {
+        switch( burst_type ) {
+            case BURSTTYPE_EXPO:
+                return expo_bracketing_n_images;
+            case BURSTTYPE_FOCUS:
+                return focus_bracketing_n_images + (focus_bracketing_add_infinity ? 1 : 0);
+            case BURSTTYPE_NORMAL:
+                if( burst_for_noise_reduction )
+                    return noise_reduction_low_light ? N_IMAGES_NR_DARK_LOW_LIGHT : N_IMAGES_NR_DARK;
+                return Math.max(burst_requested_n_images, 1);
+            case BURSTTYPE_CONTINUOUS:
+                return 0;
+            default:
+                return 1;
+        }
+    }
+
+    @Override
+    public void takePicture(final PictureCallback picture, final ErrorCallback error) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "takePicture");
+        final Capture new_capture;
+        synchronized( this ) {
+            if( !preview_started || capture != null ) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "preview not started, or capture already in progress");
+                callback_executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        error.onError();
+                    }
+                });
+                return;
+            }
+            new_capture = new Capture(picture, error, burst_type, getNImagesToCapture(), getTimeNs());
+            capture = new_capture;
+            if( burst_type == BurstType.BURSTTYPE_CONTINUOUS )
+                continuous_burst_in_progress = true;
+        }
+        callback_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                picture.onStarted();
+            }
+        });
+        if( new_capture.n_images > 0 ) {
+            // request all the images at once, the sensor will capture them in consecutive frames
+            for(int i=0;i<new_capture.n_images;i++) {
+                requestImage(new_capture);
+            }
+        }
+        else {
+            requestImage(new_capture);
+        }
+    }
+
+    /** Schedules capturing the next image for the supplied capture.
+     */
+    private void requestImage(final Capture this_capture) {
+        final int frame;
+        final long available_ns;
+        synchronized( this ) {
+            frame = next_frame;
+            next_frame = (next_frame + 1) % jpeg_files.length;
+            this_capture.n_requested++;
+            available_ns = sensor.scheduleCapture(getTimeNs(), exposure_time, picture_size.width, picture_size.height);
+        }
+        long delay_ns = Math.max(available_ns - getTimeNs(), 0);
+        if( scheduler.isShutdown() )
+            return;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                readImage(this_capture, frame);
+            }
+        }, delay_ns, TimeUnit.NANOSECONDS);
+    }
+
+    /** Called on the scheduler thread when an image is available.
+     */
+    private void readImage(final Capture this_capture, int frame) {
+        final byte [] jpeg;
+        final byte [] dng;
+        try {
+            jpeg = readFile(jpeg_files[frame]);
+            dng = want_raw && dng_files[frame] != null ? readFile(dng_files[frame]) : null;
+        }
+        catch(IOException e) {
+            Log.e(TAG, "failed to read frame: " + jpeg_files[frame]);
+            e.printStackTrace();
+            callback_executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if( finishCapture(this_capture) )
+                        this_capture.error.onError();
+                }
+            });
+            return;
+        }
+        callback_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onImageAvailable(this_capture, jpeg, dng);
+            }
+        });
+    }
+
+    /** Marks the capture as finished.
+     * @return False if the capture had already finished.
+     */
+    private synchronized boolean finishCapture(Capture this_capture) {
+        if( this_capture.finished )
+            return false;
+        this_capture.finished = true;
+        if( capture == this_capture )
+            capture = null;
+        test_last_capture_latency_ns = getTimeNs() - this_capture.start_ns;
+        return true;
+    }
+
+    /** Called on the callback executor with each image captured.
+     */
+    private void onImageAvailable(Capture this_capture, byte [] jpeg, byte [] dng) {
+        PictureCallback picture = this_capture.picture;
+        boolean complete;
+        synchronized( this ) {
+            if( this_capture.finished ) {
+                // e.g., focus bracketing was stopped
+                return;
+            }
+            this_capture.n_taken++;
+            test_n_frames_captured++;
+            // for continuous burst, we only know once the image has been passed on
+            complete = this_capture.n_images > 0 && ( this_capture.n_taken >= this_capture.n_images || this_capture.stop_requested );
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "image available: " + this_capture.n_taken + " of " + this_capture.n_images);
+
+        if( this_capture.single_request ) {
+            this_capture.jpegs.add(jpeg);
+            if( dng != null )
+                this_capture.raws.add(new RawImage(dng));
+            if( complete ) {
+                if( this_capture.raws.size() > 0 )
+                    picture.onRawBurstPictureTaken(new ArrayList<>(this_capture.raws));
+                picture.onBurstPictureTaken(new ArrayList<>(this_capture.jpegs));
+            }
+        }
+        else {
+            if( dng != null )
+                picture.onRawPictureTaken(new RawImage(dng));
+            JpegBufferPool pool = jpeg_buffer_pool;
+            if( pool != null ) {
+                JpegBufferPool.Buffer buffer = pool.acquire(jpeg.length);
+                System.arraycopy(jpeg, 0, buffer.getData(), 0, jpeg.length);
+                picture.onPooledPictureTaken(buffer);
+            }
+            else {
+                picture.onPictureTaken(jpeg);
+            }
+        }
+
+        if( this_capture.n_images == 0 ) {
+            // continuous burst
+            complete = !continuous_burst_in_progress;
+        }
+        if( !complete ) {
+            if( this_capture.n_images > 0 ) {
+                // remaining images were already requested
+                return;
+            }
+            int n_raw = want_raw && dng != null ? 1 : 0;
+            if( picture.imageQueueWouldBlock(n_raw, 1) ) {
+                // wait for the image queue, as CameraController2 does for continuous burst
+                waitForImageQueue(this_capture, n_raw);
+            }
+            else {
+                requestImage(this_capture);
+            }
+        }
+        else if( finishCapture(this_capture) ) {
+            picture.onCompleted();
+        }
+    }
+
+    /** For continuous burst, checks every frame whether the image queue can accept another image.
+     */
+    private void waitForImageQueue(final Capture this_capture, final int n_raw) {
+        if( scheduler.isShutdown() )
+            return;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback_executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if( !continuous_burst_in_progress ) {
+                            if( finishCapture(this_capture) )
+                                this_capture.picture.onCompleted();
+                        }
+                        else if( this_capture.picture.imageQueueWouldBlock(n_raw, 1) ) {
+                            waitForImageQueue(this_capture, n_raw);
+                        }
+                        else {
+                            requestImage(this_capture);
+                        }
+                    }
+                });
+            }
+        }, sensor.getFrameDurationNs(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void setDisplayOrientation(int degrees) {
+        display_orientation = degrees;
+    }
+
+    @Override
+    public int getDisplayOrientation() {
+        return display_orientation;
+    }
+
+    @Override
+    public int getCameraOrientation() {
+        return 90;
+    }
+
+    @Override
+    public Facing getFacing() {
+        return Facing.FACING_BACK;
+    }
+
+    @Override
+    public void unlock() {
+        // not relevant
+    }
+
+    @Override
+    public void initVideoRecorderPrePrepare(MediaRecorder video_recorder) {
+        // video not supported
+    }
+
+    @Override
+    public void initVideoRecorderPostPrepare(MediaRecorder video_recorder, boolean want_photo_video_recording) throws CameraControllerException {
+        // video not supported
+        throw new CameraControllerException();
+    }
+
+    @Override
+    public String getParametersString() {
+        return "simulated: " + jpeg_files.length + " frames, " + picture_size.width + "x" + picture_size.height + ", frame duration " + sensor.getFrameDurationNs() + "ns";
+    }
+}
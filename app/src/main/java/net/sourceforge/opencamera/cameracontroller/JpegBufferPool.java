@@ -0,0 +1,148 @@
+package net.sourceforge.opencamera.cameracontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A pool of byte arrays for holding JPEG data, so that continuous burst doesn't need to allocate
+ *  a new array for every image received from the camera. Since the size of a JPEG varies from
+ *  image to image, a buffer may be larger than the JPEG it holds - so callers must use
+ *  Buffer.getLength() rather than the length of the array.
+ *  This class is thread safe: buffers are acquired on the camera thread, and typically released
+ *  on the image saver thread.
+ */
+public class JpegBufferPool {
+    private final static int capacity_granularity_c = 64*1024;
+
+    /** A buffer from the pool. Buffer.release() must be called once the data is no longer needed
+     *  (whether or not the image was successfully saved).
+     */
+    public class Buffer {
+        private final byte [] data;
+        private int length;
+        private boolean in_use;
+
+        private Buffer(int capacity) {
+            this.data = new byte[capacity];
+        }
+
+        /** Returns the array holding the JPEG data. Only the first getLength() bytes are valid.
+         */
+        public byte [] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getCapacity() {
+            return data.length;
+        }
+
+        /** Returns a copy of the JPEG data, in an array of exactly getLength() bytes. Useful for
+         *  callers that need the data to outlive the buffer.
+         */
+        public byte [] toByteArray() {
+            byte [] copy = new byte[length];
+            System.arraycopy(data, 0, copy, 0, length);
+            return copy;
+        }
+
+        /** Returns this buffer to the pool. The buffer must not be used after calling this.
+         */
+        public void release() {
+            releaseBuffer(this);
+        }
+    }
+
+    private final int max_free_buffers;
+    private final List<Buffer> free_buffers = new ArrayList<>();
+
+    private int n_hits;
+    private int n_misses;
+    private long bytes_allocated;
+
+    /**
+     * @param max_free_buffers The maximum number of buffers to keep for reuse; buffers released
+     *                         when the pool already holds this many are left for garbage
+     *                         collection.
+     */
+    public JpegBufferPool(int max_free_buffers) {
+        this.max_free_buffers = max_free_buffers;
+    }
+
+    /** Returns a buffer that can hold at least length bytes, with getLength() set to length.
+     *  A free buffer is reused if there's one large enough, but not more than twice the
+     *  required size (to avoid holding onto large buffers for small images).
+     */
+    public synchronized Buffer acquire(int length) {
+        if( length < 0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid length: " + length);
+        }
+        Buffer buffer;
+        int best_i = -1;
+        for(int i=0;i<free_buffers.size();i++) {
+            int capacity = free_buffers.get(i).getCapacity();
+            if( capacity >= length && capacity <= 2L*length + capacity_granularity_c ) {
+                if( best_i == -1 || capacity < free_buffers.get(best_i).getCapacity() ) {
+                    best_i = i;
+                }
+            }
+        }
+        if( best_i != -1 ) {
+            buffer = free_buffers.remove(best_i);
+            n_hits++;
+        }
+        else {
+            // allow some headroom, as the next JPEG may be slightly larger
+            long capacity = length + length/8L;
+            capacity = ((capacity + capacity_granularity_c - 1)/capacity_granularity_c) * capacity_granularity_c;
+            capacity = Math.min(Math.max(capacity, length), Integer.MAX_VALUE);
+            buffer = new Buffer((int)capacity);
+            n_misses++;
+            bytes_allocated += capacity;
+        }
+        buffer.length = length;
+        buffer.in_use = true;
+        return buffer;
+    }
+
+    private synchronized void releaseBuffer(Buffer buffer) {
+        if( !buffer.in_use ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("buffer already released");
+        }
+        buffer.in_use = false;
+        buffer.length = 0;
+        if( free_buffers.size() < max_free_buffers ) {
+            free_buffers.add(buffer);
+        }
+    }
+
+    /** Discards all free buffers.
+     */
+    public synchronized void clear() {
+        free_buffers.clear();
+    }
+
+    public synchronized int getNFreeBuffers() {
+        return free_buffers.size();
+    }
+
+    /** Returns the number of calls to acquire() that reused a buffer.
+     */
+    public synchronized int getNHits() {
+        return n_hits;
+    }
+
+    /** Returns the number of calls to acquire() that allocated a new buffer.
+     */
+    public synchronized int getNMisses() {
+        return n_misses;
+    }
+
+    public synchronized long getBytesAllocated() {
+        return bytes_allocated;
+    }
+}
@@ -11,17 +11,29 @@ import net.sourceforge.opencamera.MyDebug;
 import java.io.IOException;
 import java.io.OutputStream;
 
-/** Wrapper class to store DngCreator and Image.
+/** Wrapper class to store DngCreator and Image, or an already encoded DNG (as returned by
+ *  CameraControllerSimulated).
  */
 public class RawImage {
     private static final String TAG = "RawImage";
 
     private final DngCreator dngCreator;
     private final Image image;
+    private final byte [] dng_data; // if non-null, dngCreator and image are null
 
     public RawImage(DngCreator dngCreator, Image image) {
         this.dngCreator = dngCreator;
         this.image = image;
+        this.dng_data = null;
+    }
+
+    /**
+     * @param dng_data The contents of a DNG file.
+     */
+    public RawImage(byte [] dng_data) {
+        this.dngCreator = null;
+        this.image = null;
+        this.dng_data = dng_data;
     }
 
     /** Writes the dng file to the supplied output.
@@ -30,6 +42,10 @@ public class RawImage {
     public void writeImage(OutputStream dngOutput) throws IOException {
         if( MyDebug.LOG )
             Log.d(TAG, "writeImage");
+        if( dng_data != null ) {
+            dngOutput.write(dng_data);
+            return;
+        }
         try {
             dngCreator.writeImage(dngOutput, image);
         }
@@ -47,6 +63,15 @@ public class RawImage {
         }
     }
 
+    /** Returns the number of bytes of the Java heap held by this image. This is 0 for images from
+     *  the camera, as the image planes are in native memory owned by the ImageReader.
+     */
+    public long getHeapByteCount() {
+        if( dng_data != null )
+            return dng_data.length;
+        return 0;
+    }
+
     /** Closes the image. Must be called to free up resources when no longer needed. After calling
      *  this method, this object should not be used.
      */
@@ -54,6 +79,8 @@ public class RawImage {
     public void close() {
         if( MyDebug.LOG )
             Log.d(TAG, "close");
+        if( dng_data != null )
+            return;
         image.close();
         dngCreator.close();
     }
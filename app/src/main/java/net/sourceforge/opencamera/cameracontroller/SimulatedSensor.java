@@ -0,0 +1,97 @@
+package net.sourceforge.opencamera.cameracontroller;
+
+import java.util.Random;
+
+/** Models the timing of a camera sensor and its JPEG encoder, for CameraControllerSimulated.
+ *  The sensor produces frames on a fixed clock at the configured frame rate. A capture requested
+ *  at a given time (plus the shutter lag) uses the next free frame, whose exposure can't overlap
+ *  with the previous capture's. Once exposed, the frame is read out, and then encoded; the encoder
+ *  handles one image at a time, so images queue for it if captured faster than it can encode them.
+ *  A random jitter (from a seeded generator, so runs are reproducible) is added to the readout and
+ *  encode times.
+ *  All times are in nanoseconds, relative to when the sensor started (time 0).
+ */
+public class SimulatedSensor {
+    private final long frame_duration_ns;
+    private final long shutter_lag_ns;
+    private final long readout_ns;
+    private final long encode_ns_per_megapixel;
+    private final double jitter;
+    private final Random random;
+
+    private long next_free_frame_ns; // the earliest time the next capture's exposure can start
+    private long encoder_free_ns; // the time the encoder finishes the previous image
+
+    /**
+     * @param fps                     The frame rate of the sensor.
+     * @param shutter_lag_ns          Delay between a capture being requested, and the sensor
+     *                                being able to start exposing for it.
+     * @param readout_ns              Time to read out a frame after its exposure ends.
+     * @param encode_ns_per_megapixel Time for the encoder to compress each megapixel.
+     * @param jitter                  The fraction by which the readout and encode times randomly
+     *                                vary, e.g., 0.1 for +/- 10%.
+     * @param seed                    Seed for the jitter.
+     */
+    public SimulatedSensor(double fps, long shutter_lag_ns, long readout_ns, long encode_ns_per_megapixel, double jitter, long seed) {
+        if( fps <= 0.0 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid fps: " + fps);
+        }
+        this.frame_duration_ns = (long)(1.0e9/fps);
+        this.shutter_lag_ns = shutter_lag_ns;
+        this.readout_ns = readout_ns;
+        this.encode_ns_per_megapixel = encode_ns_per_megapixel;
+        this.jitter = jitter;
+        this.random = new Random(seed);
+    }
+
+    /** Returns a sensor with timings typical of a phone camera, at the supplied frame rate: 50ms
+     *  shutter lag, readout taking a third of the frame duration, 2.5ms per megapixel to encode
+     *  and 10% jitter.
+     */
+    public static SimulatedSensor createDefault(double fps) {
+        long frame_duration_ns = (long)(1.0e9/fps);
+        return new SimulatedSensor(fps, 50000000L, frame_duration_ns/3, 2500000L, 0.1, 0);
+    }
+
+    public long getFrameDurationNs() {
+        return frame_duration_ns;
+    }
+
+    private long applyJitter(long time_ns) {
+        if( jitter <= 0.0 )
+            return time_ns;
+        double factor = 1.0 + jitter*(2.0*random.nextDouble() - 1.0);
+        return Math.max((long)(time_ns*factor), 0);
+    }
+
+    /** Schedules a capture, and returns the time at which the encoded image is available.
+     * @param request_ns       The time the capture was requested.
+     * @param exposure_time_ns The exposure time; if longer than the frame duration, the capture
+     *                         takes multiple frames.
+     * @param width            The width of the image, for the encode time.
+     * @param height           The height of the image, for the encode time.
+     */
+    public synchronized long scheduleCapture(long request_ns, long exposure_time_ns, int width, int height) {
+        // find the first frame boundary at or after the request (plus shutter lag) that the sensor
+        // is free for
+        long earliest_ns = Math.max(request_ns + shutter_lag_ns, next_free_frame_ns);
+        long frame_start_ns = ((earliest_ns + frame_duration_ns - 1)/frame_duration_ns) * frame_duration_ns;
+        long n_frames = Math.max((exposure_time_ns + frame_duration_ns - 1)/frame_duration_ns, 1);
+        long exposure_end_ns = frame_start_ns + Math.max(exposure_time_ns, 0);
+        next_free_frame_ns = frame_start_ns + n_frames*frame_duration_ns;
+
+        long readout_end_ns = exposure_end_ns + applyJitter(readout_ns);
+        long encode_ns = applyJitter((long)(encode_ns_per_megapixel * (width*(double)height) / 1.0e6));
+        long encode_start_ns = Math.max(readout_end_ns, encoder_free_ns);
+        encoder_free_ns = encode_start_ns + encode_ns;
+        return encoder_free_ns;
+    }
+
+    /** Resets the sensor, e.g., when the preview is restarted.
+     */
+    public synchronized void reset() {
+        next_free_frame_ns = 0;
+        encoder_free_ns = 0;
+    }
+}
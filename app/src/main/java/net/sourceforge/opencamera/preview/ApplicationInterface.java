@@ -15,6 +15,7 @@ import android.view.MotionEvent;
 
 import net.sourceforge.opencamera.MyDebug;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.JpegBufferPool;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 
 /** Provides communication between the Preview and the rest of the application
@@ -166,6 +167,7 @@ public interface ApplicationInterface {
     }
     RawPref getRawPref(); // whether to enable RAW photos
     int getMaxRawImages(); // see documentation of CameraController.setRaw(), corresponds to max_raw_images
+    JpegBufferPool getJpegBufferPool(); // if non-null, JPEGs are received via onPooledPictureTaken() where possible, see documentation of CameraController.setJpegBufferPool()
     boolean useCamera2FakeFlash(); // whether to enable CameraController.setUseCamera2FakeFlash() for Camera2 API
     boolean useCamera2FastBurst(); // whether to enable Camera2's captureBurst() for faster taking of expo-bracketing photos (generally should be true, but some devices have problems with captureBurst())
     boolean usePhotoVideoRecording(); // whether to enable support for taking photos when recording video (if not supported, this won't be called)
@@ -235,6 +237,7 @@ public interface ApplicationInterface {
     // callbacks
     void onDrawPreview(Canvas canvas);
     boolean onPictureTaken(byte [] data, Date current_date);
+    boolean onPooledPictureTaken(JpegBufferPool.Buffer buffer, Date current_date); // buffer.release() must be called once the data is no longer needed
     boolean onBurstPictureTaken(List<byte []> images, Date current_date);
     boolean onRawPictureTaken(RawImage raw_image, Date current_date);
     boolean onRawBurstPictureTaken(List<RawImage> raw_images, Date current_date);
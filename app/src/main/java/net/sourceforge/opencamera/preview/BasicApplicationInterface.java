@@ -11,6 +11,7 @@ import android.util.Pair;
 import android.view.MotionEvent;
 
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.JpegBufferPool;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 
 /** A partial implementation of ApplicationInterface that provides "default" implementations. So
@@ -370,6 +371,11 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
         return 2;
     }
 
+    @Override
+    public JpegBufferPool getJpegBufferPool() {
+        return null;
+    }
+
     @Override
     public boolean useCamera2FakeFlash() {
         return false;
@@ -627,6 +633,13 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 
     }
 
+    @Override
+    public boolean onPooledPictureTaken(JpegBufferPool.Buffer buffer, Date current_date) {
+        byte [] data = buffer.toByteArray();
+        buffer.release();
+        return onPictureTaken(data, current_date);
+    }
+
     @Override
     public boolean onBurstPictureTaken(List<byte[]> images, Date current_date) {
         return false;
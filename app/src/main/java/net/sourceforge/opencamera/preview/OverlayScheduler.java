@@ -0,0 +1,137 @@
+package net.sourceforge.opencamera.preview;
+
+/** Decides how often the preview overlays (histogram, zebra stripes, focus peaking) are computed,
+ *  and the downscale factor of the preview bitmap they're computed from, based on the measured
+ *  time taken to compute them.
+ *  The aim is to keep the time spent computing overlays to a fraction (the CPU budget) of the
+ *  wall-clock time: if the overlays take t ms to compute, they're computed at most once every
+ *  t/cpu_budget ms. If that means the overlays can't be refreshed at the desired rate, the
+ *  downscale factor is increased (up to max_downscale_c), and if there's enough headroom it's
+ *  decreased again (down to min_downscale_c), with hysteresis so that we don't keep switching.
+ *  Also records when overlays are computed, so that the achieved overlay frame rate can be
+ *  displayed.
+ *  It should only be used from a single thread (in practice, the UI thread).
+ */
+public class OverlayScheduler {
+    public static final float default_cpu_budget_c = 0.25f;
+    public static final int min_downscale_c = 4;
+    public static final int max_downscale_c = 8;
+    private static final long max_interval_ms_c = 1000; // always refresh overlays at least once a second
+    private static final float smoothing_c = 0.25f; // weight of each new measurement in the running average
+    private static final int min_samples_c = 4; // number of measurements needed before changing the downscale
+    private static final float increase_downscale_factor_c = 1.25f; // increase downscale if running this much slower than desired
+    private static final float decrease_downscale_factor_c = 0.75f; // decrease downscale if estimated to run this much faster than desired
+    private static final int n_fps_samples_c = 8;
+
+    private float cpu_budget = default_cpu_budget_c;
+    private int downscale = min_downscale_c;
+    private float average_time_ms = -1.0f; // running average of the compute time at the current downscale, or -1 if not known
+    private int n_samples; // number of measurements since the downscale was last changed
+    private final long [] completion_times_ms = new long[n_fps_samples_c]; // circular buffer
+    private int n_completions;
+
+    /** Sets the fraction of the wall-clock time (of a single thread) that may be spent computing
+     *  overlays, must be in the range (0, 1].
+     */
+    public void setCPUBudget(float cpu_budget) {
+        if( cpu_budget <= 0.0f || cpu_budget > 1.0f ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("invalid cpu_budget: " + cpu_budget);
+        }
+        this.cpu_budget = cpu_budget;
+    }
+
+    public float getCPUBudget() {
+        return cpu_budget;
+    }
+
+    /** Returns the factor that the preview should be downscaled by, for computing the overlays.
+     */
+    public int getDownscale() {
+        return downscale;
+    }
+
+    /** Returns the running average of the time to compute the overlays, or -1 if not yet known.
+     */
+    public float getAverageTimeMs() {
+        return average_time_ms;
+    }
+
+    /** Returns the interval to wait since the overlays were last computed, before computing them
+     *  again.
+     * @param desired_interval_ms The interval we'd like to refresh the overlays at, if the CPU
+     *                            budget allows it.
+     */
+    public long getIntervalMs(long desired_interval_ms) {
+        long interval_ms = desired_interval_ms;
+        if( average_time_ms >= 0.0f ) {
+            interval_ms = Math.max(interval_ms, (long)(average_time_ms/cpu_budget + 0.5f));
+        }
+        return Math.min(interval_ms, Math.max(desired_interval_ms, max_interval_ms_c));
+    }
+
+    /** Records that the overlays have been computed.
+     * @param compute_time_ms     The time taken to compute the overlays.
+     * @param time_now_ms         The current time.
+     * @param desired_interval_ms The interval we'd like to refresh the overlays at.
+     * @return Whether the downscale factor has changed, in which case the caller should recreate
+     *         the preview bitmap at the new size.
+     */
+    public boolean onOverlayComputed(float compute_time_ms, long time_now_ms, long desired_interval_ms) {
+        completion_times_ms[n_completions % n_fps_samples_c] = time_now_ms;
+        n_completions++;
+
+        if( average_time_ms < 0.0f )
+            average_time_ms = compute_time_ms;
+        else
+            average_time_ms += smoothing_c * (compute_time_ms - average_time_ms);
+        n_samples++;
+        if( n_samples < min_samples_c )
+            return false;
+
+        float interval_ms = average_time_ms/cpu_budget;
+        int new_downscale = downscale;
+        if( interval_ms > increase_downscale_factor_c * desired_interval_ms && downscale < max_downscale_c ) {
+            new_downscale = downscale+1;
+        }
+        else if( downscale > min_downscale_c ) {
+            // compute time is proportional to the number of pixels
+            float ratio = downscale/(float)(downscale-1);
+            if( interval_ms * ratio * ratio < decrease_downscale_factor_c * desired_interval_ms ) {
+                new_downscale = downscale-1;
+            }
+        }
+        if( new_downscale == downscale )
+            return false;
+
+        // estimate the time at the new downscale, until we have new measurements
+        float ratio = downscale/(float)new_downscale;
+        average_time_ms *= ratio * ratio;
+        downscale = new_downscale;
+        n_samples = 0;
+        return true;
+    }
+
+    /** Returns the achieved rate of computing overlays, measured over the most recent
+     *  computations, or 0 if not known (or if overlays haven't been computed recently).
+     */
+    public float getAchievedFps(long time_now_ms) {
+        int n = Math.min(n_completions, n_fps_samples_c);
+        if( n < 2 )
+            return 0.0f;
+        long newest = completion_times_ms[(n_completions-1) % n_fps_samples_c];
+        long oldest = completion_times_ms[(n_completions-n) % n_fps_samples_c];
+        if( newest <= oldest || time_now_ms > newest + 2*max_interval_ms_c )
+            return 0.0f;
+        return (1000.0f*(n-1))/(newest - oldest);
+    }
+
+    /** Discards all measurements, e.g., if the preview size has changed. The downscale factor is
+     *  kept.
+     */
+    public void reset() {
+        average_time_ms = -1.0f;
+        n_samples = 0;
+        n_completions = 0;
+    }
+}
@@ -11,9 +11,12 @@ import net.sourceforge.opencamera.cameracontroller.CameraController;
 import net.sourceforge.opencamera.cameracontroller.CameraController1;
 import net.sourceforge.opencamera.cameracontroller.CameraController2;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerException;
+import net.sourceforge.opencamera.cameracontroller.CameraControllerSimulated;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerManager;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerManager1;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerManager2;
+import net.sourceforge.opencamera.cameracontroller.JpegBufferPool;
+import net.sourceforge.opencamera.cameracontroller.SimulatedSensor;
 import net.sourceforge.opencamera.preview.ApplicationInterface.NoFreeStorageException;
 import net.sourceforge.opencamera.preview.camerasurface.CameraSurface;
 import net.sourceforge.opencamera.preview.camerasurface.MySurfaceView;
@@ -33,6 +36,7 @@ import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -66,6 +70,7 @@ import android.os.Build;
 import android.os.Bundle;
 //import android.os.Environment;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
@@ -124,6 +129,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private Bitmap preview_bitmap;
     private long last_preview_bitmap_time_ms; // time the last preview_bitmap was updated
     private RefreshPreviewBitmapTask refreshPreviewBitmapTask;
+    private final OverlayScheduler overlayScheduler = new OverlayScheduler(); // chooses the refresh rate and size of preview_bitmap
 
     private boolean want_histogram; // whether to generate a histogram, requires want_preview_bitmap==true
     public enum HistogramType {
@@ -134,8 +140,20 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         HISTOGRAM_TYPE_LIGHTNESS
     }
     private HistogramType histogram_type = HistogramType.HISTOGRAM_TYPE_VALUE;
+    /** Which implementation to use for generating the histogram, zebra stripes and focus peaking.
+     *  OVERLAYBACKEND_JAVA uses PreviewOverlayProcessor, which computes all of the enabled overlays
+     *  in a single multi-threaded pass over the preview bitmap, rather than a RenderScript pass
+     *  per overlay.
+     */
+    public enum OverlayBackend {
+        OVERLAYBACKEND_RENDERSCRIPT,
+        OVERLAYBACKEND_JAVA
+    }
+    private volatile OverlayBackend overlay_backend = OverlayBackend.OVERLAYBACKEND_JAVA;
+    private PreviewOverlayProcessor previewOverlayProcessor; // lazily created
     private int [] histogram;
     private long last_histogram_time_ms; // time the last histogram was updated
+    private final static int refresh_histogram_rate_ms_c = 200;
 
     private boolean want_zebra_stripes; // whether to generate zebra stripes bitmap, requires want_preview_bitmap==true
     private int zebra_stripes_threshold; // pixels with max rgb value equal to or greater than this threshold are marked with zebra stripes
@@ -401,6 +419,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     public volatile boolean test_started_next_output_file;
     public volatile boolean test_runtime_on_video_stop; // force throwing a RuntimeException when stopping video (this usually happens naturally when stopping video too soon)
     public volatile boolean test_burst_resolution;
+    public volatile File test_simulated_camera_folder; // if non-null, open a CameraControllerSimulated that returns the recorded frames in this folder
+    public volatile double test_simulated_camera_fps = 30.0;
 
     public Preview(ApplicationInterface applicationInterface, ViewGroup parent) {
         if( MyDebug.LOG ) {
@@ -1672,7 +1692,19 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                     }
                 }
             };
-            if( using_android_l && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            if( test_simulated_camera_folder != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "open simulated camera: " + test_simulated_camera_folder);
+                final Handler handler = new Handler(Looper.getMainLooper());
+                Executor executor = new Executor() {
+                    @Override
+                    public void execute(@NonNull Runnable command) {
+                        handler.post(command);
+                    }
+                };
+                camera_controller_local = new CameraControllerSimulated(cameraId, test_simulated_camera_folder, SimulatedSensor.createDefault(test_simulated_camera_fps), executor, cameraErrorCallback);
+            }
+            else if( using_android_l && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
                 // n.b., using_android_l should only be set if Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP,
                 // but Android inspection warnings aren't clever enough to figure that out, and would otherwise
                 // complain about use of CameraController2
@@ -1944,6 +1976,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         else {
             camera_controller.setRaw(false, 0);
         }
+        camera_controller.setJpegBufferPool(applicationInterface.getJpegBufferPool());
 
         setupBurstMode();
 
@@ -3609,7 +3642,6 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     public CameraController.Size getOptimalPreviewSize(List<CameraController.Size> sizes) {
         if( MyDebug.LOG )
             Log.d(TAG, "getOptimalPreviewSize()");
-        final double ASPECT_TOLERANCE = 0.05;
         if( sizes == null )
             return null;
         if( is_video && video_high_speed ) {
@@ -3619,8 +3651,6 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             // preview size must match video resolution for high speed, see doc for CameraDevice.createConstrainedHighSpeedCaptureSession()
             return new CameraController.Size(profile.videoFrameWidth, profile.videoFrameHeight);
         }
-        CameraController.Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
         Point display_size = new Point();
         Activity activity = (Activity)this.getContext();
         {
@@ -3644,6 +3674,16 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         if( targetHeight <= 0 ) {
             targetHeight = display_size.y;
         }
+        return getOptimalPreviewSize(sizes, targetRatio, targetHeight);
+    }
+
+    /** Returns the preview size in sizes that matches targetRatio and is closest to targetHeight,
+     *  or if none match the aspect ratio, the size that is the closest aspect ratio match.
+     */
+    public static CameraController.Size getOptimalPreviewSize(List<CameraController.Size> sizes, double targetRatio, int targetHeight) {
+        final double ASPECT_TOLERANCE = 0.05;
+        CameraController.Size optimalSize = null;
+        double minDiff = Double.MAX_VALUE;
         // Try to find the size which matches the aspect ratio, and is closest match to display height
         for(CameraController.Size size : sizes) {
             if( MyDebug.LOG )
@@ -6141,6 +6181,20 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 }
             }
 
+            public void onPooledPictureTaken(JpegBufferPool.Buffer buffer) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "onPooledPictureTaken");
+                initDate();
+                if( !applicationInterface.onPooledPictureTaken(buffer, current_date) ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "applicationInterface.onPooledPictureTaken failed");
+                    success = false;
+                }
+                else {
+                    success = true;
+                }
+            }
+
             public void onRawPictureTaken(RawImage raw_image) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "onRawPictureTaken");
@@ -7660,6 +7714,43 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         freePreviewBitmap();
         want_preview_bitmap = false;
         histogramScript = null; // to help garbage collection
+        previewOverlayProcessor = null; // to help garbage collection
+        overlayScheduler.reset();
+    }
+
+    public void setOverlayBackend(OverlayBackend overlay_backend) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setOverlayBackend: " + overlay_backend);
+        this.overlay_backend = overlay_backend;
+    }
+
+    public OverlayBackend getOverlayBackend() {
+        return this.overlay_backend;
+    }
+
+    /** Sets the fraction of the time that may be spent computing the preview overlays (histogram,
+     *  zebra stripes, focus peaking); see OverlayScheduler. This is called by DrawPreview when
+     *  drawing, according to PreferenceKeys.OverlayCPUBudgetPreferenceKey.
+     */
+    public void setOverlayCPUBudget(float cpu_budget) {
+        overlayScheduler.setCPUBudget(cpu_budget);
+    }
+
+    public float getOverlayCPUBudget() {
+        return overlayScheduler.getCPUBudget();
+    }
+
+    /** Returns the rate that the preview overlays have recently been computed at, or 0 if not
+     *  known.
+     */
+    public float getOverlayFps() {
+        return overlayScheduler.getAchievedFps(System.currentTimeMillis());
+    }
+
+    /** Returns the factor that the preview is currently downscaled by, for the preview bitmap.
+     */
+    public int getOverlayDownscale() {
+        return overlayScheduler.getDownscale();
     }
 
     public boolean isPreviewBitmapEnabled() {
@@ -7731,7 +7822,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         freePreviewBitmap();
 
         if( want_preview_bitmap ) {
-            final int downscale = 4;
+            final int downscale = overlayScheduler.getDownscale();
             int bitmap_width = textureview_w / downscale;
             int bitmap_height = textureview_h / downscale;
             int rotation = getDisplayRotationDegrees();
@@ -7877,6 +7968,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     }
 
     private static class RefreshPreviewBitmapTaskResult {
+        float compute_time_ms; // time taken by the background task
         int [] new_histogram;
         Bitmap new_zebra_stripes_bitmap;
         Bitmap new_focus_peaking_bitmap;
@@ -7886,7 +7978,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private static class RefreshPreviewBitmapTask extends AsyncTask<Void, Void, RefreshPreviewBitmapTaskResult> {
         private static final String TAG = "RefreshPreviewBmTask";
         private final WeakReference<Preview> previewReference;
-        private final WeakReference<ScriptC_histogram_compute> histogramScriptReference;
+        private final OverlayBackend overlay_backend;
+        private final WeakReference<ScriptC_histogram_compute> histogramScriptReference; // only used for OVERLAYBACKEND_RENDERSCRIPT
+        private final WeakReference<PreviewOverlayProcessor> previewOverlayProcessorReference; // only used for OVERLAYBACKEND_JAVA
         // we take references to the bitmaps, so the Preview class can set this to null even whilst the background thread is running
         private final WeakReference<Bitmap> preview_bitmapReference;
         private final WeakReference<Bitmap> zebra_stripes_bitmap_bufferReference;
@@ -7899,6 +7993,18 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             this.zebra_stripes_bitmap_bufferReference = new WeakReference<>(preview.zebra_stripes_bitmap_buffer);
             this.focus_peaking_bitmap_bufferReference = new WeakReference<>(preview.focus_peaking_bitmap_buffer);
             this.update_histogram = update_histogram;
+            this.overlay_backend = preview.overlay_backend;
+
+            if( overlay_backend == OverlayBackend.OVERLAYBACKEND_JAVA ) {
+                if( preview.previewOverlayProcessor == null ) {
+                    preview.previewOverlayProcessor = new PreviewOverlayProcessor();
+                }
+                this.histogramScriptReference = null;
+                // take a local copy, so preview.previewOverlayProcessor can be set to null whilst background thread is running
+                this.previewOverlayProcessorReference = new WeakReference<>(preview.previewOverlayProcessor);
+                return;
+            }
+            this.previewOverlayProcessorReference = null;
 
             if( preview.rs == null ) {
                 // create on the UI thread rather than doInBackground(), to avoid threading issues
@@ -7916,6 +8022,77 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             this.histogramScriptReference = new WeakReference<>(preview.histogramScript);
         }
 
+        private static int getOverlayHistogramType(HistogramType histogram_type) {
+            switch( histogram_type ) {
+                case HISTOGRAM_TYPE_RGB:
+                    return PreviewOverlayProcessor.histogram_type_rgb_c;
+                case HISTOGRAM_TYPE_LUMINANCE:
+                    return PreviewOverlayProcessor.histogram_type_luminance_c;
+                case HISTOGRAM_TYPE_INTENSITY:
+                    return PreviewOverlayProcessor.histogram_type_intensity_c;
+                case HISTOGRAM_TYPE_LIGHTNESS:
+                    return PreviewOverlayProcessor.histogram_type_lightness_c;
+                case HISTOGRAM_TYPE_VALUE:
+                default:
+                    return PreviewOverlayProcessor.histogram_type_value_c;
+            }
+        }
+
+        /** The original orientation of the bitmap we get from textureView.getBitmap() needs to be
+         *  rotated to account for the orientation of camera vs device, but not to account for the
+         *  current orientation of the device. This returns a new bitmap rotated from the supplied
+         *  overlay bitmap.
+         */
+        private static Bitmap createRotatedOverlayBitmap(Preview preview, Bitmap bitmap) {
+            int rotation_degrees = preview.getDisplayRotationDegrees();
+            Matrix matrix = new Matrix();
+            matrix.postRotate(-rotation_degrees);
+            return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, false);
+        }
+
+        /** Generates the overlays with PreviewOverlayProcessor, in a single pass over the preview
+         *  bitmap.
+         */
+        private void computeOverlaysJava(Preview preview, PreviewOverlayProcessor processor, Bitmap preview_bitmap, Bitmap zebra_stripes_bitmap_buffer, Bitmap focus_peaking_bitmap_buffer, RefreshPreviewBitmapTaskResult result) {
+            long debug_time = 0;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "computeOverlaysJava");
+                debug_time = System.currentTimeMillis();
+            }
+            int width = preview_bitmap.getWidth();
+            int height = preview_bitmap.getHeight();
+            int n_pixels = width*height;
+            boolean want_zebra_stripes = preview.want_zebra_stripes && zebra_stripes_bitmap_buffer != null;
+            boolean want_focus_peaking = preview.want_focus_peaking && focus_peaking_bitmap_buffer != null;
+            int histogram_type = getOverlayHistogramType(preview.histogram_type);
+
+            int [] pixels = processor.getBuffer(PreviewOverlayProcessor.buffer_input_c, n_pixels);
+            preview_bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            int [] histogram = update_histogram ? new int[PreviewOverlayProcessor.getHistogramSize(histogram_type)] : null;
+            int [] zebra_stripes = want_zebra_stripes ? processor.getBuffer(PreviewOverlayProcessor.buffer_zebra_stripes_c, n_pixels) : null;
+            int [] focus_peaking = want_focus_peaking ? processor.getBuffer(PreviewOverlayProcessor.buffer_focus_peaking_c, n_pixels) : null;
+            if( want_zebra_stripes ) {
+                processor.setZebraStripes(preview.zebra_stripes_threshold, preview.zebra_stripes_color_foreground, preview.zebra_stripes_color_background);
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "time before processing overlays: " + (System.currentTimeMillis() - debug_time));
+            processor.process(pixels, width, height, histogram_type, histogram, zebra_stripes, focus_peaking);
+            if( MyDebug.LOG )
+                Log.d(TAG, "time after processing overlays: " + (System.currentTimeMillis() - debug_time));
+
+            result.new_histogram = histogram;
+            if( want_zebra_stripes ) {
+                zebra_stripes_bitmap_buffer.setPixels(zebra_stripes, 0, width, 0, 0, width, height);
+                result.new_zebra_stripes_bitmap = createRotatedOverlayBitmap(preview, zebra_stripes_bitmap_buffer);
+            }
+            if( want_focus_peaking ) {
+                focus_peaking_bitmap_buffer.setPixels(focus_peaking, 0, width, 0, 0, width, height);
+                result.new_focus_peaking_bitmap = createRotatedOverlayBitmap(preview, focus_peaking_bitmap_buffer);
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "time after creating overlay bitmaps: " + (System.currentTimeMillis() - debug_time));
+        }
+
         private static int [] computeHistogram(Allocation allocation_in, RenderScript rs, ScriptC_histogram_compute histogramScript, HistogramType histogram_type) {
             long debug_time = 0;
             if( MyDebug.LOG ) {
@@ -8027,10 +8204,11 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                     Log.d(TAG, "preview is null");
                 return null;
             }
-            ScriptC_histogram_compute histogramScript = histogramScriptReference.get();
-            if( histogramScript == null ) {
+            ScriptC_histogram_compute histogramScript = histogramScriptReference != null ? histogramScriptReference.get() : null;
+            PreviewOverlayProcessor previewOverlayProcessor = previewOverlayProcessorReference != null ? previewOverlayProcessorReference.get() : null;
+            if( histogramScript == null && previewOverlayProcessor == null ) {
                 if( MyDebug.LOG )
-                    Log.d(TAG, "histogramScript is null");
+                    Log.d(TAG, "histogramScript and previewOverlayProcessor are null");
                 return null;
             }
             Bitmap preview_bitmap = preview_bitmapReference.get();
@@ -8049,6 +8227,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             }
 
             RefreshPreviewBitmapTaskResult result = new RefreshPreviewBitmapTaskResult();
+            long compute_time_s = System.nanoTime();
 
             try {
                 if( MyDebug.LOG )
@@ -8058,6 +8237,15 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 if( MyDebug.LOG )
                     Log.d(TAG, "time after getBitmap: " + (System.currentTimeMillis() - debug_time));
 
+                if( previewOverlayProcessor != null ) {
+                    computeOverlaysJava(preview, previewOverlayProcessor, preview_bitmap, zebra_stripes_bitmap_buffer, focus_peaking_bitmap_buffer, result);
+                    result.compute_time_ms = (System.nanoTime() - compute_time_s)/1000000.0f;
+                    if( MyDebug.LOG ) {
+                        Log.d(TAG, "time taken: " + (System.currentTimeMillis() - debug_time));
+                    }
+                    return result;
+                }
+
                 Allocation allocation_in = Allocation.createFromBitmap(preview.rs, preview_bitmap);
 				/*if( true )
 					throw new RSInvalidStateException("test"); // test*/
@@ -8100,19 +8288,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                     output_allocation.copyTo(zebra_stripes_bitmap_buffer);
                     output_allocation.destroy();
 
-                    // The original orientation of the bitmap we get from textureView.getBitmap() needs to be rotated to
-                    // account for the orientation of camera vs device, but not to account for the current orientation
-                    // of the device
-                    int rotation_degrees = preview.getDisplayRotationDegrees();
-					/*if( MyDebug.LOG ) {
-						Log.d(TAG, "orientation of display relative to natural orientaton: " + rotation_degrees);
-					}*/
                     if( MyDebug.LOG )
                         Log.d(TAG, "time before creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(-rotation_degrees);
-                    result.new_zebra_stripes_bitmap = Bitmap.createBitmap(zebra_stripes_bitmap_buffer, 0, 0,
-                            zebra_stripes_bitmap_buffer.getWidth(), zebra_stripes_bitmap_buffer.getHeight(), matrix, false);
+                    result.new_zebra_stripes_bitmap = createRotatedOverlayBitmap(preview, zebra_stripes_bitmap_buffer);
 
                     if( MyDebug.LOG )
                         Log.d(TAG, "time after creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
@@ -8161,14 +8339,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                     output_allocation.copyTo(focus_peaking_bitmap_buffer);
                     output_allocation.destroy();
 
-                    // See comments above for zebra stripes
-                    int rotation_degrees = preview.getDisplayRotationDegrees();
                     if( MyDebug.LOG )
                         Log.d(TAG, "time before creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(-rotation_degrees);
-                    result.new_focus_peaking_bitmap = Bitmap.createBitmap(focus_peaking_bitmap_buffer, 0, 0,
-                            focus_peaking_bitmap_buffer.getWidth(), focus_peaking_bitmap_buffer.getHeight(), matrix, false);
+                    result.new_focus_peaking_bitmap = createRotatedOverlayBitmap(preview, focus_peaking_bitmap_buffer);
                     if( MyDebug.LOG )
                         Log.d(TAG, "time after creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
                 }
@@ -8186,6 +8359,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 e.printStackTrace();
             }
 
+            result.compute_time_ms = (System.nanoTime() - compute_time_s)/1000000.0f;
             if( MyDebug.LOG ) {
                 Log.d(TAG, "time taken: " + (System.currentTimeMillis() - debug_time));
             }
@@ -8230,6 +8404,18 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
             preview.refreshPreviewBitmapTask = null;
 
+            boolean downscale_changed = preview.overlayScheduler.onOverlayComputed(result.compute_time_ms, System.currentTimeMillis(), preview.getDesiredOverlayIntervalMs());
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "compute_time_ms: " + result.compute_time_ms);
+                Log.d(TAG, "average overlay time: " + preview.overlayScheduler.getAverageTimeMs());
+            }
+            if( downscale_changed && preview.want_preview_bitmap ) {
+                // n.b., must be done after setting refreshPreviewBitmapTask to null, so the old bitmaps can be recycled immediately
+                if( MyDebug.LOG )
+                    Log.d(TAG, "overlay downscale changed to: " + preview.overlayScheduler.getDownscale());
+                preview.recreatePreviewBitmap();
+            }
+
             if( MyDebug.LOG )
                 Log.d(TAG, "onPostExecute done, async task: " + this);
         }
@@ -8246,9 +8432,15 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         }
     }
 
+    /** Returns the interval we'd like to refresh the preview bitmap at, if the overlay CPU budget
+     *  allows it.
+     */
+    private long getDesiredOverlayIntervalMs() {
+        return (want_zebra_stripes || want_focus_peaking) ? 40 : refresh_histogram_rate_ms_c;
+    }
+
     private void refreshPreviewBitmap() {
-        final int refresh_histogram_rate_ms = 200;
-        final long refresh_time = (want_zebra_stripes || want_focus_peaking) ? 40 : refresh_histogram_rate_ms;
+        final long refresh_time = overlayScheduler.getIntervalMs(getDesiredOverlayIntervalMs());
         long time_now = System.currentTimeMillis();
         if( want_preview_bitmap && preview_bitmap != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
                 !is_paused && !applicationInterface.isPreviewInBackground() &&
@@ -8257,8 +8449,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 Log.d(TAG, "refreshPreviewBitmap");
             // even if we're running the background task at a faster rate (due to zebra stripes etc), we still update the histogram
             // at the standard rate
-            boolean update_histogram = want_histogram && time_now > last_histogram_time_ms + refresh_histogram_rate_ms;
+            boolean update_histogram = want_histogram && time_now > last_histogram_time_ms + refresh_histogram_rate_ms_c;
             if( MyDebug.LOG ) {
+                Log.d(TAG, "refresh_time: " + refresh_time);
                 Log.d(TAG, "update_histogram: " + update_histogram);
                 Log.d(TAG, "want_histogram: " + want_histogram);
                 Log.d(TAG, "time_now: " + time_now);
@@ -0,0 +1,225 @@
+package net.sourceforge.opencamera.preview;
+
+import net.sourceforge.opencamera.ParallelRows;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Pure Java implementation of the preview overlays generated by histogram_compute.rs: the
+ *  histogram, zebra stripes and focus peaking. Rather than a separate pass over the preview pixels
+ *  for each overlay, all of the requested overlays are computed in a single pass, split into bands
+ *  of rows that are processed on a ForkJoinPool. Each band accumulates its own histogram, and these
+ *  are merged at the end.
+ *  Images are passed as packed ARGB int[] arrays (as returned by Bitmap.getPixels()).
+ *  process() should only be called by one thread at a time.
+ */
+public class PreviewOverlayProcessor {
+    // should match Preview.HistogramType
+    public static final int histogram_type_rgb_c = 0;
+    public static final int histogram_type_luminance_c = 1;
+    public static final int histogram_type_value_c = 2;
+    public static final int histogram_type_intensity_c = 3;
+    public static final int histogram_type_lightness_c = 4;
+
+    public static final int buffer_input_c = 0;
+    public static final int buffer_zebra_stripes_c = 1;
+    public static final int buffer_focus_peaking_c = 2;
+
+    private static final int focus_peaking_threshold_c = 256*256; // should be same as in histogram_compute.rs
+    private static final int focus_peaking_color_c = 0xffffffff;
+
+    private final ForkJoinPool pool;
+    private final int tile_height;
+    private final int [][] buffers = new int[3][];
+
+    private int zebra_stripes_threshold = 255;
+    private int zebra_stripes_color_foreground = 0xff000000;
+    private int zebra_stripes_color_background = 0xffffffff;
+
+    private long last_time_ns; // time taken by the last call to process(), for performance measurement
+
+    public PreviewOverlayProcessor() {
+        this(ParallelRows.getDefaultPool(), 16);
+    }
+
+    /**
+     * @param pool        The pool to run on.
+     * @param tile_height The number of rows each task processes before no longer being split.
+     */
+    public PreviewOverlayProcessor(ForkJoinPool pool, int tile_height) {
+        this.pool = pool;
+        this.tile_height = Math.max(tile_height, 1);
+    }
+
+    /** Returns the number of entries of the histogram for the supplied histogram type.
+     */
+    public static int getHistogramSize(int histogram_type) {
+        return histogram_type == histogram_type_rgb_c ? 3*256 : 256;
+    }
+
+    /** Returns a buffer of at least the requested size, that's reused between calls so that we
+     *  don't allocate new arrays for every preview frame. The contents are undefined.
+     * @param index One of buffer_input_c, buffer_zebra_stripes_c or buffer_focus_peaking_c.
+     */
+    public int [] getBuffer(int index, int size) {
+        if( buffers[index] == null || buffers[index].length < size ) {
+            buffers[index] = new int[size];
+        }
+        return buffers[index];
+    }
+
+    /** Sets the parameters for the zebra stripes, equivalent to the zebra_stripes_* globals in
+     *  histogram_compute.rs.
+     * @param threshold  Pixels whose maximum of r, g and b is at least this value are striped.
+     * @param foreground ARGB color of the foreground stripes.
+     * @param background ARGB color of the background stripes.
+     */
+    public void setZebraStripes(int threshold, int foreground, int background) {
+        this.zebra_stripes_threshold = threshold;
+        this.zebra_stripes_color_foreground = foreground;
+        this.zebra_stripes_color_background = background;
+    }
+
+    public long getLastTimeNs() {
+        return last_time_ns;
+    }
+
+    /** Computes the requested overlays in a single pass over the pixels.
+     * @param pixels         The ARGB preview pixels, of size width*height.
+     * @param histogram_type The type of histogram to compute, ignored if histogram is null.
+     * @param histogram      If non-null, the histogram is computed into this array, which should be
+     *                       of size getHistogramSize(histogram_type). For histogram_type_rgb_c, the
+     *                       red, green and blue histograms are stored one after the other.
+     * @param zebra_stripes  If non-null, the zebra stripes are computed into this array of ARGB
+     *                       pixels, of size width*height (transparent where there are no stripes).
+     * @param focus_peaking  If non-null, the (filtered) focus peaking is computed into this array of
+     *                       ARGB pixels, of size width*height (transparent where there are no
+     *                       edges).
+     */
+    public void process(final int [] pixels, final int width, final int height, final int histogram_type, final int [] histogram, final int [] zebra_stripes, final int [] focus_peaking) {
+        long time_s = System.nanoTime();
+        if( histogram != null ) {
+            if( histogram.length < getHistogramSize(histogram_type) ) {
+                // throw RuntimeException, as this is a programming error
+                throw new RuntimeException("histogram too small: " + histogram.length);
+            }
+            for(int i=0;i<histogram.length;i++)
+                histogram[i] = 0;
+        }
+        // should be same as in Preview.RefreshPreviewBitmapTask for the renderscript version
+        final int zebra_stripes_width = Math.max(width/20, 1);
+
+        ParallelRows.run(pool, tile_height, height, new ParallelRows.RowKernel() {
+            @Override
+            public void processRows(int y_start, int y_stop) {
+                // accumulate locally, to avoid contention between tasks
+                int [] local_histogram = histogram != null ? new int[histogram.length] : null;
+                // edges before filtering, for rows y_start-1 to y_stop (inclusive)
+                boolean [] edges = focus_peaking != null ? computeEdges(pixels, width, height, y_start-1, y_stop+1) : null;
+
+                for(int y=y_start;y<y_stop;y++) {
+                    int indx = y*width;
+                    for(int x=0;x<width;x++,indx++) {
+                        int color = pixels[indx];
+                        int r = (color >> 16) & 0xff;
+                        int g = (color >> 8) & 0xff;
+                        int b = color & 0xff;
+                        int max_value = Math.max(r, Math.max(g, b));
+
+                        if( local_histogram != null ) {
+                            switch( histogram_type ) {
+                                case histogram_type_rgb_c:
+                                    local_histogram[r]++;
+                                    local_histogram[256+g]++;
+                                    local_histogram[512+b]++;
+                                    break;
+                                case histogram_type_luminance_c:
+                                    local_histogram[Math.min((int)(0.299f*r + 0.587f*g + 0.114f*b + 0.5f), 255)]++;
+                                    break;
+                                case histogram_type_intensity_c:
+                                    local_histogram[Math.min((int)((r + g + b)/3.0f + 0.5f), 255)]++;
+                                    break;
+                                case histogram_type_lightness_c:
+                                    local_histogram[(Math.min(r, Math.min(g, b)) + max_value + 1)/2]++;
+                                    break;
+                                default:
+                                    local_histogram[max_value]++;
+                                    break;
+                            }
+                        }
+
+                        if( zebra_stripes != null ) {
+                            int out = 0;
+                            if( max_value >= zebra_stripes_threshold ) {
+                                int stripe = (x+y)/zebra_stripes_width;
+                                out = (stripe % 2 == 0) ? zebra_stripes_color_background : zebra_stripes_color_foreground;
+                            }
+                            zebra_stripes[indx] = out;
+                        }
+
+                        if( edges != null ) {
+                            // filter the edges, as generate_focus_peaking_filtered() - pixels on the border
+                            // are never edges, so are left as transparent
+                            int out = 0;
+                            if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
+                                int e = (y-y_start+1)*width + x;
+                                int count = 0;
+                                if( edges[e-width] )
+                                    count++;
+                                if( edges[e-1] )
+                                    count++;
+                                if( edges[e] )
+                                    count++;
+                                if( edges[e+1] )
+                                    count++;
+                                if( edges[e+width] )
+                                    count++;
+                                if( count >= 3 )
+                                    out = focus_peaking_color_c;
+                            }
+                            focus_peaking[indx] = out;
+                        }
+                    }
+                }
+
+                if( local_histogram != null ) {
+                    synchronized( histogram ) {
+                        for(int i=0;i<local_histogram.length;i++)
+                            histogram[i] += local_histogram[i];
+                    }
+                }
+            }
+        });
+        last_time_ns = System.nanoTime() - time_s;
+    }
+
+    /** Computes the unfiltered focus peaking edges for rows row_start to row_stop (exclusive),
+     *  equivalent to generate_focus_peaking(). Rows outside of the image, and pixels on the border,
+     *  are never edges.
+     */
+    private static boolean [] computeEdges(int [] pixels, int width, int height, int row_start, int row_stop) {
+        boolean [] edges = new boolean[(row_stop-row_start)*width];
+        for(int y=Math.max(row_start, 1);y<Math.min(row_stop, height-1);y++) {
+            int out_indx = (y-row_start)*width;
+            for(int x=1;x<width-1;x++) {
+                int sum_r = 0, sum_g = 0, sum_b = 0;
+                for(int dy=-1;dy<=1;dy++) {
+                    int indx = (y+dy)*width + x;
+                    for(int dx=-1;dx<=1;dx++) {
+                        int color = pixels[indx+dx];
+                        sum_r += (color >> 16) & 0xff;
+                        sum_g += (color >> 8) & 0xff;
+                        sum_b += color & 0xff;
+                    }
+                }
+                // 8*centre minus the 8 neighbours
+                int centre = pixels[y*width + x];
+                int value_r = 9*((centre >> 16) & 0xff) - sum_r;
+                int value_g = 9*((centre >> 8) & 0xff) - sum_g;
+                int value_b = 9*(centre & 0xff) - sum_b;
+                int strength = value_r*value_r + value_g*value_g + value_b*value_b;
+                edges[out_indx+x] = strength > focus_peaking_threshold_c;
+            }
+        }
+        return edges;
+    }
+}
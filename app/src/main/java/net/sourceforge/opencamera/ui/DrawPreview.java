@@ -19,6 +19,7 @@ import net.sourceforge.opencamera.PreferenceKeys;
 import net.sourceforge.opencamera.preview.ApplicationInterface;
 import net.sourceforge.opencamera.R;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.preview.OverlayScheduler;
 import net.sourceforge.opencamera.preview.Preview;
 
 import android.app.KeyguardManager;
@@ -42,6 +43,7 @@ import android.graphics.Typeface;
 import android.location.Location;
 import android.net.Uri;
 import android.os.BatteryManager;
+import android.os.Debug;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.util.Pair;
@@ -99,6 +101,7 @@ public class DrawPreview {
     private int zebra_stripes_color_foreground;
     private int zebra_stripes_color_background;
     private boolean want_focus_peaking;
+    private float overlay_cpu_budget;
     private int focus_peaking_color_pref;
 
     // avoid doing things that allocate memory every frame!
@@ -111,7 +114,6 @@ public class DrawPreview {
     private Calendar calendar;
     private DateFormat dateFormatTimeInstance;
     private final String ybounds_text;
-    private final int [] temp_histogram_channel = new int[256];
     private final LocationSupplier.LocationInfo locationInfo = new LocationSupplier.LocationInfo();
     private final int [] auto_stabilise_crop = new int [2];
     //private final DecimalFormat decimal_format_1dp_force0 = new DecimalFormat("0.0");
@@ -121,6 +123,20 @@ public class DrawPreview {
     private Rect text_bounds_free_memory;
     private Rect text_bounds_angle_single;
     private Rect text_bounds_angle_double;
+    // retained text for values that may change often, so we only format the strings and measure
+    // the text when the value changes
+    private final RetainedText zoom_text = new RetainedText();
+    private final RetainedText geo_direction_text = new RetainedText();
+    private final RetainedText timer_text = new RetainedText();
+    private final RetainedText video_time_text = new RetainedText();
+    private final RetainedText burst_text = new RetainedText();
+    private final RetainedText processing_text = new RetainedText();
+    private final RetainedText overlay_fps_text = new RetainedText();
+    private final RetainedText iso_exposure_text = new RetainedText();
+    private final String [] degrees_strings = new String[451]; // cached strings for -90 to 360 degrees, for the pitch and geo direction lines
+    private final String capturing_string;
+    private final String screen_lock_message_1_string;
+    private final String screen_lock_message_2_string;
 
     private final static double close_level_angle = 1.0f;
     private String angle_string; // cached for UI performance
@@ -134,10 +150,14 @@ public class DrawPreview {
     private String current_time_string;
     private long last_current_time_time;
 
+    private long last_overlay_fps_time;
+
     private String camera_id_string;
     private long last_camera_id_time;
 
-    private String iso_exposure_string;
+    private int iso_exposure_iso = -1; // the values that iso_exposure_text was formatted for, or -1 if not available
+    private long iso_exposure_exposure_time = -1;
+    private long iso_exposure_frame_duration = -1;
     private boolean is_scanning;
     private long last_iso_exposure_time;
 
@@ -180,7 +200,17 @@ public class DrawPreview {
 
     private final Rect icon_dest = new Rect();
     private long needs_flash_time = -1; // time when flash symbol comes on (used for fade-in effect)
-    private final Path path = new Path();
+    private final Path [] histogram_paths = new Path[]{new Path(), new Path(), new Path()};
+    private int [] histogram_paths_histogram; // the histogram that histogram_paths were created for
+    private final Rect histogram_paths_rect = new Rect(); // the position that histogram_paths were created for
+    private final PorterDuffColorFilter nr_low_light_color_filter = new PorterDuffColorFilter(Color.rgb(255, 235, 59), PorterDuff.Mode.SRC_IN); // Yellow 500
+    private PorterDuffColorFilter focus_peaking_color_filter;
+
+    // for debugging the performance of the on-screen UI, see setShowFrameStats()
+    private boolean show_frame_stats;
+    private final FrameStats frame_stats = new FrameStats();
+    private String frame_stats_string;
+    private long last_frame_stats_time;
 
     private Bitmap last_thumbnail; // thumbnail of last picture taken
     private volatile boolean thumbnail_anim; // whether we are displaying the thumbnail animation; must be volatile for test project reading the state
@@ -273,6 +303,9 @@ public class DrawPreview {
         rotate_right_bitmap = BitmapFactory.decodeResource(getContext().getResources(), R.drawable.baseline_rotate_right_white_48);
 
         ybounds_text = getContext().getResources().getString(R.string.zoom) + getContext().getResources().getString(R.string.angle) + getContext().getResources().getString(R.string.direction);
+        capturing_string = getContext().getResources().getString(R.string.capturing);
+        screen_lock_message_1_string = getContext().getResources().getString(R.string.screen_lock_message_1);
+        screen_lock_message_2_string = getContext().getResources().getString(R.string.screen_lock_message_2);
     }
 
     public void onDestroy() {
@@ -553,6 +586,7 @@ public class DrawPreview {
         show_video_max_amp_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowVideoMaxAmpPreferenceKey, false);
         show_zoom_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowZoomPreferenceKey, true);
         show_battery_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowBatteryPreferenceKey, true);
+        setShowFrameStats(sharedPreferences.getBoolean(PreferenceKeys.ShowFrameStatsPreferenceKey, false));
 
         show_angle_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowAnglePreferenceKey, false);
         String angle_highlight_color = sharedPreferences.getString(PreferenceKeys.ShowAngleHighlightColorPreferenceKey, "#14e715");
@@ -675,6 +709,23 @@ public class DrawPreview {
         want_focus_peaking = !focus_peaking_pref.equals("preference_focus_peaking_off") && main_activity.supportsPreviewBitmaps();
         String focus_peaking_color = sharedPreferences.getString(PreferenceKeys.FocusPeakingColorPreferenceKey, "#ffffff");
         focus_peaking_color_pref = Color.parseColor(focus_peaking_color);
+        focus_peaking_color_filter = new PorterDuffColorFilter(focus_peaking_color_pref, PorterDuff.Mode.SRC_IN);
+
+        String overlay_cpu_budget_value = sharedPreferences.getString(PreferenceKeys.OverlayCPUBudgetPreferenceKey, "25");
+        try {
+            overlay_cpu_budget = Integer.parseInt(overlay_cpu_budget_value)/100.0f;
+        }
+        catch(NumberFormatException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to parse overlay_cpu_budget_value: " + overlay_cpu_budget_value);
+            e.printStackTrace();
+            overlay_cpu_budget = OverlayScheduler.default_cpu_budget_c;
+        }
+        if( overlay_cpu_budget <= 0.0f || overlay_cpu_budget > 1.0f ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "invalid overlay_cpu_budget: " + overlay_cpu_budget);
+            overlay_cpu_budget = OverlayScheduler.default_cpu_budget_c;
+        }
 
         last_camera_id_time = 0; // in case camera id changed
         last_view_angles_time = 0; // force view angles to be recomputed
@@ -1181,6 +1232,48 @@ public class DrawPreview {
             }
         }
 
+        if( show_frame_stats && camera_controller != null && preview.isPreviewBitmapEnabled() && ( want_zebra_stripes || want_focus_peaking ) ) {
+            // for debugging, show the rate that the overlays are being refreshed at, as this is adjusted by
+            // the Preview according to how long they take to compute
+            if( last_overlay_fps_time == 0 || time_ms > last_overlay_fps_time + 1000 ) {
+                // don't update this too often, for UI performance
+                float overlay_fps = preview.getOverlayFps();
+                long overlay_fps_value = Math.round(overlay_fps*10.0f); // text is shown to 1 decimal place
+                if( overlay_fps_text.needsUpdate(overlay_fps_value) ) {
+                    overlay_fps_text.set(overlay_fps_value, overlay_fps > 0.0f ? decimalFormat.format(overlay_fps) + " " + getContext().getResources().getString(R.string.fps) : null);
+                }
+                last_overlay_fps_time = time_ms;
+            }
+            if( overlay_fps_text.getText() != null ) {
+                int height = applicationInterface.drawTextWithBackground(canvas, p, overlay_fps_text.getText(), Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, overlay_fps_text.getBounds(p));
+                height += gap_y;
+                if( device_ui_rotation == 90 ) {
+                    location_y -= height;
+                }
+                else {
+                    location_y += height;
+                }
+            }
+        }
+
+        if( show_frame_stats ) {
+            if( frame_stats_string == null || time_ms > last_frame_stats_time + 1000 ) {
+                // don't update this too often, as formatting the string itself allocates
+                float average_alloc_count = frame_stats.getAverageAllocCount();
+                frame_stats_string = decimalFormat.format(frame_stats.getAverageDrawTimeMs()) + "ms (max " + decimalFormat.format(frame_stats.getMaxDrawTimeMs()) + "ms)" +
+                        ( average_alloc_count >= 0.0f ? " " + decimalFormat.format(average_alloc_count) + " allocs" : "" );
+                last_frame_stats_time = time_ms;
+            }
+            int height = applicationInterface.drawTextWithBackground(canvas, p, frame_stats_string, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
+            height += gap_y;
+            if( device_ui_rotation == 90 ) {
+                location_y -= height;
+            }
+            else {
+                location_y += height;
+            }
+        }
+
         // Now draw additional info on the lower left corner if needed
         int y_offset = (int) (27 * scale + 0.5f);
         p.setTextSize(24 * scale + 0.5f); // convert dps to pixels
@@ -1197,25 +1290,30 @@ public class DrawPreview {
         p.setTextSize(16 * scale + 0.5f); // Restore text size
 
         if( camera_controller != null && show_iso_pref ) {
-            if( iso_exposure_string == null || time_ms > last_iso_exposure_time + 500 ) {
-                iso_exposure_string = "";
-                if( camera_controller.captureResultHasIso() ) {
-                    int iso = camera_controller.captureResultIso();
-                    if( iso_exposure_string.length() > 0 )
-                        iso_exposure_string += " ";
-                    iso_exposure_string += preview.getISOString(iso);
-                }
-                if( camera_controller.captureResultHasExposureTime() ) {
-                    long exposure_time = camera_controller.captureResultExposureTime();
-                    if( iso_exposure_string.length() > 0 )
-                        iso_exposure_string += " ";
-                    iso_exposure_string += preview.getExposureTimeString(exposure_time);
-                }
-                if( preview.isVideoRecording() && camera_controller.captureResultHasFrameDuration() ) {
-                    long frame_duration = camera_controller.captureResultFrameDuration();
-                    if( iso_exposure_string.length() > 0 )
-                        iso_exposure_string += " ";
-                    iso_exposure_string += preview.getFrameDurationString(frame_duration);
+            if( iso_exposure_text.getText() == null || time_ms > last_iso_exposure_time + 500 ) {
+                int iso = camera_controller.captureResultHasIso() ? camera_controller.captureResultIso() : -1;
+                long exposure_time = camera_controller.captureResultHasExposureTime() ? camera_controller.captureResultExposureTime() : -1;
+                long frame_duration = preview.isVideoRecording() && camera_controller.captureResultHasFrameDuration() ? camera_controller.captureResultFrameDuration() : -1;
+                if( iso_exposure_text.getText() == null || iso != iso_exposure_iso || exposure_time != iso_exposure_exposure_time || frame_duration != iso_exposure_frame_duration ) {
+                    // only reformat if the values have changed
+                    String iso_exposure_string = "";
+                    if( iso != -1 ) {
+                        iso_exposure_string += preview.getISOString(iso);
+                    }
+                    if( exposure_time != -1 ) {
+                        if( iso_exposure_string.length() > 0 )
+                            iso_exposure_string += " ";
+                        iso_exposure_string += preview.getExposureTimeString(exposure_time);
+                    }
+                    if( frame_duration != -1 ) {
+                        if( iso_exposure_string.length() > 0 )
+                            iso_exposure_string += " ";
+                        iso_exposure_string += preview.getFrameDurationString(frame_duration);
+                    }
+                    iso_exposure_text.setText(iso_exposure_string);
+                    iso_exposure_iso = iso;
+                    iso_exposure_exposure_time = exposure_time;
+                    iso_exposure_frame_duration = frame_duration;
                 }
                 /*if( camera_controller.captureResultHasAperture() ) {
                     float aperture = camera_controller.captureResultAperture();
@@ -1237,7 +1335,7 @@ public class DrawPreview {
                 last_iso_exposure_time = time_ms;
             }
 
-            if( iso_exposure_string.length() > 0 ) {
+            if( iso_exposure_text.getText().length() > 0 ) {
                 int text_color = Color.rgb(255, 235, 59); // Yellow 500
                 if( is_scanning ) {
                     // we only change the color if ae scanning is at least a certain time, otherwise we get a lot of flickering of the color
@@ -1251,8 +1349,8 @@ public class DrawPreview {
                 else {
                     ae_started_scanning_ms = -1;
                 }
-                // can't cache the bounds rect, as the width may change significantly as the ISO or exposure values change
-                int height = applicationInterface.drawTextWithBackground(canvas, p, iso_exposure_string, text_color, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, ybounds_text, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
+                // the width may change significantly as the ISO or exposure values change, so the bounds are only cached until the text changes
+                int height = applicationInterface.drawTextWithBackground(canvas, p, iso_exposure_text.getText(), text_color, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, iso_exposure_text.getBounds(p));
                 height += gap_y;
                 // only move location_y if we actually print something (because on old camera API, even if the ISO option has
                 // been enabled, we'll never be able to display the on-screen ISO)
@@ -1390,7 +1488,7 @@ public class DrawPreview {
                                                                     null;
                 if( bitmap != null ) {
                     if( photoMode == MyApplicationInterface.PhotoMode.NoiseReduction && applicationInterface.getNRModePref() == ApplicationInterface.NRModePref.NRMODE_LOW_LIGHT ) {
-                        p.setColorFilter(new PorterDuffColorFilter(Color.rgb(255, 235, 59), PorterDuff.Mode.SRC_IN)); // Yellow 500
+                        p.setColorFilter(nr_low_light_color_filter);
                     }
                     canvas.drawBitmap(bitmap, null, icon_dest, p);
                     p.setColorFilter(null);
@@ -1548,13 +1646,26 @@ public class DrawPreview {
                     p.setColor(Color.argb(64, 0, 0, 0));
                     canvas.drawRect(icon_dest, p);
 
-                    int max = 0;
-                    for(int value : histogram) {
-                        max = Math.max(max, value);
+                    if( histogram != histogram_paths_histogram || !icon_dest.equals(histogram_paths_rect) ) {
+                        // only recreate the paths when we have a new histogram (which is only
+                        // computed a few times a second), or the position has changed
+                        int max = 0;
+                        for(int value : histogram) {
+                            max = Math.max(max, value);
+                        }
+                        if( histogram.length == 256*3 ) {
+                            for(int i=0;i<3;i++) {
+                                updateHistogramPath(histogram_paths[i], histogram, 256*i, 256, max);
+                            }
+                        }
+                        else {
+                            updateHistogramPath(histogram_paths[0], histogram, 0, histogram.length, max);
+                        }
+                        histogram_paths_histogram = histogram;
+                        histogram_paths_rect.set(icon_dest);
                     }
 
                     if( histogram.length == 256*3 ) {
-                        int c=0;
 
 						/* For overlapping rgb, we'll have:
 							(1, (1-a2).(1-a1).a0.r, (1-a2).a1.g, a2.b)
@@ -1583,59 +1694,58 @@ public class DrawPreview {
                         final int g = 255;
                         final int b = 255;
 
-                        for(int i=0;i<256;i++)
-                            temp_histogram_channel[i] = histogram[c++];
                         p.setColor(Color.argb(a0, r, 0, 0));
-                        drawHistogramChannel(canvas, temp_histogram_channel, max);
+                        canvas.drawPath(histogram_paths[0], p);
 
-                        for(int i=0;i<256;i++)
-                            temp_histogram_channel[i] = histogram[c++];
                         p.setColor(Color.argb(a1, 0, g, 0));
-                        drawHistogramChannel(canvas, temp_histogram_channel, max);
+                        canvas.drawPath(histogram_paths[1], p);
 
-                        for(int i=0;i<256;i++)
-                            temp_histogram_channel[i] = histogram[c++];
                         p.setColor(Color.argb(a2, 0, 0, b));
-                        drawHistogramChannel(canvas, temp_histogram_channel, max);
+                        canvas.drawPath(histogram_paths[2], p);
                     }
                     else {
                         p.setColor(Color.argb(192, 255, 255, 255));
-                        drawHistogramChannel(canvas, histogram, max);
+                        canvas.drawPath(histogram_paths[0], p);
                     }
                 }
             }
         }
     }
 
-    /** Draws histogram for a single color channel.
-     * @param canvas Canvas to draw onto.
-     * @param histogram_channel The histogram for this color.
-     * @param max The maximum value of histogram_channel, or if drawing multiple channels, this
-     *            should be the maximum value of all histogram channels.
+    /** Sets the path for drawing the histogram of a single color channel, at the position
+     *  icon_dest.
+     * @param path The path to set.
+     * @param histogram The histogram, which may contain multiple channels.
+     * @param offset The index in histogram for the start of this channel.
+     * @param length The number of entries for this channel.
+     * @param max The maximum value of this channel, or if drawing multiple channels, this should be
+     *            the maximum value of all histogram channels.
      */
-    private void drawHistogramChannel(Canvas canvas, int [] histogram_channel, int max) {
-        /*long debug_time = 0;
-        if( MyDebug.LOG ) {
-            debug_time = System.currentTimeMillis();
-        }*/
-
-		/*if( MyDebug.LOG )
-			Log.d(TAG, "drawHistogramChannel, time before creating path: " + (System.currentTimeMillis() - debug_time));*/
+    private void updateHistogramPath(Path path, int [] histogram, int offset, int length, int max) {
         path.reset();
         path.moveTo(icon_dest.left, icon_dest.bottom);
-        for(int c=0;c<histogram_channel.length;c++) {
-            double c_alpha = c / (double)histogram_channel.length;
+        for(int c=0;c<length;c++) {
+            double c_alpha = c / (double)length;
             int x = (int)(c_alpha * icon_dest.width());
-            int h = (histogram_channel[c] * icon_dest.height()) / max;
+            int h = max == 0 ? 0 : (histogram[offset+c] * icon_dest.height()) / max;
             path.lineTo(icon_dest.left + x, icon_dest.bottom - h);
         }
         path.lineTo(icon_dest.right, icon_dest.bottom);
         path.close();
-		/*if( MyDebug.LOG )
-			Log.d(TAG, "drawHistogramChannel, time after creating path: " + (System.currentTimeMillis() - debug_time));*/
-        canvas.drawPath(path, p);
-		/*if( MyDebug.LOG )
-			Log.d(TAG, "drawHistogramChannel, time before drawing path: " + (System.currentTimeMillis() - debug_time));*/
+    }
+
+    /** Returns the string for an angle in degrees, as shown for the pitch and geo direction lines.
+     *  The strings are cached, to avoid allocating new strings every frame.
+     */
+    private String getDegreesString(int angle) {
+        int index = angle + 90;
+        if( index < 0 || index >= degrees_strings.length ) {
+            return "" + angle + (char)0x00B0;
+        }
+        if( degrees_strings[index] == null ) {
+            degrees_strings[index] = "" + angle + (char)0x00B0;
+        }
+        return degrees_strings[index];
     }
 
     /** Formats the level_angle double into a string.
@@ -1836,8 +1946,11 @@ public class DrawPreview {
                 if( geo_angle < 0.0f ) {
                     geo_angle += 360.0f;
                 }
-                String string = "" + Math.round(geo_angle) + (char)0x00B0;
-                applicationInterface.drawTextWithBackground(canvas, p, string, color, Color.BLACK, canvas.getWidth() / 2 + pixels_offset_x, text_base_y, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, ybounds_text, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
+                int geo_angle_rounded = Math.round(geo_angle);
+                if( geo_direction_text.needsUpdate(geo_angle_rounded) ) {
+                    geo_direction_text.set(geo_angle_rounded, "" + geo_angle_rounded + (char)0x00B0);
+                }
+                applicationInterface.drawTextWithBackground(canvas, p, geo_direction_text.getText(), color, Color.BLACK, canvas.getWidth() / 2 + pixels_offset_x, text_base_y, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, geo_direction_text.getBounds(p));
             }
             if( preview.isOnTimer() ) {
                 long remaining_time = (preview.getTimerEndTime() - time_ms + 999)/1000;
@@ -1846,35 +1959,40 @@ public class DrawPreview {
                 if( remaining_time > 0 ) {
                     p.setTextSize(42 * scale + 0.5f); // convert dps to pixels
                     p.setTextAlign(Paint.Align.CENTER);
-                    String time_s;
-                    if( remaining_time < 60 ) {
-                        // simpler to just show seconds when less than a minute
-                        time_s = "" + remaining_time;
-                    }
-                    else {
-                        time_s = getTimeStringFromSeconds(remaining_time);
+                    if( timer_text.needsUpdate(remaining_time) ) {
+                        String time_s;
+                        if( remaining_time < 60 ) {
+                            // simpler to just show seconds when less than a minute
+                            time_s = "" + remaining_time;
+                        }
+                        else {
+                            time_s = getTimeStringFromSeconds(remaining_time);
+                        }
+                        timer_text.set(remaining_time, time_s);
                     }
-                    applicationInterface.drawTextWithBackground(canvas, p, time_s, Color.rgb(244, 67, 54), Color.BLACK, canvas.getWidth() / 2, canvas.getHeight() / 2); // Red 500
+                    applicationInterface.drawTextWithBackground(canvas, p, timer_text.getText(), Color.rgb(244, 67, 54), Color.BLACK, canvas.getWidth() / 2, canvas.getHeight() / 2, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, timer_text.getBounds(p)); // Red 500
                 }
             }
             else if( preview.isVideoRecording() ) {
-                long video_time = preview.getVideoTime(false);
-                String time_s = getTimeStringFromSeconds(video_time/1000);
+                long video_time_s = preview.getVideoTime(false)/1000;
+                if( video_time_text.needsUpdate(video_time_s) ) {
+                    video_time_text.set(video_time_s, getTimeStringFromSeconds(video_time_s));
+                }
             	/*if( MyDebug.LOG )
-					Log.d(TAG, "video_time: " + video_time + " " + time_s);*/
+					Log.d(TAG, "video_time_s: " + video_time_s + " " + video_time_text.getText());*/
                 p.setTextSize(14 * scale + 0.5f); // convert dps to pixels
                 p.setTextAlign(Paint.Align.CENTER);
                 int pixels_offset_y = 2*text_y; // avoid overwriting the zoom
                 int color = Color.rgb(244, 67, 54); // Red 500
                 if( main_activity.isScreenLocked() ) {
                     // writing in reverse order, bottom to top
-                    applicationInterface.drawTextWithBackground(canvas, p, getContext().getResources().getString(R.string.screen_lock_message_2), color, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
+                    applicationInterface.drawTextWithBackground(canvas, p, screen_lock_message_2_string, color, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
                     pixels_offset_y += text_y;
-                    applicationInterface.drawTextWithBackground(canvas, p, getContext().getResources().getString(R.string.screen_lock_message_1), color, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
+                    applicationInterface.drawTextWithBackground(canvas, p, screen_lock_message_1_string, color, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
                     pixels_offset_y += text_y;
                 }
                 if( !preview.isVideoRecordingPaused() || ((int)(time_ms / 500)) % 2 == 0 ) { // if video is paused, then flash the video time
-                    applicationInterface.drawTextWithBackground(canvas, p, time_s, color, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
+                    applicationInterface.drawTextWithBackground(canvas, p, video_time_text.getText(), color, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, video_time_text.getBounds(p));
                     pixels_offset_y += text_y;
                 }
                 if( show_video_max_amp_pref && !preview.isVideoRecordingPaused() ) {
@@ -1943,11 +2061,15 @@ public class DrawPreview {
                         // avoid clashing with the target focus bracketing seekbar in landscape orientation
                         pixels_offset_y = 5*gap_y;
                     }
-                    String text = getContext().getResources().getString(R.string.capturing) + " " + n_burst_taken;
-                    if( n_burst_total > 0 ) {
-                        text += " / " + n_burst_total;
+                    long burst_value = (((long)n_burst_taken) << 32) | (n_burst_total & 0xffffffffL);
+                    if( burst_text.needsUpdate(burst_value) ) {
+                        String text = capturing_string + " " + n_burst_taken;
+                        if( n_burst_total > 0 ) {
+                            text += " / " + n_burst_total;
+                        }
+                        burst_text.set(burst_value, text);
                     }
-                    applicationInterface.drawTextWithBackground(canvas, p, text, Color.WHITE, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
+                    applicationInterface.drawTextWithBackground(canvas, p, burst_text.getText(), Color.WHITE, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, burst_text.getBounds(p));
                 }
                 else if( camera_controller.isManualISO() ) {
                     // only show "capturing" text with time for manual exposure time >= 0.5s
@@ -1958,7 +2080,7 @@ public class DrawPreview {
                             p.setTextAlign(Paint.Align.CENTER);
                             int pixels_offset_y = 2*text_y; // avoid overwriting the zoom
                             int color = Color.rgb(244, 67, 54); // Red 500
-                            applicationInterface.drawTextWithBackground(canvas, p, getContext().getResources().getString(R.string.capturing), color, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
+                            applicationInterface.drawTextWithBackground(canvas, p, capturing_string, color, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
                         }
                     }
                 }
@@ -1969,8 +2091,11 @@ public class DrawPreview {
                     p.setTextAlign(Paint.Align.CENTER);
                     int pixels_offset_y = 2 * text_y; // avoid overwriting the zoom
                     int n_images_to_save = applicationInterface.getImageSaver().getNRealImagesToSave();
-                    String string = getContext().getResources().getString(R.string.processing) + " (" + n_images_to_save + " " + getContext().getResources().getString(R.string.remaining) + ")";
-                    applicationInterface.drawTextWithBackground(canvas, p, string, Color.LTGRAY, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
+                    if( processing_text.needsUpdate(n_images_to_save) ) {
+                        String string = getContext().getResources().getString(R.string.processing) + " (" + n_images_to_save + " " + getContext().getResources().getString(R.string.remaining) + ")";
+                        processing_text.set(n_images_to_save, string);
+                    }
+                    applicationInterface.drawTextWithBackground(canvas, p, processing_text.getText(), Color.LTGRAY, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, processing_text.getBounds(p));
                 }
             }
 
@@ -1981,7 +2106,11 @@ public class DrawPreview {
                     // Convert the dps to pixels, based on density scale
                     p.setTextSize(14 * scale + 0.5f); // convert dps to pixels
                     p.setTextAlign(Paint.Align.CENTER);
-                    applicationInterface.drawTextWithBackground(canvas, p, getContext().getResources().getString(R.string.zoom) + ": " + zoom_ratio +"x", Color.WHITE, Color.BLACK, canvas.getWidth() / 2, text_base_y - text_y, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, ybounds_text, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
+                    int zoom_ratio_bits = Float.floatToIntBits(zoom_ratio);
+                    if( zoom_text.needsUpdate(zoom_ratio_bits) ) {
+                        zoom_text.set(zoom_ratio_bits, getContext().getResources().getString(R.string.zoom) + ": " + zoom_ratio +"x");
+                    }
+                    applicationInterface.drawTextWithBackground(canvas, p, zoom_text.getText(), Color.WHITE, Color.BLACK, canvas.getWidth() / 2, text_base_y - text_y, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE, zoom_text.getBounds(p));
                 }
             }
 
@@ -2350,7 +2479,7 @@ public class DrawPreview {
                         draw_rect.set(cx - pitch_radius, cy + pitch_distance - hthickness, cx + pitch_radius, cy + pitch_distance + hthickness);
                         canvas.drawRoundRect(draw_rect, hthickness, hthickness, p);
                         // draw pitch angle indicator
-                        applicationInterface.drawTextWithBackground(canvas, p, "" + latitude_angle + "\u00B0", p.getColor(), Color.BLACK, (int)(cx + pitch_radius + 4*hthickness), (int)(cy + pitch_distance - 2*hthickness), MyApplicationInterface.Alignment.ALIGNMENT_CENTRE);
+                        applicationInterface.drawTextWithBackground(canvas, p, getDegreesString(latitude_angle), p.getColor(), Color.BLACK, (int)(cx + pitch_radius + 4*hthickness), (int)(cy + pitch_distance - 2*hthickness), MyApplicationInterface.Alignment.ALIGNMENT_CENTRE);
                     }
                 }
             }
@@ -2396,7 +2525,7 @@ public class DrawPreview {
                         draw_rect.set(cx + geo_distance - hthickness, cy - geo_radius, cx + geo_distance + hthickness, cy + geo_radius);
                         canvas.drawRoundRect(draw_rect, hthickness, hthickness, p);
                         // draw geo direction angle indicator
-                        applicationInterface.drawTextWithBackground(canvas, p, "" + longitude_angle + "\u00B0", p.getColor(), Color.BLACK, (int)(cx + geo_distance), (int)(cy - geo_radius - 4*hthickness), MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM);
+                        applicationInterface.drawTextWithBackground(canvas, p, getDegreesString(longitude_angle), p.getColor(), Color.BLACK, (int)(cx + geo_distance), (int)(cy - geo_radius - 4*hthickness), MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM);
                     }
                 }
             }
@@ -2601,9 +2730,50 @@ public class DrawPreview {
         }
     }
 
+    /** Enables or disables recording and displaying the time taken to draw each frame, and the
+     *  number of allocations whilst drawing, for debugging the performance of the on-screen UI.
+     *  The allocation count is only available on devices that support Debug.getThreadAllocCount().
+     *  Set from PreferenceKeys.ShowFrameStatsPreferenceKey in updateSettings().
+     */
+    @SuppressWarnings("deprecation")
+    private void setShowFrameStats(boolean show_frame_stats) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setShowFrameStats: " + show_frame_stats);
+        if( show_frame_stats == this.show_frame_stats )
+            return;
+        this.show_frame_stats = show_frame_stats;
+        frame_stats.reset();
+        frame_stats_string = null;
+        if( show_frame_stats )
+            Debug.startAllocCounting();
+        else
+            Debug.stopAllocCounting();
+    }
+
+    /** Returns the recorded frame statistics, only meaningful if enabled with setShowFrameStats().
+     */
+    public FrameStats getFrameStats() {
+        return frame_stats;
+    }
+
+    @SuppressWarnings("deprecation")
     public void onDrawPreview(Canvas canvas) {
+        if( !show_frame_stats ) {
+            drawFrame(canvas);
+            return;
+        }
+        long start_time_ns = System.nanoTime();
+        int start_alloc_count = Debug.getThreadAllocCount();
+        drawFrame(canvas);
+        long draw_time_ns = System.nanoTime() - start_time_ns;
+        int alloc_count = Debug.getThreadAllocCount() - start_alloc_count;
+        // if allocation counting isn't supported, the count will always be 0
+        frame_stats.onFrame(draw_time_ns, alloc_count);
+    }
+
+    private void drawFrame(Canvas canvas) {
 		/*if( MyDebug.LOG )
-			Log.d(TAG, "onDrawPreview");*/
+			Log.d(TAG, "drawFrame");*/
         if( !has_settings ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "onDrawPreview: need to update settings");
@@ -2639,6 +2809,8 @@ public class DrawPreview {
                 preview.enableFocusPeaking();
             else
                 preview.disableFocusPeaking();
+
+            preview.setOverlayCPUBudget(overlay_cpu_budget);
         }
 
         // see documentation for CameraController.shouldCoverPreview()
@@ -2736,7 +2908,7 @@ public class DrawPreview {
                 setLastImageMatrix(canvas, focus_peaking_bitmap, 0, false);
                 p.setAlpha(127);
                 if( focus_peaking_color_pref != Color.WHITE ) {
-                    p.setColorFilter(new PorterDuffColorFilter(focus_peaking_color_pref, PorterDuff.Mode.SRC_IN));
+                    p.setColorFilter(focus_peaking_color_filter);
                 }
                 canvas.drawBitmap(focus_peaking_bitmap, last_image_matrix, p);
                 if( focus_peaking_color_pref != Color.WHITE ) {
@@ -0,0 +1,97 @@
+package net.sourceforge.opencamera.ui;
+
+/** Records the time taken to draw each frame of the on-screen UI, and the number of allocations
+ *  made whilst drawing, over the most recent frames. Used by DrawPreview to display a debug line
+ *  with the per-frame cost, so that regressions that cause jank (e.g., allocating strings every
+ *  frame) are easy to spot.
+ *  It should only be used from a single thread (in practice, the UI thread).
+ */
+public class FrameStats {
+    public static final int n_samples_c = 60;
+
+    private final long [] draw_times_ns = new long[n_samples_c]; // circular buffer
+    private final int [] alloc_counts = new int[n_samples_c]; // circular buffer, -1 if not known
+    private int n_frames;
+
+    /** Records a frame.
+     * @param draw_time_ns The time taken to draw the frame.
+     * @param alloc_count  The number of allocations whilst drawing the frame, or -1 if not known.
+     */
+    public void onFrame(long draw_time_ns, int alloc_count) {
+        draw_times_ns[n_frames % n_samples_c] = draw_time_ns;
+        alloc_counts[n_frames % n_samples_c] = alloc_count;
+        n_frames++;
+    }
+
+    /** Returns the total number of frames recorded since this was created or last reset.
+     */
+    public int getNFrames() {
+        return n_frames;
+    }
+
+    private int getNSamples() {
+        return Math.min(n_frames, n_samples_c);
+    }
+
+    /** Returns the average draw time over the most recent frames, or 0 if no frames recorded.
+     */
+    public float getAverageDrawTimeMs() {
+        int n = getNSamples();
+        if( n == 0 )
+            return 0.0f;
+        long total = 0;
+        for(int i=0;i<n;i++) {
+            total += draw_times_ns[i];
+        }
+        return total/(n*1000000.0f);
+    }
+
+    /** Returns the maximum draw time over the most recent frames, or 0 if no frames recorded.
+     */
+    public float getMaxDrawTimeMs() {
+        int n = getNSamples();
+        long max = 0;
+        for(int i=0;i<n;i++) {
+            max = Math.max(max, draw_times_ns[i]);
+        }
+        return max/1000000.0f;
+    }
+
+    /** Returns the average number of allocations per frame over the most recent frames, or -1 if
+     *  not known.
+     */
+    public float getAverageAllocCount() {
+        int n = getNSamples();
+        if( n == 0 )
+            return -1.0f;
+        long total = 0;
+        for(int i=0;i<n;i++) {
+            if( alloc_counts[i] < 0 )
+                return -1.0f;
+            total += alloc_counts[i];
+        }
+        return total/(float)n;
+    }
+
+    /** Returns the maximum number of allocations in a frame over the most recent frames, or -1 if
+     *  not known.
+     */
+    public int getMaxAllocCount() {
+        int n = getNSamples();
+        if( n == 0 )
+            return -1;
+        int max = 0;
+        for(int i=0;i<n;i++) {
+            if( alloc_counts[i] < 0 )
+                return -1;
+            max = Math.max(max, alloc_counts[i]);
+        }
+        return max;
+    }
+
+    /** Discards all recorded frames.
+     */
+    public void reset() {
+        n_frames = 0;
+    }
+}
@@ -0,0 +1,73 @@
+package net.sourceforge.opencamera.ui;
+
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/** A line of on-screen text that is retained between frames, so that DrawPreview only formats the
+ *  string (and measures its bounds) when the value being displayed changes, rather than allocating
+ *  new strings every frame.
+ *  The value is a long that identifies what the text shows (e.g., the number of seconds, or the
+ *  bits of a float), so callers should check needsUpdate() before formatting a new string.
+ */
+class RetainedText {
+    private boolean has_value;
+    private long value;
+    private String text;
+    private final Rect bounds = new Rect();
+    private float bounds_text_size = -1.0f; // the text size that bounds were computed for, or -1 if not computed
+    private int n_updates;
+
+    /** Returns whether the text needs to be reformatted to display the supplied value.
+     */
+    boolean needsUpdate(long value) {
+        return !has_value || value != this.value;
+    }
+
+    /** Sets the text to display for the supplied value.
+     */
+    void set(long value, String text) {
+        this.has_value = true;
+        this.value = value;
+        setText(text);
+    }
+
+    /** Sets the text to display, for callers that track whether the text needs reformatting
+     *  themselves (e.g., if it depends on more than one value).
+     */
+    void setText(String text) {
+        if( this.text == null || !this.text.equals(text) ) {
+            this.text = text;
+            this.bounds_text_size = -1.0f;
+        }
+        n_updates++;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /** Returns the bounds of the text for the supplied paint, only measuring the text if the text
+     *  or text size have changed since the bounds were last computed. The returned Rect is owned by
+     *  this class, and should not be modified.
+     */
+    Rect getBounds(Paint paint) {
+        if( bounds_text_size != paint.getTextSize() ) {
+            paint.getTextBounds(text, 0, text.length(), bounds);
+            bounds_text_size = paint.getTextSize();
+        }
+        return bounds;
+    }
+
+    /** Forces the text to be reformatted on the next call to needsUpdate(), e.g., if the strings
+     *  used to format the text have changed.
+     */
+    void invalidate() {
+        has_value = false;
+    }
+
+    /** Returns the number of times the text has been set, for testing.
+     */
+    int getNUpdates() {
+        return n_updates;
+    }
+}
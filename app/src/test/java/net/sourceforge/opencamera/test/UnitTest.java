@@ -2,29 +2,80 @@ package net.sourceforge.opencamera.test;
 
 import android.media.CamcorderProfile;
 
+import net.sourceforge.opencamera.AutoLevelResampler;
+import net.sourceforge.opencamera.BestOfBurstSelector;
+import net.sourceforge.opencamera.BufferPool;
+import net.sourceforge.opencamera.DecodeQueue;
 import net.sourceforge.opencamera.MainActivity;
 import net.sourceforge.opencamera.MyApplicationInterface;
+import net.sourceforge.opencamera.ParallelRows;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
 import net.sourceforge.opencamera.cameracontroller.CameraController2;
+import net.sourceforge.opencamera.cameracontroller.CameraControllerException;
+import net.sourceforge.opencamera.cameracontroller.CameraControllerSimulated;
+import net.sourceforge.opencamera.cameracontroller.JpegBufferPool;
+import net.sourceforge.opencamera.cameracontroller.RawImage;
+import net.sourceforge.opencamera.cameracontroller.SimulatedSensor;
+import net.sourceforge.opencamera.FeatureDetector;
+import net.sourceforge.opencamera.PanoramaRansac;
 import net.sourceforge.opencamera.HDRProcessor;
 import net.sourceforge.opencamera.ImageSaver;
+import net.sourceforge.opencamera.ImageSaverQueuePolicy;
+import net.sourceforge.opencamera.ImageStatistics;
+import net.sourceforge.opencamera.JavaDROProcessor;
+import net.sourceforge.opencamera.JavaHDRProcessor;
+import net.sourceforge.opencamera.JavaMTBAlignment;
+import net.sourceforge.opencamera.JpegRegionEditor;
+import net.sourceforge.opencamera.JpegRegionEditorException;
+import net.sourceforge.opencamera.LatestMediaIndex;
 import net.sourceforge.opencamera.LocationSupplier;
+import net.sourceforge.opencamera.LruSizeCache;
+import net.sourceforge.opencamera.ReplayManifest;
+import net.sourceforge.opencamera.SharpnessScorer;
+import net.sourceforge.opencamera.preview.OverlayScheduler;
 import net.sourceforge.opencamera.preview.Preview;
+import net.sourceforge.opencamera.preview.PreviewOverlayProcessor;
 import net.sourceforge.opencamera.preview.VideoQualityHandler;
 import net.sourceforge.opencamera.TextFormatter;
 import net.sourceforge.opencamera.ui.DrawPreview;
+import net.sourceforge.opencamera.ui.FrameStats;
 import net.sourceforge.opencamera.ui.MainUI;
 import net.sourceforge.opencamera.ui.PopupView;
 
 import org.junit.Test;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -555,18 +606,133 @@ public class UnitTest {
     public void testImageSaverQueueSize() {
         Log.d(TAG, "testImageSaverQueueSize");
 
-        // if any of these values change, review the comments in ImageSaver.getQueueSize().
+        // if any of these values change, review the comments in ImageSaverQueuePolicy.computeBudget().
+        final long MB = ImageSaverQueuePolicy.MB;
+
+        // should allow at least a photo with RAW+JPEG
+        ImageSaverQueuePolicy policy = new ImageSaverQueuePolicy(ImageSaverQueuePolicy.computeBudget(64*MB), ImageSaverQueuePolicy.computeMaxRawImages(64));
+        assertTrue(policy.getBudget() >= policy.estimatePhotoBytes(0, 1));
+        assertEquals(1, policy.getMaxRawImages());
+
+        assertTrue(ImageSaverQueuePolicy.computeBudget(128*MB) >= ImageSaverQueuePolicy.computeBudget(64*MB));
+        assertTrue(ImageSaverQueuePolicy.computeBudget(128*MB) <= 128*MB - 80*MB);
+
+        assertTrue(ImageSaverQueuePolicy.computeBudget(256*MB) >= ImageSaverQueuePolicy.computeBudget(128*MB));
+
+        // should allow a burst of 20 JPEGs, or 5 photos with RAW+JPEG, whilst reserving 160MB for post-processing
+        policy = new ImageSaverQueuePolicy(ImageSaverQueuePolicy.computeBudget(512*MB), ImageSaverQueuePolicy.computeMaxRawImages(512));
+        assertTrue(policy.getBudget() >= ImageSaverQueuePolicy.computeBudget(256*MB));
+        assertTrue(policy.getBudget() >= 20*policy.estimatePhotoBytes(0, 1));
+        assertTrue(policy.getBudget() >= 5*policy.estimatePhotoBytes(1, 1));
+        assertTrue(policy.getBudget() <= 512*MB - 160*MB);
+        // the number of RAW images is limited by the RAW ImageReader (which holds 1 more than this),
+        // so should be the same as when the queue had a fixed number of slots
+        assertEquals(5, policy.getMaxRawImages());
+        assertEquals(2, ImageSaverQueuePolicy.computeMaxRawImages(256));
+        assertEquals(1, ImageSaverQueuePolicy.computeMaxRawImages(128));
+    }
+
+    @Test
+    public void testImageSaverQueuePolicy() {
+        Log.d(TAG, "testImageSaverQueuePolicy");
+
+        final long MB = ImageSaverQueuePolicy.MB;
+        ImageSaverQueuePolicy policy = new ImageSaverQueuePolicy(20*MB, 2);
+
+        // a request is always admitted when the queue is empty, even if larger than the budget
+        assertFalse(policy.wouldBlock(30*MB, 0));
+        policy.admit(8*MB, 0, 2);
+        assertEquals(8*MB, policy.getQueuedBytes());
+        // estimate is now based on the real size of a JPEG
+        assertEquals(4*MB, policy.estimatePhotoBytes(0, 1));
+        assertFalse(policy.wouldBlock(12*MB, 0));
+        assertTrue(policy.wouldBlock(12*MB+1, 0));
+        policy.admit(12*MB, 0, 3);
+        assertEquals(20*MB, policy.getPeakQueuedBytes());
+        assertTrue(policy.wouldBlock(1, 0));
+        policy.release(8*MB, 0);
+        policy.release(12*MB, 0);
+        assertEquals(0, policy.getQueuedBytes());
+        assertEquals(0, policy.getNRequests());
+        assertEquals(20*MB, policy.getPeakQueuedBytes());
+
+        // RAW images are limited by count, and don't use the budget (as they're in native memory)
+        assertEquals(0, policy.estimatePhotoBytes(1, 0));
+        policy = new ImageSaverQueuePolicy(1000*MB, 2);
+        for(int i=0;i<2;i++) {
+            assertFalse(policy.wouldBlock(0, 1));
+            policy.admit(0, 1, 0);
+        }
+        assertTrue(policy.wouldBlock(0, 1));
+        assertFalse(policy.wouldBlock(MB, 0));
+
+        // burst of 20 JPEGs at 100ms intervals, saved in 400ms each: shouldn't stall with a large budget
+        List<ImageSaverQueuePolicy.SimulatedRequest> burst = new ArrayList<>();
+        for(int i=0;i<20;i++) {
+            burst.add(new ImageSaverQueuePolicy.SimulatedRequest(i*100, 5*MB, 0, 1, 400));
+        }
+        ImageSaverQueuePolicy.SimulationResult result = ImageSaverQueuePolicy.simulate(352*MB, 5, burst, 1);
+        assertEquals(0, result.n_stalled);
+        assertEquals(0, result.total_stall_ms);
+        assertEquals(16*5*MB, result.peak_queued_bytes); // 4 requests have been saved when the last is taken at 1900ms
+        assertEquals(20*400, result.finish_time_ms);
+
+        // with a small budget, capture stalls and the budget is never exceeded
+        result = ImageSaverQueuePolicy.simulate(20*MB, 1, burst, 1);
+        assertTrue(result.n_stalled > 0);
+        assertTrue(result.total_stall_ms > 0);
+        assertTrue(result.peak_queued_bytes <= 20*MB);
+        for(int i=1;i<burst.size();i++) {
+            assertTrue(result.admit_times_ms[i] >= result.admit_times_ms[i-1]);
+        }
+
+        // more workers should reduce stalls and the total time
+        ImageSaverQueuePolicy.SimulationResult result3 = ImageSaverQueuePolicy.simulate(20*MB, 1, burst, 3);
+        assertTrue(result3.total_stall_ms < result.total_stall_ms);
+        assertTrue(result3.finish_time_ms < result.finish_time_ms);
+        assertTrue(result3.peak_queued_bytes <= 20*MB);
+
+        // RAW+JPEG burst on a low memory device: only one RAW image can be queued, so each RAW is
+        // only admitted once the previous one has been saved; the RAW images don't use the budget
+        List<ImageSaverQueuePolicy.SimulatedRequest> raw_burst = new ArrayList<>();
+        for(int i=0;i<5;i++) {
+            raw_burst.add(new ImageSaverQueuePolicy.SimulatedRequest(i*200, 0, 1, 0, 1000));
+            raw_burst.add(new ImageSaverQueuePolicy.SimulatedRequest(i*200, 5*MB, 0, 1, 400));
+        }
+        result = ImageSaverQueuePolicy.simulate(ImageSaverQueuePolicy.computeBudget(64*MB), ImageSaverQueuePolicy.computeMaxRawImages(64), raw_burst, 1);
+        assertTrue(result.n_stalled > 0);
+        assertEquals(10*MB, result.peak_queued_bytes);
+        assertEquals(5*1400, result.finish_time_ms);
+    }
 
-        assertTrue(ImageSaver.computeQueueSize(64) >= 6);
+    @Test
+    public void testImageSaverNWorkers() {
+        Log.d(TAG, "testImageSaverNWorkers");
 
-        assertTrue(ImageSaver.computeQueueSize(128) >= ImageSaver.computeQueueSize(64));
+        // low memory devices should keep to saving one request at a time
+        assertEquals(1, ImageSaver.computeNWorkers(128, 8));
 
-        assertTrue(ImageSaver.computeQueueSize(256) >= ImageSaver.computeQueueSize(128));
-        assertTrue(ImageSaver.computeQueueSize(256) <= 19);
+        assertTrue(ImageSaver.computeNWorkers(256, 8) >= ImageSaver.computeNWorkers(128, 8));
+        assertTrue(ImageSaver.computeNWorkers(512, 8) >= ImageSaver.computeNWorkers(256, 8));
+        assertTrue(ImageSaver.computeNWorkers(512, 8) > 1);
 
-        assertTrue(ImageSaver.computeQueueSize(512) >= ImageSaver.computeQueueSize(256));
-        assertTrue(ImageSaver.computeQueueSize(512) >= 34);
-        assertTrue(ImageSaver.computeQueueSize(512) <= 70);
+        // should always leave a processor free, but have at least one worker
+        assertEquals(1, ImageSaver.computeNWorkers(512, 2));
+        assertEquals(1, ImageSaver.computeNWorkers(512, 1));
+    }
+
+    @Test
+    public void testImageSaverNDecodeThreads() {
+        Log.d(TAG, "testImageSaverNDecodeThreads");
+
+        assertEquals(1, ImageSaver.computeNDecodeThreads(128, 8));
+        assertTrue(ImageSaver.computeNDecodeThreads(256, 8) >= ImageSaver.computeNDecodeThreads(128, 8));
+        assertTrue(ImageSaver.computeNDecodeThreads(512, 8) >= ImageSaver.computeNDecodeThreads(256, 8));
+        assertTrue(ImageSaver.computeNDecodeThreads(512, 8) > 1);
+
+        // shouldn't use more threads than processors
+        assertEquals(2, ImageSaver.computeNDecodeThreads(512, 2));
+        assertEquals(1, ImageSaver.computeNDecodeThreads(512, 1));
     }
 
     @Test
@@ -1040,4 +1206,1604 @@ public class UnitTest {
             }
         }
     }
+
+    @Test
+    public void testJavaHDRProcessor() {
+        Log.d(TAG, "testJavaHDRProcessor");
+
+        final int width = 37, height = 29; // deliberately not a multiple of the tile height
+        int [][] inputs = new int[3][width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int value = 64 + (x+y) % 128; // mid-range values, so only the base image contributes
+                for(int i=0;i<3;i++) {
+                    inputs[i][y*width+x] = 0xFF000000 | (value << 16) | (value << 8) | value;
+                }
+            }
+        }
+        int [] expected = inputs[1].clone();
+
+        JavaHDRProcessor processor = new JavaHDRProcessor(ParallelRows.getDefaultPool(), 4);
+        JavaHDRProcessor.MergeParameters params = new JavaHDRProcessor.MergeParameters(3, 1);
+        params.setResponseFunction(0, 2.0f, 0.0f);
+        params.setResponseFunction(2, 0.5f, 0.0f);
+        params.setOffset(0, 3, -2);
+        params.setOffset(2, -1, 4);
+        params.setTonemapping(JavaHDRProcessor.tonemap_algorithm_clamp_c, 255.0f, 255.0f);
+        int [] output = new int[width*height];
+        processor.processHDR(inputs, width, height, output, params);
+        assertArrayEquals(expected, output);
+
+        // dark pixels should take contributions from the brighter image
+        int [] dark = new int[width*height];
+        int [] dark_base = new int[width*height];
+        int [] dark_bright = new int[width*height];
+        for(int i=0;i<width*height;i++) {
+            dark[i] = 0xFF000000;
+            dark_base[i] = 0xFF050505;
+            dark_bright[i] = 0xFF141414;
+        }
+        params = new JavaHDRProcessor.MergeParameters(3, 1);
+        params.setResponseFunction(2, 0.25f, 0.0f);
+        params.setTonemapping(JavaHDRProcessor.tonemap_algorithm_clamp_c, 255.0f, 255.0f);
+        processor.processHDR(new int[][]{dark, dark_base, dark_bright}, width, height, output, params);
+        for(int i=0;i<width*height;i++) {
+            assertEquals(0xFF050505, output[i]);
+        }
+
+        // contrast enhancement with hdr_alpha of 0 should leave the image unchanged
+        processor.adjustHistogram(expected, output, width, height, 0.0f, 4, true);
+        assertArrayEquals(expected, output);
+    }
+
+    /** Tests that processing a strip at a time, as done by HDRProcessor.processHDRStreaming(),
+     *  gives the same results as processing the whole image.
+     */
+    @Test
+    public void testJavaHDRProcessorStrips() {
+        Log.d(TAG, "testJavaHDRProcessorStrips");
+
+        final int width = 41, height = 53;
+        final int n_images = 4;
+        final int strip_height = 7;
+        Random random = new Random(0);
+        int [][] inputs = new int[n_images][width*height];
+        for(int i=0;i<n_images;i++) {
+            for(int j=0;j<width*height;j++) {
+                inputs[i][j] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+        }
+        final int [] offsets_x = new int[]{2, -3, 0, 1};
+        final int [] offsets_y = new int[]{-4, 5, 0, 9};
+        final int base_bitmap = 2;
+
+        JavaHDRProcessor processor = new JavaHDRProcessor(ParallelRows.getDefaultPool(), 4);
+        JavaHDRProcessor.MergeParameters params = new JavaHDRProcessor.MergeParameters(n_images, base_bitmap);
+        for(int i=0;i<n_images;i++) {
+            params.setResponseFunction(i, 4.0f/(1<<i), 1.0f);
+            params.setOffset(i, offsets_x[i], offsets_y[i]);
+        }
+        params.setTonemapping(JavaHDRProcessor.tonemap_algorithm_reinhard_c, 1020.0f, 200.0f);
+        int [] expected = new int[width*height];
+        processor.processHDR(inputs, width, height, expected, params);
+        int [] expected_adjusted = new int[width*height];
+        processor.adjustHistogram(expected, expected_adjusted, width, height, 0.5f, 4, true);
+
+        int [] output = new int[width*height];
+        int [] histograms = new int[4*4*256];
+        int [][] strips = new int[n_images][];
+        int [] strips_y0 = new int[n_images];
+        int [] output_strip = new int[width*strip_height];
+        for(int y_start=0;y_start<height;y_start+=strip_height) {
+            int y_stop = Math.min(y_start+strip_height, height);
+            for(int i=0;i<n_images;i++) {
+                int src_start = Math.max(0, Math.min(height, y_start + offsets_y[i]));
+                int src_stop = Math.max(0, Math.min(height, y_stop + offsets_y[i]));
+                strips[i] = new int[width*strip_height];
+                System.arraycopy(inputs[i], src_start*width, strips[i], 0, (src_stop-src_start)*width);
+                strips_y0[i] = src_start;
+            }
+            processor.processHDRStrip(strips, strips_y0, width, height, output_strip, y_start, y_stop, params);
+            processor.accumulateTileHistograms(output_strip, width, height, y_start, y_stop, 4, histograms);
+            System.arraycopy(output_strip, 0, output, y_start*width, (y_stop-y_start)*width);
+        }
+        assertArrayEquals(expected, output);
+
+        int [] c_histogram = JavaHDRProcessor.computeCumulativeHistograms(histograms, width, height, 4, true);
+        for(int y_start=0;y_start<height;y_start+=strip_height) {
+            int y_stop = Math.min(y_start+strip_height, height);
+            System.arraycopy(output, y_start*width, output_strip, 0, (y_stop-y_start)*width);
+            processor.applyHistogramStrip(output_strip, output_strip, width, height, y_start, y_stop, c_histogram, 0.5f, 4);
+            System.arraycopy(output_strip, 0, output, y_start*width, (y_stop-y_start)*width);
+        }
+        assertArrayEquals(expected_adjusted, output);
+    }
+
+    @Test
+    public void testJavaDROProcessor() {
+        Log.d(TAG, "testJavaDROProcessor");
+
+        final int width = 41, height = 53;
+        Random random = new Random(0);
+        int [] input = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                // darker towards the top left, so that the tiles have different histograms
+                int max = 32 + (224*(x+y))/(width+height);
+                input[y*width+x] = 0xFF000000 | (random.nextInt(max) << 16) | (random.nextInt(max) << 8) | random.nextInt(max);
+            }
+        }
+        input[0] = 0xFF000000; // black should stay black
+
+        JavaDROProcessor processor = new JavaDROProcessor(ParallelRows.getDefaultPool(), 4);
+        JavaHDRProcessor hdr_processor = new JavaHDRProcessor(ParallelRows.getDefaultPool(), 4);
+
+        // the sum of the tile histograms should be the histogram of values
+        int [] expected_histogram = new int[256];
+        for(int color : input) {
+            int value = Math.max((color >> 16) & 0xFF, Math.max((color >> 8) & 0xFF, color & 0xFF));
+            expected_histogram[value]++;
+        }
+        assertArrayEquals(expected_histogram, JavaDROProcessor.sumTileHistograms(processor.computeTileHistograms(input, width, height, 4)));
+
+        // check brighten() against dro_brighten in avg_brighten.rs
+        final float gain = 2.0f, gamma = 0.8f, low_x = 4.0f, mid_x = 100.0f, max_x = 230.0f;
+        JavaDROProcessor.BrightenParameters params = new JavaDROProcessor.BrightenParameters(gain, gamma, low_x, mid_x, max_x);
+        int [] brightened = new int[width*height];
+        processor.brighten(input, brightened, width, height, params);
+        for(int i=0;i<width*height;i++) {
+            int color = input[i];
+            float r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+            float value = Math.max(r, Math.max(g, b));
+            float scale = 1.0f;
+            if( value > mid_x ) {
+                scale = ((float)Math.pow(value/max_x, gamma) * 255.0f) / value;
+            }
+            else if( value > low_x ) {
+                // linear from (low_x, low_x) to (mid_x, gain*mid_x)
+                float alpha = (value-low_x)/(mid_x-low_x);
+                scale = ((1.0f-alpha)*low_x + alpha*gain*mid_x) / value;
+            }
+            int color_out = brightened[i];
+            assertEquals(0xFF, (color_out >>> 24));
+            assertEquals(Math.min(255.0f, r*scale), (color_out >> 16) & 0xFF, 1.0f);
+            assertEquals(Math.min(255.0f, g*scale), (color_out >> 8) & 0xFF, 1.0f);
+            assertEquals(Math.min(255.0f, b*scale), color_out & 0xFF, 1.0f);
+        }
+        assertEquals(0xFF000000, brightened[0]);
+
+        // the fused pass should give identical results to brightening then adjusting the histogram
+        final int [] n_tiles_values = new int[]{1, 4, 5};
+        for(int n_tiles : n_tiles_values) {
+            for(int i=0;i<4;i++) {
+                JavaDROProcessor.BrightenParameters this_params = (i % 2 == 0) ? params : null;
+                boolean ce_preserve_blacks = i >= 2;
+                float hdr_alpha = (i == 3) ? 0.25f : 0.5f;
+                Log.d(TAG, "n_tiles: " + n_tiles + " brighten: " + (this_params != null) + " ce_preserve_blacks: " + ce_preserve_blacks);
+
+                int [] expected = new int[width*height];
+                if( this_params != null )
+                    processor.brighten(input, expected, width, height, this_params);
+                else
+                    System.arraycopy(input, 0, expected, 0, width*height);
+                hdr_processor.adjustHistogram(expected, expected, width, height, hdr_alpha, n_tiles, ce_preserve_blacks);
+
+                int [] histograms = processor.computeTileHistograms(input, width, height, n_tiles);
+                int [] output = new int[width*height];
+                processor.process(input, output, width, height, histograms, this_params, hdr_alpha, n_tiles, ce_preserve_blacks);
+                assertArrayEquals(expected, output);
+
+                // and in place
+                int [] in_place = input.clone();
+                processor.process(in_place, in_place, width, height, histograms, this_params, hdr_alpha, n_tiles, ce_preserve_blacks);
+                assertArrayEquals(expected, in_place);
+            }
+        }
+    }
+
+    @Test
+    public void testSharpnessScorer() {
+        Log.d(TAG, "testSharpnessScorer");
+
+        final int width = 67, height = 45;
+        Random random = new Random(0);
+        int [] sharp = new int[width*height];
+        for(int i=0;i<width*height;i++) {
+            int value = random.nextInt(256);
+            sharp[i] = 0xFF000000 | (value << 16) | (value << 8) | value;
+        }
+        // box blur with a 5x5 kernel
+        int [] blurred = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int sum = 0, count = 0;
+                for(int dy=-2;dy<=2;dy++) {
+                    for(int dx=-2;dx<=2;dx++) {
+                        int sx = x+dx, sy = y+dy;
+                        if( sx >= 0 && sx < width && sy >= 0 && sy < height ) {
+                            sum += sharp[sy*width+sx] & 0xFF;
+                            count++;
+                        }
+                    }
+                }
+                int value = sum/count;
+                blurred[y*width+x] = 0xFF000000 | (value << 16) | (value << 8) | value;
+            }
+        }
+
+        for(int sample_factor=1;sample_factor<=2;sample_factor++) {
+            long expected_sharp = 0;
+            final int [] tile_heights = new int[]{1, 3, 64};
+            for(int tile_height : tile_heights) {
+                SharpnessScorer scorer = new SharpnessScorer(ParallelRows.getDefaultPool(), tile_height);
+                long score_sharp = scorer.score(sharp, width, height, sample_factor);
+                long score_blurred = scorer.score(blurred, width, height, sample_factor);
+                Log.d(TAG, "sample_factor: " + sample_factor + " tile_height: " + tile_height + " sharp: " + score_sharp + " blurred: " + score_blurred);
+                assertTrue(score_sharp > score_blurred);
+                // should be independent of how the work is split
+                if( tile_height == tile_heights[0] )
+                    expected_sharp = score_sharp;
+                else
+                    assertEquals(expected_sharp, score_sharp);
+            }
+        }
+
+        // check against a direct computation at full resolution
+        SharpnessScorer scorer = new SharpnessScorer();
+        long expected = 0;
+        for(int y=1;y<height-1;y++) {
+            for(int x=1;x<width-1;x++) {
+                int laplacian = (sharp[y*width+x-1] & 0xFF) + (sharp[y*width+x+1] & 0xFF) + (sharp[(y-1)*width+x] & 0xFF) + (sharp[(y+1)*width+x] & 0xFF) - 4*(sharp[y*width+x] & 0xFF);
+                expected += Math.abs(laplacian);
+            }
+        }
+        assertEquals(expected, scorer.score(sharp, width, height, 1));
+
+        // a uniform image has no detail
+        int [] uniform = new int[width*height];
+        Arrays.fill(uniform, 0xFF808080);
+        assertEquals(0, scorer.score(uniform, width, height, 2));
+
+        // images too small to have any interior pixels
+        assertEquals(0, scorer.score(sharp, 2, 2, 1));
+    }
+
+    @Test
+    public void testBestOfBurstSelector() {
+        Log.d(TAG, "testBestOfBurstSelector");
+
+        BestOfBurstSelector<String> selector = new BestOfBurstSelector<>(2);
+        assertEquals(2, selector.getNKeep());
+        assertNull(selector.add(0, 10, "a"));
+        assertNull(selector.add(1, 30, "b"));
+        assertEquals("a", selector.add(2, 20, "c")); // replaces the worst kept
+        assertEquals("d", selector.add(3, 5, "d")); // worse than all kept
+        assertEquals("e", selector.add(4, 20, "e")); // ties favour the earlier image
+        assertEquals("c", selector.add(5, 40, "f"));
+        assertEquals(6, selector.getNAdded());
+        assertEquals(Arrays.asList("b", "f"), selector.getKept());
+        assertEquals(Arrays.asList(1, 5), selector.getKeptIndices());
+
+        // images added out of order are still returned in capture order
+        selector = new BestOfBurstSelector<>(3);
+        assertNull(selector.add(4, 1, "e"));
+        assertNull(selector.add(1, 2, "b"));
+        assertNull(selector.add(3, 3, "d"));
+        assertEquals("e", selector.add(0, 4, "a"));
+        assertEquals(Arrays.asList("a", "b", "d"), selector.getKept());
+        assertEquals(Arrays.asList(0, 1, 3), selector.getKeptIndices());
+
+        try {
+            new BestOfBurstSelector<String>(0);
+            fail();
+        }
+        catch(RuntimeException e) {
+            Log.d(TAG, "expected exception: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testImageStatistics() {
+        Log.d(TAG, "testImageStatistics");
+
+        final int width = 53, height = 71;
+        final int region_x = 10, region_y = 20, region_width = 25, region_height = 30;
+        Random random = new Random(0);
+        int [] pixels = new int[width*height];
+        for(int i=0;i<width*height;i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        pixels[0] = 0xFFFFFFFF;
+        pixels[1] = 0xFF000000;
+
+        // compute the expected histograms as histogram_compute.rs
+        int [] expected_value = new int[256];
+        int [] expected_intensity = new int[256];
+        int [] expected_luminance = new int[256];
+        int [] expected_red = new int[256];
+        int [] expected_green = new int[256];
+        int [] expected_blue = new int[256];
+        int [] expected_region_value = new int[256];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int color = pixels[y*width+x];
+                int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+                int value = Math.max(r, Math.max(g, b));
+                expected_value[value]++;
+                expected_intensity[(int)((r + g + b)/3.0 + 0.5)]++;
+                expected_luminance[Math.min((int)(0.299f*r + 0.587f*g + 0.114f*b + 0.5f), 255)]++;
+                expected_red[r]++;
+                expected_green[g]++;
+                expected_blue[b]++;
+                if( x >= region_x && x < region_x + region_width && y >= region_y && y < region_y + region_height )
+                    expected_region_value[value]++;
+            }
+        }
+
+        ImageStatistics statistics = ImageStatistics.compute(ParallelRows.getDefaultPool(), 4, pixels, width, height);
+        assertArrayEquals(expected_value, statistics.getValueHistogram());
+        assertArrayEquals(expected_intensity, statistics.getIntensityHistogram());
+        assertArrayEquals(expected_luminance, statistics.getLuminanceHistogram());
+        assertArrayEquals(expected_red, statistics.getRedHistogram());
+        assertArrayEquals(expected_green, statistics.getGreenHistogram());
+        assertArrayEquals(expected_blue, statistics.getBlueHistogram());
+        // with no region specified, the region is the whole image
+        assertTrue(statistics.hasRegion(0, 0, width, height));
+        assertArrayEquals(expected_value, statistics.getRegionValueHistogram());
+
+        // accumulating in strips should give the same results
+        final int [] strip_heights = new int[]{1, 16, height};
+        for(int strip_height : strip_heights) {
+            ImageStatistics strip_statistics = new ImageStatistics(width, height, region_x, region_y, region_width, region_height);
+            int [] strip = new int[width*strip_height];
+            for(int y=0;y<height;y+=strip_height) {
+                int n_rows = Math.min(strip_height, height-y);
+                System.arraycopy(pixels, y*width, strip, 0, n_rows*width);
+                strip_statistics.accumulate(ParallelRows.getDefaultPool(), 3, strip, y, n_rows);
+            }
+            assertTrue(strip_statistics.hasRegion(region_x, region_y, region_width, region_height));
+            assertFalse(strip_statistics.hasRegion(0, 0, width, height));
+            assertArrayEquals(expected_value, strip_statistics.getValueHistogram());
+            assertArrayEquals(expected_intensity, strip_statistics.getIntensityHistogram());
+            assertArrayEquals(expected_luminance, strip_statistics.getLuminanceHistogram());
+            assertArrayEquals(expected_region_value, strip_statistics.getRegionValueHistogram());
+        }
+
+        // the returned histograms should be copies
+        statistics.getValueHistogram()[0] = -1;
+        assertArrayEquals(expected_value, statistics.getValueHistogram());
+
+        try {
+            new ImageStatistics(width, height, 1, 0, width, height);
+            fail();
+        }
+        catch(RuntimeException e) {
+            Log.d(TAG, "expected exception: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testImageStatisticsPercentile() {
+        Log.d(TAG, "testImageStatisticsPercentile");
+
+        int [] histogram = new int[256];
+        histogram[10] = 25;
+        histogram[20] = 25;
+        histogram[30] = 40;
+        histogram[250] = 10;
+        assertEquals(0, ImageStatistics.getPercentile(histogram, 0.0f));
+        assertEquals(10, ImageStatistics.getPercentile(histogram, 0.1f));
+        assertEquals(10, ImageStatistics.getPercentile(histogram, 0.25f));
+        assertEquals(20, ImageStatistics.getPercentile(histogram, 0.5f));
+        assertEquals(30, ImageStatistics.getPercentile(histogram, 0.9f));
+        assertEquals(250, ImageStatistics.getPercentile(histogram, 0.95f));
+        assertEquals(250, ImageStatistics.getPercentile(histogram, 1.0f));
+    }
+
+    /** Reference implementation of align_mtb.rs/align_mtb(), for testing JavaMTBAlignment.
+     */
+    private static long [] computeMTBErrorsReference(JavaMTBAlignment.MTB mtb0, JavaMTBAlignment.MTB mtb1, int off_x, int off_y, int step_size) {
+        long [] errors = new long[9];
+        int width = mtb0.getWidth();
+        int height = mtb0.getHeight();
+        for(int y=0;y<(height/step_size)*step_size;y+=step_size) {
+            for(int x=0;x<(width/step_size)*step_size;x+=step_size) {
+                if( x+off_x >= step_size && x+off_x < width-step_size && y+off_y >= step_size && y+off_y < height-step_size ) {
+                    int pixel0 = mtb0.getValue(x, y);
+                    int c = 0;
+                    for(int dy=-1;dy<=1;dy++) {
+                        for(int dx=-1;dx<=1;dx++) {
+                            int pixel1 = mtb1.getValue(x+off_x+dx*step_size, y+off_y+dy*step_size);
+                            if( pixel0 != pixel1 && pixel0 != 127 && pixel1 != 127 )
+                                errors[c]++;
+                            c++;
+                        }
+                    }
+                }
+            }
+        }
+        return errors;
+    }
+
+    @Test
+    public void testJavaMTBAlignment() {
+        Log.d(TAG, "testJavaMTBAlignment");
+
+        JavaMTBAlignment alignment = new JavaMTBAlignment(ParallelRows.getDefaultPool(), 4);
+
+        // MTB values should match create_mtb.rs
+        int [] grey = new int[]{0xFF000000, 0xFF7B0000, 0xFF007D00, 0xFF000080, 0xFF848484, 0xFF858585};
+        JavaMTBAlignment.MTB grey_mtb = alignment.createMTB(grey, grey.length, 1, 128);
+        int [] expected_values = new int[]{0, 0, 127, 127, 127, 255};
+        for(int x=0;x<grey.length;x++) {
+            assertEquals(expected_values[x], grey_mtb.getValue(x, 0));
+        }
+
+        // errors should match the reference implementation, including for widths that aren't a
+        // multiple of 64, and offsets near the edges
+        final int width = 157, height = 61;
+        Random random = new Random(0);
+        int [] pixels0 = new int[width*height];
+        int [] pixels1 = new int[width*height];
+        for(int i=0;i<width*height;i++) {
+            int value0 = random.nextInt(256);
+            int value1 = random.nextInt(8) == 0 ? random.nextInt(256) : value0;
+            pixels0[i] = 0xFF000000 | (value0 << 16) | (value0 << 8) | value0;
+            pixels1[i] = 0xFF000000 | (value1 << 8);
+        }
+        JavaMTBAlignment.MTB mtb0 = alignment.createMTB(pixels0, width, height, 128);
+        JavaMTBAlignment.MTB mtb1 = alignment.createMTB(pixels1, width, height, 120);
+        int [] step_sizes = new int[]{1, 2, 4, 8, 16, 32};
+        int [][] test_offsets = new int[][]{{0, 0}, {3, -5}, {-17, 9}, {70, 2}, {-150, 0}, {0, 58}};
+        for(int step_size : step_sizes) {
+            for(int [] test_offset : test_offsets) {
+                long [] expected = computeMTBErrorsReference(mtb0, mtb1, test_offset[0], test_offset[1], step_size);
+                long [] errors = alignment.computeErrors(mtb0, mtb1, test_offset[0], test_offset[1], step_size);
+                assertArrayEquals(expected, errors);
+            }
+        }
+
+        // creating a strip at a time should give the same MTB
+        JavaMTBAlignment.MTB strips_mtb = new JavaMTBAlignment.MTB(width, height);
+        final int strip_height = 16;
+        for(int y=0;y<height;y+=strip_height) {
+            int n_rows = Math.min(strip_height, height-y);
+            int [] strip = new int[width*n_rows];
+            System.arraycopy(pixels0, y*width, strip, 0, width*n_rows);
+            alignment.setRows(strips_mtb, strip, y, n_rows, 128);
+        }
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                assertEquals(mtb0.getValue(x, y), strips_mtb.getValue(x, y));
+            }
+        }
+
+        // alignment should recover a known offset
+        final int align_width = 200, align_height = 160;
+        int [] image0 = createSquaresImage(align_width, align_height, 0, 0);
+        int [] image1 = createSquaresImage(align_width, align_height, 3, -2);
+        JavaMTBAlignment.MTB align_mtb0 = alignment.createMTB(image0, align_width, align_height, 5);
+        JavaMTBAlignment.MTB align_mtb1 = alignment.createMTB(image1, align_width, align_height, 5);
+        int [] offset = new int[2];
+        alignment.align(align_mtb0, align_mtb1, 16, 1, offset);
+        assertEquals(3, offset[0]);
+        assertEquals(-2, offset[1]);
+
+        assertEquals(32, JavaMTBAlignment.computeInitialStepSize(4160, 3120, 1));
+        assertEquals(64, JavaMTBAlignment.computeInitialStepSize(4160, 3120, 2));
+        assertEquals(4, JavaMTBAlignment.chooseBestOffset(new long[]{5, 5, 5, 5, 1, 5, 5, 5, 1}));
+    }
+
+    @Test
+    public void testPreviewOverlayProcessor() {
+        Log.d(TAG, "testPreviewOverlayProcessor");
+
+        final int width = 45, height = 37;
+        int [] pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                // left half is dark grey, right half is bright red - so there's a vertical edge in the middle
+                pixels[y*width+x] = x < width/2 ? 0xff202020 : 0xfff01010;
+            }
+        }
+        final int n_dark = (width/2)*height;
+        final int n_bright = width*height - n_dark;
+
+        PreviewOverlayProcessor processor = new PreviewOverlayProcessor(ParallelRows.getDefaultPool(), 4);
+
+        int [] histogram = new int[PreviewOverlayProcessor.getHistogramSize(PreviewOverlayProcessor.histogram_type_value_c)];
+        processor.process(pixels, width, height, PreviewOverlayProcessor.histogram_type_value_c, histogram, null, null);
+        assertEquals(n_dark, histogram[0x20]);
+        assertEquals(n_bright, histogram[0xf0]);
+
+        int [] histogram_rgb = new int[PreviewOverlayProcessor.getHistogramSize(PreviewOverlayProcessor.histogram_type_rgb_c)];
+        processor.process(pixels, width, height, PreviewOverlayProcessor.histogram_type_rgb_c, histogram_rgb, null, null);
+        assertEquals(n_dark, histogram_rgb[0x20]);
+        assertEquals(n_bright, histogram_rgb[0xf0]);
+        assertEquals(n_dark, histogram_rgb[256+0x20]);
+        assertEquals(n_bright, histogram_rgb[256+0x10]);
+        assertEquals(n_bright, histogram_rgb[512+0x10]);
+
+        processor.process(pixels, width, height, PreviewOverlayProcessor.histogram_type_lightness_c, histogram, null, null);
+        assertEquals(n_dark, histogram[0x20]);
+        assertEquals(n_bright, histogram[(0xf0+0x10+1)/2]);
+        processor.process(pixels, width, height, PreviewOverlayProcessor.histogram_type_intensity_c, histogram, null, null);
+        assertEquals(n_dark, histogram[0x20]);
+        assertEquals(n_bright, histogram[(0xf0+0x10+0x10+1)/3]);
+
+        // compute all of the overlays at once
+        final int foreground = 0xff000000, background = 0xffffffff;
+        processor.setZebraStripes(0xf0, foreground, background);
+        int [] zebra_stripes = new int[width*height];
+        int [] focus_peaking = new int[width*height];
+        processor.process(pixels, width, height, PreviewOverlayProcessor.histogram_type_value_c, histogram, zebra_stripes, focus_peaking);
+        assertEquals(n_dark, histogram[0x20]);
+        assertEquals(n_bright, histogram[0xf0]);
+        final int stripe_width = width/20;
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int expected = x < width/2 ? 0 : ((x+y)/stripe_width) % 2 == 0 ? background : foreground;
+                assertEquals(expected, zebra_stripes[y*width+x]);
+
+                // the edge is either side of x = width/2, but the border is never marked
+                boolean is_edge = (x == width/2-1 || x == width/2) && y >= 1 && y < height-1;
+                assertEquals(is_edge ? 0xffffffff : 0, focus_peaking[y*width+x]);
+            }
+        }
+
+        // results shouldn't depend on how the rows are split between tasks
+        Random random = new Random(0);
+        for(int i=0;i<width*height;i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        int [][] results = new int[2][];
+        int [] tile_heights = new int[]{1, 64};
+        for(int i=0;i<tile_heights.length;i++) {
+            PreviewOverlayProcessor this_processor = new PreviewOverlayProcessor(ParallelRows.getDefaultPool(), tile_heights[i]);
+            int [] this_histogram = new int[256];
+            int [] this_focus_peaking = new int[width*height];
+            this_processor.process(pixels, width, height, PreviewOverlayProcessor.histogram_type_luminance_c, this_histogram, null, this_focus_peaking);
+            int total = 0;
+            for(int value : this_histogram)
+                total += value;
+            assertEquals(width*height, total);
+            results[i] = new int[256 + width*height];
+            System.arraycopy(this_histogram, 0, results[i], 0, 256);
+            System.arraycopy(this_focus_peaking, 0, results[i], 256, width*height);
+        }
+        assertArrayEquals(results[0], results[1]);
+    }
+
+    /** Creates an image of white squares on a black background, offset by (offset_x, offset_y).
+     */
+    private static int [] createSquaresImage(int width, int height, int offset_x, int offset_y) {
+        int [] pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int sx = x - offset_x;
+                int sy = y - offset_y;
+                boolean white = sx >= 0 && sy >= 0 && (sx % 40) >= 10 && (sx % 40) < 30 && (sy % 40) >= 10 && (sy % 40) < 30;
+                pixels[y*width+x] = white ? 0xffffffff : 0xff000000;
+            }
+        }
+        return pixels;
+    }
+
+    @Test
+    public void testFrameStats() {
+        Log.d(TAG, "testFrameStats");
+
+        FrameStats frame_stats = new FrameStats();
+        assertEquals(0, frame_stats.getNFrames());
+        assertEquals(0.0f, frame_stats.getAverageDrawTimeMs(), 1.0e-5f);
+        assertEquals(0.0f, frame_stats.getMaxDrawTimeMs(), 1.0e-5f);
+        assertEquals(-1.0f, frame_stats.getAverageAllocCount(), 1.0e-5f);
+        assertEquals(-1, frame_stats.getMaxAllocCount());
+
+        frame_stats.onFrame(2000000, 0);
+        frame_stats.onFrame(4000000, 10);
+        assertEquals(2, frame_stats.getNFrames());
+        assertEquals(3.0f, frame_stats.getAverageDrawTimeMs(), 1.0e-5f);
+        assertEquals(4.0f, frame_stats.getMaxDrawTimeMs(), 1.0e-5f);
+        assertEquals(5.0f, frame_stats.getAverageAllocCount(), 1.0e-5f);
+        assertEquals(10, frame_stats.getMaxAllocCount());
+
+        // only the most recent frames should be used
+        for(int i=0;i<FrameStats.n_samples_c;i++) {
+            frame_stats.onFrame(1000000, 1);
+        }
+        assertEquals(FrameStats.n_samples_c+2, frame_stats.getNFrames());
+        assertEquals(1.0f, frame_stats.getAverageDrawTimeMs(), 1.0e-5f);
+        assertEquals(1.0f, frame_stats.getMaxDrawTimeMs(), 1.0e-5f);
+        assertEquals(1.0f, frame_stats.getAverageAllocCount(), 1.0e-5f);
+        assertEquals(1, frame_stats.getMaxAllocCount());
+
+        // allocation count not known
+        frame_stats.onFrame(1000000, -1);
+        assertEquals(-1.0f, frame_stats.getAverageAllocCount(), 1.0e-5f);
+        assertEquals(-1, frame_stats.getMaxAllocCount());
+
+        frame_stats.reset();
+        assertEquals(0, frame_stats.getNFrames());
+        assertEquals(0.0f, frame_stats.getAverageDrawTimeMs(), 1.0e-5f);
+    }
+
+    @Test
+    public void testLruSizeCache() {
+        Log.d(TAG, "testLruSizeCache");
+
+        final List<String> removed = new ArrayList<>();
+        LruSizeCache<String, String> cache = new LruSizeCache<String, String>(10) {
+            @Override
+            protected long sizeOf(String key, String value) {
+                return value.length();
+            }
+
+            @Override
+            protected void onRemoved(String key, String value) {
+                removed.add(key);
+            }
+        };
+        assertEquals(10, cache.getMaxSize());
+        assertEquals(0, cache.getSize());
+
+        cache.put("a", "aaa");
+        cache.put("b", "bbb");
+        cache.put("c", "ccc");
+        assertEquals(9, cache.getSize());
+        assertEquals(3, cache.getNEntries());
+        assertTrue(removed.isEmpty());
+
+        // accessing "a" means "b" is now the least recently used
+        assertEquals("aaa", cache.get("a"));
+        cache.put("d", "dd");
+        assertEquals(Collections.singletonList("b"), removed);
+        assertEquals(8, cache.getSize());
+        assertNull(cache.get("b"));
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("c"));
+        assertTrue(cache.contains("d"));
+        assertEquals(Arrays.asList("c", "a", "d"), cache.getKeys());
+        assertEquals(1, cache.getNHits());
+        assertEquals(1, cache.getNMisses());
+
+        // replacing an entry
+        removed.clear();
+        cache.put("d", "d");
+        assertEquals(Collections.singletonList("d"), removed);
+        assertEquals(7, cache.getSize());
+        assertEquals(3, cache.getNEntries());
+
+        // an entry larger than the maximum size is removed straight away, along with everything else
+        removed.clear();
+        cache.put("e", "eeeeeeeeeee");
+        assertEquals(4, removed.size());
+        assertEquals("e", removed.get(3));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getNEntries());
+
+        removed.clear();
+        cache.put("f", "ff");
+        cache.put("g", "gg");
+        assertEquals("ff", cache.remove("f"));
+        assertNull(cache.remove("f"));
+        assertEquals(Collections.singletonList("f"), removed);
+        assertEquals(2, cache.getSize());
+        cache.trimToSize(2);
+        assertEquals(1, cache.getNEntries());
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getNEntries());
+        assertEquals(Arrays.asList("f", "g"), removed);
+    }
+
+    @Test
+    public void testLatestMediaIndex() {
+        Log.d(TAG, "testLatestMediaIndex");
+
+        LatestMediaIndex<String> index = new LatestMediaIndex<>();
+        assertFalse(index.isValid("folder", 100));
+
+        // adding before the index has been set from a scan does nothing
+        index.add("folder", "uri0", "IMG_0.jpg", false);
+        assertFalse(index.isValid("folder", 100));
+
+        index.setFromScan("folder", 100, "uri1", "IMG_1.jpg", false);
+        assertTrue(index.isValid("folder", 100));
+        assertEquals("uri1", index.getLatest());
+        assertFalse(index.isValid("other_folder", 100));
+        assertFalse(index.isValid(null, 100));
+        // no token available, so should always rescan
+        assertFalse(index.isValid("folder", LatestMediaIndex.token_unknown_c));
+
+        // our own writes modify the folder, so the token should be refreshed
+        index.add("folder", "uri2", "IMG_2.jpg", false);
+        assertTrue(index.isValid("folder", 101));
+        assertEquals("uri2", index.getLatest());
+        assertTrue(index.isValid("folder", 101));
+
+        // modified externally
+        assertFalse(index.isValid("folder", 102));
+        // and stays invalid until rescanned, even if the token is restored
+        assertFalse(index.isValid("folder", 101));
+        index.add("folder", "uri3", "IMG_3.jpg", false);
+        assertFalse(index.isValid("folder", 102));
+
+        // empty folder
+        index.setFromScan("folder", 102, null, null, false);
+        assertTrue(index.isValid("folder", 102));
+        assertNull(index.getLatest());
+
+        // for RAW+JPEG, the JPEG should be preferred whichever order they're saved in
+        index.add("folder", "uri4_jpeg", "IMG_4.jpg", false);
+        index.add("folder", "uri4_raw", "IMG_4.dng", false);
+        assertTrue(index.isValid("folder", 103));
+        assertEquals("uri4_jpeg", index.getLatest());
+        index.add("folder", "uri5_raw", "IMG_5.dng", false);
+        assertTrue(index.isValid("folder", 104));
+        assertEquals("uri5_raw", index.getLatest());
+        index.add("folder", "uri5_jpeg", "IMG_5.jpg", false);
+        assertTrue(index.isValid("folder", 105));
+        assertEquals("uri5_jpeg", index.getLatest());
+        // but not for RAW only mode
+        index.add("folder", "uri6_raw", "IMG_6.dng", false);
+        assertTrue(index.isValid("folder", 106));
+        assertEquals("uri6_raw", index.getLatest());
+
+        // videos
+        index.add("folder", "uri7", "VID_7.mp4", true);
+        assertTrue(index.isValid("folder", 107));
+        assertEquals("uri7", index.getLatest());
+
+        // media saved to a different folder shouldn't affect the index
+        index.add("other_folder", "uri8", "IMG_8.jpg", false);
+        assertTrue(index.isValid("folder", 107));
+        assertEquals("uri7", index.getLatest());
+
+        index.invalidate();
+        assertFalse(index.isValid("folder", 107));
+        assertNull(index.getLatest());
+
+        assertTrue(index.getNHits() > 0);
+        assertTrue(index.getNMisses() > 0);
+    }
+
+    @Test
+    public void testOverlayScheduler() {
+        Log.d(TAG, "testOverlayScheduler");
+
+        OverlayScheduler scheduler = new OverlayScheduler();
+        assertEquals(OverlayScheduler.min_downscale_c, scheduler.getDownscale());
+        assertEquals(40, scheduler.getIntervalMs(40));
+        assertEquals(0.0f, scheduler.getAchievedFps(0), 1.0e-5f);
+
+        try {
+            scheduler.setCPUBudget(0.0f);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+        scheduler.setCPUBudget(0.25f);
+
+        // fast enough for the desired rate, so downscale shouldn't change
+        long time_ms = 1000;
+        for(int i=0;i<10;i++) {
+            assertFalse(scheduler.onOverlayComputed(5.0f, time_ms, 40));
+            time_ms += 40;
+        }
+        assertEquals(OverlayScheduler.min_downscale_c, scheduler.getDownscale());
+        assertEquals(5.0f, scheduler.getAverageTimeMs(), 1.0e-3f);
+        assertEquals(40, scheduler.getIntervalMs(40));
+        assertEquals(25.0f, scheduler.getAchievedFps(time_ms), 1.0e-3f);
+        // not computed recently
+        assertEquals(0.0f, scheduler.getAchievedFps(time_ms + 10000), 1.0e-5f);
+
+        // too slow: the interval is limited by the CPU budget, and the downscale should increase
+        int n_changes = 0;
+        for(int i=0;i<100;i++) {
+            // simulate compute time being proportional to the number of pixels
+            float ratio = OverlayScheduler.min_downscale_c/(float)scheduler.getDownscale();
+            float compute_time_ms = 40.0f * ratio * ratio;
+            if( scheduler.onOverlayComputed(compute_time_ms, time_ms, 40) )
+                n_changes++;
+            assertTrue(scheduler.getIntervalMs(40) >= 40);
+            assertTrue(scheduler.getIntervalMs(40) <= 1000);
+            time_ms += scheduler.getIntervalMs(40);
+        }
+        // 40ms at downscale 4 means 160ms per frame with a budget of 0.25; at downscale 8 this is
+        // 40ms per frame, so the downscale should stop increasing at 7 or 8
+        assertTrue(scheduler.getDownscale() >= 7);
+        assertEquals(scheduler.getDownscale() - OverlayScheduler.min_downscale_c, n_changes);
+        assertTrue(scheduler.getAchievedFps(time_ms) > 0.0f);
+        assertTrue(scheduler.getAchievedFps(time_ms) <= 25.0f);
+
+        // overlays become much cheaper, so downscale should decrease back to the minimum
+        for(int i=0;i<100;i++) {
+            scheduler.onOverlayComputed(1.0f, time_ms, 40);
+            time_ms += scheduler.getIntervalMs(40);
+        }
+        assertEquals(OverlayScheduler.min_downscale_c, scheduler.getDownscale());
+        assertEquals(40, scheduler.getIntervalMs(40));
+
+        // interval is never longer than a second
+        for(int i=0;i<10;i++) {
+            scheduler.onOverlayComputed(2000.0f, time_ms, 40);
+        }
+        assertTrue(scheduler.getDownscale() > OverlayScheduler.min_downscale_c);
+        assertEquals(1000, scheduler.getIntervalMs(40));
+        // but can still be longer if desired
+        assertEquals(2000, scheduler.getIntervalMs(2000));
+
+        scheduler.reset();
+        assertEquals(-1.0f, scheduler.getAverageTimeMs(), 1.0e-5f);
+        assertEquals(0.0f, scheduler.getAchievedFps(time_ms), 1.0e-5f);
+        assertEquals(40, scheduler.getIntervalMs(40));
+    }
+
+    @Test
+    public void testFeatureDetector() {
+        Log.d(TAG, "testFeatureDetector");
+
+        final int width = 200, height = 160;
+        final int radius = 3;
+        FeatureDetector detector = new FeatureDetector(new java.util.concurrent.ForkJoinPool(3), 7);
+
+        // corners of the squares should be detected, and not the flat regions or edges
+        int [] pixels0 = createSquaresImage(width, height, 0, 0);
+        int [] corners0 = detector.detectCorners(pixels0, width, height, radius, 2, 200);
+        assertTrue(corners0.length/2 >= 10);
+        for(int i=0;i<corners0.length/2;i++) {
+            int x = corners0[2*i] % 40;
+            int y = corners0[2*i+1] % 40;
+            assertTrue(Math.abs(x - 10) <= 2 || Math.abs(x - 30) <= 2);
+            assertTrue(Math.abs(y - 10) <= 2 || Math.abs(y - 30) <= 2);
+        }
+
+        // results shouldn't depend on the tiling
+        FeatureDetector detector1 = new FeatureDetector(new java.util.concurrent.ForkJoinPool(1), 1000);
+        assertArrayEquals(corners0, detector1.detectCorners(pixels0, width, height, radius, 2, 200));
+
+        // shifting the image should shift the corners
+        int [] pixels1 = createSquaresImage(width, height, 5, 3);
+        int [] corners1 = detector.detectCorners(pixels1, width, height, radius, 1, 200);
+        int [] corners0_all = detector.detectCorners(pixels0, width, height, radius, 1, 200);
+        int n_shifted = 0;
+        for(int i=0;i<corners0_all.length/2;i++) {
+            for(int j=0;j<corners1.length/2;j++) {
+                if( corners1[2*j] == corners0_all[2*i] + 5 && corners1[2*j+1] == corners0_all[2*i+1] + 3 )
+                    n_shifted++;
+            }
+        }
+        assertTrue(n_shifted >= corners0_all.length/4);
+
+        // the grid matcher should give the same matches, in the same order, as comparing all pairs
+        Random random = new Random(0);
+        int [] points0 = new int[2*150];
+        int [] points1 = new int[2*170];
+        for(int i=0;i<points0.length;i++)
+            points0[i] = random.nextInt(i % 2 == 0 ? width : height);
+        for(int i=0;i<points1.length;i++)
+            points1[i] = random.nextInt(i % 2 == 0 ? width : height);
+        for(int max_dist2 : new int[]{1, 100, 1000, width*width + (height/16)*(height/16)}) {
+            List<Integer> expected = new ArrayList<>();
+            for(int i=0;i<points0.length/2;i++) {
+                for(int j=0;j<points1.length/2;j++) {
+                    int dx = points1[2*j] - points0[2*i];
+                    int dy = points1[2*j+1] - points0[2*i+1];
+                    if( dx*dx + dy*dy < max_dist2 ) {
+                        expected.add(i);
+                        expected.add(j);
+                    }
+                }
+            }
+            int [] matches = FeatureDetector.findCandidateMatches(points0, points1, max_dist2);
+            assertEquals(expected.size(), matches.length);
+            for(int i=0;i<matches.length;i++)
+                assertEquals((int)expected.get(i), matches[i]);
+        }
+
+        // a descriptor should be a perfect match with itself, and a poorer match with a different corner
+        int [] descriptors0 = FeatureDetector.extractDescriptors(pixels0, width, corners0, radius);
+        int [] matches = new int[]{0, 0, 0, 1};
+        float [] distances = detector.computeMatchDistances(descriptors0, descriptors0, radius, matches);
+        assertEquals(0.0f, distances[0], 1.0e-5f);
+        assertTrue(distances[1] > distances[0]);
+    }
+
+    @Test
+    public void testPanoramaRansac() {
+        Log.d(TAG, "testPanoramaRansac");
+
+        final int width = 400, height = 300;
+        final int n_matches = 42;
+        final double angle = Math.toRadians(2.0);
+        Random random = new Random(0);
+        int [] x0 = new int[n_matches];
+        int [] y0 = new int[n_matches];
+        int [] x1 = new int[n_matches];
+        int [] y1 = new int[n_matches];
+        int n_inliers = 0;
+        for(int i=0;i<n_matches;i++) {
+            x0[i] = random.nextInt(width);
+            y0[i] = (int)(0.3*height) + 1 + random.nextInt((int)(0.4*height) - 2);
+            if( i % 7 == 3 || i >= n_matches - 6 ) {
+                // outlier
+                x1[i] = random.nextInt(width);
+                y1[i] = random.nextInt(height);
+            }
+            else {
+                // rotate about the centre, then translate
+                double dx = x0[i] - width/2.0;
+                double dy = y0[i] - height/2.0;
+                x1[i] = (int)Math.round(width/2.0 + dx*Math.cos(angle) - dy*Math.sin(angle)) + 10;
+                y1[i] = (int)Math.round(height/2.0 + dx*Math.sin(angle) + dy*Math.cos(angle)) + 4;
+                n_inliers++;
+            }
+        }
+
+        PanoramaRansac.Parameters params = new PanoramaRansac.Parameters(height, Math.max(5.01f, width/100.0f), Math.max(5.0f, width/4.0f));
+        PanoramaRansac.Result result = new PanoramaRansac(new java.util.concurrent.ForkJoinPool(4)).run(x0, y0, x1, y1, params);
+        assertTrue(result.use_rotation);
+        assertFalse(result.use_y_scale);
+        assertEquals(n_inliers, result.inliers.length);
+        for(int index : result.inliers) {
+            assertTrue(index % 7 != 3 && index < n_matches - 6);
+        }
+        // should have terminated early, as most matches are inliers
+        assertEquals(n_matches + n_matches*(n_matches-1)/2, result.n_hypotheses);
+        assertTrue(result.n_iterations < result.n_hypotheses);
+
+        // an exhaustive search should give the same result, whatever the number of threads
+        params.setConfidence(1.0);
+        PanoramaRansac.Result exhaustive1 = new PanoramaRansac(new java.util.concurrent.ForkJoinPool(1)).run(x0, y0, x1, y1, params);
+        PanoramaRansac.Result exhaustive4 = new PanoramaRansac(new java.util.concurrent.ForkJoinPool(4)).run(x0, y0, x1, y1, params);
+        assertEquals(exhaustive1.n_hypotheses, exhaustive1.n_iterations);
+        assertEquals(exhaustive1.match0, exhaustive4.match0);
+        assertEquals(exhaustive1.match1, exhaustive4.match1);
+        assertArrayEquals(exhaustive1.inliers, exhaustive4.inliers);
+        assertTrue(exhaustive1.inliers.length >= result.inliers.length);
+
+        // a pure translation where all matches are inliers should stop at the first match
+        for(int i=0;i<n_matches;i++) {
+            x1[i] = x0[i] - 7;
+            y1[i] = y0[i] + 2;
+        }
+        result = new PanoramaRansac(new java.util.concurrent.ForkJoinPool(4)).run(x0, y0, x1, y1, params);
+        assertFalse(result.use_rotation);
+        assertEquals(0, result.match0);
+        assertEquals(-1, result.match1);
+        assertEquals(n_matches, result.inliers.length);
+        assertTrue(result.n_iterations < result.n_hypotheses);
+
+        assertEquals(1, PanoramaRansac.requiredIterations(0.99, 1.0, 2));
+        assertEquals(Integer.MAX_VALUE, PanoramaRansac.requiredIterations(1.0, 0.5, 2));
+        assertEquals(17, PanoramaRansac.requiredIterations(0.99, 0.5, 2));
+    }
+
+    @Test
+    public void testBufferPool() {
+        final int [] n_allocated = new int[1];
+        final int [] n_freed = new int[1];
+        BufferPool<int []> pool = new BufferPool<>(new BufferPool.Allocator<int []>() {
+            @Override
+            public int [] allocate(int width, int height, int format) {
+                n_allocated[0]++;
+                return new int[width*height];
+            }
+
+            @Override
+            public void free(int [] buffer) {
+                n_freed[0]++;
+            }
+        }, new int[]{4, 16}, 1000);
+
+        int [] buffer0 = pool.acquire(10, 10, 0);
+        int [] buffer1 = pool.acquire(10, 10, 0);
+        assertNotSame(buffer0, buffer1);
+        assertEquals(2, pool.getNInUse());
+        pool.release(buffer0);
+        assertEquals(400, pool.getPooledBytes());
+
+        // same size and format should reuse the buffer
+        int [] buffer2 = pool.acquire(10, 10, 0);
+        assertSame(buffer0, buffer2);
+        assertEquals(0, pool.getPooledBytes());
+
+        // different format or size should allocate
+        int [] buffer3 = pool.acquire(10, 10, 1);
+        assertEquals(100, buffer3.length);
+        int [] buffer4 = pool.acquire(5, 20, 0);
+        assertNotSame(buffer0, buffer4);
+        assertEquals(4, n_allocated[0]);
+
+        BufferPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.n_hits);
+        assertEquals(4, stats.n_misses);
+        assertEquals(400+400+1600+400, stats.bytes_allocated);
+        assertEquals(400, stats.bytes_reused);
+        assertEquals(400+400+1600+400, stats.peak_bytes);
+
+        // exceeding the maximum pooled bytes frees the buffer instead
+        pool.release(buffer3);
+        assertEquals(1, n_freed[0]);
+        assertEquals(0, pool.getPooledBytes());
+        pool.release(buffer1);
+        pool.release(buffer2);
+        pool.release(buffer4); // would exceed the maximum
+        assertEquals(0, pool.getNInUse());
+        assertEquals(800, pool.getPooledBytes());
+        assertEquals(2, n_freed[0]);
+
+        try {
+            pool.release(buffer1);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+
+        pool.clear();
+        assertEquals(4, n_freed[0]);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testJpegBufferPool() {
+        JpegBufferPool pool = new JpegBufferPool(2);
+
+        JpegBufferPool.Buffer buffer0 = pool.acquire(1000000);
+        assertEquals(1000000, buffer0.getLength());
+        assertTrue(buffer0.getCapacity() >= 1000000);
+        assertEquals(buffer0.getCapacity(), buffer0.getData().length);
+        for(int i=0;i<buffer0.getLength();i++) {
+            buffer0.getData()[i] = (byte)i;
+        }
+        byte [] copy = buffer0.toByteArray();
+        assertEquals(1000000, copy.length);
+        assertEquals((byte)999999, copy[999999]);
+        buffer0.release();
+        assertEquals(1, pool.getNFreeBuffers());
+
+        // a slightly larger JPEG should still fit in the same buffer
+        JpegBufferPool.Buffer buffer1 = pool.acquire(1050000);
+        assertSame(buffer0, buffer1);
+        assertEquals(1050000, buffer1.getLength());
+        assertEquals(0, pool.getNFreeBuffers());
+
+        // much smaller JPEGs shouldn't use a large buffer
+        buffer1.release();
+        JpegBufferPool.Buffer buffer2 = pool.acquire(100000);
+        assertNotSame(buffer0, buffer2);
+        assertEquals(1, pool.getNFreeBuffers());
+
+        // too large for the free buffer
+        JpegBufferPool.Buffer buffer3 = pool.acquire(2000000);
+        assertNotSame(buffer0, buffer3);
+        assertEquals(1, pool.getNHits());
+        assertEquals(3, pool.getNMisses());
+        assertEquals(buffer0.getCapacity() + buffer2.getCapacity() + buffer3.getCapacity(), pool.getBytesAllocated());
+
+        // pool only keeps up to 2 free buffers
+        buffer2.release();
+        buffer3.release();
+        assertEquals(2, pool.getNFreeBuffers());
+
+        try {
+            buffer3.release();
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+
+        pool.clear();
+        assertEquals(0, pool.getNFreeBuffers());
+    }
+
+    @Test
+    public void testDecodeQueue() throws InterruptedException {
+        Log.d(TAG, "testDecodeQueue");
+
+        final int n_images = 10;
+        final int max_ahead = 3;
+        final AtomicInteger n_decoded = new AtomicInteger();
+        final AtomicInteger n_discarded = new AtomicInteger();
+        final int [] n_taken = new int[1];
+        final AtomicInteger max_outstanding = new AtomicInteger();
+        DecodeQueue.Decoder<Integer> decoder = new DecodeQueue.Decoder<Integer>() {
+            @Override
+            public Integer decode(int index) {
+                // number of images decoded (or being decoded) but not yet taken
+                int outstanding;
+                synchronized( n_taken ) {
+                    outstanding = index + 1 - n_taken[0];
+                }
+                max_outstanding.set(Math.max(max_outstanding.get(), outstanding));
+                try {
+                    Thread.sleep(5);
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                }
+                n_decoded.incrementAndGet();
+                return index == 7 ? null : 100 + index; // simulate a failure for image 7
+            }
+
+            @Override
+            public void discard(Integer image) {
+                n_discarded.incrementAndGet();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DecodeQueue<Integer> decode_queue = new DecodeQueue<>(executor, n_images, max_ahead, decoder);
+            assertEquals(n_images, decode_queue.getNImages());
+            for(int i=0;i<n_images;i++) {
+                Integer image = decode_queue.take();
+                synchronized( n_taken ) {
+                    n_taken[0]++;
+                }
+                if( i == 7 )
+                    assertNull(image);
+                else
+                    assertEquals(100 + i, (int)image);
+            }
+            assertEquals(n_images, n_decoded.get());
+            assertEquals(0, n_discarded.get());
+            assertTrue(max_outstanding.get() <= max_ahead + 1);
+
+            try {
+                decode_queue.take();
+                fail();
+            }
+            catch(RuntimeException e) {
+                // expected
+            }
+
+            // cancelling part way through should discard the images decoded but not taken
+            n_decoded.set(0);
+            decode_queue = new DecodeQueue<>(executor, n_images, max_ahead, decoder);
+            assertEquals(100, (int)decode_queue.take());
+            decode_queue.cancel();
+            // at most image 0 and max_ahead further images were ever submitted
+            assertTrue(n_decoded.get() <= max_ahead + 1);
+            assertEquals(n_decoded.get() - 1, n_discarded.get());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private static BufferedImage decodeJpeg(byte [] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull(image);
+        return image;
+    }
+
+    private static int colorDistance(int c0, int c1) {
+        int dr = Math.abs(((c0 >> 16) & 0xff) - ((c1 >> 16) & 0xff));
+        int dg = Math.abs(((c0 >> 8) & 0xff) - ((c1 >> 8) & 0xff));
+        int db = Math.abs((c0 & 0xff) - (c1 & 0xff));
+        return Math.max(dr, Math.max(dg, db));
+    }
+
+    /** Encodes a JPEG, optionally with restart markers.
+     * @param restart_interval The restart interval in MCUs, or 0 for no restart markers.
+     */
+    private static byte [] encodeJpeg(BufferedImage image, int restart_interval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), null);
+        if( restart_interval > 0 ) {
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode)metadata.getAsTree(format);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restart_interval));
+            IIOMetadataNode marker_sequence = (IIOMetadataNode)root.getElementsByTagName("markerSequence").item(0);
+            marker_sequence.insertBefore(dri, marker_sequence.getFirstChild());
+            metadata.setFromTree(format, root);
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(stream);
+        writer.setOutput(output);
+        writer.write(new IIOImage(image, null, metadata));
+        output.close();
+        writer.dispose();
+        return stream.toByteArray();
+    }
+
+    /** Tests replacing a region of a JPEG with JpegRegionEditor.
+     */
+    @Test
+    public void testJpegRegionEditor() throws IOException, JpegRegionEditorException {
+        Log.d(TAG, "testJpegRegionEditor");
+        subTestJpegRegionEditor(0);
+        subTestJpegRegionEditor(3);
+    }
+
+    private void subTestJpegRegionEditor(int restart_interval) throws IOException, JpegRegionEditorException {
+        Log.d(TAG, "subTestJpegRegionEditor: " + restart_interval);
+
+        // a gradient image, with a size that isn't a multiple of the MCU size
+        final int width = 203, height = 117;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                image.setRGB(x, y, ((x & 0xff) << 16) | ((y*2 & 0xff) << 8) | ((x+y) & 0xff));
+            }
+        }
+        byte [] jpeg = encodeJpeg(image, restart_interval);
+        BufferedImage original = decodeJpeg(jpeg);
+
+        JpegRegionEditor editor = new JpegRegionEditor(jpeg, jpeg.length);
+        assertEquals(width, editor.getWidth());
+        assertEquals(height, editor.getHeight());
+        assertEquals(restart_interval, editor.getRestartInterval());
+        assertEquals(16, editor.getMCUWidth()); // ImageIO uses 4:2:0
+        assertEquals(16, editor.getMCUHeight());
+
+        int [] region = editor.getAlignedRegion(150, 90, 100, 100);
+        assertArrayEquals(new int[]{144, 80, width-144, height-80}, region);
+        int rx = region[0], ry = region[1], rw = region[2], rh = region[3];
+        int [] original_argb = original.getRGB(rx, ry, rw, rh, null, 0, rw);
+
+        // no change
+        assertNull(editor.replaceRegion(rx, ry, rw, rh, original_argb, original_argb.clone()));
+
+        // unaligned region
+        try {
+            editor.replaceRegion(rx+1, ry, rw-1, rh, null, new int[rw*rh]);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+
+        // draw a white rectangle, only covering some of the MCUs of the region
+        int [] new_argb = original_argb.clone();
+        for(int y=20;y<rh;y++) {
+            for(int x=20;x<rw;x++) {
+                new_argb[y*rw + x] = 0xffffffff;
+            }
+        }
+        byte [] new_jpeg = editor.replaceRegion(rx, ry, rw, rh, original_argb, new_argb);
+        assertNotNull(new_jpeg);
+        BufferedImage result = decodeJpeg(new_jpeg);
+        assertEquals(width, result.getWidth());
+        assertEquals(height, result.getHeight());
+
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int color = result.getRGB(x, y);
+                if( x >= rx+20+8 && y >= ry+20+8 ) {
+                    // well inside the white rectangle
+                    assertTrue(colorDistance(color, 0xffffffff) <= 8);
+                }
+                else if( x < rx+16-2 || y < ry+16-2 ) {
+                    // outside of the MCUs that have changed should be identical - except that the
+                    // decoder's chroma upsampling may blend the pixels next to a changed MCU
+                    assertEquals(original.getRGB(x, y), color);
+                }
+            }
+        }
+    }
+
+    private static int [] resample(int [] src, int src_width, int src_height, double angle, double scale, int dst_width, int dst_height, ForkJoinPool pool, int tile_size) {
+        int [] dst = new int[dst_width*dst_height];
+        AutoLevelResampler resampler = new AutoLevelResampler(src_width, src_height, angle, scale, dst_width, dst_height);
+        resampler.process(pool, tile_size, new AutoLevelResampler.ArrayImage(src, src_width), new AutoLevelResampler.ArrayImage(dst, dst_width));
+        return dst;
+    }
+
+    /** Tests the tiled rotate and crop used for auto-level.
+     */
+    @Test
+    public void testAutoLevelResampler() {
+        Log.d(TAG, "testAutoLevelResampler");
+
+        final int width = 150, height = 100;
+        int [] src = new int[width*height];
+        Random random = new Random(0);
+        for(int i=0;i<src.length;i++) {
+            src[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // identity
+            int [] dst = resample(src, width, height, 0.0, 1.0, width, height, pool, 16);
+            assertArrayEquals(src, dst);
+
+            // crop without rotation
+            dst = resample(src, width, height, 0.0, 1.0, 50, 40, pool, 16);
+            for(int y=0;y<40;y++) {
+                for(int x=0;x<50;x++) {
+                    assertEquals(src[(y+30)*width + x+50], dst[y*50 + x]);
+                }
+            }
+
+            // rotate by 90 degrees clockwise
+            dst = resample(src, width, height, 90.0, 1.0, height, width, pool, 16);
+            for(int y=0;y<width;y++) {
+                for(int x=0;x<height;x++) {
+                    int expected = src[(height-1-x)*width + y];
+                    int actual = dst[y*height + x];
+                    for(int shift=0;shift<32;shift+=8) {
+                        assertTrue(Math.abs(((expected >>> shift) & 0xff) - ((actual >>> shift) & 0xff)) <= 1);
+                    }
+                }
+            }
+
+            // scaling down by 2 samples halfway between source pixels
+            int [] flat = new int[width*height];
+            Arrays.fill(flat, 0xff406080);
+            dst = resample(flat, width, height, 0.0, 0.5, width/2, height/2, pool, 16);
+            for(int value : dst) {
+                assertEquals(0xff406080, value);
+            }
+
+            // a small angle, cropped as for auto-level: result shouldn't depend on the tiling or
+            // number of threads, should be fully inside the source image, and should only need
+            // small tile buffers
+            ForkJoinPool serial_pool = new ForkJoinPool(1);
+            int [] dst_serial = resample(src, width, height, 7.5, 0.9, 110, 70, serial_pool, 110);
+            serial_pool.shutdown();
+            AutoLevelResampler resampler = new AutoLevelResampler(width, height, 7.5, 0.9, 110, 70);
+            dst = new int[110*70];
+            resampler.process(pool, 16, new AutoLevelResampler.ArrayImage(src, width), new AutoLevelResampler.ArrayImage(dst, 110));
+            assertArrayEquals(dst_serial, dst);
+            for(int value : dst) {
+                assertEquals(0xff, value >>> 24);
+            }
+            assertTrue(resampler.getPeakTileBytes() > 0);
+            assertTrue(resampler.getPeakTileBytes() < 4L*width*height);
+
+            // pixels outside of the source are transparent
+            dst = resample(src, width, height, 45.0, 1.0, 200, 200, pool, 32);
+            assertEquals(0, dst[0]);
+            assertEquals(0xff, dst[100*200 + 100] >>> 24);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSimulatedSensor() {
+        Log.d(TAG, "testSimulatedSensor");
+
+        final long ms = 1000000L;
+        // 10fps, 30ms shutter lag, 20ms readout, 10ms per megapixel to encode, no jitter
+        SimulatedSensor sensor = new SimulatedSensor(10.0, 30*ms, 20*ms, 10*ms, 0.0, 0);
+        assertEquals(100*ms, sensor.getFrameDurationNs());
+
+        // captured in the first frame after the shutter lag: exposure 100-110ms, readout to 130ms,
+        // encode (2MP) to 150ms
+        assertEquals(150*ms, sensor.scheduleCapture(0, 10*ms, 2000, 1000));
+        // requested at the same time, so uses the next frame
+        assertEquals(250*ms, sensor.scheduleCapture(0, 10*ms, 2000, 1000));
+        // a long exposure takes multiple frames, so the capture after it is delayed
+        assertEquals(300*ms + 250*ms + 20*ms + 20*ms, sensor.scheduleCapture(0, 250*ms, 2000, 1000));
+        assertEquals(600*ms + 10*ms + 20*ms + 20*ms, sensor.scheduleCapture(0, 10*ms, 2000, 1000));
+
+        // a slow encoder means images queue for it
+        sensor = new SimulatedSensor(10.0, 0, 20*ms, 100*ms, 0.0, 0);
+        long prev_ns = 0;
+        for(int i=0;i<5;i++) {
+            long available_ns = sensor.scheduleCapture(0, 10*ms, 2000, 1000);
+            if( i == 0 )
+                assertEquals(10*ms + 20*ms + 200*ms, available_ns);
+            else
+                assertEquals(prev_ns + 200*ms, available_ns);
+            prev_ns = available_ns;
+        }
+        sensor.reset();
+        assertEquals(10*ms + 20*ms + 200*ms, sensor.scheduleCapture(0, 10*ms, 2000, 1000));
+
+        // with jitter, results are reproducible for the same seed, and captures are still roughly a
+        // frame apart
+        SimulatedSensor sensor0 = new SimulatedSensor(30.0, 50*ms, 10*ms, 2*ms, 0.1, 1234);
+        SimulatedSensor sensor1 = new SimulatedSensor(30.0, 50*ms, 10*ms, 2*ms, 0.1, 1234);
+        prev_ns = 0;
+        for(int i=0;i<20;i++) {
+            long available_ns = sensor0.scheduleCapture(0, ms, 4000, 3000);
+            assertEquals(available_ns, sensor1.scheduleCapture(0, ms, 4000, 3000));
+            assertTrue(available_ns - prev_ns >= sensor0.getFrameDurationNs()/2);
+            prev_ns = available_ns;
+        }
+    }
+
+    /** Captures with a CameraControllerSimulated, and returns the number of JPEGs, RAWs and
+     *  onBurstPictureTaken() calls received.
+     */
+    private static int[] subTestCameraControllerSimulated(CameraControllerSimulated camera_controller, CameraController.BurstType burst_type, final int max_continuous) throws InterruptedException {
+        camera_controller.setBurstType(burst_type);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int [] counts = new int[3]; // jpegs, raws, number of onBurstPictureTaken() calls
+        final CameraControllerSimulated final_camera_controller = camera_controller;
+        camera_controller.takePicture(new CameraController.PictureCallback() {
+            @Override
+            public void onStarted() {
+            }
+
+            @Override
+            public void onCompleted() {
+                latch.countDown();
+            }
+
+            @Override
+            public void onPictureTaken(byte[] data) {
+                assertEquals((byte)0xff, data[0]);
+                assertEquals((byte)0xd8, data[1]);
+                counts[0]++;
+                if( counts[0] == max_continuous )
+                    final_camera_controller.stopContinuousBurst();
+            }
+
+            @Override
+            public void onPooledPictureTaken(JpegBufferPool.Buffer buffer) {
+                onPictureTaken(Arrays.copyOf(buffer.getData(), buffer.getLength()));
+                buffer.release();
+            }
+
+            @Override
+            public void onRawPictureTaken(RawImage raw_image) {
+                counts[1]++;
+            }
+
+            @Override
+            public void onBurstPictureTaken(List<byte[]> images) {
+                counts[0] += images.size();
+                counts[2]++;
+            }
+
+            @Override
+            public void onRawBurstPictureTaken(List<RawImage> raw_images) {
+                counts[1] += raw_images.size();
+            }
+
+            @Override
+            public boolean imageQueueWouldBlock(int n_raw, int n_jpegs) {
+                return false;
+            }
+
+            @Override
+            public void onFrontScreenTurnOn() {
+            }
+        }, new CameraController.ErrorCallback() {
+            @Override
+            public void onError() {
+                fail();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertFalse(camera_controller.isCapturingBurst());
+        return counts;
+    }
+
+    @Test
+    public void testCameraControllerSimulated() throws IOException, CameraControllerException, InterruptedException {
+        Log.d(TAG, "testCameraControllerSimulated");
+
+        File folder = File.createTempFile("opencamera_simulated", "");
+        assertTrue(folder.delete());
+        assertTrue(folder.mkdir());
+        ExecutorService callback_executor = Executors.newSingleThreadExecutor();
+        CameraControllerSimulated camera_controller = null;
+        try {
+            BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+            for(int i=0;i<3;i++) {
+                assertTrue(ImageIO.write(image, "jpg", new File(folder, "frame" + i + ".jpg")));
+            }
+            // a RAW for only one of the frames
+            byte [] dng = new byte[]{'I', 'I', 42, 0};
+            FileOutputStream outputStream = new FileOutputStream(new File(folder, "frame0.dng"));
+            outputStream.write(dng);
+            outputStream.close();
+
+            camera_controller = new CameraControllerSimulated(0, folder, SimulatedSensor.createDefault(100.0), callback_executor, null);
+            assertEquals(320, camera_controller.getPictureSize().width);
+            assertEquals(240, camera_controller.getPictureSize().height);
+            assertTrue(camera_controller.getCameraFeatures().supports_raw);
+            camera_controller.startPreview();
+
+            int [] counts = subTestCameraControllerSimulated(camera_controller, CameraController.BurstType.BURSTTYPE_NONE, 0);
+            assertArrayEquals(new int[]{1, 0, 0}, counts);
+            assertTrue(camera_controller.test_last_capture_latency_ns >= 50000000L);
+
+            // frame1 and frame2 have no RAW, frame0 does
+            camera_controller.setRaw(true, 2);
+            counts = subTestCameraControllerSimulated(camera_controller, CameraController.BurstType.BURSTTYPE_EXPO, 0);
+            assertArrayEquals(new int[]{3, 1, 1}, counts);
+            camera_controller.setRaw(false, 0);
+
+            camera_controller.setBurstNImages(5);
+            counts = subTestCameraControllerSimulated(camera_controller, CameraController.BurstType.BURSTTYPE_NORMAL, 0);
+            assertArrayEquals(new int[]{5, 0, 1}, counts);
+            // 5 images need at least 4 more frames than a single image
+            assertTrue(camera_controller.test_last_capture_latency_ns >= 50000000L + 4*10000000L);
+
+            camera_controller.setFocusBracketingNImages(3);
+            camera_controller.setFocusBracketingAddInfinity(true);
+            counts = subTestCameraControllerSimulated(camera_controller, CameraController.BurstType.BURSTTYPE_FOCUS, 0);
+            assertArrayEquals(new int[]{4, 0, 0}, counts);
+
+            camera_controller.setJpegBufferPool(new JpegBufferPool(4));
+            counts = subTestCameraControllerSimulated(camera_controller, CameraController.BurstType.BURSTTYPE_CONTINUOUS, 7);
+            assertArrayEquals(new int[]{7, 0, 0}, counts);
+            assertFalse(camera_controller.isContinuousBurstInProgress());
+
+            assertEquals(1 + 3 + 5 + 4 + 7, camera_controller.test_n_frames_captured);
+        }
+        finally {
+            if( camera_controller != null )
+                camera_controller.release();
+            callback_executor.shutdown();
+            File [] files = folder.listFiles();
+            if( files != null ) {
+                for(File file : files) {
+                    assertTrue(file.delete());
+                }
+            }
+            assertTrue(folder.delete());
+        }
+    }
+
+    @Test
+    public void testReplayManifest() throws IOException {
+        Log.d(TAG, "testReplayManifest");
+
+        ReplayManifest manifest = new ReplayManifest();
+        manifest.setPhotoMode(ReplayManifest.PhotoMode.PANORAMA);
+        manifest.setViewAngles(66.5f, 50.25f);
+        manifest.setGyroInfoFilename("gyro_info.xml");
+        manifest.addFrame(new ReplayManifest.Frame("IMG_0.png", 100, 10000000L));
+        manifest.addFrame(new ReplayManifest.Frame("IMG_1.png", 200, 20000000L));
+        manifest.addFrame(new ReplayManifest.Frame("IMG_2.png", 400, 0));
+        StringWriter writer = new StringWriter();
+        manifest.write(writer);
+
+        ReplayManifest copy = ReplayManifest.read(new StringReader(writer.toString()));
+        assertSame(ReplayManifest.PhotoMode.PANORAMA, copy.getPhotoMode());
+        assertEquals(66.5f, copy.getViewAngleX(), 0.0f);
+        assertEquals(50.25f, copy.getViewAngleY(), 0.0f);
+        assertEquals("gyro_info.xml", copy.getGyroInfoFilename());
+        assertEquals(3, copy.getFrames().size());
+        for(int i=0;i<3;i++) {
+            ReplayManifest.Frame frame = manifest.getFrames().get(i);
+            ReplayManifest.Frame frame_copy = copy.getFrames().get(i);
+            assertEquals(frame.filename, frame_copy.filename);
+            assertEquals(frame.iso, frame_copy.iso);
+            assertEquals(frame.exposure_time, frame_copy.exposure_time);
+        }
+
+        // comments, blank lines and defaults
+        copy = ReplayManifest.read(new StringReader("# test\n\n  frame a.jpg\nframe b.jpg exposure=5\n"));
+        assertSame(ReplayManifest.PhotoMode.STANDARD, copy.getPhotoMode());
+        assertNull(copy.getGyroInfoFilename());
+        assertEquals(2, copy.getFrames().size());
+        assertEquals(0, copy.getFrames().get(0).iso);
+        assertEquals(5, copy.getFrames().get(1).exposure_time);
+
+        // malformed manifests
+        String [] bad_manifests = new String[] {
+                "",
+                "mode hdr\n",
+                "mode unknown\nframe a.jpg\n",
+                "frame a.jpg iso=abc\n",
+                "frame a.jpg gyro=1,0,0,0,1,0,0,0,1\n",
+                "gyro_info\nframe a.jpg\n",
+                "frame a.jpg shutter=1\n",
+                "frame\n",
+                "unknown a.jpg\n"
+        };
+        for(String bad_manifest : bad_manifests) {
+            try {
+                ReplayManifest.read(new StringReader(bad_manifest));
+                fail("expected IOException for: " + bad_manifest);
+            }
+            catch(IOException e) {
+                Log.d(TAG, "expected exception: " + e.getMessage());
+            }
+        }
+    }
 }
@@ -0,0 +1,65 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.AutoLevelResampler;
+import net.sourceforge.opencamera.ImageSaver;
+import net.sourceforge.opencamera.ParallelRows;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for the tiled rotate and crop used by auto-level, on a synthetic frame. The output is
+ *  the size of the crop that ImageSaver.autoStabiliseCrop() computes for a 5 degree rotation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class AutoLevelResamplerBenchmark {
+    @Param({"4000x3000"})
+    public String size;
+
+    @Param({"32", "64", "128"})
+    public int tile_size;
+
+    private int width;
+    private int height;
+    private int [] src;
+    private int [] dst;
+    private AutoLevelResampler resampler;
+
+    @Setup
+    public void setup() {
+        int [] dims = SyntheticFrames.parseSize(size);
+        width = dims[0];
+        height = dims[1];
+        src = SyntheticFrames.createFrame(width, height, 1.0f, 0);
+        double angle = 5.0;
+        double angle_rad = Math.toRadians(angle);
+        double w0 = width * Math.cos(angle_rad) + height * Math.sin(angle_rad);
+        double h0 = width * Math.sin(angle_rad) + height * Math.cos(angle_rad);
+        double scale = Math.sqrt((width*(double)height)/(w0*h0));
+        int [] crop = new int[2];
+        ImageSaver.autoStabiliseCrop(crop, angle_rad, w0*scale, h0*scale, (int)(width*scale), (int)(height*scale), (int)Math.round(w0*scale), (int)Math.round(h0*scale));
+        resampler = new AutoLevelResampler(width, height, angle, scale, crop[0], crop[1]);
+        dst = new int[crop[0]*crop[1]];
+    }
+
+    @Benchmark
+    public int [] rotateAndCrop() {
+        resampler.process(ParallelRows.getDefaultPool(), tile_size, new AutoLevelResampler.ArrayImage(src, width), new AutoLevelResampler.ArrayImage(dst, resampler.getDstWidth()));
+        return dst;
+    }
+}
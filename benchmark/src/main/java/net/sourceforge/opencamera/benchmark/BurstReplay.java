@@ -0,0 +1,541 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.FeatureDetector;
+import net.sourceforge.opencamera.HDRProcessor;
+import net.sourceforge.opencamera.ImageSaver;
+import net.sourceforge.opencamera.JavaDROProcessor;
+import net.sourceforge.opencamera.JavaHDRProcessor;
+import net.sourceforge.opencamera.JavaMTBAlignment;
+import net.sourceforge.opencamera.PanoramaRansac;
+import net.sourceforge.opencamera.ReplayManifest;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/** Replays a recorded capture session (see ReplayManifest) through the pure Java processing
+ *  stages, reporting the latency percentiles of each stage, the peak heap usage, and a checksum of
+ *  the output. Unlike the JMH benchmarks, this runs on real images, and each iteration runs the
+ *  whole pipeline for the photo mode, so that performance changes to HDR, DRO and panorama can be
+ *  compared on the same input. The checksum must be the same for every iteration (the processing
+ *  is deterministic, independent of the number of threads); comparing it between runs shows
+ *  whether a change affected the output.
+ *  The stages follow what ImageSaver and HDRProcessor do when using the Java code paths, though
+ *  parameters that are estimated from the images on a device (e.g., the HDR response functions)
+ *  are instead derived from the exposure times in the manifest. NR sessions can't be replayed, as
+ *  the NR merge (HDRProcessor.processAvg() and updateAvg()) only has a RenderScript
+ *  implementation.
+ *  Run with:
+ *      ./gradlew :benchmark:replay -PreplayArgs="session/manifest.txt -n 20 -o results.json"
+ */
+public class BurstReplay {
+    private static final int n_tiles_c = 4; // as used by ImageSaver for HDR and DRO
+    private static final String hdr_contrast_enhancement_c = "preference_hdr_contrast_enhancement_smart";
+    private static final int feature_descriptor_radius = 3; // as in PanoramaProcessor
+
+    private final ReplayManifest manifest;
+    private final File folder;
+    private final List<Map<String, float []>> gyro_info; // vectors for each frame, keyed by type; null if no gyro info
+    private final JavaHDRProcessor processor = new JavaHDRProcessor();
+    private final JavaDROProcessor droProcessor = new JavaDROProcessor();
+    private final JavaMTBAlignment alignment = new JavaMTBAlignment();
+    private final FeatureDetector featureDetector = new FeatureDetector();
+    private final PanoramaRansac ransac = new PanoramaRansac();
+    private final Map<String, List<Long>> stage_times = new LinkedHashMap<>();
+    private final Map<String, String> stage_notes = new LinkedHashMap<>(); // extra information to report, e.g., for each panorama pair
+    private int width;
+    private int height;
+
+    private BurstReplay(ReplayManifest manifest, File folder) throws IOException {
+        this.manifest = manifest;
+        this.folder = folder;
+        this.gyro_info = manifest.getGyroInfoFilename() == null ? null : readGyroInfo(new File(folder, manifest.getGyroInfoFilename()));
+        if( gyro_info != null && gyro_info.size() != manifest.getFrames().size() )
+            throw new IOException("gyro info has " + gyro_info.size() + " images, but manifest has " + manifest.getFrames().size() + " frames");
+    }
+
+    /** Reads the gyro debug info written by ImageSaver for panoramas (see
+     *  ImageSaver.readGyroDebugXml(), which can't be used here as it needs Android's XmlPullParser).
+     * @return For each image, the vectors keyed by their type ("X", "Y" or "Z").
+     */
+    private static List<Map<String, float []>> readGyroInfo(File file) throws IOException {
+        Element root;
+        try {
+            root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file).getDocumentElement();
+        }
+        catch(Exception e) {
+            throw new IOException("can't parse gyro info: " + file, e);
+        }
+        List<Map<String, float []>> images = new ArrayList<>();
+        NodeList image_nodes = root.getElementsByTagName("image");
+        for(int i=0;i<image_nodes.getLength();i++) {
+            Map<String, float []> vectors = new LinkedHashMap<>();
+            NodeList vector_nodes = ((Element)image_nodes.item(i)).getElementsByTagName("vector");
+            for(int j=0;j<vector_nodes.getLength();j++) {
+                Element vector = (Element)vector_nodes.item(j);
+                try {
+                    vectors.put(vector.getAttribute("type"), new float[]{
+                            Float.parseFloat(vector.getAttribute("x")),
+                            Float.parseFloat(vector.getAttribute("y")),
+                            Float.parseFloat(vector.getAttribute("z"))
+                    });
+                }
+                catch(NumberFormatException e) {
+                    throw new IOException("invalid vector in gyro info: " + file, e);
+                }
+            }
+            if( !vectors.containsKey("Y") || !vectors.containsKey("Z") )
+                throw new IOException("missing vectors for image " + i + " in gyro info: " + file);
+            images.add(vectors);
+        }
+        return images;
+    }
+
+    private void record(String stage, long time_s) {
+        long time_ns = System.nanoTime() - time_s;
+        List<Long> times = stage_times.get(stage);
+        if( times == null ) {
+            times = new ArrayList<>();
+            stage_times.put(stage, times);
+        }
+        times.add(time_ns);
+    }
+
+    /** Returns the value at percentile p (from 0 to 100) of the sorted values, using the nearest
+     *  rank method.
+     */
+    static long percentile(List<Long> sorted_values, double p) {
+        int rank = (int)Math.ceil(p/100.0 * sorted_values.size());
+        return sorted_values.get(Math.max(rank, 1) - 1);
+    }
+
+    private int [] decode(ReplayManifest.Frame frame) throws IOException {
+        File file = new File(folder, frame.filename);
+        BufferedImage image = ImageIO.read(file);
+        if( image == null )
+            throw new IOException("can't decode: " + file);
+        if( width == 0 ) {
+            width = image.getWidth();
+            height = image.getHeight();
+        }
+        else if( image.getWidth() != width || image.getHeight() != height ) {
+            throw new IOException("frames must all be the same size: " + file);
+        }
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    /** Returns the median of the luminance of the pixels, for the MTB threshold.
+     */
+    private static int medianLuminance(int [] pixels) {
+        int [] histogram = new int[256];
+        for(int pixel : pixels) {
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            histogram[(r*77 + g*150 + b*29) >> 8]++;
+        }
+        int count = 0;
+        for(int i=0;i<256;i++) {
+            count += histogram[i];
+            if( 2*count >= pixels.length )
+                return i;
+        }
+        return 255;
+    }
+
+    /** Returns the brighten parameters for DRO, given the histogram of values, as
+     *  HDRProcessor.processSingleImage() chooses them (from the median and maximum values); or
+     *  null if no brightening is needed.
+     */
+    private static JavaDROProcessor.BrightenParameters computeDROBrightenParameters(int [] histogram) {
+        int total = 0;
+        for(int count : histogram)
+            total += count;
+        int median_brightness = -1;
+        int max_brightness = 0;
+        int count = 0;
+        for(int i=0;i<256;i++) {
+            count += histogram[i];
+            if( count >= total/2 && median_brightness == -1 )
+                median_brightness = i;
+            if( histogram[i] > 0 )
+                max_brightness = i;
+        }
+        HDRProcessor.BrightenFactors brighten_factors = HDRProcessor.computeBrightenFactors(false, 0, 0, median_brightness, max_brightness);
+        if( Math.abs(brighten_factors.gain - 1.0) > 1.0e-5 || max_brightness != 255 || Math.abs(brighten_factors.gamma - 1.0) > 1.0e-5 ) {
+            return new JavaDROProcessor.BrightenParameters(brighten_factors.gain, brighten_factors.gamma, brighten_factors.low_x, brighten_factors.mid_x, max_brightness);
+        }
+        return null;
+    }
+
+    /** Aligns each image against the base image, returning the offsets as {offsets_x, offsets_y}.
+     */
+    private int [][] align(int [][] pixels, int base) {
+        int [] offsets_x = new int[pixels.length];
+        int [] offsets_y = new int[pixels.length];
+        JavaMTBAlignment.MTB mtb_base = alignment.createMTB(pixels[base], width, height, medianLuminance(pixels[base]));
+        int initial_step_size = JavaMTBAlignment.computeInitialStepSize(width, height, 1);
+        for(int i=0;i<pixels.length;i++) {
+            if( i == base )
+                continue;
+            JavaMTBAlignment.MTB mtb = alignment.createMTB(pixels[i], width, height, medianLuminance(pixels[i]));
+            int [] offset = new int[2];
+            alignment.align(mtb_base, mtb, initial_step_size, 1, offset);
+            offsets_x[i] = offset[0];
+            offsets_y[i] = offset[1];
+        }
+        return new int[][]{offsets_x, offsets_y};
+    }
+
+    private static void updateChecksum(CRC32 crc, int [] values) {
+        byte [] bytes = new byte[4*values.length];
+        for(int i=0, j=0;i<values.length;i++) {
+            int value = values[i];
+            bytes[j++] = (byte)(value >>> 24);
+            bytes[j++] = (byte)(value >>> 16);
+            bytes[j++] = (byte)(value >>> 8);
+            bytes[j++] = (byte)value;
+        }
+        crc.update(bytes);
+    }
+
+    /** Runs the pipeline for the session's photo mode once, and returns the checksum of the output.
+     */
+    private long replayOnce() throws IOException {
+        List<ReplayManifest.Frame> frames = new ArrayList<>(manifest.getFrames());
+        CRC32 crc = new CRC32();
+        long time_s = System.nanoTime();
+        int [][] pixels = new int[frames.size()][];
+        if( manifest.getPhotoMode() == ReplayManifest.PhotoMode.HDR ) {
+            // HDR expects the images sorted from darkest to brightest
+            Collections.sort(frames, new Comparator<ReplayManifest.Frame>() {
+                @Override
+                public int compare(ReplayManifest.Frame o1, ReplayManifest.Frame o2) {
+                    return Long.compare(o1.exposure_time, o2.exposure_time);
+                }
+            });
+        }
+        for(int i=0;i<frames.size();i++) {
+            pixels[i] = decode(frames.get(i));
+        }
+        record("decode", time_s);
+        long exposure_time = frames.get(frames.size()/2).exposure_time;
+
+        switch( manifest.getPhotoMode() ) {
+            case STANDARD:
+                for(int [] frame : pixels)
+                    updateChecksum(crc, frame);
+                break;
+            case DRO: {
+                // as HDRProcessor.processSingleImageJava()
+                time_s = System.nanoTime();
+                int [] output = new int[width*height];
+                int [] histograms = droProcessor.computeTileHistograms(pixels[0], width, height, n_tiles_c);
+                JavaDROProcessor.BrightenParameters brighten_parameters = computeDROBrightenParameters(JavaDROProcessor.sumTileHistograms(histograms));
+                droProcessor.process(pixels[0], output, width, height, histograms, brighten_parameters, ImageSaver.getHDRAlpha(hdr_contrast_enhancement_c, exposure_time, 1), n_tiles_c, true);
+                record("dro", time_s);
+                updateChecksum(crc, output);
+                break;
+            }
+            case HDR: {
+                if( pixels.length < 2 )
+                    throw new IOException("HDR needs at least 2 frames");
+                // for an even number of images, the base is the brighter of the middle pair
+                int base = pixels.length/2;
+                time_s = System.nanoTime();
+                int [][] offsets = align(pixels, base);
+                record("align", time_s);
+
+                time_s = System.nanoTime();
+                JavaHDRProcessor.MergeParameters params = new JavaHDRProcessor.MergeParameters(pixels.length, base);
+                float max_possible_value = 255.0f;
+                for(int i=0;i<pixels.length;i++) {
+                    // the response function is a scaling by the ratio of the exposures - if no
+                    // exposure times were recorded, assume 2 stops between images as for the
+                    // default expo bracketing
+                    float scale = frames.get(i).exposure_time > 0 && frames.get(base).exposure_time > 0 ?
+                            frames.get(base).exposure_time / (float)frames.get(i).exposure_time :
+                            (float)Math.pow(4.0, base - i);
+                    params.setResponseFunction(i, scale, 0.0f);
+                    params.setOffset(i, offsets[0][i], offsets[1][i]);
+                    max_possible_value = Math.max(max_possible_value, 255.0f*scale);
+                }
+                params.setTonemapping(JavaHDRProcessor.tonemap_algorithm_reinhard_c, max_possible_value, 128.0f);
+                int [] output = pixels[base];
+                processor.processHDR(pixels, width, height, output, params);
+                record("merge", time_s);
+
+                float hdr_alpha = ImageSaver.getHDRAlpha(hdr_contrast_enhancement_c, exposure_time, pixels.length);
+                if( hdr_alpha != 0.0f ) {
+                    time_s = System.nanoTime();
+                    processor.adjustHistogram(output, output, width, height, hdr_alpha, n_tiles_c, true);
+                    record("contrast", time_s);
+                }
+                updateChecksum(crc, output);
+                break;
+            }
+            case PANORAMA:
+                replayPanorama(pixels, frames, crc);
+                break;
+        }
+        return crc.getValue();
+    }
+
+    /** Aligns each consecutive pair of panorama images by feature matching and RANSAC, as
+     *  PanoramaProcessor.autoAlignmentByFeature() does.
+     */
+    private void replayPanorama(int [][] pixels, List<ReplayManifest.Frame> frames, CRC32 crc) {
+        long time_s = System.nanoTime();
+        int [][] corners = new int[pixels.length][];
+        for(int i=0;i<pixels.length;i++) {
+            corners[i] = featureDetector.detectCorners(pixels[i], width, height, feature_descriptor_radius, 2, 200);
+        }
+        record("features", time_s);
+
+        for(int i=0;i+1<pixels.length;i++) {
+            time_s = System.nanoTime();
+            int [] descriptors0 = FeatureDetector.extractDescriptors(pixels[i], width, corners[i], feature_descriptor_radius);
+            int [] descriptors1 = FeatureDetector.extractDescriptors(pixels[i+1], width, corners[i+1], feature_descriptor_radius);
+            final int max_match_dist2 = width*width + (height/16)*(height/16);
+            int [] candidate_matches = FeatureDetector.findCandidateMatches(corners[i], corners[i+1], max_match_dist2);
+            final float [] distances = featureDetector.computeMatchDistances(descriptors0, descriptors1, feature_descriptor_radius, candidate_matches);
+            int [] matches = chooseMatches(candidate_matches, distances, corners[i].length/2, corners[i+1].length/2);
+            record("match", time_s);
+
+            time_s = System.nanoTime();
+            int n_matches = matches.length/2;
+            int [] x0 = new int[n_matches], y0 = new int[n_matches], x1 = new int[n_matches], y1 = new int[n_matches];
+            for(int m=0;m<n_matches;m++) {
+                x0[m] = corners[i][2*matches[2*m]];
+                y0[m] = corners[i][2*matches[2*m]+1];
+                x1[m] = corners[i+1][2*matches[2*m+1]];
+                y1[m] = corners[i+1][2*matches[2*m+1]+1];
+            }
+            float max_inlier_dist = Math.max(5.01f, Math.max(width, height)/100.0f);
+            float min_rotation_dist = Math.max(5.0f, Math.max(width, height)/4.0f);
+            PanoramaRansac.Result result = ransac.run(x0, y0, x1, y1, new PanoramaRansac.Parameters(height, max_inlier_dist, min_rotation_dist));
+            record("ransac", time_s);
+
+            updateChecksum(crc, result.inliers);
+            updateChecksum(crc, new int[]{result.match0, result.match1});
+            if( result.match0 != -1 && gyro_info != null ) {
+                float gyro_dx = gyroOffsetX(gyro_info.get(i), gyro_info.get(i+1));
+                stage_notes.put("pair " + i, String.format(Locale.US, "feature dx: %d, gyro dx: %.1f, inliers: %d/%d", x0[result.match0] - x1[result.match0], gyro_dx, result.inliers.length, n_matches));
+            }
+        }
+    }
+
+    /** Chooses one to one matches in order of increasing distance, applying Lowe's ratio test as
+     *  PanoramaProcessor does.
+     * @return The chosen matches as packed pairs of indices.
+     */
+    private static int [] chooseMatches(int [] candidate_matches, final float [] distances, int n_points0, int n_points1) {
+        Integer [] order = new Integer[distances.length];
+        for(int i=0;i<order.length;i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                int result = Float.compare(distances[o1], distances[o2]);
+                return result != 0 ? result : Integer.compare(o1, o2);
+            }
+        });
+        boolean [] has_matched0 = new boolean[n_points0];
+        boolean [] has_matched1 = new boolean[n_points1];
+        int [] chosen = new int[2*Math.min(n_points0, n_points1)];
+        int n_chosen = 0;
+        for(int i=0;i<order.length;i++) {
+            int index0 = candidate_matches[2*order[i]];
+            int index1 = candidate_matches[2*order[i]+1];
+            if( has_matched0[index0] || has_matched1[index1] )
+                continue;
+            boolean reject = false;
+            for(int j=i+1;j<order.length;j++) {
+                if( candidate_matches[2*order[j]] == index0 ) {
+                    reject = distances[order[i]] / distances[order[j]] + 1.0e-5 > 0.8f;
+                    break;
+                }
+            }
+            has_matched0[index0] = true;
+            if( reject )
+                continue;
+            has_matched1[index1] = true;
+            chosen[n_chosen++] = index0;
+            chosen[n_chosen++] = index1;
+        }
+        return Arrays.copyOf(chosen, n_chosen);
+    }
+
+    /** Returns the horizontal offset in pixels between two images predicted by their gyro info,
+     *  from the rotation of the vector behind the screen about the "up" axis. As for the feature
+     *  offset, this is x0 - x1 for a point at x0 in the first image and x1 in the second, so is
+     *  positive when panning to the right.
+     */
+    private float gyroOffsetX(Map<String, float []> vectors0, Map<String, float []> vectors1) {
+        float [] screen0 = vectors0.get("Z");
+        float [] screen1 = vectors1.get("Z");
+        float [] up0 = vectors0.get("Y");
+        float [] cross = {
+                screen0[1]*screen1[2] - screen0[2]*screen1[1],
+                screen0[2]*screen1[0] - screen0[0]*screen1[2],
+                screen0[0]*screen1[1] - screen0[1]*screen1[0]
+        };
+        double sin_angle = cross[0]*up0[0] + cross[1]*up0[1] + cross[2]*up0[2];
+        double cos_angle = screen0[0]*screen1[0] + screen0[1]*screen1[1] + screen0[2]*screen1[2];
+        double angle = Math.atan2(sin_angle, cos_angle);
+        double half_view_x = Math.toRadians(manifest.getViewAngleX() > 0.0f ? manifest.getViewAngleX() : 66.0f) / 2.0;
+        // a rotation to the right is a negative angle about the up axis
+        return (float)(-Math.tan(angle) / Math.tan(half_view_x) * width / 2.0);
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if( pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() )
+                pools.add(pool);
+        }
+        return pools;
+    }
+
+    private static void usage() {
+        System.err.println("usage: BurstReplay <manifest> [-n iterations] [-warmup iterations] [-o results.json]");
+        System.exit(2);
+    }
+
+    public static void main(String [] args) throws IOException {
+        if( args.length == 0 )
+            usage();
+        File manifest_file = new File(args[0]);
+        int n_iterations = 10;
+        int n_warmup = 2;
+        File output_file = null;
+        for(int i=1;i<args.length;i++) {
+            if( i+1 >= args.length )
+                usage();
+            switch( args[i] ) {
+                case "-n":
+                    n_iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-warmup":
+                    n_warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-o":
+                    output_file = new File(args[++i]);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        if( n_iterations <= 0 )
+            usage();
+
+        ReplayManifest manifest;
+        Reader reader = new InputStreamReader(new FileInputStream(manifest_file), StandardCharsets.UTF_8);
+        try {
+            manifest = ReplayManifest.read(reader);
+        }
+        finally {
+            reader.close();
+        }
+        File folder = manifest_file.getAbsoluteFile().getParentFile();
+        BurstReplay replay = new BurstReplay(manifest, folder);
+
+        for(int i=0;i<n_warmup;i++) {
+            replay.replayOnce();
+        }
+        replay.stage_times.clear();
+        replay.stage_notes.clear();
+
+        System.gc();
+        List<MemoryPoolMXBean> heap_pools = getHeapPools();
+        for(MemoryPoolMXBean pool : heap_pools) {
+            pool.resetPeakUsage();
+        }
+        long checksum = 0;
+        boolean checksum_stable = true;
+        List<Long> total_times = new ArrayList<>();
+        for(int i=0;i<n_iterations;i++) {
+            long time_s = System.nanoTime();
+            long this_checksum = replay.replayOnce();
+            total_times.add(System.nanoTime() - time_s);
+            if( i == 0 )
+                checksum = this_checksum;
+            else if( this_checksum != checksum )
+                checksum_stable = false;
+        }
+        long peak_heap_bytes = 0;
+        for(MemoryPoolMXBean pool : heap_pools) {
+            peak_heap_bytes += pool.getPeakUsage().getUsed();
+        }
+        replay.stage_times.put("total", total_times);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"manifest\": \"").append(manifest_file.getPath().replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+        json.append("  \"mode\": \"").append(manifest.getPhotoMode().getName()).append("\",\n");
+        json.append("  \"frames\": ").append(manifest.getFrames().size()).append(",\n");
+        json.append("  \"width\": ").append(replay.width).append(",\n");
+        json.append("  \"height\": ").append(replay.height).append(",\n");
+        json.append("  \"iterations\": ").append(n_iterations).append(",\n");
+        json.append("  \"peak_heap_bytes\": ").append(peak_heap_bytes).append(",\n");
+        json.append(String.format(Locale.US, "  \"checksum\": \"%08x\",\n", checksum));
+        json.append("  \"checksum_stable\": ").append(checksum_stable).append(",\n");
+        json.append("  \"stages\": {");
+
+        System.out.println(String.format(Locale.US, "%s: %d frames of %dx%d, %d iterations", manifest.getPhotoMode().getName(), manifest.getFrames().size(), replay.width, replay.height, n_iterations));
+        System.out.println(String.format(Locale.US, "%-10s %10s %10s %10s %10s", "stage (ms)", "p50", "p90", "p99", "max"));
+        boolean first = true;
+        for(Map.Entry<String, List<Long>> entry : replay.stage_times.entrySet()) {
+            List<Long> sorted = new ArrayList<>(entry.getValue());
+            Collections.sort(sorted);
+            long p50 = percentile(sorted, 50.0), p90 = percentile(sorted, 90.0), p99 = percentile(sorted, 99.0), max = sorted.get(sorted.size()-1);
+            System.out.println(String.format(Locale.US, "%-10s %10.2f %10.2f %10.2f %10.2f", entry.getKey(), p50/1.0e6, p90/1.0e6, p99/1.0e6, max/1.0e6));
+            json.append(first ? "\n" : ",\n");
+            json.append(String.format(Locale.US, "    \"%s\": {\"samples\": %d, \"p50_ns\": %d, \"p90_ns\": %d, \"p99_ns\": %d, \"max_ns\": %d}", entry.getKey(), sorted.size(), p50, p90, p99, max));
+            first = false;
+        }
+        json.append("\n  }\n}\n");
+        for(Map.Entry<String, String> entry : replay.stage_notes.entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue());
+        }
+        System.out.println(String.format(Locale.US, "peak heap: %.1f MB", peak_heap_bytes/(1024.0*1024.0)));
+        System.out.println(String.format(Locale.US, "checksum: %08x%s", checksum, checksum_stable ? "" : " (NOT STABLE between iterations)"));
+
+        if( output_file != null ) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(output_file), StandardCharsets.UTF_8);
+            try {
+                writer.write(json.toString());
+            }
+            finally {
+                writer.close();
+            }
+        }
+        if( !checksum_stable )
+            System.exit(1);
+    }
+}
@@ -0,0 +1,76 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.FeatureDetector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for the panorama feature detection and matching, on synthetic frames of the size
+ *  used for panorama alignment.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FeatureDetectorBenchmark {
+    private static final int feature_descriptor_radius = 3; // as in PanoramaProcessor
+
+    @Param({"640x480", "1280x960"})
+    public String size;
+
+    private int width;
+    private int height;
+    private int [] pixels0;
+    private int [] pixels1;
+    private int [] corners0;
+    private int [] corners1;
+    private int [] descriptors0;
+    private int [] descriptors1;
+    private int [] candidate_matches;
+    private int max_match_dist2;
+    private FeatureDetector detector;
+
+    @Setup
+    public void setup() {
+        int [] dims = SyntheticFrames.parseSize(size);
+        width = dims[0];
+        height = dims[1];
+        pixels0 = SyntheticFrames.createFrame(width, height, 1.0f, 0);
+        pixels1 = SyntheticFrames.createFrame(width, height, 1.0f, 1);
+        detector = new FeatureDetector();
+        corners0 = detector.detectCorners(pixels0, width, height, feature_descriptor_radius, 2, 200);
+        corners1 = detector.detectCorners(pixels1, width, height, feature_descriptor_radius, 2, 200);
+        descriptors0 = FeatureDetector.extractDescriptors(pixels0, width, corners0, feature_descriptor_radius);
+        descriptors1 = FeatureDetector.extractDescriptors(pixels1, width, corners1, feature_descriptor_radius);
+        max_match_dist2 = width*width + (height/16)*(height/16);
+        candidate_matches = FeatureDetector.findCandidateMatches(corners0, corners1, max_match_dist2);
+    }
+
+    @Benchmark
+    public int [] detectCorners() {
+        return detector.detectCorners(pixels0, width, height, feature_descriptor_radius, 2, 200);
+    }
+
+    @Benchmark
+    public int [] findCandidateMatches() {
+        return FeatureDetector.findCandidateMatches(corners0, corners1, max_match_dist2);
+    }
+
+    @Benchmark
+    public float [] computeMatchDistances() {
+        return detector.computeMatchDistances(descriptors0, descriptors1, feature_descriptor_radius, candidate_matches);
+    }
+}
@@ -0,0 +1,34 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.HDRProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for the parameter calculations in HDRProcessor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HDRProcessorBenchmark {
+    /** Computes the brighten factors used for noise reduction, for the full range of brightness
+     *  values, both with and without ISO/exposure information.
+     */
+    @Benchmark
+    public void computeBrightenFactors(Blackhole blackhole) {
+        for(int brightness=1;brightness<256;brightness++) {
+            blackhole.consume(HDRProcessor.computeBrightenFactors(true, 1600, 1000000000L/12, brightness, 255));
+            blackhole.consume(HDRProcessor.computeBrightenFactors(false, 0, 0, brightness, 255));
+        }
+    }
+}
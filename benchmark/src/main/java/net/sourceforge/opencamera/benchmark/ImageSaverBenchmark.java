@@ -0,0 +1,64 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.ImageSaver;
+import net.sourceforge.opencamera.ImageSaverQueuePolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for the calculations in ImageSaver that don't need the Android framework.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageSaverBenchmark {
+    private final int [] crop = new int[2];
+    private List<ImageSaverQueuePolicy.SimulatedRequest> burst;
+
+    @Setup
+    public void setup() {
+        // burst of 20 photos with RAW+JPEG
+        burst = new ArrayList<>();
+        for(int i=0;i<20;i++) {
+            burst.add(new ImageSaverQueuePolicy.SimulatedRequest(i*100, 24*ImageSaverQueuePolicy.MB, 1, 0, 800));
+            burst.add(new ImageSaverQueuePolicy.SimulatedRequest(i*100, 5*ImageSaverQueuePolicy.MB, 0, 1, 400));
+        }
+    }
+
+    /** Computes the auto-level crop for a 4000x3000 image, for angles of up to 45 degrees either
+     *  way in 0.5 degree steps.
+     */
+    @Benchmark
+    public void autoStabiliseCrop(Blackhole blackhole) {
+        final int w1 = 4000, h1 = 3000;
+        for(int i=-90;i<=90;i++) {
+            double level_angle_rad_abs = Math.abs(Math.toRadians(0.5*i));
+            double w0 = w1 * Math.cos(level_angle_rad_abs) + h1 * Math.sin(level_angle_rad_abs);
+            double h0 = w1 * Math.sin(level_angle_rad_abs) + h1 * Math.cos(level_angle_rad_abs);
+            blackhole.consume(ImageSaver.autoStabiliseCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, (int)w0, (int)h0));
+            blackhole.consume(crop[0]);
+            blackhole.consume(crop[1]);
+        }
+    }
+
+    @Benchmark
+    public ImageSaverQueuePolicy.SimulationResult simulateQueue() {
+        return ImageSaverQueuePolicy.simulate(ImageSaverQueuePolicy.computeBudget(256*ImageSaverQueuePolicy.MB), ImageSaverQueuePolicy.computeMaxRawImages(256), burst, 2);
+    }
+}
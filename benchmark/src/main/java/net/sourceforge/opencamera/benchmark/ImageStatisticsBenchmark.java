@@ -0,0 +1,67 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.ImageStatistics;
+import net.sourceforge.opencamera.ParallelRows;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for ImageStatistics, comparing the single pass for all the histograms with a
+ *  separate single threaded pass for each of the value, intensity and luminance histograms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class ImageStatisticsBenchmark {
+    @Param({"2048x1536", "4000x3000"})
+    public String size;
+
+    private int width;
+    private int height;
+    private int [] input;
+
+    @Setup
+    public void setup() {
+        int [] dims = SyntheticFrames.parseSize(size);
+        width = dims[0];
+        height = dims[1];
+        input = SyntheticFrames.createFrame(width, height, 1.0f, 0);
+    }
+
+    @Benchmark
+    public ImageStatistics computeFused() {
+        return ImageStatistics.compute(ParallelRows.getDefaultPool(), 32, input, width, height);
+    }
+
+    @Benchmark
+    public int [][] computeSeparate() {
+        int [][] histograms = new int[3][256];
+        for(int color : input) {
+            int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+            histograms[0][Math.max(r, Math.max(g, b))]++;
+        }
+        for(int color : input) {
+            int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+            histograms[1][(r + g + b + 1)/3]++;
+        }
+        for(int color : input) {
+            int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+            histograms[2][Math.min((int)(0.299f*r + 0.587f*g + 0.114f*b + 0.5f), 255)]++;
+        }
+        return histograms;
+    }
+}
@@ -0,0 +1,71 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.JavaDROProcessor;
+import net.sourceforge.opencamera.JavaHDRProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for the pure Java DRO, comparing the fused brighten and contrast enhancement of
+ *  JavaDROProcessor with doing the same as separate passes, on an underexposed synthetic frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class JavaDROBenchmark {
+    @Param({"2048x1536", "4000x3000"})
+    public String size;
+
+    private int width;
+    private int height;
+    private int [] input;
+    private int [] output;
+    private JavaDROProcessor processor;
+    private JavaHDRProcessor hdr_processor;
+    private JavaDROProcessor.BrightenParameters params;
+
+    @Setup
+    public void setup() {
+        int [] dims = SyntheticFrames.parseSize(size);
+        width = dims[0];
+        height = dims[1];
+        input = SyntheticFrames.createFrame(width, height, 0.5f, 0);
+        output = new int[width*height];
+        processor = new JavaDROProcessor();
+        hdr_processor = new JavaHDRProcessor();
+        // typical of HDRProcessor.computeBrightenFactors() for a dark image
+        params = new JavaDROProcessor.BrightenParameters(1.5f, 0.8f, 0.0f, 136.0f, 200.0f);
+    }
+
+    /** Two passes: the tile histograms, then the fused brighten and contrast enhancement.
+     */
+    @Benchmark
+    public int [] processFused() {
+        int [] histograms = processor.computeTileHistograms(input, width, height, 4);
+        processor.process(input, output, width, height, histograms, params, 0.5f, 4, true);
+        return output;
+    }
+
+    /** The same result as processFused(), with separate brighten and contrast enhancement passes.
+     */
+    @Benchmark
+    public int [] processSeparate() {
+        processor.brighten(input, output, width, height, params);
+        hdr_processor.adjustHistogram(output, output, width, height, 0.5f, 4, true);
+        return output;
+    }
+}
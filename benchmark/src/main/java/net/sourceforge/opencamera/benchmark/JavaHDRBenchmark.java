@@ -0,0 +1,79 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.JavaHDRProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for the pure Java HDR code, on synthetic frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class JavaHDRBenchmark {
+    @Param({"2048x1536", "4000x3000"})
+    public String size;
+
+    private int width;
+    private int height;
+    private int [][] inputs;
+    private int [] inputs_y0;
+    private int [] output;
+    private JavaHDRProcessor processor;
+    private JavaHDRProcessor.MergeParameters params;
+
+    @Setup
+    public void setup() {
+        int [] dims = SyntheticFrames.parseSize(size);
+        width = dims[0];
+        height = dims[1];
+        inputs = SyntheticFrames.createExposureBracket(width, height, 3);
+        inputs_y0 = new int[inputs.length];
+        output = new int[width*height];
+        processor = new JavaHDRProcessor();
+
+        params = new JavaHDRProcessor.MergeParameters(inputs.length, 1);
+        params.setResponseFunction(0, 4.0f, 0.0f);
+        params.setResponseFunction(2, 0.25f, 0.0f);
+        params.setOffset(0, 2, -1);
+        params.setOffset(2, -3, 1);
+        params.setTonemapping(JavaHDRProcessor.tonemap_algorithm_reinhard_c, 4.0f*255.0f, 128.0f);
+    }
+
+    @Benchmark
+    public int [] processHDR() {
+        processor.processHDR(inputs, width, height, output, params);
+        return output;
+    }
+
+    /** Merges in strips of 256 rows, as HDRProcessor.processHDRStreaming() does.
+     */
+    @Benchmark
+    public int [] processHDRStrips() {
+        final int strip_height = 256;
+        for(int y=0;y<height;y+=strip_height) {
+            processor.processHDRStrip(inputs, inputs_y0, width, height, output, y, Math.min(y+strip_height, height), params);
+        }
+        return output;
+    }
+
+    @Benchmark
+    public int [] adjustHistogram() {
+        processor.adjustHistogram(inputs[1], output, width, height, 0.5f, 4, true);
+        return output;
+    }
+}
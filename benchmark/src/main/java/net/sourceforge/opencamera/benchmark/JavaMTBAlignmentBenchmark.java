@@ -0,0 +1,70 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.JavaMTBAlignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for the pure Java median threshold bitmap alignment, on synthetic frames. The sizes
+ *  are those of the centre region that HDRProcessor aligns, for 8MP and 12MP photos.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class JavaMTBAlignmentBenchmark {
+    @Param({"1632x1224", "2000x1500"})
+    public String size;
+
+    private int width;
+    private int height;
+    private int [][] frames;
+    private JavaMTBAlignment alignment;
+    private JavaMTBAlignment.MTB mtb0;
+    private JavaMTBAlignment.MTB mtb1;
+
+    @Setup
+    public void setup() {
+        int [] dims = SyntheticFrames.parseSize(size);
+        width = dims[0];
+        height = dims[1];
+        frames = SyntheticFrames.createExposureBracket(width, height, 2);
+        alignment = new JavaMTBAlignment();
+        mtb0 = alignment.createMTB(frames[0], width, height, 128);
+        mtb1 = alignment.createMTB(frames[1], width, height, 128);
+    }
+
+    @Benchmark
+    public JavaMTBAlignment.MTB createMTB() {
+        return alignment.createMTB(frames[0], width, height, 128);
+    }
+
+    /** The errors for the final (and most expensive) level, where every pixel is sampled.
+     */
+    @Benchmark
+    public long [] computeErrors() {
+        return alignment.computeErrors(mtb0, mtb1, 3, -2, 1);
+    }
+
+    /** The full search, with the initial step size HDRProcessor uses for a 4000x3000 photo.
+     */
+    @Benchmark
+    public int [] align() {
+        int [] offset = new int[2];
+        alignment.align(mtb0, mtb1, JavaMTBAlignment.computeInitialStepSize(4000, 3000, 1), 1, offset);
+        return offset;
+    }
+}
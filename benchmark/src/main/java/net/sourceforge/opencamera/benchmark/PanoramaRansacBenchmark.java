@@ -0,0 +1,87 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.PanoramaRansac;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for the panorama RANSAC, with early termination and with an exhaustive search, on
+ *  synthetic matches made up of a rotation plus translation and a fraction of outliers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PanoramaRansacBenchmark {
+    private static final int width = 640;
+    private static final int height = 480;
+
+    @Param({"40", "80"})
+    public int n_matches;
+
+    @Param({"0.2", "0.5"})
+    public double outlier_ratio;
+
+    private int [] x0;
+    private int [] y0;
+    private int [] x1;
+    private int [] y1;
+    private PanoramaRansac ransac;
+    private PanoramaRansac.Parameters adaptive_params;
+    private PanoramaRansac.Parameters exhaustive_params;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        x0 = new int[n_matches];
+        y0 = new int[n_matches];
+        x1 = new int[n_matches];
+        y1 = new int[n_matches];
+        final double angle = Math.toRadians(1.5);
+        for(int i=0;i<n_matches;i++) {
+            x0[i] = random.nextInt(width);
+            y0[i] = random.nextInt(height);
+            if( random.nextDouble() < outlier_ratio ) {
+                x1[i] = random.nextInt(width);
+                y1[i] = random.nextInt(height);
+            }
+            else {
+                double dx = x0[i] - width/2.0;
+                double dy = y0[i] - height/2.0;
+                x1[i] = (int)Math.round(width/2.0 + dx*Math.cos(angle) - dy*Math.sin(angle)) - 12;
+                y1[i] = (int)Math.round(height/2.0 + dx*Math.sin(angle) + dy*Math.cos(angle)) + 3;
+            }
+        }
+        ransac = new PanoramaRansac();
+        // as in PanoramaProcessor.autoAlignmentByFeature()
+        float max_inlier_dist = Math.max(5.01f, Math.max(width, height)/100.0f);
+        float min_rotation_dist = Math.max(5.0f, Math.max(width, height)/4.0f);
+        adaptive_params = new PanoramaRansac.Parameters(height, max_inlier_dist, min_rotation_dist);
+        exhaustive_params = new PanoramaRansac.Parameters(height, max_inlier_dist, min_rotation_dist);
+        exhaustive_params.setConfidence(1.0);
+    }
+
+    @Benchmark
+    public PanoramaRansac.Result adaptive() {
+        return ransac.run(x0, y0, x1, y1, adaptive_params);
+    }
+
+    @Benchmark
+    public PanoramaRansac.Result exhaustive() {
+        return ransac.run(x0, y0, x1, y1, exhaustive_params);
+    }
+}
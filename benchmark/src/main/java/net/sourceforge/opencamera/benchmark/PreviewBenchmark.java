@@ -0,0 +1,74 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.preview.Preview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for choosing the preview size and frame rate, with lists of the sort of length
+ *  returned by Camera2 devices.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreviewBenchmark {
+    private List<CameraController.Size> sizes;
+    private List<int []> fps_ranges;
+    private CameraController.Size max_video_size;
+
+    @Setup
+    public void setup() {
+        sizes = new ArrayList<>();
+        final int [][] aspect_ratios = {{4, 3}, {16, 9}, {1, 1}, {3, 2}, {20, 9}};
+        for(int [] aspect_ratio : aspect_ratios) {
+            for(int height=144;height<=3000;height+=144) {
+                int width = height * aspect_ratio[0] / aspect_ratio[1];
+                sizes.add(new CameraController.Size(width, height));
+            }
+        }
+
+        fps_ranges = new ArrayList<>();
+        fps_ranges.add(new int[]{15000, 15000});
+        fps_ranges.add(new int[]{7000, 20000});
+        fps_ranges.add(new int[]{15000, 24000});
+        fps_ranges.add(new int[]{24000, 24000});
+        fps_ranges.add(new int[]{15000, 30000});
+        fps_ranges.add(new int[]{30000, 30000});
+        fps_ranges.add(new int[]{30000, 60000});
+        fps_ranges.add(new int[]{60000, 60000});
+
+        max_video_size = new CameraController.Size(3840, 2160);
+    }
+
+    @Benchmark
+    public CameraController.Size getOptimalPreviewSize() {
+        // 20:9 display in landscape
+        return Preview.getOptimalPreviewSize(sizes, 2400.0/1080.0, 1080);
+    }
+
+    @Benchmark
+    public CameraController.Size getOptimalVideoPictureSize() {
+        return Preview.getOptimalVideoPictureSize(sizes, 16.0/9.0, max_video_size);
+    }
+
+    @Benchmark
+    public int [] chooseBestPreviewFps() {
+        return Preview.chooseBestPreviewFps(fps_ranges);
+    }
+}
@@ -0,0 +1,68 @@
+package net.sourceforge.opencamera.benchmark;
+
+import net.sourceforge.opencamera.BestOfBurstSelector;
+import net.sourceforge.opencamera.SharpnessScorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for SharpnessScorer at the sample factor used for best of burst, and for selecting
+ *  the best of a burst of frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class SharpnessScorerBenchmark {
+    @Param({"2048x1536", "4000x3000"})
+    public String size;
+
+    private static final int n_burst_c = 8;
+
+    private int width;
+    private int height;
+    private int [][] frames;
+    private SharpnessScorer scorer;
+
+    @Setup
+    public void setup() {
+        int [] dims = SyntheticFrames.parseSize(size);
+        width = dims[0];
+        height = dims[1];
+        frames = new int[n_burst_c][];
+        for(int i=0;i<n_burst_c;i++) {
+            frames[i] = SyntheticFrames.createFrame(width, height, 1.0f, i);
+        }
+        scorer = new SharpnessScorer();
+    }
+
+    @Benchmark
+    public long score() {
+        return scorer.score(frames[0], width, height, 2);
+    }
+
+    /** Scores a burst of frames, keeping the sharpest 2.
+     */
+    @Benchmark
+    public List<int []> selectBestOfBurst() {
+        BestOfBurstSelector<int []> selector = new BestOfBurstSelector<>(2);
+        for(int i=0;i<n_burst_c;i++) {
+            selector.add(i, scorer.score(frames[i], width, height, 2), frames[i]);
+        }
+        return selector.getKept();
+    }
+}
@@ -0,0 +1,51 @@
+package net.sourceforge.opencamera.benchmark;
+
+import java.util.Random;
+
+/** Generates synthetic ARGB frames for the benchmarks, so that results don't depend on test
+ *  images being available.
+ */
+class SyntheticFrames {
+    /** Parses a size of the form "widthxheight", e.g., "4000x3000".
+     */
+    static int [] parseSize(String size) {
+        String [] values = size.split("x");
+        return new int[]{Integer.parseInt(values[0]), Integer.parseInt(values[1])};
+    }
+
+    /** Creates a frame with a diagonal gradient, some larger scale structure and noise, scaled by
+     *  exposure (so that a set of frames with different exposures resembles an HDR burst).
+     */
+    static int [] createFrame(int width, int height, float exposure, long seed) {
+        Random random = new Random(seed);
+        int [] pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                float base = 255.0f * (x + y) / (float)(width + height);
+                // blocks of detail, so histograms and alignment see some structure
+                if( ((x >> 6) + (y >> 6)) % 3 == 0 )
+                    base = 0.5f * base + 64.0f;
+                int r = clamp((base + random.nextInt(16) - 8) * exposure);
+                int g = clamp((0.9f * base + random.nextInt(16) - 8) * exposure);
+                int b = clamp((0.8f * base + random.nextInt(16) - 8) * exposure);
+                pixels[y*width+x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    /** Creates n_frames frames with exposures spaced by 2 stops, ordered from darkest to brightest.
+     */
+    static int [][] createExposureBracket(int width, int height, int n_frames) {
+        int [][] frames = new int[n_frames][];
+        for(int i=0;i<n_frames;i++) {
+            float exposure = (float)Math.pow(2.0, 2*(i - (n_frames-1)/2.0));
+            frames[i] = createFrame(width, height, exposure, i);
+        }
+        return frames;
+    }
+
+    private static int clamp(float value) {
+        return Math.max(0, Math.min(255, (int)value));
+    }
+}